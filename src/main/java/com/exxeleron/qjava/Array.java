@@ -422,4 +422,44 @@ final class Array {
             throw illegalArgumentArray(array);
         }
     }
+
+    /**
+     * Creates a new array with the specified component type and length. Reference types are created via
+     * {@link java.lang.reflect.Array#newInstance(Class, int)}.
+     * 
+     * @param componentType
+     *            the <code>Class</code> object representing the component type of the new array
+     * @param length
+     *            the length of the new array
+     * @return the new array
+     * 
+     * @throws NullPointerException
+     *             If the specified <code>componentType</code> parameter is <code>null</code>
+     * @throws NegativeArraySizeException
+     *             If the specified <code>length</code> is negative
+     */
+    public static Object newInstance( final Class<?> componentType, final int length ) {
+        if ( componentType == boolean.class ) {
+            return new boolean[length];
+        } else if ( componentType == byte.class ) {
+            return new byte[length];
+        } else if ( componentType == char.class ) {
+            return new char[length];
+        } else if ( componentType == short.class ) {
+            return new short[length];
+        } else if ( componentType == int.class ) {
+            return new int[length];
+        } else if ( componentType == long.class ) {
+            return new long[length];
+        } else if ( componentType == float.class ) {
+            return new float[length];
+        } else if ( componentType == double.class ) {
+            return new double[length];
+        } else if ( componentType == Object.class ) {
+            return new Object[length];
+        } else if ( componentType == String.class ) {
+            return new String[length];
+        }
+        return java.lang.reflect.Array.newInstance(componentType, length);
+    }
 }
@@ -40,8 +40,20 @@ public final class ByteInputStream {
      *            byte buffer to be wrapped
      */
     public void wrap( final byte[] newBuffer ) {
+        wrap(newBuffer, 0);
+    }
+
+    /**
+     * Wraps byte buffer and sets reading position.
+     * 
+     * @param newBuffer
+     *            byte buffer to be wrapped
+     * @param offset
+     *            initial reading position
+     */
+    public void wrap( final byte[] newBuffer, final int offset ) {
         buffer = newBuffer;
-        position = 0;
+        position = offset;
     }
 
     /**
@@ -0,0 +1,410 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends asynchronous messages via a bounded queue and a dedicated writer thread, so that publishing threads don't
+ * block on a slow q service.
+ * <p>
+ * Messages are serialized by the publishing thread and queued. The writer thread drains all queued messages and
+ * writes them to the socket at once. When the queue is full, behaviour is defined by the {@link OverflowPolicy}:
+ * </p>
+ *
+ * <pre>
+ * QAsyncSender sender = new QAsyncSender(connection, 10000, QAsyncSender.OverflowPolicy.BLOCK);
+ * sender.async(&quot;.u.upd&quot;, &quot;trade&quot;, data);
+ * ...
+ * System.out.println(sender.getQueueDepth() + &quot; messages, &quot; + sender.getPendingBytes() + &quot; bytes pending&quot;);
+ * sender.close();
+ * </pre>
+ * <p>
+ * Methods of {@link QAsyncSender} are thread safe. The sender should be the only writer to the connection, though
+ * messages can still be received from it by another thread. If writing to the connection fails, the sender stops and
+ * subsequent calls fail with the error.
+ * </p>
+ */
+public class QAsyncSender {
+
+    /**
+     * Defines behaviour of the sender when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Blocks the publishing thread until there is space in the queue.
+         */
+        BLOCK,
+        /**
+         * Rejects the message with {@link RejectedExecutionException}.
+         */
+        FAIL_FAST,
+        /**
+         * Drops the oldest queued message.
+         */
+        DROP_OLDEST
+    }
+
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+    private final QBasicConnection connection;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread writerThread;
+    private final ThreadLocal<QSerializer> serializers = new ThreadLocal<QSerializer>() {
+
+        @Override
+        protected QSerializer initialValue() {
+            return new QSerializer(connection.getEncoding());
+        }
+    };
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong stallCount = new AtomicLong();
+    private final AtomicLong stallTime = new AtomicLong();
+
+    private volatile int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private volatile boolean closed;
+    private volatile IOException lastError;
+    // messages queued or being written, guarded by this
+    private int unwritten;
+
+    /**
+     * Creates new {@link QAsyncSender} object and starts the writer thread.
+     *
+     * @param connection
+     *            opened connection
+     * @param capacity
+     *            maximal number of queued messages
+     * @param overflowPolicy
+     *            behaviour when the queue is full
+     */
+    public QAsyncSender(final QBasicConnection connection, final int capacity, final OverflowPolicy overflowPolicy) {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("Queue capacity has to be positive");
+        }
+        if ( overflowPolicy == null ) {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+        this.connection = connection;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+        this.writerThread = new Thread(new Runnable() {
+
+            public void run() {
+                writeLoop();
+            }
+        }, "qJava-sender-" + connection);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Sets maximal size of messages written to the socket at once. Default: 1 MB.
+     *
+     * @param maxBatchBytes
+     *            size in bytes
+     */
+    public void setMaxBatchBytes( final int maxBatchBytes ) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Serializes and queues an asynchronous query.
+     *
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @throws QException
+     *             if the query cannot be serialized
+     * @throws IOException
+     *             if writing to the connection has failed or the sender is closed
+     * @throws RejectedExecutionException
+     *             if the queue is full and {@link OverflowPolicy#FAIL_FAST} policy is used
+     */
+    public void async( final String query, final Object... parameters ) throws QException, IOException {
+        final QSerializer serializer = serializers.get();
+        serializer.setProtocolVersion(connection.getProtocolVersion());
+        if ( parameters.length == 0 ) {
+            send(serializer.serialize(query.toCharArray()));
+        } else {
+            final Object[] request = new Object[parameters.length + 1];
+            request[0] = query.toCharArray();
+            System.arraycopy(parameters, 0, request, 1, parameters.length);
+            send(serializer.serialize(request));
+        }
+    }
+
+    /**
+     * Queues already serialized asynchronous message, including the 8 bytes header.
+     *
+     * @param message
+     *            serialized message, must not be modified afterwards
+     * @throws IOException
+     *             if writing to the connection has failed or the sender is closed
+     * @throws RejectedExecutionException
+     *             if the queue is full and {@link OverflowPolicy#FAIL_FAST} policy is used
+     */
+    public void send( final byte[] message ) throws IOException {
+        synchronized ( this ) {
+            // closing waits for messages counted here
+            checkState();
+            unwritten++;
+        }
+
+        pendingBytes.addAndGet(message.length);
+        if ( queue.offer(message) ) {
+            return;
+        }
+
+        switch ( overflowPolicy ) {
+        case BLOCK:
+            stallCount.incrementAndGet();
+            final long start = System.nanoTime();
+            try {
+                while ( !queue.offer(message, 100, TimeUnit.MILLISECONDS) ) {
+                    if ( lastError != null ) {
+                        checkState();
+                    }
+                }
+            } catch ( final InterruptedException e ) {
+                written(1, message.length);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for space in the send queue");
+            } catch ( final IOException e ) {
+                written(1, message.length);
+                throw e;
+            } finally {
+                stallTime.addAndGet(System.nanoTime() - start);
+            }
+            break;
+        case FAIL_FAST:
+            written(1, message.length);
+            throw new RejectedExecutionException("Send queue is full: " + queue.size() + " messages, " + pendingBytes.get() + " bytes pending");
+        case DROP_OLDEST:
+            while ( !queue.offer(message) ) {
+                final byte[] oldest = queue.poll();
+                if ( oldest != null ) {
+                    droppedCount.incrementAndGet();
+                    written(1, oldest.length);
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Removes messages which have been written, dropped or rejected from the pending ones.
+     */
+    private synchronized void written( final int count, final long size ) {
+        pendingBytes.addAndGet(-size);
+        unwritten -= count;
+        notifyAll();
+    }
+
+    private void checkState() throws IOException {
+        if ( lastError != null ) {
+            throw (IOException) new IOException("Sending to " + connection + " has failed: " + lastError.getMessage()).initCause(lastError);
+        }
+        if ( closed ) {
+            throw new IOException("Sender is closed");
+        }
+    }
+
+    private synchronized boolean isDone() {
+        return closed && unwritten == 0;
+    }
+
+    private void writeLoop() {
+        final List<byte[]> batch = new ArrayList<byte[]>();
+        final ByteOutputStream buffer = new ByteOutputStream();
+        try {
+            while ( !isDone() ) {
+                final byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if ( first == null ) {
+                    continue;
+                }
+
+                batch.add(first);
+                long size = first.length;
+                byte[] next;
+                while ( size < maxBatchBytes && (next = queue.poll()) != null ) {
+                    batch.add(next);
+                    size += next.length;
+                }
+
+                try {
+                    write(batch, buffer);
+                } catch ( final IOException e ) {
+                    lastError = e;
+                    return;
+                } finally {
+                    written(batch.size(), size);
+                    batch.clear();
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            // stopped
+        } finally {
+            synchronized ( this ) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes messages to the socket with a single call.
+     */
+    private void write( final List<byte[]> batch, final ByteOutputStream buffer ) throws IOException {
+        if ( batch.size() == 1 ) {
+            connection.send(batch.get(0), 0, batch.get(0).length);
+        } else {
+            buffer.reset();
+            for ( final byte[] message : batch ) {
+                buffer.write(message, 0, message.length);
+            }
+            connection.send(buffer.buffer(), 0, buffer.count());
+        }
+        sentCount.addAndGet(batch.size());
+        batchCount.incrementAndGet();
+    }
+
+    /**
+     * Waits until all queued messages have been written to the connection.
+     *
+     * @throws IOException
+     *             if writing to the connection has failed
+     */
+    public synchronized void flush() throws IOException {
+        while ( unwritten > 0 && writerThread.isAlive() ) {
+            try {
+                wait(100);
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing");
+            }
+        }
+        if ( lastError != null ) {
+            checkState();
+        }
+    }
+
+    /**
+     * Writes all queued messages and stops the writer thread. The connection is not closed.
+     *
+     * @throws IOException
+     *             if writing to the connection has failed
+     */
+    public void close() throws IOException {
+        synchronized ( this ) {
+            closed = true;
+        }
+        try {
+            writerThread.join();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing");
+        }
+        if ( lastError != null ) {
+            checkState();
+        }
+    }
+
+    /**
+     * Retrieves number of queued messages.
+     *
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Retrieves size of queued messages and messages being written.
+     *
+     * @return size in bytes
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Retrieves number of messages written to the connection.
+     *
+     * @return number of messages
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Retrieves number of writes to the connection, each covering one or more messages.
+     *
+     * @return number of writes
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Retrieves number of messages dropped by {@link OverflowPolicy#DROP_OLDEST} policy.
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Retrieves number of times a publishing thread has been blocked by full queue.
+     *
+     * @return number of stalls
+     */
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    /**
+     * Retrieves total time publishing threads have been blocked by full queue.
+     *
+     * @return stall time in nanoseconds
+     */
+    public long getStallTime() {
+        return stallTime.get();
+    }
+
+    /**
+     * Retrieves error which stopped the writer thread.
+     *
+     * @return the error or <code>null</code>
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+}
@@ -18,12 +18,29 @@ package com.exxeleron.qjava;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base connector class for interfacing with the kdb+ service. Provides methods for synchronous and asynchronous
  * interaction.
+ * <p>
+ * By default the connection is established over TCP. Processes running on the same host can be connected via Unix
+ * domain socket, see {@link #setUnixDomainSocketPath(String)}.
+ * </p>
+ * <p>
+ * Socket settings and timeouts are configured via {@link QConnectionOptions}, see
+ * {@link #setOptions(QConnectionOptions)}. A connection which exceeded read timeout or query deadline is closed, as the
+ * state of the IPC stream is undefined, and has to be reopened before next use.
+ * </p>
  */
 public class QBasicConnection implements QConnection {
 
@@ -37,7 +54,11 @@ public class QBasicConnection implements QConnection {
 
     protected int protocolVersion;
 
+    private String unixDomainSocketPath;
+    private QConnectionOptions options = QConnectionOptions.DEFAULT;
+
     protected Socket connection;
+    protected SocketChannel channel;
     protected DataInputStream inputStream;
     protected OutputStream outputStream;
     protected QReader reader;
@@ -106,10 +127,30 @@ public class QBasicConnection implements QConnection {
     }
 
     private void initSocket() throws UnknownHostException, IOException {
-        connection = new Socket(host, port);
-        connection.setTcpNoDelay(true);
-        inputStream = new DataInputStream(connection.getInputStream());
-        outputStream = connection.getOutputStream();
+        if ( unixDomainSocketPath != null ) {
+            channel = UnixDomainSockets.open(unixDomainSocketPath);
+            inputStream = new DataInputStream(UnixDomainSockets.newInputStream(channel));
+            outputStream = UnixDomainSockets.newOutputStream(channel);
+        } else {
+            connection = new Socket();
+            if ( options.getReceiveBufferSize() > 0 ) {
+                connection.setReceiveBufferSize(options.getReceiveBufferSize());
+            }
+            if ( options.getSendBufferSize() > 0 ) {
+                connection.setSendBufferSize(options.getSendBufferSize());
+            }
+            connection.setTcpNoDelay(options.isTcpNoDelay());
+            connection.setKeepAlive(options.isKeepAlive());
+            connection.setSoTimeout(options.getConnectTimeout());
+            try {
+                connection.connect(new InetSocketAddress(host, port), options.getConnectTimeout());
+            } catch ( final IOException e ) {
+                closeSocket();
+                throw e;
+            }
+            inputStream = new DataInputStream(connection.getInputStream());
+            outputStream = connection.getOutputStream();
+        }
     }
 
     private void initialize() throws IOException, QException {
@@ -130,6 +171,10 @@ public class QBasicConnection implements QConnection {
         }
 
         protocolVersion = Math.min(response[0], 3);
+
+        if ( connection != null ) {
+            connection.setSoTimeout(options.getReadTimeout());
+        }
     }
 
     /**
@@ -137,8 +182,7 @@ public class QBasicConnection implements QConnection {
      */
     public void close() throws IOException {
         if ( isConnected() ) {
-            connection.close();
-            connection = null;
+            closeSocket();
         }
     }
 
@@ -146,24 +190,87 @@ public class QBasicConnection implements QConnection {
      * {@inheritDoc}
      */
     public void reset() throws IOException, QException {
-        if ( connection != null ) {
-            connection.close();
-        }
-        connection = null;
+        closeSocket();
         open();
     }
 
+    private void closeSocket() throws IOException {
+        try {
+            if ( connection != null ) {
+                connection.close();
+            }
+            if ( channel != null ) {
+                channel.close();
+            }
+        } finally {
+            connection = null;
+            channel = null;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     public boolean isConnected() {
-        return connection != null && connection.isConnected();
+        return connection != null && connection.isConnected() || channel != null && channel.isConnected();
     }
 
     /**
      * {@inheritDoc}
      */
     public Object sync( final String query, final Object... parameters ) throws QException, IOException {
+        if ( options.getSyncTimeout() > 0 ) {
+            return sync(options.getSyncTimeout(), TimeUnit.MILLISECONDS, query, parameters);
+        }
+
+        try {
+            return syncInternal(query, parameters);
+        } catch ( final SocketTimeoutException e ) {
+            closeSocket();
+            throw e;
+        }
+    }
+
+    /**
+     * Executes a synchronous query against the remote q service which has to complete before the deadline. If the
+     * deadline expires, the connection is closed and {@link SocketTimeoutException} is thrown.
+     * 
+     * @param timeout
+     *            the maximum time to wait for the response
+     * @param unit
+     *            the time unit of the timeout argument
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return deserialized response from the remote q service
+     * @throws QException
+     *             if an error was returned by the q service
+     * @throws SocketTimeoutException
+     *             if the deadline expired
+     * @throws IOException
+     *             if the request cannot be sent or the response cannot be read
+     */
+    public Object sync( final long timeout, final TimeUnit unit, final String query, final Object... parameters ) throws QException, IOException {
+        final Deadline deadline = new Deadline(connection, channel, unit.toNanos(timeout));
+        try {
+            return syncInternal(query, parameters);
+        } catch ( final IOException e ) {
+            if ( deadline.cancel() ) {
+                if ( e instanceof SocketTimeoutException ) {
+                    closeSocket();
+                }
+                throw e;
+            }
+            throw (SocketTimeoutException) new SocketTimeoutException("Query deadline of " + unit.toMillis(timeout) + " ms exceeded").initCause(e);
+        } finally {
+            if ( !deadline.cancel() ) {
+                closeSocket();
+            }
+        }
+    }
+
+    private Object syncInternal( final String query, final Object... parameters ) throws QException, IOException {
         query(QConnection.MessageType.SYNC, query, parameters);
         final QMessage response = reader.read(false);
 
@@ -187,7 +294,7 @@ public class QBasicConnection implements QConnection {
      * {@inheritDoc}
      */
     public int query( final QConnection.MessageType msgType, final String query, final Object... parameters ) throws QException, IOException {
-        if ( connection == null ) {
+        if ( connection == null && channel == null ) {
             throw new IOException("Connection is not established.");
         }
 
@@ -211,6 +318,25 @@ public class QBasicConnection implements QConnection {
         }
     }
 
+    /**
+     * Writes already serialized message, including the 8 bytes header, to the connection as is.
+     * 
+     * @param message
+     *            buffer containing the message
+     * @param offset
+     *            offset of the message in the buffer
+     * @param length
+     *            length of the message
+     * @throws IOException
+     */
+    public void send( final byte[] message, final int offset, final int length ) throws IOException {
+        if ( connection == null && channel == null ) {
+            throw new IOException("Connection is not established.");
+        }
+
+        outputStream.write(message, offset, length);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -277,6 +403,63 @@ public class QBasicConnection implements QConnection {
         return protocolVersion;
     }
 
+    /**
+     * Retrieves path of the Unix domain socket used to connect to the remote q service.
+     * 
+     * @return path of the socket or <code>null</code> if connection is established over TCP
+     */
+    public String getUnixDomainSocketPath() {
+        return unixDomainSocketPath;
+    }
+
+    /**
+     * Sets path of the Unix domain socket used to connect to the remote q service. Setting takes effect when the
+     * connection is opened.
+     * <p>
+     * Unix domain sockets require Java 16 or newer. Note that Java doesn't support sockets in Linux abstract namespace,
+     * so the q process has to listen on a socket in the file system.
+     * </p>
+     * 
+     * @param unixDomainSocketPath
+     *            path of the socket or <code>null</code> to connect over TCP
+     */
+    public void setUnixDomainSocketPath( final String unixDomainSocketPath ) {
+        this.unixDomainSocketPath = unixDomainSocketPath;
+    }
+
+    /**
+     * Configures connection to use Unix domain socket in the default location used by kdb+, i.e.
+     * <code>/tmp/kx.&lt;port&gt;</code>.
+     * 
+     * @see #setUnixDomainSocketPath(String)
+     */
+    public void useUnixDomainSocket() {
+        setUnixDomainSocketPath(UnixDomainSockets.getDefaultPath(port));
+    }
+
+    /**
+     * Retrieves socket and timeout settings of the connection.
+     * 
+     * @return the {@link QConnectionOptions}
+     */
+    public QConnectionOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Sets socket and timeout settings of the connection. Socket settings take effect when the connection is opened,
+     * query deadline takes effect immediately.
+     * 
+     * @param options
+     *            the {@link QConnectionOptions}
+     */
+    public void setOptions( final QConnectionOptions options ) {
+        if ( options == null ) {
+            throw new IllegalArgumentException("Options cannot be null");
+        }
+        this.options = options;
+    }
+
     /**
      * Retrieves {@link QReader} for IPC stream deserializing.
      * 
@@ -315,4 +498,65 @@ public class QBasicConnection implements QConnection {
         this.writer = writer;
     }
 
-}
\ No newline at end of file
+    /**
+     * Closes the socket when the deadline expires, unblocking the thread waiting for the response.
+     */
+    private static final class Deadline implements Runnable {
+
+        private static final int PURGE_INTERVAL = 1024;
+        private static final AtomicInteger CANCELLED = new AtomicInteger();
+        private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread(r, "qJava-deadline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        private final Socket connection;
+        private final SocketChannel channel;
+        private final ScheduledFuture<?> future;
+        private boolean expired;
+        private boolean cancelled;
+
+        Deadline(final Socket connection, final SocketChannel channel, final long timeout) {
+            this.connection = connection;
+            this.channel = channel;
+            this.future = TIMER.schedule(this, timeout, TimeUnit.NANOSECONDS);
+        }
+
+        public synchronized void run() {
+            if ( !cancelled ) {
+                expired = true;
+                try {
+                    if ( connection != null ) {
+                        connection.close();
+                    }
+                    if ( channel != null ) {
+                        channel.close();
+                    }
+                } catch ( final IOException e ) {
+                    // socket is being invalidated anyway
+                }
+            }
+        }
+
+        /**
+         * Cancels the deadline.
+         * 
+         * @return <code>true</code> if the deadline has not expired, <code>false</code> otherwise
+         */
+        synchronized boolean cancel() {
+            if ( !cancelled && !expired ) {
+                cancelled = true;
+                future.cancel(false);
+                if ( CANCELLED.incrementAndGet() % PURGE_INTERVAL == 0 ) {
+                    TIMER.purge();
+                }
+            }
+            return !expired;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects independent synchronous queries and executes them against the remote q service in a single round trip.
+ * <p>
+ * Queries are sent as one message and evaluated by the q service one after another via {@link #BATCH_FUNCTION}. An
+ * error raised by one of queries is captured and reported only via its own future:
+ * </p>
+ *
+ * <pre>
+ * QBatch batch = new QBatch();
+ * QResponseFuture price = batch.add(&quot;getPrice&quot;, &quot;IBM&quot;);
+ * QResponseFuture limits = batch.add(&quot;getLimits&quot;, &quot;desk1&quot;);
+ * batch.execute(q);
+ *
+ * System.out.println(price.getResult());
+ * </pre>
+ * <p>
+ * Methods of {@link QBatch} are not thread safe. A batch can be executed only once.
+ * </p>
+ */
+public class QBatch {
+
+    /**
+     * Function evaluating list of queries on the q service. Each query is either a string or a general list with
+     * function name and parameters, as sent by {@link QConnection#sync(String, Object...)}. Result of each query is
+     * returned as <code>(1b; result)</code>, or <code>(0b; error)</code> if the query fails.
+     */
+    public static final String BATCH_FUNCTION = "{{@[{(1b;value x)};x;{(0b;x)}]} each x}";
+
+    private final List<Object> requests = new ArrayList<Object>();
+    private final List<QResponseFuture> futures = new ArrayList<QResponseFuture>();
+    private boolean executed;
+
+    /**
+     * Adds query to the batch.
+     *
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return future completed when the batch has been executed
+     * @throws IllegalStateException
+     *             if the batch has already been executed
+     */
+    public QResponseFuture add( final String query, final Object... parameters ) {
+        if ( executed ) {
+            throw new IllegalStateException("Batch has already been executed");
+        }
+
+        if ( parameters.length == 0 ) {
+            requests.add(query.toCharArray());
+        } else {
+            final Object[] request = new Object[parameters.length + 1];
+            request[0] = query.toCharArray();
+            System.arraycopy(parameters, 0, request, 1, parameters.length);
+            requests.add(request);
+        }
+
+        final QResponseFuture future = new QResponseFuture();
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Retrieves number of queries in the batch.
+     *
+     * @return number of queries
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Executes all queries in a single synchronous call and completes their futures. If the call itself fails, all
+     * futures fail with the same error.
+     *
+     * @param connection
+     *            connection to the q service
+     * @throws IllegalStateException
+     *             if the batch has already been executed
+     */
+    public void execute( final QConnection connection ) {
+        start();
+        if ( futures.isEmpty() ) {
+            return;
+        }
+
+        try {
+            complete(connection.sync(BATCH_FUNCTION, new Object[] { requests.toArray() }));
+        } catch ( final QException e ) {
+            fail(e);
+        } catch ( final IOException e ) {
+            fail(e);
+        } catch ( final RuntimeException e ) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Sends all queries in a single message without waiting for the response. Futures are completed by the response
+     * reader thread of the connection.
+     *
+     * @param connection
+     *            pipelined connection to the q service
+     * @throws IllegalStateException
+     *             if the batch has already been executed
+     */
+    public void submit( final QPipelinedConnection connection ) {
+        start();
+        if ( futures.isEmpty() ) {
+            return;
+        }
+
+        try {
+            connection.submit(BATCH_FUNCTION, new Object[] { requests.toArray() }).addListener(new QResponseFuture.Listener() {
+
+                public void responseReceived( final QResponseFuture future ) {
+                    try {
+                        complete(future.getResult());
+                    } catch ( final QException e ) {
+                        fail(e);
+                    } catch ( final IOException e ) {
+                        fail(e);
+                    } catch ( final RuntimeException e ) {
+                        fail(e);
+                    }
+                }
+            });
+        } catch ( final QException e ) {
+            fail(e);
+        } catch ( final IOException e ) {
+            fail(e);
+        }
+    }
+
+    private void start() {
+        if ( executed ) {
+            throw new IllegalStateException("Batch has already been executed");
+        }
+        executed = true;
+    }
+
+    private void complete( final Object response ) {
+        if ( !(response instanceof Object[]) || ((Object[]) response).length != futures.size() ) {
+            fail(new QReaderException("Unexpected response to batch of " + futures.size() + " queries"));
+            return;
+        }
+
+        final Object[] results = (Object[]) response;
+        for ( int i = 0; i < results.length; i++ ) {
+            final QResponseFuture future = futures.get(i);
+            final boolean success;
+            final Object value;
+            if ( results[i] instanceof Object[] && ((Object[]) results[i]).length == 2 ) {
+                success = Boolean.TRUE.equals(((Object[]) results[i])[0]);
+                value = ((Object[]) results[i])[1];
+            } else if ( results[i] instanceof boolean[] && ((boolean[]) results[i]).length == 2 ) {
+                // (1b; 0b) is collapsed to boolean list
+                success = ((boolean[]) results[i])[0];
+                value = ((boolean[]) results[i])[1];
+            } else {
+                future.fail(new QReaderException("Unexpected result of batched query: " + results[i]));
+                continue;
+            }
+
+            if ( success ) {
+                future.complete(value);
+            } else {
+                future.fail(new QException(value instanceof char[] ? new String((char[]) value) : String.valueOf(value)));
+            }
+        }
+    }
+
+    private void fail( final Throwable cause ) {
+        for ( final QResponseFuture future : futures ) {
+            future.fail(cause);
+        }
+    }
+
+}
@@ -0,0 +1,704 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes rows to a tickerplant in batches, instead of sending a message per row.
+ * <p>
+ * Rows are accumulated per table in typed columnar buffers, which are reused for subsequent batches. A background
+ * thread sends accumulated rows of a table as a single <code>.u.upd[`table; columns]</code> message once the number of
+ * rows or their estimated size reaches the limit, or once the oldest row has waited for the linger time. Batches
+ * reaching the row limit are sent straight from the buffers, smaller ones are copied to lists of their length, as the
+ * IPC format has no notion of a partially filled list:
+ * </p>
+ *
+ * <pre>
+ * QBatchingPublisher publisher = new QBatchingPublisher(tickerplant, 1000, 64 * 1024, 10);
+ * publisher.publish(&quot;trade&quot;, new QTimespan(...), &quot;IBM&quot;, 101.5, 200L);
+ * ...
+ * publisher.close();
+ * </pre>
+ * <p>
+ * Types of columns are determined by values of the first row published to a table, subsequent rows have to hold
+ * non-null values of the same types. Primitive wrappers are stored in primitive lists, strings as symbols and
+ * <code>char[]</code> as general lists of strings. Rows are delivered at most once: if sending of a batch fails, its
+ * rows are dropped and the error is available via {@link #getLastError()}.
+ * </p>
+ * <p>
+ * Methods of {@link QBatchingPublisher} are thread safe. The publisher should be the only user of the connection.
+ * </p>
+ */
+public class QBatchingPublisher {
+
+    public static final String DEFAULT_UPDATE_FUNCTION = ".u.upd";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final QConnection connection;
+    private final int maxRows;
+    private final int maxBytes;
+    private final long lingerTime;
+    private final Map<String, TableBuffer> tables = new LinkedHashMap<String, TableBuffer>();
+
+    private volatile String updateFunction = DEFAULT_UPDATE_FUNCTION;
+    private volatile Exception lastError;
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong rowCount = new AtomicLong();
+    private final AtomicLong droppedRowCount = new AtomicLong();
+
+    // guarded by this
+    private Thread flushThread;
+    private final List<Batch> ready = new ArrayList<Batch>();
+    private boolean closed;
+    private long pendingRows;
+    // batches are sent in the order of sealing
+    private long sealedBatches;
+    private long sentBatches;
+
+    /**
+     * Creates new {@link QBatchingPublisher} object.
+     *
+     * @param connection
+     *            opened connection to the tickerplant
+     * @param maxRows
+     *            number of rows of a table triggering the flush
+     * @param maxBytes
+     *            estimated size of rows of a table triggering the flush, in bytes
+     * @param lingerTime
+     *            maximal time a row waits for the flush, in milliseconds
+     */
+    public QBatchingPublisher(final QConnection connection, final int maxRows, final int maxBytes, final long lingerTime) {
+        if ( maxRows < 1 || maxBytes < 1 ) {
+            throw new IllegalArgumentException("Flush thresholds have to be positive");
+        }
+        if ( lingerTime < 0 ) {
+            throw new IllegalArgumentException("Linger time cannot be negative");
+        }
+        this.connection = connection;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        this.lingerTime = lingerTime;
+    }
+
+    /**
+     * Sets name of the function invoked on the tickerplant. Default: <code>.u.upd</code>.
+     *
+     * @param updateFunction
+     *            name of the function
+     */
+    public void setUpdateFunction( final String updateFunction ) {
+        this.updateFunction = updateFunction;
+    }
+
+    /**
+     * Adds a row to the batch of the table.
+     *
+     * @param table
+     *            name of the table
+     * @param row
+     *            values of consecutive columns
+     * @throws IllegalArgumentException
+     *             if the row doesn't match types of columns of the table
+     * @throws IllegalStateException
+     *             if the publisher is closed
+     */
+    public synchronized void publish( final String table, final Object... row ) {
+        if ( closed ) {
+            throw new IllegalStateException("Publisher is closed");
+        }
+
+        TableBuffer buffer = tables.get(table);
+        if ( buffer == null ) {
+            buffer = new TableBuffer(table, row, maxRows);
+            tables.put(table, buffer);
+        }
+        buffer.append(row);
+        pendingRows++;
+
+        if ( flushThread == null ) {
+            flushThread = new Thread(new Runnable() {
+
+                public void run() {
+                    flushLoop();
+                }
+            }, "qJava-publisher-" + connection);
+            flushThread.setDaemon(true);
+            flushThread.start();
+        }
+        if ( buffer.rows >= maxRows || buffer.bytes >= maxBytes ) {
+            // batch is sealed immediately, so that it doesn't grow while the flush thread wakes up
+            ready.add(seal(buffer));
+            notifyAll();
+        } else if ( buffer.rows == 1 ) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sends all accumulated rows and waits until they have been written to the connection. Rows published
+     * concurrently with the flush are batched as usual.
+     *
+     * @throws InterruptedIOException
+     *             if interrupted while waiting
+     */
+    public synchronized void flush() throws InterruptedIOException {
+        for ( final TableBuffer buffer : tables.values() ) {
+            if ( buffer.rows > 0 ) {
+                ready.add(seal(buffer));
+            }
+        }
+        notifyAll();
+
+        final long target = sealedBatches;
+        while ( sentBatches < target && flushThread != null && flushThread.isAlive() ) {
+            try {
+                wait();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing");
+            }
+        }
+    }
+
+    /**
+     * Sends all accumulated rows and stops the background thread. The connection is not closed.
+     *
+     * @throws InterruptedIOException
+     *             if interrupted while flushing
+     */
+    public void close() throws InterruptedIOException {
+        final Thread thread;
+        synchronized ( this ) {
+            if ( closed ) {
+                return;
+            }
+            flush();
+            closed = true;
+            notifyAll();
+            thread = flushThread;
+        }
+
+        if ( thread != null ) {
+            try {
+                thread.join();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing");
+            }
+        }
+    }
+
+    private void flushLoop() {
+        final List<Batch> batches = new ArrayList<Batch>();
+        while ( true ) {
+            synchronized ( this ) {
+                while ( !collect(batches) ) {
+                    if ( closed ) {
+                        return;
+                    }
+                    try {
+                        wait(nextDeadline());
+                    } catch ( final InterruptedException e ) {
+                        return;
+                    }
+                }
+            }
+
+            for ( final Batch batch : batches ) {
+                send(batch);
+            }
+
+            synchronized ( this ) {
+                for ( final Batch batch : batches ) {
+                    batch.buffer.recycle(batch);
+                    pendingRows -= batch.rows;
+                }
+                sentBatches += batches.size();
+                notifyAll();
+            }
+            batches.clear();
+        }
+    }
+
+    /**
+     * Collects sealed batches and swaps buffers of tables due to be flushed.
+     *
+     * @return <code>true</code> if any batch has been collected
+     */
+    private boolean collect( final List<Batch> batches ) {
+        batches.addAll(ready);
+        ready.clear();
+
+        final long now = System.currentTimeMillis();
+        for ( final TableBuffer buffer : tables.values() ) {
+            if ( buffer.rows > 0 && (closed || now - buffer.firstRowTime >= lingerTime) ) {
+                batches.add(seal(buffer));
+            }
+        }
+        return !batches.isEmpty();
+    }
+
+    private Batch seal( final TableBuffer buffer ) {
+        sealedBatches++;
+        return buffer.swap();
+    }
+
+    private long nextDeadline() {
+        long wait = 0;
+        final long now = System.currentTimeMillis();
+        for ( final TableBuffer buffer : tables.values() ) {
+            if ( buffer.rows > 0 ) {
+                final long remaining = Math.max(1, buffer.firstRowTime + lingerTime - now);
+                wait = wait == 0 ? remaining : Math.min(wait, remaining);
+            }
+        }
+        return wait;
+    }
+
+    private void send( final Batch batch ) {
+        final Object[] data = new Object[batch.columns.length];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[i] = batch.columns[i].toArray(batch.rows);
+        }
+
+        try {
+            synchronized ( connection ) {
+                connection.async(updateFunction, batch.buffer.name, data);
+            }
+            messageCount.incrementAndGet();
+            rowCount.addAndGet(batch.rows);
+        } catch ( final Exception e ) {
+            lastError = e;
+            droppedRowCount.addAndGet(batch.rows);
+        }
+    }
+
+    /**
+     * Retrieves number of sent messages.
+     *
+     * @return number of messages
+     */
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * Retrieves number of sent rows.
+     *
+     * @return number of rows
+     */
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    /**
+     * Retrieves number of rows dropped due to errors.
+     *
+     * @return number of rows
+     */
+    public long getDroppedRowCount() {
+        return droppedRowCount.get();
+    }
+
+    /**
+     * Retrieves number of rows awaiting the flush.
+     *
+     * @return number of rows
+     */
+    public synchronized long getPendingRows() {
+        return pendingRows;
+    }
+
+    /**
+     * Retrieves the most recent error raised while sending a batch.
+     *
+     * @return the error or <code>null</code>
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    private static final class Batch {
+
+        final TableBuffer buffer;
+        final Column[] columns;
+        final int rows;
+
+        Batch(final TableBuffer buffer, final Column[] columns, final int rows) {
+            this.buffer = buffer;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Double buffered columns of a table: rows are appended to the active buffer, while the other one is being sent.
+     */
+    private static final class TableBuffer {
+
+        final String name;
+        final Class<?>[] types;
+        final int maxRows;
+        Column[] active;
+        Column[] spare;
+        int rows;
+        long bytes;
+        long firstRowTime;
+
+        TableBuffer(final String name, final Object[] row, final int maxRows) {
+            this.name = name;
+            this.maxRows = maxRows;
+            this.types = new Class<?>[row.length];
+            for ( int i = 0; i < row.length; i++ ) {
+                if ( row[i] == null ) {
+                    throw new IllegalArgumentException("Column " + i + " of table " + name + " cannot be null");
+                }
+                types[i] = row[i].getClass();
+            }
+            this.active = columns();
+            this.spare = columns();
+        }
+
+        private Column[] columns() {
+            final Column[] columns = new Column[types.length];
+            for ( int i = 0; i < types.length; i++ ) {
+                columns[i] = newColumn(types[i], maxRows);
+            }
+            return columns;
+        }
+
+        void append( final Object[] row ) {
+            if ( row.length != types.length ) {
+                throw new IllegalArgumentException("Table " + name + " has " + types.length + " columns, row has " + row.length + " values");
+            }
+            for ( int i = 0; i < row.length; i++ ) {
+                if ( row[i] == null || row[i].getClass() != types[i] ) {
+                    throw new IllegalArgumentException("Column " + i + " of table " + name + " expects " + types[i].getName() + ", got: " + row[i]);
+                }
+            }
+
+            if ( rows == 0 ) {
+                firstRowTime = System.currentTimeMillis();
+            }
+            for ( int i = 0; i < row.length; i++ ) {
+                bytes += active[i].set(rows, row[i]);
+            }
+            rows++;
+        }
+
+        Batch swap() {
+            final Batch batch = new Batch(this, active, rows);
+            active = spare != null ? spare : columns();
+            spare = null;
+            rows = 0;
+            bytes = 0;
+            return batch;
+        }
+
+        void recycle( final Batch batch ) {
+            for ( final Column column : batch.columns ) {
+                column.clear(batch.rows);
+            }
+            spare = batch.columns;
+        }
+    }
+
+    /**
+     * Creates column buffer storing values of the given type.
+     */
+    private static Column newColumn( final Class<?> type, final int maxRows ) {
+        if ( type == Boolean.class ) {
+            return new BooleanColumn(maxRows);
+        } else if ( type == Byte.class ) {
+            return new ByteColumn(maxRows);
+        } else if ( type == Short.class ) {
+            return new ShortColumn(maxRows);
+        } else if ( type == Integer.class ) {
+            return new IntColumn(maxRows);
+        } else if ( type == Long.class ) {
+            return new LongColumn(maxRows);
+        } else if ( type == Float.class ) {
+            return new FloatColumn(maxRows);
+        } else if ( type == Double.class ) {
+            return new DoubleColumn(maxRows);
+        } else if ( type == Character.class ) {
+            return new CharColumn(maxRows);
+        }
+        return new ObjectColumn(type == char[].class ? Object.class : type, maxRows);
+    }
+
+    /**
+     * Growable list of column values. Capacity is limited by the number of rows triggering the flush, so that full
+     * batches are sent without copying.
+     */
+    private abstract static class Column {
+
+        private final int maxRows;
+
+        Column(final int maxRows) {
+            this.maxRows = maxRows;
+        }
+
+        int initialCapacity() {
+            return Math.min(INITIAL_CAPACITY, maxRows);
+        }
+
+        int grownCapacity( final int length ) {
+            return (int) Math.min(2L * length, Math.max(maxRows, length + 1));
+        }
+
+        static Object copy( final Object from, final Object to, final int length ) {
+            System.arraycopy(from, 0, to, 0, length);
+            return to;
+        }
+
+        /**
+         * Sets value of a row.
+         *
+         * @return estimated size of the value, in bytes
+         */
+        abstract int set( final int row, final Object value );
+
+        /**
+         * Retrieves list of the first rows. The buffer itself is returned if it holds exactly these rows, so the list
+         * is valid only until the column is reused.
+         */
+        abstract Object toArray( final int rows );
+
+        /**
+         * Prepares column for reuse.
+         */
+        void clear( final int rows ) {
+            // primitive values hold no references
+        }
+    }
+
+    private static final class BooleanColumn extends Column {
+
+        boolean[] data = new boolean[initialCapacity()];
+
+        BooleanColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (boolean[]) copy(data, new boolean[grownCapacity(row)], row);
+            }
+            data[row] = (Boolean) value;
+            return 1;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new boolean[rows], rows);
+        }
+    }
+
+    private static final class ByteColumn extends Column {
+
+        byte[] data = new byte[initialCapacity()];
+
+        ByteColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (byte[]) copy(data, new byte[grownCapacity(row)], row);
+            }
+            data[row] = (Byte) value;
+            return 1;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new byte[rows], rows);
+        }
+    }
+
+    private static final class ShortColumn extends Column {
+
+        short[] data = new short[initialCapacity()];
+
+        ShortColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (short[]) copy(data, new short[grownCapacity(row)], row);
+            }
+            data[row] = (Short) value;
+            return 2;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new short[rows], rows);
+        }
+    }
+
+    private static final class IntColumn extends Column {
+
+        int[] data = new int[initialCapacity()];
+
+        IntColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (int[]) copy(data, new int[grownCapacity(row)], row);
+            }
+            data[row] = (Integer) value;
+            return 4;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new int[rows], rows);
+        }
+    }
+
+    private static final class LongColumn extends Column {
+
+        long[] data = new long[initialCapacity()];
+
+        LongColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (long[]) copy(data, new long[grownCapacity(row)], row);
+            }
+            data[row] = (Long) value;
+            return 8;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new long[rows], rows);
+        }
+    }
+
+    private static final class FloatColumn extends Column {
+
+        float[] data = new float[initialCapacity()];
+
+        FloatColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (float[]) copy(data, new float[grownCapacity(row)], row);
+            }
+            data[row] = (Float) value;
+            return 4;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new float[rows], rows);
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+
+        double[] data = new double[initialCapacity()];
+
+        DoubleColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (double[]) copy(data, new double[grownCapacity(row)], row);
+            }
+            data[row] = (Double) value;
+            return 8;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new double[rows], rows);
+        }
+    }
+
+    private static final class CharColumn extends Column {
+
+        char[] data = new char[initialCapacity()];
+
+        CharColumn(final int maxRows) {
+            super(maxRows);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (char[]) copy(data, new char[grownCapacity(row)], row);
+            }
+            data[row] = (Character) value;
+            return 1;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, new char[rows], rows);
+        }
+    }
+
+    private static final class ObjectColumn extends Column {
+
+        final Class<?> componentType;
+        Object[] data;
+
+        ObjectColumn(final Class<?> componentType, final int maxRows) {
+            super(maxRows);
+            this.componentType = componentType;
+            this.data = newArray(initialCapacity());
+        }
+
+        private Object[] newArray( final int length ) {
+            return (Object[]) Array.newInstance(componentType, length);
+        }
+
+        int set( final int row, final Object value ) {
+            if ( row == data.length ) {
+                data = (Object[]) copy(data, newArray(grownCapacity(row)), row);
+            }
+            data[row] = value;
+
+            if ( value instanceof String ) {
+                return ((String) value).length() + 1;
+            } else if ( value instanceof char[] ) {
+                return ((char[]) value).length + 6;
+            }
+            return 8;
+        }
+
+        Object toArray( final int rows ) {
+            return rows == data.length ? data : copy(data, newArray(rows), rows);
+        }
+
+        void clear( final int rows ) {
+            // releases references to sent values
+            Arrays.fill(data, 0, rows, null);
+        }
+    }
+
+}
@@ -0,0 +1,531 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Connector caching results of synchronous queries in memory, e.g. reference data requested by many threads.
+ * <p>
+ * Results are keyed by the query text and serialized parameters. Identical queries issued concurrently are coalesced:
+ * only the first one is sent to the q service, while the others wait for its result. The cache holds a bounded number
+ * of entries, evicted according to the {@link EvictionPolicy}. Time to live of cached results can be defined per query
+ * pattern:
+ * </p>
+ *
+ * <pre>
+ * QCachingConnection q = new QCachingConnection(connection, 10000, QCachingConnection.EvictionPolicy.LRU, 60000);
+ * q.setTtl(&quot;getFxRates.*&quot;, 1000);
+ * q.setTtl(&quot;\\.u\\.sub.*&quot;, 0); // not cached
+ * q.open();
+ * QTable instruments = (QTable) q.sync(&quot;getInstruments&quot;, &quot;XNYS&quot;);
+ * </pre>
+ * <p>
+ * Cached results are shared by all callers and must not be modified. Errors returned by the q service are not cached.
+ * Methods of {@link QCachingConnection} are thread safe. Queries against a blocking connection, e.g.
+ * {@link QBasicConnection}, are serialized, so the caching connection should be the only user of the wrapped
+ * connection.
+ * </p>
+ */
+public class QCachingConnection implements QConnection {
+
+    /**
+     * Defines policies of evicting entries when the cache is full.
+     */
+    public static enum EvictionPolicy {
+        /**
+         * Evicts the least recently used entry.
+         */
+        LRU,
+        /**
+         * Evicts the least frequently used entry, or the least recently used one among equally used entries.
+         */
+        LFU
+    }
+
+    private final QConnection connection;
+    private final int maxEntries;
+    private final EvictionPolicy evictionPolicy;
+    private final long defaultTtl;
+    private final List<TtlRule> ttlRules = new CopyOnWriteArrayList<TtlRule>();
+
+    // guarded by this
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<Key, FutureTask<Object>> inFlight = new HashMap<Key, FutureTask<Object>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final ThreadLocal<QSerializer> serializers = new ThreadLocal<QSerializer>() {
+
+        @Override
+        protected QSerializer initialValue() {
+            return new QSerializer(connection.getEncoding());
+        }
+    };
+
+    /**
+     * Initializes a new {@link QCachingConnection} instance.
+     *
+     * @param connection
+     *            connection executing queries on cache misses
+     * @param maxEntries
+     *            maximal number of cached results
+     * @param evictionPolicy
+     *            policy of evicting entries when the cache is full
+     * @param defaultTtl
+     *            time to live of results of queries not matching any pattern, in milliseconds, <code>0</code> to not
+     *            cache them
+     */
+    public QCachingConnection(final QConnection connection, final int maxEntries, final EvictionPolicy evictionPolicy, final long defaultTtl) {
+        if ( connection == null ) {
+            throw new IllegalArgumentException("Connection cannot be null");
+        }
+        if ( maxEntries < 1 ) {
+            throw new IllegalArgumentException("Maximal number of entries has to be positive");
+        }
+        this.connection = connection;
+        this.maxEntries = maxEntries;
+        this.evictionPolicy = evictionPolicy;
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Defines time to live of results of queries matching the pattern. Patterns are matched against the whole query
+     * text in order of definition, the first matching pattern applies.
+     *
+     * @param pattern
+     *            regular expression
+     * @param ttl
+     *            time to live of cached results, in milliseconds, <code>0</code> to not cache them
+     */
+    public void setTtl( final String pattern, final long ttl ) {
+        final TtlRule rule = new TtlRule(pattern, ttl);
+        for ( final TtlRule existing : ttlRules ) {
+            if ( existing.pattern.pattern().equals(pattern) ) {
+                ttlRules.set(ttlRules.indexOf(existing), rule);
+                return;
+            }
+        }
+        ttlRules.add(rule);
+    }
+
+    /**
+     * Retrieves time to live of results of the query.
+     *
+     * @param query
+     *            query text
+     * @return time to live, in milliseconds
+     */
+    public long getTtl( final String query ) {
+        for ( final TtlRule rule : ttlRules ) {
+            if ( rule.pattern.matcher(query).matches() ) {
+                return rule.ttl;
+            }
+        }
+        return defaultTtl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void open() throws IOException, QException {
+        synchronized ( connection ) {
+            connection.open();
+        }
+    }
+
+    /**
+     * Closes the wrapped connection. Cached results are retained.
+     *
+     * @see com.exxeleron.qjava.QConnection#close()
+     */
+    public void close() throws IOException {
+        synchronized ( connection ) {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() throws IOException, QException {
+        synchronized ( connection ) {
+            connection.reset();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isConnected() {
+        return connection.isConnected();
+    }
+
+    /**
+     * Retrieves result of the query from the cache or executes synchronous query against the remote q service. If an
+     * identical query is already being executed, waits for its result.
+     *
+     * @see com.exxeleron.qjava.QConnection#sync(java.lang.String, java.lang.Object[])
+     */
+    public Object sync( final String query, final Object... parameters ) throws QException, IOException {
+        final long ttl = getTtl(query);
+        if ( ttl <= 0 ) {
+            return execute(query, parameters);
+        }
+
+        final Key key = new Key(serialize(query, parameters));
+        final FutureTask<Object> task;
+        boolean owner = false;
+        synchronized ( this ) {
+            final Entry entry = entries.get(key);
+            if ( entry != null ) {
+                if ( entry.expiresAt - System.currentTimeMillis() > 0 ) {
+                    entry.hits++;
+                    hitCount.incrementAndGet();
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+
+            FutureTask<Object> pending = inFlight.get(key);
+            if ( pending == null ) {
+                pending = new FutureTask<Object>(new Callable<Object>() {
+
+                    public Object call() throws Exception {
+                        return execute(query, parameters);
+                    }
+                });
+                inFlight.put(key, pending);
+                owner = true;
+                missCount.incrementAndGet();
+            } else {
+                coalescedCount.incrementAndGet();
+            }
+            task = pending;
+        }
+
+        if ( owner ) {
+            task.run();
+        }
+
+        try {
+            final Object result = task.get();
+            if ( owner ) {
+                store(key, result, ttl);
+            }
+            return result;
+        } catch ( final ExecutionException e ) {
+            if ( owner ) {
+                synchronized ( this ) {
+                    inFlight.remove(key);
+                }
+            }
+            throw rethrow(e.getCause());
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted while waiting for result of: " + query).initCause(e);
+        }
+    }
+
+    private Object execute( final String query, final Object... parameters ) throws QException, IOException {
+        if ( connection instanceof QPipelinedConnection || connection instanceof QLoadBalancedConnection ) {
+            return connection.sync(query, parameters);
+        }
+        synchronized ( connection ) {
+            return connection.sync(query, parameters);
+        }
+    }
+
+    private static QException rethrow( final Throwable cause ) throws IOException {
+        if ( cause instanceof QException ) {
+            return (QException) cause;
+        } else if ( cause instanceof IOException ) {
+            throw (IOException) cause;
+        } else if ( cause instanceof RuntimeException ) {
+            throw (RuntimeException) cause;
+        } else if ( cause instanceof Error ) {
+            throw (Error) cause;
+        }
+        return new QException(String.valueOf(cause), cause);
+    }
+
+    private synchronized void store( final Key key, final Object value, final long ttl ) {
+        inFlight.remove(key);
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+
+        while ( entries.size() > maxEntries ) {
+            final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            Map.Entry<Key, Entry> victim = iterator.next();
+            if ( evictionPolicy == EvictionPolicy.LFU ) {
+                // iterates from the least recently used entry, so that it wins among equally used ones
+                while ( iterator.hasNext() ) {
+                    final Map.Entry<Key, Entry> candidate = iterator.next();
+                    if ( candidate.getValue().hits < victim.getValue().hits ) {
+                        victim = candidate;
+                    }
+                }
+            }
+            entries.remove(victim.getKey());
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private byte[] serialize( final String query, final Object... parameters ) throws QException, IOException {
+        if ( parameters.length == 0 ) {
+            return serializers.get().serialize(query.toCharArray());
+        }
+
+        final Object[] call = new Object[parameters.length + 1];
+        call[0] = query.toCharArray();
+        System.arraycopy(parameters, 0, call, 1, parameters.length);
+        return serializers.get().serialize(call);
+    }
+
+    /**
+     * Removes cached result of the query.
+     *
+     * @param query
+     *            Query text
+     * @param parameters
+     *            Additional parameters
+     * @throws QException
+     *             if parameters cannot be serialized
+     * @throws IOException
+     */
+    public void invalidate( final String query, final Object... parameters ) throws QException, IOException {
+        final Key key = new Key(serialize(query, parameters));
+        synchronized ( this ) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Executes an asynchronous query against the wrapped connection.
+     *
+     * @see com.exxeleron.qjava.QConnection#async(java.lang.String, java.lang.Object[])
+     */
+    public void async( final String query, final Object... parameters ) throws QException, IOException {
+        synchronized ( connection ) {
+            connection.async(query, parameters);
+        }
+    }
+
+    /**
+     * Sends query via the wrapped connection, bypassing the cache.
+     *
+     * @see com.exxeleron.qjava.QConnection#query(com.exxeleron.qjava.QConnection.MessageType, java.lang.String,
+     *      java.lang.Object[])
+     */
+    public int query( final MessageType msgType, final String query, final Object... parameters ) throws QException, IOException {
+        synchronized ( connection ) {
+            return connection.query(msgType, query, parameters);
+        }
+    }
+
+    /**
+     * Reads message from the wrapped connection, bypassing the cache.
+     *
+     * @see com.exxeleron.qjava.QConnection#receive(boolean, boolean)
+     */
+    public Object receive( final boolean dataOnly, final boolean raw ) throws IOException, QException {
+        synchronized ( connection ) {
+            return connection.receive(dataOnly, raw);
+        }
+    }
+
+    /**
+     * Reads message from the wrapped connection, bypassing the cache.
+     *
+     * @see com.exxeleron.qjava.QConnection#receive()
+     */
+    public Object receive() throws IOException, QException {
+        return receive(true, false);
+    }
+
+    /**
+     * Retrieves number of cached results, including expired ones which haven't been accessed yet.
+     *
+     * @return number of entries
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Retrieves number of queries answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Retrieves number of queries sent to the q service due to cache miss.
+     *
+     * @return number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Retrieves number of queries which waited for result of an identical query in flight.
+     *
+     * @return number of coalesced queries
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Retrieves number of results evicted due to the size limit.
+     *
+     * @return number of evictions
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Retrieves the wrapped connection.
+     *
+     * @return the {@link QConnection}
+     */
+    public QConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns a String that represents the current {@link QCachingConnection}.
+     *
+     * @return a String that represents the current {@link QCachingConnection}
+     */
+    @Override
+    public String toString() {
+        return connection.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getHost() {
+        return connection.getHost();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getPort() {
+        return connection.getPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUsername() {
+        return connection.getUsername();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPassword() {
+        return connection.getPassword();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getEncoding() {
+        return connection.getEncoding();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getProtocolVersion() {
+        return connection.getProtocolVersion();
+    }
+
+    private static final class Key {
+
+        private final byte[] request;
+        private final int hash;
+
+        Key(final byte[] request) {
+            this.request = request;
+            this.hash = Arrays.hashCode(request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            return obj instanceof Key && Arrays.equals(request, ((Key) obj).request);
+        }
+    }
+
+    private static final class Entry {
+
+        final Object value;
+        final long expiresAt;
+        long hits;
+
+        Entry(final Object value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class TtlRule {
+
+        final Pattern pattern;
+        final long ttl;
+
+        TtlRule(final String pattern, final long ttl) {
+            this.pattern = Pattern.compile(pattern);
+            this.ttl = ttl;
+        }
+    }
+
+}
@@ -16,19 +16,57 @@
 package com.exxeleron.qjava;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The {@link QCallbackConnection}, in addition to {@link QBasicConnection}, provides an internal thread-based mechanism
  * for asynchronous subscription.
  * 
+ * If a {@link QReconnectPolicy} is set, the listener thread reestablishes lost connection, renews subscriptions
+ * registered via {@link #subscribe(String, Object...)} and notifies {@link QReconnectListener}s about the gap in
+ * received messages.
+ * 
+ * If decode threads are configured via {@link #setDecodeThreads(int)}, the listener thread only reads raw messages from
+ * the socket, while deserialization is performed by a pool of decode threads. Listeners still receive messages in the
+ * order in which they were read.
+ * 
+ * If {@link QMessageFilter}s are registered, only the header and leading items of each message are parsed via
+ * {@link QReader#peek(QMessage, int)} before the filters decide whether the message is deserialized at all.
+ * 
  * Methods of {@link QCallbackConnection} are not thread safe.
  */
 public class QCallbackConnection extends QBasicConnection {
 
+    public static final int DECODE_QUEUE_CAPACITY = 1024;
+    public static final int PEEK_LENGTH = 2;
+
     protected QListener messageListener;
     protected Thread listenerThread;
     final CopyOnWriteArraySet<QMessagesListener> messagesListeners;
+    final CopyOnWriteArraySet<QReconnectListener> reconnectListeners;
+    final CopyOnWriteArraySet<QMessageFilter> messageFilters;
+
+    private final List<Subscription> subscriptions;
+    private volatile QReconnectPolicy reconnectPolicy;
+    private volatile int reconnectCount;
+    private volatile QReconnectEvent lastReconnectEvent;
+    private int decodeThreads;
+    private final AtomicLong filteredCount = new AtomicLong();
 
     /**
      * Initializes a new QCallbackConnection instance.
@@ -48,6 +86,9 @@ public class QCallbackConnection extends QBasicConnection {
         super(host, port, username, password, encoding);
 
         this.messagesListeners = new CopyOnWriteArraySet<QMessagesListener>();
+        this.reconnectListeners = new CopyOnWriteArraySet<QReconnectListener>();
+        this.messageFilters = new CopyOnWriteArraySet<QMessageFilter>();
+        this.subscriptions = new CopyOnWriteArrayList<Subscription>();
     }
 
     /**
@@ -71,9 +112,12 @@ public class QCallbackConnection extends QBasicConnection {
      */
     @Override
     public void close() throws IOException {
-        if ( connection != null ) {
+        if ( listenerThread != null || connection != null || channel != null ) {
+            // listener may be reconnecting while the connection is not established
             stopListener();
             messagesListeners.clear();
+            reconnectListeners.clear();
+            subscriptions.clear();
         }
         super.close();
     }
@@ -108,7 +152,7 @@ public class QCallbackConnection extends QBasicConnection {
      */
     public synchronized void stopListener() {
         if ( messageListener != null ) {
-            messageListener.running = false;
+            messageListener.stop();
             messageListener = null;
             try {
                 listenerThread.join(500);
@@ -138,6 +182,174 @@ public class QCallbackConnection extends QBasicConnection {
         messagesListeners.remove(listener);
     }
 
+    /**
+     * Registers filter deciding whether received message is deserialized and delivered to listeners. Message is
+     * discarded if any of registered filters rejects it.
+     * 
+     * @param filter
+     *            a {@link QMessageFilter} to be registered
+     */
+    public void addMessageFilter( final QMessageFilter filter ) {
+        messageFilters.add(filter);
+    }
+
+    /**
+     * Unregisters filter so that it will no longer decide about received messages.
+     * 
+     * @param filter
+     *            a {@link QMessageFilter} to be unregistered
+     */
+    public void removeMessageFilter( final QMessageFilter filter ) {
+        messageFilters.remove(filter);
+    }
+
+    /**
+     * Retrieves number of messages discarded by registered {@link QMessageFilter}s.
+     * 
+     * @return number of discarded messages
+     */
+    public long getFilteredCount() {
+        return filteredCount.get();
+    }
+
+    /**
+     * Executes a synchronous subscription call against the remote q service and registers it, so that it is executed
+     * again after the connection has been reestablished by the listener thread.
+     * 
+     * @param query
+     *            Query to be executed, e.g. <code>.u.sub</code>
+     * @param parameters
+     *            Additional parameters
+     * @return deserialized response from the remote q service
+     * @throws QException
+     * @throws IOException
+     */
+    public Object subscribe( final String query, final Object... parameters ) throws QException, IOException {
+        final Object response = sync(query, parameters);
+        subscriptions.add(new Subscription(query, parameters));
+        return response;
+    }
+
+    /**
+     * Unregisters subscription calls of the query whose parameters start with the given ones, so that they are not
+     * executed after reconnection. The remote q service is not notified.
+     * 
+     * @param query
+     *            Query of the subscription, e.g. <code>.u.sub</code>
+     * @param parameters
+     *            Leading parameters of the subscription, e.g. name of the table
+     * @return number of unregistered subscription calls
+     */
+    public int removeSubscriptions( final String query, final Object... parameters ) {
+        int removed = 0;
+        for ( final Subscription subscription : subscriptions ) {
+            if ( subscription.matches(query, parameters) && subscriptions.remove(subscription) ) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Unregisters all subscription calls.
+     */
+    public void clearSubscriptions() {
+        subscriptions.clear();
+    }
+
+    /**
+     * Retrieves the policy for reestablishing lost connection.
+     * 
+     * @return the {@link QReconnectPolicy} or <code>null</code> if connection is not reestablished
+     */
+    public QReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * Sets the policy for reestablishing lost connection by the listener thread.
+     * 
+     * @param reconnectPolicy
+     *            the {@link QReconnectPolicy} or <code>null</code> to stop the listener thread on connection loss
+     */
+    public void setReconnectPolicy( final QReconnectPolicy reconnectPolicy ) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Retrieves number of times the connection has been reestablished by the listener thread.
+     * 
+     * @return number of reconnections
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Retrieves the most recent reconnection.
+     * 
+     * @return the {@link QReconnectEvent} or <code>null</code> if connection has not been reestablished
+     */
+    public QReconnectEvent getLastReconnectEvent() {
+        return lastReconnectEvent;
+    }
+
+    /**
+     * Registers listener so that it will be notified when the connection has been reestablished.
+     * 
+     * @param listener
+     *            a {@link QReconnectListener} to be registered
+     */
+    public void addReconnectListener( final QReconnectListener listener ) {
+        reconnectListeners.add(listener);
+    }
+
+    /**
+     * Unregisters listener so that it will no longer be notified about reconnections.
+     * 
+     * @param listener
+     *            a {@link QReconnectListener} to be unregistered
+     */
+    public void removeReconnectListener( final QReconnectListener listener ) {
+        reconnectListeners.remove(listener);
+    }
+
+    /**
+     * Retrieves number of threads deserializing received messages.
+     * 
+     * @return number of decode threads, <code>0</code> if messages are deserialized by the listener thread
+     */
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    /**
+     * Sets number of threads deserializing received messages. Setting takes effect when the listener thread is started.
+     * <p>
+     * Each decode thread uses its own {@link QReader} created via {@link #createReader()}. Up to
+     * {@link #DECODE_QUEUE_CAPACITY} messages can await deserialization or delivery, afterwards the listener thread
+     * stops reading from the socket.
+     * </p>
+     * 
+     * @param decodeThreads
+     *            number of decode threads, <code>0</code> to deserialize messages by the listener thread
+     */
+    public void setDecodeThreads( final int decodeThreads ) {
+        if ( decodeThreads < 0 ) {
+            throw new IllegalArgumentException("Number of decode threads cannot be negative");
+        }
+        this.decodeThreads = decodeThreads;
+    }
+
+    /**
+     * Creates {@link QReader} used by a decode thread. Override if a custom {@link QReader} is used.
+     * 
+     * @return new {@link QReader} instance
+     */
+    protected QReader createReader() {
+        return new DefaultQReader();
+    }
+
     /**
      * Support for reporting incoming messages from kdb+ services.
      * 
@@ -162,22 +374,324 @@ public class QCallbackConnection extends QBasicConnection {
         }
     }
 
+    /**
+     * Support for reporting reestablished connection.
+     * 
+     * @param event
+     *            an event to be distributed among reconnect listeners
+     */
+    protected void fireReconnectedEvent( final QReconnectEvent event ) {
+        for ( final QReconnectListener listener : reconnectListeners ) {
+            listener.reconnected(event);
+        }
+    }
+
+    private static final class Subscription {
+
+        final String query;
+        final Object[] parameters;
+
+        Subscription(final String query, final Object[] parameters) {
+            this.query = query;
+            this.parameters = parameters;
+        }
+
+        boolean matches( final String query, final Object[] parameters ) {
+            if ( !this.query.equals(query) || this.parameters.length < parameters.length ) {
+                return false;
+            }
+            for ( int i = 0; i < parameters.length; i++ ) {
+                if ( !Arrays.deepEquals(new Object[] { this.parameters[i] }, new Object[] { parameters[i] }) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     class QListener implements Runnable {
 
-        boolean running = true;
+        volatile boolean running = true;
+        private final Random random = new Random();
+
+        private Decoder decoder;
 
         public void run() {
-            while ( running && isConnected() ) {
+            decoder = decodeThreads > 0 ? new Decoder(decodeThreads) : null;
+            try {
+                while ( running && isConnected() ) {
+                    try {
+                        if ( !messageFilters.isEmpty() ) {
+                            // uncompressed once for both the filters and deserialization
+                            final QMessage raw = reader.uncompress(reader.read(true));
+                            final boolean accepted;
+                            try {
+                                accepted = accept(raw);
+                            } catch ( final RuntimeException e ) {
+                                // failing filter is not a connection loss, the message is skipped
+                                fireErrorReceivedInOrder(new QErrorMessage(e));
+                                continue;
+                            }
+
+                            if ( !accepted ) {
+                                filteredCount.incrementAndGet();
+                            } else if ( decoder != null ) {
+                                decoder.submit(raw);
+                            } else {
+                                deliver(reader.parse(raw));
+                            }
+                        } else if ( decoder != null ) {
+                            decoder.submit(reader.read(true));
+                        } else {
+                            final QMessage message = reader.read(false);
+                            deliver(message);
+                        }
+                    } catch ( final QException e ) {
+                        fireErrorReceivedInOrder(new QErrorMessage(e));
+                    } catch ( final Exception e ) {
+                        fireErrorReceivedInOrder(new QErrorMessage(e));
+                        if ( !running || reconnectPolicy == null || !reconnect(e) ) {
+                            running = false;
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                if ( decoder != null ) {
+                    decoder.close();
+                }
+            }
+        }
+
+        private boolean accept( final QMessage raw ) throws IOException, QException {
+            final String[] prefix = reader.peek(raw, PEEK_LENGTH);
+            for ( final QMessageFilter filter : messageFilters ) {
+                if ( !filter.accept(raw, prefix) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void deliver( final QMessage message ) {
+            try {
+                fireMessageReceivedEvent(message);
+            } catch ( final RuntimeException e ) {
+                // failing listener is not a connection loss
+                fireErrorReceivedInOrder(new QErrorMessage(e));
+            }
+        }
+
+        private void fireErrorReceivedInOrder( final QErrorMessage message ) {
+            if ( decoder != null ) {
+                decoder.drain();
+            }
+            try {
+                fireErrorReceivedEvent(message);
+            } catch ( final RuntimeException e ) {
+                // failing listener shall not stop the listener thread
+            }
+        }
+
+        synchronized void stop() {
+            running = false;
+            notifyAll();
+        }
+
+        private boolean reconnect( final Exception cause ) {
+            final QReconnectPolicy policy = reconnectPolicy;
+            final long disconnectTime = System.currentTimeMillis();
+            final long start = System.nanoTime();
+            Exception lastError = cause;
+
+            for ( int attempt = 1; policy.getMaxAttempts() <= 0 || attempt <= policy.getMaxAttempts(); attempt++ ) {
+                if ( !pause(policy.getDelay(attempt, random)) ) {
+                    return false;
+                }
+
+                final Object[] results = new Object[subscriptions.size()];
                 try {
-                    final QMessage message = reader.read(false);
-                    fireMessageReceivedEvent(message);
-                } catch ( final QException e ) {
-                    fireErrorReceivedEvent(new QErrorMessage(e));
+                    reset();
+                    if ( !running ) {
+                        // closed during the attempt
+                        QCallbackConnection.super.close();
+                        return false;
+                    }
+
+                    int i = 0;
+                    for ( final Subscription subscription : subscriptions ) {
+                        results[i++] = sync(subscription.query, subscription.parameters);
+                    }
                 } catch ( final Exception e ) {
-                    fireErrorReceivedEvent(new QErrorMessage(e));
+                    lastError = e;
+                    continue;
+                }
+
+                final QReconnectEvent event = new QReconnectEvent(cause, disconnectTime, System.currentTimeMillis(), attempt, System.nanoTime() - start,
+                        results);
+                reconnectCount++;
+                lastReconnectEvent = event;
+                if ( decoder != null ) {
+                    decoder.drain();
+                }
+                try {
+                    fireReconnectedEvent(event);
+                } catch ( final RuntimeException e ) {
+                    // failing listener is not a connection loss, subscriptions are not sent again
+                    fireErrorReceivedInOrder(new QErrorMessage(e));
+                }
+                return running;
+            }
+
+            if ( !running ) {
+                return false;
+            }
+            fireErrorReceivedInOrder(new QErrorMessage(new QConnectionException("Cannot reconnect to " + QCallbackConnection.this + " after "
+                    + policy.getMaxAttempts() + " attempt(s)", lastError)));
+            return false;
+        }
+
+        private synchronized boolean pause( final long delay ) {
+            final long deadline = System.currentTimeMillis() + delay;
+            long remaining = delay;
+            while ( running && remaining > 0 ) {
+                try {
+                    wait(remaining);
+                } catch ( final InterruptedException e ) {
                     running = false;
+                    Thread.currentThread().interrupt();
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return running;
+        }
+    }
+
+    /**
+     * Deserializes raw messages in a pool of decode threads and delivers them to listeners in the order of arrival.
+     */
+    private final class Decoder implements Runnable {
+
+        private final ExecutorService pool;
+        private final BlockingQueue<Future<Object>> pending;
+        private final Thread deliveryThread;
+        private final ThreadLocal<QReader> readers = new ThreadLocal<QReader>();
+        private final FutureTask<Object> poison = new FutureTask<Object>(new Runnable() {
+
+            public void run() {
+                // marks end of delivery
+            }
+        }, null);
+
+        Decoder(final int threads) {
+            final String name = listenerThread != null ? listenerThread.getName() : "qJava-listener" + QCallbackConnection.this;
+            this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                private int count;
+
+                public synchronized Thread newThread( final Runnable r ) {
+                    final Thread thread = new Thread(r, name + "-decoder-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.pending = new ArrayBlockingQueue<Future<Object>>(DECODE_QUEUE_CAPACITY);
+            this.deliveryThread = new Thread(this, name + "-delivery");
+            this.deliveryThread.setDaemon(true);
+            this.deliveryThread.start();
+        }
+
+        void submit( final QMessage raw ) throws InterruptedException {
+            pending.put(pool.submit(new Callable<Object>() {
+
+                public Object call() {
+                    QReader parser = readers.get();
+                    if ( parser == null ) {
+                        parser = createReader();
+                        parser.setEncoding(getEncoding());
+                        readers.set(parser);
+                    }
+
+                    try {
+                        return parser.parse(raw);
+                    } catch ( final Exception e ) {
+                        return new QErrorMessage(e);
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Waits until all messages read so far have been delivered to listeners.
+         */
+        void drain() {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final FutureTask<Object> barrier = new FutureTask<Object>(new Runnable() {
+
+                public void run() {
+                    // marks delivery position
+                }
+            }, latch);
+            barrier.run();
+
+            try {
+                pending.put(barrier);
+                latch.await();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                pending.put(poison);
+                deliveryThread.join();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        public void run() {
+            while ( true ) {
+                final Object result;
+                try {
+                    final Future<Object> future = pending.take();
+                    if ( future == poison ) {
+                        break;
+                    }
+                    result = future.get();
+                } catch ( final InterruptedException e ) {
                     break;
+                } catch ( final ExecutionException e ) {
+                    deliverError(new QErrorMessage(e.getCause()));
+                    continue;
+                }
+
+                if ( result instanceof CountDownLatch ) {
+                    ((CountDownLatch) result).countDown();
+                    continue;
                 }
+
+                try {
+                    if ( result instanceof QMessage ) {
+                        fireMessageReceivedEvent((QMessage) result);
+                    } else {
+                        fireErrorReceivedEvent((QErrorMessage) result);
+                    }
+                } catch ( final RuntimeException e ) {
+                    // failing listener shall not stop delivery of subsequent messages
+                    deliverError(new QErrorMessage(e));
+                }
+            }
+        }
+
+        private void deliverError( final QErrorMessage message ) {
+            try {
+                fireErrorReceivedEvent(message);
+            } catch ( final RuntimeException e ) {
+                // failing listener shall not stop the delivery thread, drain() and submit() would block
             }
         }
     }
@@ -0,0 +1,481 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * Memory-mapped view of a column file of kdb+ splayed table.
+ * <p>
+ * Supported are simple lists, lists enumerated against the <code>sym</code> file (type 20) and nested lists of simple
+ * lists (type 77 + t) with their data stored in the <code>#</code> file. Items can be accessed directly in the mapped
+ * file via typed getters, or the column can be materialized as a Java array of the same type as returned by
+ * {@link DefaultQReader}.
+ * </p>
+ * <p>
+ * Column files are expected to be written by little endian kdb+ process, either in the mapped layout of kdb+ 3.x
+ * (<code>0xfe20</code> header) or in the serialized layout of files written via <code>set</code> (<code>0xff01</code>
+ * header), which kdb+ uses for enumerated columns naming their domain, e.g. <code>sym</code>. Compressed files are not
+ * supported.
+ * </p>
+ */
+public class QColumnFile {
+
+    static final int HEADER_SIZE = 16;
+    static final int SERIALIZED_HEADER_SIZE = 8;
+    static final String SYM_DOMAIN = "sym";
+    static final int ENUMERATION_TYPE = 20;
+    static final int NESTED_TYPE_OFFSET = 77;
+
+    // sizes of list items indexed by q type code, -1 for types which cannot be stored in column file
+    static final int[] ITEM_SIZE = { -1, 1, 16, -1, 1, 2, 4, 8, 4, 8, 1, -1, 8, 4, 4, 8, 8, 4, 4, 4, 4 };
+
+    private final File file;
+    private final String encoding;
+    private final ByteBuffer buffer;
+    private final int typeCode;
+    private final byte attribute;
+    private final int count;
+    private final int dataOffset;
+    private final String domain;
+    private final QColumnFile data;
+
+    /**
+     * Maps the column file into memory.
+     *
+     * @param file
+     *            the column file
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws QReaderException
+     *             if the file is not a supported kdb+ column file
+     */
+    public QColumnFile(final File file) throws IOException, QException {
+        this(file, "ISO-8859-1");
+    }
+
+    /**
+     * Maps the column file into memory.
+     *
+     * @param file
+     *            the column file
+     * @param encoding
+     *            encoding used for deserialization of string data
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws QReaderException
+     *             if the file is not a supported kdb+ column file
+     */
+    public QColumnFile(final File file, final String encoding) throws IOException, QException {
+        this.file = file;
+        this.encoding = encoding;
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if ( length > Integer.MAX_VALUE ) {
+                throw new QReaderException("Column file exceeds 2GB: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            // mapping remains valid after the file is closed
+            raf.close();
+        }
+
+        final long length;
+        if ( buffer.limit() >= HEADER_SIZE && buffer.get(0) == (byte) 0xfe && buffer.get(1) == 0x20 ) {
+            // mapped list: 0xfe20, type, attribute, 4 unused bytes, 8-byte length
+            typeCode = buffer.get(2);
+            attribute = buffer.get(3);
+            length = buffer.getLong(8);
+            dataOffset = HEADER_SIZE;
+            domain = typeCode == ENUMERATION_TYPE ? SYM_DOMAIN : null;
+        } else if ( buffer.limit() >= SERIALIZED_HEADER_SIZE && buffer.get(0) == (byte) 0xff && buffer.get(1) == 0x01 ) {
+            // serialized list: 0xff01, type, attribute, null terminated domain of enumeration, 4-byte length
+            typeCode = buffer.get(2);
+            attribute = buffer.get(3);
+            int position = 4;
+            if ( typeCode == ENUMERATION_TYPE ) {
+                while ( position < buffer.limit() && buffer.get(position) != 0 ) {
+                    position++;
+                }
+                if ( position + 5 > buffer.limit() ) {
+                    throw new QReaderException("Not a kdb+ column file: " + file);
+                }
+                final byte[] name = new byte[position - 4];
+                for ( int i = 0; i < name.length; i++ ) {
+                    name[i] = buffer.get(4 + i);
+                }
+                domain = new String(name, "ISO-8859-1");
+                position++;
+            } else {
+                domain = null;
+            }
+            length = buffer.getInt(position);
+            dataOffset = position + 4;
+        } else {
+            throw new QReaderException("Not a kdb+ column file: " + file);
+        }
+
+        if ( typeCode > NESTED_TYPE_OFFSET && typeCode - NESTED_TYPE_OFFSET < ITEM_SIZE.length && dataOffset == HEADER_SIZE ) {
+            data = new QColumnFile(new File(file.getPath() + "#"), encoding);
+            if ( data.getTypeCode() != typeCode - NESTED_TYPE_OFFSET ) {
+                throw new QReaderException("Type of nested data " + data.getTypeCode() + " doesn't match column file: " + file);
+            }
+            checkLength(length, 8);
+        } else if ( typeCode > 0 && typeCode < ITEM_SIZE.length && ITEM_SIZE[typeCode] > 0 ) {
+            data = null;
+            checkLength(length, ITEM_SIZE[typeCode]);
+        } else {
+            throw new QReaderException("Unsupported type of column file: " + typeCode + " (" + file + ")");
+        }
+
+        count = (int) length;
+    }
+
+    private void checkLength( final long length, final int itemSize ) throws QReaderException {
+        if ( length < 0 || dataOffset + length * itemSize > buffer.limit() ) {
+            throw new QReaderException("Invalid length of column file: " + length + " (" + file + ")");
+        }
+    }
+
+    private int offset( final int index, final int itemSize ) {
+        if ( index < 0 || index >= count ) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+        }
+        return dataOffset + index * itemSize;
+    }
+
+    /**
+     * Retrieves the column file.
+     *
+     * @return the column file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Retrieves q type code of the column, e.g. <code>9</code> for float column, <code>20</code> for enumerated
+     * symbols or <code>87</code> for nested strings.
+     *
+     * @return q type code
+     */
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    /**
+     * Retrieves attribute of the column: <code>0</code> none, <code>1</code> sorted, <code>2</code> unique,
+     * <code>3</code> partitioned, <code>5</code> grouped.
+     *
+     * @return attribute code
+     */
+    public byte getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Retrieves number of items of the column.
+     *
+     * @return number of items
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Indicates whether the column is enumerated against a list of symbols, see {@link #getDomain()}.
+     *
+     * @return <code>true</code> if items are indices into the list of symbols
+     */
+    public boolean isEnumerated() {
+        return typeCode == ENUMERATION_TYPE;
+    }
+
+    /**
+     * Retrieves name of the list the column is enumerated against, <code>sym</code> for mapped column files which
+     * don't store the domain.
+     *
+     * @return name of the enumeration domain, <code>null</code> if the column is not enumerated
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Indicates whether the column is a nested list stored along with the <code>#</code> file.
+     *
+     * @return <code>true</code> if items are lists
+     */
+    public boolean isNested() {
+        return data != null;
+    }
+
+    /**
+     * Retrieves byte value of the item of bool, byte or char column.
+     *
+     * @param index
+     *            index of the item
+     * @return value of the item
+     */
+    public byte getByte( final int index ) {
+        return buffer.get(offset(index, 1));
+    }
+
+    /**
+     * Retrieves value of the item of short column.
+     *
+     * @param index
+     *            index of the item
+     * @return value of the item
+     */
+    public short getShort( final int index ) {
+        return buffer.getShort(offset(index, 2));
+    }
+
+    /**
+     * Retrieves int value of the item of int, month, date, minute, second, time or enumerated column.
+     *
+     * @param index
+     *            index of the item
+     * @return value of the item
+     */
+    public int getInt( final int index ) {
+        return buffer.getInt(offset(index, 4));
+    }
+
+    /**
+     * Retrieves long value of the item of long, timestamp or timespan column.
+     *
+     * @param index
+     *            index of the item
+     * @return value of the item
+     */
+    public long getLong( final int index ) {
+        return buffer.getLong(offset(index, 8));
+    }
+
+    /**
+     * Retrieves value of the item of real column.
+     *
+     * @param index
+     *            index of the item
+     * @return value of the item
+     */
+    public float getFloat( final int index ) {
+        return buffer.getFloat(offset(index, 4));
+    }
+
+    /**
+     * Retrieves double value of the item of float or datetime column.
+     *
+     * @param index
+     *            index of the item
+     * @return value of the item
+     */
+    public double getDouble( final int index ) {
+        return buffer.getDouble(offset(index, 8));
+    }
+
+    /**
+     * Materializes all items of the column as a Java array.
+     *
+     * @param symbols
+     *            symbols of the enumeration domain, required for enumerated columns
+     * @return array of items, e.g. <code>double[]</code>, <code>String[]</code> or <code>Object[]</code> of
+     *         <code>char[]</code> for nested strings
+     * @throws QException
+     *             if the column cannot be materialized
+     */
+    public Object toArray( final String[] symbols ) throws QException {
+        return toArray(0, count, symbols);
+    }
+
+    /**
+     * Materializes range of items of the column as a Java array.
+     *
+     * @param from
+     *            index of the first item, inclusive
+     * @param to
+     *            index of the last item, exclusive
+     * @param symbols
+     *            symbols of the enumeration domain, required for enumerated columns
+     * @return array of items
+     * @throws QException
+     *             if the column cannot be materialized
+     */
+    public Object toArray( final int from, final int to, final String[] symbols ) throws QException {
+        if ( from < 0 || to > count || from > to ) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + to + "), count: " + count);
+        }
+
+        if ( data != null ) {
+            final Object[] list = new Object[to - from];
+            long start = from == 0 ? 0 : buffer.getLong(offset(from - 1, 8));
+            for ( int i = from; i < to; i++ ) {
+                final long end = buffer.getLong(offset(i, 8));
+                list[i - from] = data.toArray((int) start, (int) end, symbols);
+                start = end;
+            }
+            return list;
+        }
+
+        try {
+            return readList(from, to - from, symbols);
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new QReaderException(e.getMessage());
+        }
+    }
+
+    private Object readList( final int from, final int length, final String[] symbols ) throws QException, UnsupportedEncodingException {
+        final ByteBuffer view = buffer.duplicate();
+        view.order(ByteOrder.LITTLE_ENDIAN);
+        view.position(dataOffset + from * ITEM_SIZE[typeCode]);
+
+        if ( typeCode == ENUMERATION_TYPE ) {
+            if ( symbols == null ) {
+                throw new QReaderException("Symbols are required to read enumerated column: " + file);
+            }
+            final String[] list = new String[length];
+            for ( int i = 0; i < length; i++ ) {
+                final int index = view.getInt();
+                list[i] = index >= 0 && index < symbols.length ? symbols[index] : "";
+            }
+            return list;
+        }
+
+        switch ( QType.getQType((byte) typeCode) ) {
+        case BOOL_LIST: {
+            final boolean[] list = new boolean[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = view.get() == 1;
+            }
+            return list;
+        }
+        case GUID_LIST: {
+            final UUID[] list = new UUID[length];
+            view.order(ByteOrder.BIG_ENDIAN);
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new UUID(view.getLong(), view.getLong());
+            }
+            return list;
+        }
+        case BYTE_LIST: {
+            final byte[] list = new byte[length];
+            view.get(list);
+            return list;
+        }
+        case SHORT_LIST: {
+            final short[] list = new short[length];
+            view.asShortBuffer().get(list);
+            return list;
+        }
+        case INT_LIST: {
+            final int[] list = new int[length];
+            view.asIntBuffer().get(list);
+            return list;
+        }
+        case LONG_LIST: {
+            final long[] list = new long[length];
+            view.asLongBuffer().get(list);
+            return list;
+        }
+        case FLOAT_LIST: {
+            final float[] list = new float[length];
+            view.asFloatBuffer().get(list);
+            return list;
+        }
+        case DOUBLE_LIST: {
+            final double[] list = new double[length];
+            view.asDoubleBuffer().get(list);
+            return list;
+        }
+        case STRING: {
+            final byte[] list = new byte[length];
+            view.get(list);
+            return new String(list, encoding).toCharArray();
+        }
+        case TIMESTAMP_LIST: {
+            final QTimestamp[] list = new QTimestamp[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QTimestamp(view.getLong());
+            }
+            return list;
+        }
+        case MONTH_LIST: {
+            final QMonth[] list = new QMonth[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QMonth(view.getInt());
+            }
+            return list;
+        }
+        case DATE_LIST: {
+            final QDate[] list = new QDate[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QDate(view.getInt());
+            }
+            return list;
+        }
+        case DATETIME_LIST: {
+            final QDateTime[] list = new QDateTime[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QDateTime(view.getDouble());
+            }
+            return list;
+        }
+        case TIMESPAN_LIST: {
+            final QTimespan[] list = new QTimespan[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QTimespan(view.getLong());
+            }
+            return list;
+        }
+        case MINUTE_LIST: {
+            final QMinute[] list = new QMinute[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QMinute(view.getInt());
+            }
+            return list;
+        }
+        case SECOND_LIST: {
+            final QSecond[] list = new QSecond[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QSecond(view.getInt());
+            }
+            return list;
+        }
+        case TIME_LIST: {
+            final QTime[] list = new QTime[length];
+            for ( int i = 0; i < length; i++ ) {
+                list[i] = new QTime(view.getInt());
+            }
+            return list;
+        }
+        default:
+            throw new QReaderException("Unable to deserialize q type: " + typeCode);
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conflates updates published by a kdb+ tickerplant into the latest row per key.
+ * <p>
+ * Each table received via <code>upd</code> message, i.e. <code>(`upd; `table; data)</code>, is merged into a
+ * last-value store keyed by the key columns. Consumers pull rows changed since their previous poll at their own pace,
+ * so memory usage is bounded by the number of distinct keys, regardless of the update rate:
+ * </p>
+ *
+ * <pre>
+ * QConflatingListener conflater = new QConflatingListener(&quot;sym&quot;);
+ * q.addMessagesListener(conflater);
+ * q.startListener();
+ *
+ * while ( conflater.waitForChanges(1, TimeUnit.SECONDS) ) {
+ *     QTable changed = conflater.poll(&quot;quote&quot;);
+ *     // ...
+ * }
+ * </pre>
+ * <p>
+ * Tables without the key columns are ignored. The store of a table is cleared when its columns change.
+ * </p>
+ */
+public class QConflatingListener implements QMessagesListener, QUpdateHandler {
+
+    private final String[] keyColumns;
+    private final Map<String, Store> stores = new HashMap<String, Store>();
+    private volatile String updateFunction = QPartitionedDispatcher.DEFAULT_UPDATE_FUNCTION;
+    private QErrorMessage lastError;
+    private long updateCount;
+    private long conflatedCount;
+
+    /**
+     * Creates new {@link QConflatingListener} object.
+     *
+     * @param keyColumns
+     *            names of the key columns, e.g. <code>sym</code>
+     */
+    public QConflatingListener(final String... keyColumns) {
+        if ( keyColumns == null || keyColumns.length == 0 ) {
+            throw new IllegalArgumentException("At least one key column is required");
+        }
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * Merges received update into the store.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#messageReceived(com.exxeleron.qjava.QMessage)
+     */
+    public void messageReceived( final QMessage message ) {
+        final Object data = message.getData();
+        if ( data instanceof Object[] ) {
+            final Object[] update = (Object[]) data;
+            if ( update.length == 3 && Utils.isFunctionName(update[0], updateFunction) && update[1] instanceof String && update[2] instanceof QTable ) {
+                update((String) update[1], (QTable) update[2]);
+            }
+        }
+    }
+
+    /**
+     * Retains the error, see {@link #getLastError()}.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#errorReceived(com.exxeleron.qjava.QErrorMessage)
+     */
+    public synchronized void errorReceived( final QErrorMessage message ) {
+        lastError = message;
+    }
+
+    /**
+     * Merges rows into the store of the table.
+     *
+     * @see #update(String, QTable)
+     */
+    public void updateReceived( final String table, final QTable rows ) {
+        update(table, rows);
+    }
+
+    /**
+     * Merges rows into the store of the table.
+     *
+     * @param table
+     *            name of the table
+     * @param rows
+     *            updated rows
+     */
+    public synchronized void update( final String table, final QTable rows ) {
+        final int[] keyIndices = new int[keyColumns.length];
+        for ( int k = 0; k < keyColumns.length; k++ ) {
+            if ( !rows.hasColumn(keyColumns[k]) ) {
+                return;
+            }
+            keyIndices[k] = rows.getColumnIndex(keyColumns[k]);
+        }
+
+        Store store = stores.get(table);
+        if ( store == null || !Arrays.equals(store.columns, rows.getColumns()) ) {
+            store = new Store(rows);
+            stores.put(table, store);
+        }
+
+        final Object[] data = rows.getData();
+        final int rowsCount = rows.getRowsCount();
+        for ( int i = 0; i < rowsCount; i++ ) {
+            final Object[] row = new Object[data.length];
+            for ( int c = 0; c < data.length; c++ ) {
+                row[c] = Array.get(data[c], i);
+            }
+
+            final Object key;
+            if ( keyIndices.length == 1 ) {
+                key = row[keyIndices[0]];
+            } else {
+                final Object[] values = new Object[keyIndices.length];
+                for ( int k = 0; k < keyIndices.length; k++ ) {
+                    values[k] = row[keyIndices[k]];
+                }
+                key = Arrays.asList(values);
+            }
+
+            store.rows.put(key, row);
+            if ( !store.changed.add(key) ) {
+                conflatedCount++;
+            }
+        }
+
+        updateCount += rowsCount;
+        if ( rowsCount > 0 ) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Retrieves latest values of rows changed since the previous poll of the table.
+     *
+     * @param table
+     *            name of the table
+     * @return changed rows or <code>null</code> if no rows have changed
+     */
+    public synchronized QTable poll( final String table ) {
+        final Store store = stores.get(table);
+        if ( store == null || store.changed.isEmpty() ) {
+            return null;
+        }
+
+        final QTable result = store.toTable(store.changed);
+        store.changed.clear();
+        return result;
+    }
+
+    /**
+     * Retrieves latest values of rows changed since the previous poll, for all tables.
+     *
+     * @return map of table names to changed rows; tables without changes are omitted
+     */
+    public synchronized Map<String, QTable> pollAll() {
+        final Map<String, QTable> result = new LinkedHashMap<String, QTable>();
+        for ( final String table : stores.keySet() ) {
+            final QTable changed = poll(table);
+            if ( changed != null ) {
+                result.put(table, changed);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves latest values of all rows of the table, without affecting the set of changed rows.
+     *
+     * @param table
+     *            name of the table
+     * @return latest rows or <code>null</code> if no rows have been received
+     */
+    public synchronized QTable snapshot( final String table ) {
+        final Store store = stores.get(table);
+        return store != null ? store.toTable(store.rows.keySet()) : null;
+    }
+
+    /**
+     * Waits until any row has changed since the previous poll.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the time unit of the timeout argument
+     * @return <code>true</code> if changes are available, <code>false</code> if the waiting time elapsed
+     * @throws InterruptedException
+     *             if the current thread is interrupted while waiting
+     */
+    public synchronized boolean waitForChanges( final long timeout, final TimeUnit unit ) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while ( getChangedCount() == 0 ) {
+            final long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0 ) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves number of rows changed since the previous poll, for all tables.
+     *
+     * @return number of changed rows
+     */
+    public synchronized int getChangedCount() {
+        int count = 0;
+        for ( final Store store : stores.values() ) {
+            count += store.changed.size();
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves number of distinct keys of the table.
+     *
+     * @param table
+     *            name of the table
+     * @return number of keys
+     */
+    public synchronized int getKeyCount( final String table ) {
+        final Store store = stores.get(table);
+        return store != null ? store.rows.size() : 0;
+    }
+
+    /**
+     * Retrieves number of received rows.
+     *
+     * @return number of rows
+     */
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Retrieves number of received rows which have been overwritten by a newer row before being polled.
+     *
+     * @return number of conflated rows
+     */
+    public synchronized long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    /**
+     * Retrieves the most recent error received from the connection.
+     *
+     * @return the {@link QErrorMessage} or <code>null</code>
+     */
+    public synchronized QErrorMessage getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Removes all stored rows.
+     */
+    public synchronized void clear() {
+        stores.clear();
+    }
+
+    /**
+     * Sets name of the function used by the tickerplant to publish updates. Default: <code>upd</code>.
+     *
+     * @param updateFunction
+     *            name of the function
+     */
+    public void setUpdateFunction( final String updateFunction ) {
+        this.updateFunction = updateFunction;
+    }
+
+    private static final class Store {
+
+        final String[] columns;
+        final Class<?>[] types;
+        final Map<Object, Object[]> rows = new LinkedHashMap<Object, Object[]>();
+        final Set<Object> changed = new LinkedHashSet<Object>();
+
+        Store(final QTable table) {
+            this.columns = table.getColumns();
+            this.types = new Class<?>[columns.length];
+            for ( int c = 0; c < columns.length; c++ ) {
+                types[c] = table.getData()[c].getClass().getComponentType();
+            }
+        }
+
+        QTable toTable( final Collection<Object> keys ) {
+            final Object[] data = new Object[columns.length];
+            for ( int c = 0; c < columns.length; c++ ) {
+                data[c] = java.lang.reflect.Array.newInstance(types[c], keys.size());
+            }
+
+            int i = 0;
+            for ( final Object key : keys ) {
+                final Object[] row = rows.get(key);
+                for ( int c = 0; c < columns.length; c++ ) {
+                    Array.set(data[c], i, row[c]);
+                }
+                i++;
+            }
+            return new QTable(columns, data);
+        }
+    }
+
+}
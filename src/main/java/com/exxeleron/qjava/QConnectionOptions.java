@@ -0,0 +1,276 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+/**
+ * Encapsulates socket and timeout settings of a connection with the remote q service.
+ * <p>
+ * Instances are immutable and created via {@link Builder}:
+ * </p>
+ *
+ * <pre>
+ * QConnectionOptions options = QConnectionOptions.builder().connectTimeout(1000).syncTimeout(5000).receiveBufferSize(4 * 1024 * 1024).build();
+ * </pre>
+ * <p>
+ * Timeouts are expressed in milliseconds, <code>0</code> stands for no timeout. Buffer sizes are expressed in bytes,
+ * <code>0</code> stands for the system default. Socket settings apply to TCP transport only.
+ * </p>
+ */
+public final class QConnectionOptions {
+
+    /**
+     * Default options: no timeouts, system default buffer sizes, <code>TCP_NODELAY</code> enabled and
+     * <code>SO_KEEPALIVE</code> disabled.
+     */
+    public static final QConnectionOptions DEFAULT = new Builder().build();
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int syncTimeout;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+
+    private QConnectionOptions(final Builder builder) {
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+        this.syncTimeout = builder.syncTimeout;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.keepAlive = builder.keepAlive;
+    }
+
+    /**
+     * Creates new {@link Builder} initialized with default options.
+     *
+     * @return the {@link Builder}
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates new {@link Builder} initialized with current options.
+     *
+     * @return the {@link Builder}
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Retrieves timeout for establishing the connection, including the authentication handshake.
+     *
+     * @return timeout in milliseconds
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Retrieves timeout of a single read from the socket (<code>SO_TIMEOUT</code>).
+     *
+     * @return timeout in milliseconds
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Retrieves default deadline of synchronous queries.
+     *
+     * @return deadline in milliseconds
+     */
+    public int getSyncTimeout() {
+        return syncTimeout;
+    }
+
+    /**
+     * Retrieves size of the socket receive buffer (<code>SO_RCVBUF</code>).
+     *
+     * @return buffer size in bytes
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Retrieves size of the socket send buffer (<code>SO_SNDBUF</code>).
+     *
+     * @return buffer size in bytes
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Indicates whether Nagle's algorithm is disabled (<code>TCP_NODELAY</code>).
+     *
+     * @return <code>true</code> if Nagle's algorithm is disabled, <code>false</code> otherwise
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Indicates whether TCP keepalive is enabled (<code>SO_KEEPALIVE</code>).
+     *
+     * @return <code>true</code> if keepalive is enabled, <code>false</code> otherwise
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    @Override
+    public String toString() {
+        return "QConnectionOptions [connectTimeout=" + connectTimeout + ", readTimeout=" + readTimeout + ", syncTimeout=" + syncTimeout
+                + ", receiveBufferSize=" + receiveBufferSize + ", sendBufferSize=" + sendBufferSize + ", tcpNoDelay=" + tcpNoDelay + ", keepAlive="
+                + keepAlive + "]";
+    }
+
+    /**
+     * Builder of {@link QConnectionOptions}.
+     */
+    public static final class Builder {
+
+        private int connectTimeout;
+        private int readTimeout;
+        private int syncTimeout;
+        private int receiveBufferSize;
+        private int sendBufferSize;
+        private boolean tcpNoDelay = true;
+        private boolean keepAlive;
+
+        Builder() {
+            // default options
+        }
+
+        Builder(final QConnectionOptions options) {
+            this.connectTimeout = options.connectTimeout;
+            this.readTimeout = options.readTimeout;
+            this.syncTimeout = options.syncTimeout;
+            this.receiveBufferSize = options.receiveBufferSize;
+            this.sendBufferSize = options.sendBufferSize;
+            this.tcpNoDelay = options.tcpNoDelay;
+            this.keepAlive = options.keepAlive;
+        }
+
+        /**
+         * Sets timeout for establishing the connection, including the authentication handshake.
+         *
+         * @param connectTimeout
+         *            timeout in milliseconds, <code>0</code> for no timeout
+         * @return the {@link Builder}
+         */
+        public Builder connectTimeout( final int connectTimeout ) {
+            this.connectTimeout = checkNotNegative(connectTimeout);
+            return this;
+        }
+
+        /**
+         * Sets timeout of a single read from the socket. Connection is closed when the timeout expires. Note that the
+         * timeout applies also to the background threads of {@link QCallbackConnection} and
+         * {@link QPipelinedConnection}, so it should exceed the longest expected idle period.
+         *
+         * @param readTimeout
+         *            timeout in milliseconds, <code>0</code> for no timeout
+         * @return the {@link Builder}
+         */
+        public Builder readTimeout( final int readTimeout ) {
+            this.readTimeout = checkNotNegative(readTimeout);
+            return this;
+        }
+
+        /**
+         * Sets default deadline of synchronous queries. Connection is closed when the deadline expires.
+         *
+         * @param syncTimeout
+         *            deadline in milliseconds, <code>0</code> for no deadline
+         * @return the {@link Builder}
+         */
+        public Builder syncTimeout( final int syncTimeout ) {
+            this.syncTimeout = checkNotNegative(syncTimeout);
+            return this;
+        }
+
+        /**
+         * Sets size of the socket receive buffer.
+         *
+         * @param receiveBufferSize
+         *            buffer size in bytes, <code>0</code> for the system default
+         * @return the {@link Builder}
+         */
+        public Builder receiveBufferSize( final int receiveBufferSize ) {
+            this.receiveBufferSize = checkNotNegative(receiveBufferSize);
+            return this;
+        }
+
+        /**
+         * Sets size of the socket send buffer.
+         *
+         * @param sendBufferSize
+         *            buffer size in bytes, <code>0</code> for the system default
+         * @return the {@link Builder}
+         */
+        public Builder sendBufferSize( final int sendBufferSize ) {
+            this.sendBufferSize = checkNotNegative(sendBufferSize);
+            return this;
+        }
+
+        /**
+         * Enables or disables Nagle's algorithm.
+         *
+         * @param tcpNoDelay
+         *            <code>true</code> to disable Nagle's algorithm
+         * @return the {@link Builder}
+         */
+        public Builder tcpNoDelay( final boolean tcpNoDelay ) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * Enables or disables TCP keepalive.
+         *
+         * @param keepAlive
+         *            <code>true</code> to enable keepalive
+         * @return the {@link Builder}
+         */
+        public Builder keepAlive( final boolean keepAlive ) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Creates {@link QConnectionOptions} object.
+         *
+         * @return the {@link QConnectionOptions}
+         */
+        public QConnectionOptions build() {
+            return new QConnectionOptions(this);
+        }
+
+        private static int checkNotNegative( final int value ) {
+            if ( value < 0 ) {
+                throw new IllegalArgumentException("Value cannot be negative: " + value);
+            }
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Reads splayed and partitioned kdb+ databases directly from disk.
+ * <p>
+ * Columns are memory-mapped via {@link QColumnFile} and materialized into {@link QTable}s, symbols are resolved
+ * against the <code>sym</code> file in the root of the database. Partitions spread over segments listed in
+ * <code>par.txt</code> are supported:
+ * </p>
+ *
+ * <pre>
+ * QDiskDatabase hdb = new QDiskDatabase(new File(&quot;/data/hdb&quot;));
+ * QTable trades = hdb.readPartition(&quot;2015.06.01&quot;, &quot;trade&quot;, &quot;sym&quot;, &quot;price&quot;, &quot;size&quot;);
+ *
+ * hdb.scan(&quot;trade&quot;, new String[] { &quot;sym&quot;, &quot;price&quot; }, 8, new QDiskDatabase.PartitionHandler() {
+ *     public void partitionRead( String partition, QTable rows ) {
+ *         // ...
+ *     }
+ * });
+ * </pre>
+ * <p>
+ * Note that the virtual partition column, e.g. <code>date</code>, is not added to tables read from partitions.
+ * </p>
+ */
+public class QDiskDatabase {
+
+    /**
+     * Receives tables read from partitions by {@link QDiskDatabase#scan(String, String[], int, PartitionHandler)}.
+     */
+    public interface PartitionHandler {
+
+        /**
+         * Invoked for each partition containing the table. Might be invoked concurrently for distinct partitions.
+         *
+         * @param partition
+         *            name of the partition, e.g. <code>2015.06.01</code>
+         * @param rows
+         *            content of the table in the partition
+         */
+        void partitionRead( String partition, QTable rows );
+    }
+
+    private static final String SYM_FILE = "sym";
+    private static final String PAR_FILE = "par.txt";
+    private static final String COLUMNS_FILE = ".d";
+    private static final Pattern PARTITION_PATTERN = Pattern.compile("\\d{4}\\.\\d{2}\\.\\d{2}|\\d{4}\\.\\d{2}|\\d+");
+
+    private static final Comparator<String> PARTITION_ORDER = new Comparator<String>() {
+
+        public int compare( final String o1, final String o2 ) {
+            // orders int partitions numerically, dates and months chronologically
+            return o1.length() != o2.length() ? o1.length() - o2.length() : o1.compareTo(o2);
+        }
+    };
+
+    private final File root;
+    private final String encoding;
+    private String[] symbols;
+    private long symbolsModified;
+    private long symbolsLength;
+
+    /**
+     * Creates new {@link QDiskDatabase} object.
+     *
+     * @param root
+     *            root directory of the database
+     */
+    public QDiskDatabase(final File root) {
+        this(root, "ISO-8859-1");
+    }
+
+    /**
+     * Creates new {@link QDiskDatabase} object.
+     *
+     * @param root
+     *            root directory of the database
+     * @param encoding
+     *            encoding used for deserialization of string data
+     */
+    public QDiskDatabase(final File root, final String encoding) {
+        if ( root == null ) {
+            throw new IllegalArgumentException("Root directory cannot be null");
+        }
+        this.root = root;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Reads file containing q object serialized via <code>set</code>, e.g. the <code>sym</code> or <code>.d</code>
+     * file.
+     */
+    static Object readObjectFile( final File file, final String encoding ) throws IOException, QException {
+        final long length = file.length();
+        if ( length < 2 || length > Integer.MAX_VALUE ) {
+            throw new QReaderException("Not a kdb+ data file: " + file);
+        }
+
+        final byte[] data = new byte[(int) length - 2];
+        final DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        try {
+            if ( stream.readByte() != (byte) 0xff || stream.readByte() != 0x01 ) {
+                throw new QReaderException("Not a kdb+ data file: " + file);
+            }
+            stream.readFully(data);
+        } finally {
+            stream.close();
+        }
+
+        final QReader reader = new DefaultQReader();
+        reader.setEncoding(encoding);
+        return reader.parse(new QMessage(data, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, true, data.length + 8, data.length))
+                .getData();
+    }
+
+    /**
+     * Retrieves content of the <code>sym</code> file. The file is re-read if it has been modified since the previous
+     * invocation.
+     *
+     * @return list of symbols, empty if the database has no <code>sym</code> file
+     * @throws IOException
+     * @throws QException
+     */
+    public synchronized String[] getSymbols() throws IOException, QException {
+        final File file = new File(root, SYM_FILE);
+        if ( !file.isFile() ) {
+            return new String[0];
+        }
+
+        if ( symbols == null || file.lastModified() != symbolsModified || file.length() != symbolsLength ) {
+            symbolsModified = file.lastModified();
+            symbolsLength = file.length();
+            symbols = (String[]) readObjectFile(file, encoding);
+        }
+        return symbols;
+    }
+
+    private String[] getDomain( final String name ) throws IOException, QException {
+        // other domains than sym are rare and read on demand
+        return SYM_FILE.equals(name) ? getSymbols() : (String[]) readObjectFile(new File(root, name), encoding);
+    }
+
+    /**
+     * Retrieves names of partitions of the database, in order.
+     *
+     * @return names of partitions, empty if the database is not partitioned
+     * @throws IOException
+     */
+    public List<String> getPartitions() throws IOException {
+        return new ArrayList<String>(getPartitionDirectories().keySet());
+    }
+
+    private Map<String, File> getPartitionDirectories() throws IOException {
+        final List<File> segments = new ArrayList<File>();
+        final File par = new File(root, PAR_FILE);
+        if ( par.isFile() ) {
+            final BufferedReader reader = new BufferedReader(new FileReader(par));
+            try {
+                String line;
+                while ( (line = reader.readLine()) != null ) {
+                    if ( line.trim().length() > 0 ) {
+                        final File segment = new File(line.trim());
+                        segments.add(segment.isAbsolute() ? segment : new File(root, line.trim()));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } else {
+            segments.add(root);
+        }
+
+        final Map<String, File> partitions = new TreeMap<String, File>(PARTITION_ORDER);
+        for ( final File segment : segments ) {
+            final File[] files = segment.listFiles();
+            if ( files != null ) {
+                for ( final File file : files ) {
+                    if ( file.isDirectory() && PARTITION_PATTERN.matcher(file.getName()).matches() ) {
+                        partitions.put(file.getName(), file);
+                    }
+                }
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Retrieves names of tables stored in the partition.
+     *
+     * @param partition
+     *            name of the partition
+     * @return names of tables
+     * @throws IOException
+     */
+    public List<String> getTables( final String partition ) throws IOException {
+        final File directory = getPartitionDirectories().get(partition);
+        final List<String> tables = new ArrayList<String>();
+        final File[] files = directory != null ? directory.listFiles() : null;
+        if ( files != null ) {
+            for ( final File file : files ) {
+                if ( new File(file, COLUMNS_FILE).isFile() ) {
+                    tables.add(file.getName());
+                }
+            }
+        }
+        Collections.sort(tables);
+        return tables;
+    }
+
+    /**
+     * Reads splayed table stored in the root of the database.
+     *
+     * @param table
+     *            name of the table
+     * @param columns
+     *            names of columns to be read, all columns if none are given
+     * @return content of the table
+     * @throws IOException
+     * @throws QException
+     */
+    public QTable readTable( final String table, final String... columns ) throws IOException, QException {
+        return readSplayed(new File(root, table), columns);
+    }
+
+    /**
+     * Reads table stored in the partition.
+     *
+     * @param partition
+     *            name of the partition, e.g. <code>2015.06.01</code>
+     * @param table
+     *            name of the table
+     * @param columns
+     *            names of columns to be read, all columns if none are given
+     * @return content of the table
+     * @throws IOException
+     * @throws QException
+     */
+    public QTable readPartition( final String partition, final String table, final String... columns ) throws IOException, QException {
+        final File directory = getPartitionDirectories().get(partition);
+        if ( directory == null ) {
+            throw new QReaderException("Partition not found: " + partition);
+        }
+        return readSplayed(new File(directory, table), columns);
+    }
+
+    private QTable readSplayed( final File directory, final String[] columns ) throws IOException, QException {
+        final File columnsFile = new File(directory, COLUMNS_FILE);
+        if ( !columnsFile.isFile() ) {
+            throw new QReaderException("Not a splayed table: " + directory);
+        }
+
+        final String[] names = columns == null || columns.length == 0 ? (String[]) readObjectFile(columnsFile, encoding) : columns;
+        final Object[] data = new Object[names.length];
+        for ( int i = 0; i < names.length; i++ ) {
+            final QColumnFile column = new QColumnFile(new File(directory, names[i]), encoding);
+            data[i] = column.toArray(column.isEnumerated() ? getDomain(column.getDomain()) : column.isNested() ? getSymbols() : null);
+        }
+        return new QTable(names, data);
+    }
+
+    /**
+     * Reads the table from all partitions in parallel. Partitions are distributed dynamically among threads.
+     * Partitions not containing the table are skipped.
+     *
+     * @param table
+     *            name of the table
+     * @param columns
+     *            names of columns to be read, all columns if <code>null</code>
+     * @param threads
+     *            number of threads
+     * @param handler
+     *            the {@link PartitionHandler} receiving content of partitions
+     * @return number of read partitions
+     * @throws IOException
+     * @throws QException
+     * @throws InterruptedException
+     *             if the current thread is interrupted while waiting for completion
+     */
+    public int scan( final String table, final String[] columns, final int threads, final PartitionHandler handler ) throws IOException, QException,
+            InterruptedException {
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("Number of threads has to be positive");
+        }
+
+        final List<Map.Entry<String, File>> partitions = new ArrayList<Map.Entry<String, File>>(getPartitionDirectories().entrySet());
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+        final Exception[] failure = new Exception[1];
+        final Thread[] workers = new Thread[Math.min(threads, Math.max(1, partitions.size()))];
+
+        for ( int i = 0; i < workers.length; i++ ) {
+            workers[i] = new Thread(new Runnable() {
+
+                public void run() {
+                    int index;
+                    while ( (index = next.getAndIncrement()) < partitions.size() ) {
+                        final Map.Entry<String, File> partition = partitions.get(index);
+                        final File directory = new File(partition.getValue(), table);
+                        if ( !new File(directory, COLUMNS_FILE).isFile() ) {
+                            continue;
+                        }
+
+                        try {
+                            handler.partitionRead(partition.getKey(), readSplayed(directory, columns));
+                            read.incrementAndGet();
+                        } catch ( final Exception e ) {
+                            synchronized ( failure ) {
+                                if ( failure[0] == null ) {
+                                    failure[0] = e;
+                                }
+                            }
+                            // stop distributing partitions
+                            next.set(partitions.size());
+                        }
+                    }
+                }
+            }, "qJava-db-scan-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        for ( final Thread worker : workers ) {
+            worker.join();
+        }
+
+        if ( failure[0] instanceof IOException ) {
+            throw (IOException) failure[0];
+        } else if ( failure[0] instanceof QException ) {
+            throw (QException) failure[0];
+        } else if ( failure[0] instanceof RuntimeException ) {
+            throw (RuntimeException) failure[0];
+        }
+        return read.get();
+    }
+
+    /**
+     * Retrieves root directory of the database.
+     *
+     * @return root directory
+     */
+    public File getRoot() {
+        return root;
+    }
+
+}
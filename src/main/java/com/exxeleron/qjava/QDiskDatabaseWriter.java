@@ -0,0 +1,575 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes splayed and partitioned kdb+ tables directly to disk, in the column file layout read by
+ * {@link QDiskDatabase}.
+ * <p>
+ * Symbol columns are enumerated against the <code>sym</code> file in the root of the database, new symbols are
+ * appended to the file. Columns of a table are written in parallel via NIO channels, the <code>.d</code> file is
+ * written last, once all columns are complete:
+ * </p>
+ *
+ * <pre>
+ * QDiskDatabaseWriter hdb = new QDiskDatabaseWriter(new File(&quot;/data/hdb&quot;));
+ * try {
+ *     hdb.writePartition(&quot;2015.06.01&quot;, &quot;trade&quot;, trades);
+ * } finally {
+ *     hdb.close();
+ * }
+ * </pre>
+ * <p>
+ * Supported column types are simple lists, <code>String[]</code> written as enumerated symbols and
+ * <code>Object[]</code> of simple lists of the same type (e.g. strings) written as nested columns. Files follow the
+ * kdb+ column file layouts, without attributes, so that the database can be loaded via <code>\l</code>: simple and
+ * nested columns are mapped lists of kdb+ 3.x, enumerated columns are serialized lists naming the <code>sym</code>
+ * domain, the <code>sym</code> and <code>.d</code> files are serialized symbol lists. Concurrent writes to the same
+ * database by other processes are not supported.
+ * </p>
+ */
+public class QDiskDatabaseWriter {
+
+    private static final String SYM_FILE = "sym";
+    private static final String COLUMNS_FILE = ".d";
+    private static final int BUFFER_SIZE = 65536;
+    private static final int SYM_HEADER_SIZE = 8;
+
+    // list types which can be stored in column file
+    private static final Map<Class<?>, QType> COLUMN_TYPES = new HashMap<Class<?>, QType>();
+
+    static {
+        COLUMN_TYPES.put(boolean[].class, QType.BOOL_LIST);
+        COLUMN_TYPES.put(Boolean[].class, QType.BOOL_LIST);
+        COLUMN_TYPES.put(UUID[].class, QType.GUID_LIST);
+        COLUMN_TYPES.put(byte[].class, QType.BYTE_LIST);
+        COLUMN_TYPES.put(Byte[].class, QType.BYTE_LIST);
+        COLUMN_TYPES.put(short[].class, QType.SHORT_LIST);
+        COLUMN_TYPES.put(Short[].class, QType.SHORT_LIST);
+        COLUMN_TYPES.put(int[].class, QType.INT_LIST);
+        COLUMN_TYPES.put(Integer[].class, QType.INT_LIST);
+        COLUMN_TYPES.put(long[].class, QType.LONG_LIST);
+        COLUMN_TYPES.put(Long[].class, QType.LONG_LIST);
+        COLUMN_TYPES.put(float[].class, QType.FLOAT_LIST);
+        COLUMN_TYPES.put(Float[].class, QType.FLOAT_LIST);
+        COLUMN_TYPES.put(double[].class, QType.DOUBLE_LIST);
+        COLUMN_TYPES.put(Double[].class, QType.DOUBLE_LIST);
+        COLUMN_TYPES.put(char[].class, QType.STRING);
+        COLUMN_TYPES.put(QTimestamp[].class, QType.TIMESTAMP_LIST);
+        COLUMN_TYPES.put(QMonth[].class, QType.MONTH_LIST);
+        COLUMN_TYPES.put(QDate[].class, QType.DATE_LIST);
+        COLUMN_TYPES.put(QDateTime[].class, QType.DATETIME_LIST);
+        COLUMN_TYPES.put(QTimespan[].class, QType.TIMESPAN_LIST);
+        COLUMN_TYPES.put(QMinute[].class, QType.MINUTE_LIST);
+        COLUMN_TYPES.put(QSecond[].class, QType.SECOND_LIST);
+        COLUMN_TYPES.put(QTime[].class, QType.TIME_LIST);
+    }
+
+    private final File root;
+    private final String encoding;
+    private final ExecutorService executor;
+    private final List<String> symbols = new ArrayList<String>();
+    private final Map<String, Integer> symbolIndex = new HashMap<String, Integer>();
+
+    /**
+     * Creates new {@link QDiskDatabaseWriter} object using a thread per available processor.
+     *
+     * @param root
+     *            root directory of the database, created if it doesn't exist
+     * @throws IOException
+     * @throws QException
+     *             if the existing <code>sym</code> file cannot be read
+     */
+    public QDiskDatabaseWriter(final File root) throws IOException, QException {
+        this(root, "ISO-8859-1", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates new {@link QDiskDatabaseWriter} object.
+     *
+     * @param root
+     *            root directory of the database, created if it doesn't exist
+     * @param encoding
+     *            encoding used for serialization of string data
+     * @param threads
+     *            number of threads writing columns
+     * @throws IOException
+     * @throws QException
+     *             if the existing <code>sym</code> file cannot be read
+     */
+    public QDiskDatabaseWriter(final File root, final String encoding, final int threads) throws IOException, QException {
+        if ( root == null ) {
+            throw new IllegalArgumentException("Root directory cannot be null");
+        }
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("Number of threads has to be positive");
+        }
+        if ( !root.isDirectory() && !root.mkdirs() ) {
+            throw new IOException("Cannot create directory: " + root);
+        }
+
+        this.root = root;
+        this.encoding = encoding;
+
+        final File symFile = new File(root, SYM_FILE);
+        if ( symFile.isFile() ) {
+            for ( final String symbol : (String[]) QDiskDatabase.readObjectFile(symFile, encoding) ) {
+                symbolIndex.put(symbol, symbols.size());
+                symbols.add(symbol);
+            }
+        }
+
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread(r, "qJava-db-writer-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Writes file containing q object serialized as via <code>set</code>, e.g. the <code>.d</code> file.
+     */
+    static void writeObjectFile( final File file, final Object obj, final String encoding ) throws IOException, QException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        final QWriter writer = new DefaultQWriter();
+        writer.setEncoding(encoding);
+        writer.setStream(message);
+        writer.write(obj, QConnection.MessageType.ASYNC);
+
+        // serialized object is preceded by 0xff01 instead of IPC header
+        final byte[] data = message.toByteArray();
+        data[6] = (byte) 0xff;
+        data[7] = 0x01;
+
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data, 6, data.length - 6);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes splayed table into the root of the database, replacing existing columns of the table.
+     *
+     * @param table
+     *            name of the table
+     * @param data
+     *            content of the table
+     * @throws IOException
+     * @throws QException
+     *             if a column cannot be written
+     */
+    public void writeTable( final String table, final QTable data ) throws IOException, QException {
+        writeSplayed(new File(root, table), data);
+    }
+
+    /**
+     * Writes table into the partition, replacing existing columns of the table in the partition.
+     *
+     * @param partition
+     *            name of the partition, e.g. <code>2015.06.01</code>
+     * @param table
+     *            name of the table
+     * @param data
+     *            content of the table
+     * @throws IOException
+     * @throws QException
+     *             if a column cannot be written
+     */
+    public void writePartition( final String partition, final String table, final QTable data ) throws IOException, QException {
+        writeSplayed(new File(new File(root, partition), table), data);
+    }
+
+    private void writeSplayed( final File directory, final QTable table ) throws IOException, QException {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Cannot create directory: " + directory);
+        }
+
+        final String[] columns = table.getColumns();
+        final Object[] data = table.getData();
+        final Object[] prepared = new Object[data.length];
+        final int[] types = new int[data.length];
+
+        // symbols have to be persisted before columns referring to them
+        synchronized ( symbols ) {
+            final int known = symbols.size();
+            for ( int i = 0; i < data.length; i++ ) {
+                if ( data[i] instanceof String[] ) {
+                    types[i] = QColumnFile.ENUMERATION_TYPE;
+                    prepared[i] = enumerate((String[]) data[i]);
+                } else {
+                    types[i] = getTypeCode(columns[i], data[i]);
+                    prepared[i] = data[i];
+                }
+            }
+            if ( symbols.size() > known ) {
+                appendSymbols(known);
+            }
+        }
+
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(data.length);
+        for ( int i = 0; i < data.length; i++ ) {
+            final File file = new File(directory, columns[i]);
+            final int type = types[i];
+            final Object column = prepared[i];
+            futures.add(executor.submit(new Callable<Void>() {
+
+                public Void call() throws Exception {
+                    writeColumn(file, type, column);
+                    return null;
+                }
+            }));
+        }
+
+        for ( final Future<Void> future : futures ) {
+            try {
+                future.get();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                final IOException ioe = new InterruptedIOException("Interrupted while writing columns");
+                ioe.initCause(e);
+                throw ioe;
+            } catch ( final ExecutionException e ) {
+                if ( e.getCause() instanceof IOException ) {
+                    throw (IOException) e.getCause();
+                } else if ( e.getCause() instanceof QException ) {
+                    throw (QException) e.getCause();
+                } else if ( e.getCause() instanceof RuntimeException ) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new QWriterException(String.valueOf(e.getCause()));
+            }
+        }
+
+        writeObjectFile(new File(directory, COLUMNS_FILE), columns, encoding);
+    }
+
+    private int getTypeCode( final String column, final Object data ) throws QException {
+        if ( data instanceof Object[] && !(data instanceof DateTime[]) && !(data instanceof UUID[]) && !(data instanceof Number[])
+                && !(data instanceof Boolean[]) ) {
+            // nested column, items have to be simple lists of the same type
+            final Object[] list = (Object[]) data;
+            int type = -1;
+            for ( final Object item : list ) {
+                if ( item != null ) {
+                    final int itemType = getTypeCode(column, item);
+                    if ( type >= 0 && itemType != type || itemType == QColumnFile.ENUMERATION_TYPE || itemType > QColumnFile.NESTED_TYPE_OFFSET ) {
+                        throw new QWriterException("Column " + column + " is not a nested list of simple lists of the same type");
+                    }
+                    type = itemType;
+                }
+            }
+            return QColumnFile.NESTED_TYPE_OFFSET + (type >= 0 ? type : QType.STRING.getTypeCode());
+        }
+
+        final QType type = data != null ? COLUMN_TYPES.get(data.getClass()) : null;
+        if ( type == null ) {
+            throw new QWriterException("Cannot write column " + column + " of type: " + (data != null ? data.getClass().getCanonicalName() : null));
+        }
+        return type.getTypeCode();
+    }
+
+    private int[] enumerate( final String[] list ) {
+        final int[] indices = new int[list.length];
+        for ( int i = 0; i < list.length; i++ ) {
+            final String symbol = list[i] != null ? list[i] : "";
+            Integer index = symbolIndex.get(symbol);
+            if ( index == null ) {
+                index = symbols.size();
+                symbolIndex.put(symbol, index);
+                symbols.add(symbol);
+            }
+            indices[i] = index;
+        }
+        return indices;
+    }
+
+    private void appendSymbols( final int from ) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(new File(root, SYM_FILE), "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ColumnOutput out = new ColumnOutput(channel);
+            if ( channel.size() < SYM_HEADER_SIZE ) {
+                channel.truncate(0);
+                out.ensure(SYM_HEADER_SIZE);
+                out.buffer.put((byte) 0xff).put((byte) 0x01).put(QType.SYMBOL_LIST.getTypeCode()).put((byte) 0).putInt(0);
+            } else {
+                channel.position(channel.size());
+            }
+
+            for ( int i = from; i < symbols.size(); i++ ) {
+                final byte[] bytes = symbols.get(i).getBytes(encoding);
+                out.ensure(bytes.length + 1);
+                out.buffer.put(bytes).put((byte) 0);
+            }
+            out.flush();
+
+            // update number of symbols in the header
+            final ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(0, symbols.size());
+            channel.write(count, 4);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeColumn( final File file, final int type, final Object column ) throws IOException, QException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            final ColumnOutput out = new ColumnOutput(channel);
+            final int count = java.lang.reflect.Array.getLength(column);
+            if ( type == QColumnFile.ENUMERATION_TYPE ) {
+                // mapped header cannot name the domain, enumeration is written as via set
+                out.enumerationHeader(SYM_FILE, count);
+                out.write(type, column);
+                out.flush();
+            } else if ( type > QColumnFile.NESTED_TYPE_OFFSET ) {
+                out.header(type, count);
+                final int itemType = type - QColumnFile.NESTED_TYPE_OFFSET;
+                final Object[] list = (Object[]) column;
+                final Object[] items = new Object[count];
+                long end = 0;
+                for ( int i = 0; i < count; i++ ) {
+                    items[i] = itemType == QType.STRING.getTypeCode() && list[i] != null ? new String((char[]) list[i]).getBytes(encoding) : list[i];
+                    end += items[i] != null ? java.lang.reflect.Array.getLength(items[i]) : 0;
+                    out.ensure(8);
+                    out.buffer.putLong(end);
+                }
+                out.flush();
+                writeNested(new File(file.getPath() + "#"), itemType, items, end);
+            } else if ( type == QType.STRING.getTypeCode() ) {
+                out.header(type, count);
+                final byte[] bytes = new String((char[]) column).getBytes(encoding);
+                out.write(QType.BYTE_LIST.getTypeCode(), bytes);
+                out.flush();
+            } else {
+                out.header(type, count);
+                out.write(type, column);
+                out.flush();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeNested( final File file, final int type, final Object[] items, final long count ) throws IOException, QException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            final ColumnOutput out = new ColumnOutput(channel);
+            out.header(type, count);
+            for ( final Object item : items ) {
+                if ( item != null ) {
+                    // strings are already encoded
+                    out.write(type == QType.STRING.getTypeCode() ? QType.BYTE_LIST.getTypeCode() : type, item);
+                }
+            }
+            out.flush();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Retrieves symbols of the <code>sym</code> file, including symbols appended by this writer.
+     *
+     * @return list of symbols
+     */
+    public String[] getSymbols() {
+        synchronized ( symbols ) {
+            return symbols.toArray(new String[symbols.size()]);
+        }
+    }
+
+    /**
+     * Retrieves root directory of the database.
+     *
+     * @return root directory
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Stops threads writing columns.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static final class ColumnOutput {
+
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        ColumnOutput(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure( final int bytes ) throws IOException {
+            if ( buffer.remaining() < bytes ) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while ( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void header( final int type, final long count ) throws IOException {
+            ensure(QColumnFile.HEADER_SIZE);
+            buffer.put((byte) 0xfe).put((byte) 0x20).put((byte) type).put((byte) 0).putInt(0).putLong(count);
+        }
+
+        void enumerationHeader( final String domain, final int count ) throws IOException {
+            final byte[] name = domain.getBytes("ISO-8859-1");
+            ensure(QColumnFile.SERIALIZED_HEADER_SIZE + name.length + 1);
+            buffer.put((byte) 0xff).put((byte) 0x01).put((byte) QColumnFile.ENUMERATION_TYPE).put((byte) 0).put(name).put((byte) 0).putInt(count);
+        }
+
+        void write( final int type, final Object list ) throws IOException, QException {
+            if ( list instanceof int[] ) {
+                for ( final int value : (int[]) list ) {
+                    ensure(4);
+                    buffer.putInt(value);
+                }
+            } else if ( list instanceof long[] ) {
+                for ( final long value : (long[]) list ) {
+                    ensure(8);
+                    buffer.putLong(value);
+                }
+            } else if ( list instanceof double[] ) {
+                for ( final double value : (double[]) list ) {
+                    ensure(8);
+                    buffer.putDouble(value);
+                }
+            } else if ( list instanceof float[] ) {
+                for ( final float value : (float[]) list ) {
+                    ensure(4);
+                    buffer.putFloat(value);
+                }
+            } else if ( list instanceof short[] ) {
+                for ( final short value : (short[]) list ) {
+                    ensure(2);
+                    buffer.putShort(value);
+                }
+            } else if ( list instanceof byte[] ) {
+                final byte[] bytes = (byte[]) list;
+                for ( int offset = 0; offset < bytes.length; ) {
+                    ensure(1);
+                    final int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+                    buffer.put(bytes, offset, chunk);
+                    offset += chunk;
+                }
+            } else if ( list instanceof boolean[] ) {
+                for ( final boolean value : (boolean[]) list ) {
+                    ensure(1);
+                    buffer.put((byte) (value ? 1 : 0));
+                }
+            } else {
+                writeObjects(type, (Object[]) list);
+            }
+        }
+
+        private void writeObjects( final int type, final Object[] list ) throws IOException, QException {
+            final QType qtype = QType.getQType((byte) type);
+            final Object qnull = QType.getQNull(QType.getQType((byte) -type));
+            for ( final Object item : list ) {
+                Object value = item != null ? item : qnull;
+                if ( value instanceof DateTime ) {
+                    value = ((DateTime) value).getValue();
+                }
+
+                ensure(QColumnFile.ITEM_SIZE[type]);
+                switch ( qtype ) {
+                case BOOL_LIST:
+                    buffer.put((byte) ((Boolean) value ? 1 : 0));
+                    break;
+                case GUID_LIST:
+                    buffer.order(ByteOrder.BIG_ENDIAN);
+                    buffer.putLong(((UUID) value).getMostSignificantBits()).putLong(((UUID) value).getLeastSignificantBits());
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    break;
+                case BYTE_LIST:
+                    buffer.put(((Number) value).byteValue());
+                    break;
+                case SHORT_LIST:
+                    buffer.putShort(((Number) value).shortValue());
+                    break;
+                case INT_LIST:
+                case MONTH_LIST:
+                case DATE_LIST:
+                case MINUTE_LIST:
+                case SECOND_LIST:
+                case TIME_LIST:
+                    buffer.putInt(((Number) value).intValue());
+                    break;
+                case LONG_LIST:
+                case TIMESTAMP_LIST:
+                case TIMESPAN_LIST:
+                    buffer.putLong(((Number) value).longValue());
+                    break;
+                case FLOAT_LIST:
+                    buffer.putFloat(((Number) value).floatValue());
+                    break;
+                case DOUBLE_LIST:
+                case DATETIME_LIST:
+                    buffer.putDouble(((Number) value).doubleValue());
+                    break;
+                default:
+                    throw new QWriterException("Cannot write column of type: " + qtype);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,477 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of query results stored in a local directory as raw q IPC messages.
+ * <p>
+ * Results are keyed by the query text and serialized parameters. On a cache hit the result file is memory-mapped and
+ * deserialized via {@link QReader}, without contacting the q service; raw messages are also available via
+ * {@link #getMessage(String, Object...)} to be forwarded without deserialization. Each entry expires after its time to
+ * live, least recently used entries are evicted once total size of the cache exceeds the limit. Cached results survive
+ * restarts of the application.
+ * </p>
+ *
+ * <pre>
+ * QDiskResultCache cache = new QDiskResultCache(new File(&quot;/tmp/qcache&quot;), 1L &lt;&lt; 30, TimeUnit.HOURS.toMillis(8));
+ * QTable result = (QTable) cache.sync(hdb, &quot;{select from trade where date=x}&quot;, new QDate(new Date()));
+ * </pre>
+ * <p>
+ * Errors returned by the q service are not cached. {@link QDiskResultCache} is thread safe, though the connection
+ * passed to {@link #sync(QConnection, String, Object...)} has to be used by one thread at a time.
+ * </p>
+ */
+public class QDiskResultCache {
+
+    public static final String FILE_EXTENSION = ".qres";
+
+    // expiry time (8 bytes) and length of the key (4 bytes)
+    private static final int ENTRY_HEADER_SIZE = 12;
+    private static final byte ERROR_TYPE = -128;
+
+    private final File directory;
+    private final long maxSize;
+    private final long defaultTtl;
+    private final String encoding;
+    private final Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong tempCounter = new AtomicLong();
+
+    private final ThreadLocal<QSerializer> serializers = new ThreadLocal<QSerializer>() {
+
+        @Override
+        protected QSerializer initialValue() {
+            return new QSerializer(encoding);
+        }
+    };
+
+    /**
+     * Creates new {@link QDiskResultCache} object. Results already stored in the directory are reused.
+     *
+     * @param directory
+     *            directory storing cached results
+     * @param maxSize
+     *            maximal total size of cached results, in bytes
+     * @param defaultTtl
+     *            time to live of cached results, in milliseconds
+     * @param encoding
+     *            encoding used for serialization/deserialization of string objects
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public QDiskResultCache(final File directory, final long maxSize, final long defaultTtl, final String encoding) throws IOException {
+        if ( maxSize <= 0 ) {
+            throw new IllegalArgumentException("Maximal size has to be positive");
+        }
+        if ( defaultTtl <= 0 ) {
+            throw new IllegalArgumentException("Time to live has to be positive");
+        }
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Cannot create cache directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.defaultTtl = defaultTtl;
+        this.encoding = encoding;
+        load();
+    }
+
+    /**
+     * Creates new {@link QDiskResultCache} object with ISO-8859-1 encoding. Results already stored in the directory
+     * are reused.
+     *
+     * @param directory
+     *            directory storing cached results
+     * @param maxSize
+     *            maximal total size of cached results, in bytes
+     * @param defaultTtl
+     *            time to live of cached results, in milliseconds
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public QDiskResultCache(final File directory, final long maxSize, final long defaultTtl) throws IOException {
+        this(directory, maxSize, defaultTtl, QBasicConnection.DEFAULT_ENCODING);
+    }
+
+    private synchronized void load() {
+        final File[] files = directory.listFiles();
+        if ( files == null ) {
+            return;
+        }
+
+        // recreate access order from modification times
+        final List<File> results = new ArrayList<File>();
+        for ( final File file : files ) {
+            if ( file.getName().endsWith(FILE_EXTENSION) ) {
+                results.add(file);
+            } else if ( file.getName().endsWith(".tmp") ) {
+                file.delete();
+            }
+        }
+        final File[] sorted = results.toArray(new File[results.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+
+            public int compare( final File f1, final File f2 ) {
+                final long m1 = f1.lastModified();
+                final long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        for ( final File file : sorted ) {
+            final String name = file.getName();
+            entries.put(name.substring(0, name.length() - FILE_EXTENSION.length()), file.length());
+            size += file.length();
+        }
+        evict();
+    }
+
+    /**
+     * Retrieves result of the query from the cache or executes synchronous query against the remote q service and
+     * caches its result with the default time to live.
+     *
+     * @param connection
+     *            connection to the q service used on a cache miss
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return deserialized result
+     * @throws QException
+     *             if an error was returned by the q service
+     * @throws IOException
+     */
+    public Object sync( final QConnection connection, final String query, final Object... parameters ) throws QException, IOException {
+        return sync(connection, defaultTtl, query, parameters);
+    }
+
+    /**
+     * Retrieves result of the query from the cache or executes synchronous query against the remote q service and
+     * caches its result.
+     *
+     * @param connection
+     *            connection to the q service used on a cache miss
+     * @param ttl
+     *            time to live of the cached result, in milliseconds
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return deserialized result
+     * @throws QException
+     *             if an error was returned by the q service
+     * @throws IOException
+     */
+    public Object sync( final QConnection connection, final long ttl, final String query, final Object... parameters ) throws QException, IOException {
+        final byte[] key = key(query, parameters);
+        final String name = name(key);
+
+        final ByteBuffer cached = read(name, key);
+        if ( cached != null ) {
+            hitCount.incrementAndGet();
+            return serializers.get().deserialize(cached);
+        }
+        missCount.incrementAndGet();
+
+        connection.query(QConnection.MessageType.SYNC, query, parameters);
+        final QMessage response = (QMessage) connection.receive(false, true);
+        if ( response.getMessageType() != QConnection.MessageType.RESPONSE ) {
+            throw new QReaderException("Received message of type: " + response.getMessageType() + " where response was expected");
+        }
+
+        final byte[] message = QMessageRelay.toFrame(response);
+        // throws QException if the response is an error
+        final Object result = serializers.get().deserialize(message);
+        write(name, key, message, ttl);
+        return result;
+    }
+
+    /**
+     * Retrieves cached result of the query as raw q IPC message.
+     *
+     * @param query
+     *            Query text
+     * @param parameters
+     *            Additional parameters
+     * @return read-only buffer containing the message, including header, or <code>null</code> if the result is not
+     *         cached or has expired
+     * @throws IOException
+     */
+    public ByteBuffer getMessage( final String query, final Object... parameters ) throws IOException {
+        final byte[] key = key(query, parameters);
+        final ByteBuffer cached = read(name(key), key);
+        (cached != null ? hitCount : missCount).incrementAndGet();
+        return cached;
+    }
+
+    /**
+     * Stores raw q IPC message as a result of the query.
+     *
+     * @param ttl
+     *            time to live of the cached result, in milliseconds
+     * @param message
+     *            serialized result, including header
+     * @param query
+     *            Query text
+     * @param parameters
+     *            Additional parameters
+     * @throws IOException
+     */
+    public void putMessage( final long ttl, final byte[] message, final String query, final Object... parameters ) throws IOException {
+        final byte[] key = key(query, parameters);
+        write(name(key), key, message, ttl);
+    }
+
+    /**
+     * Removes cached result of the query.
+     *
+     * @param query
+     *            Query text
+     * @param parameters
+     *            Additional parameters
+     */
+    public void invalidate( final String query, final Object... parameters ) {
+        remove(name(key(query, parameters)));
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void clear() {
+        for ( final String name : new ArrayList<String>(entries.keySet()) ) {
+            remove(name);
+        }
+    }
+
+    private byte[] key( final String query, final Object... parameters ) {
+        final Object request;
+        if ( parameters.length == 0 ) {
+            request = query.toCharArray();
+        } else {
+            final Object[] call = new Object[parameters.length + 1];
+            call[0] = query.toCharArray();
+            System.arraycopy(parameters, 0, call, 1, parameters.length);
+            request = call;
+        }
+
+        try {
+            return serializers.get().serialize(request);
+        } catch ( final QException e ) {
+            throw new IllegalArgumentException("Cannot serialize query parameters: " + e.getMessage());
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException("Cannot serialize query parameters: " + e.getMessage());
+        }
+    }
+
+    private static String name( final byte[] key ) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key);
+            final StringBuilder name = new StringBuilder(2 * digest.length);
+            for ( final byte b : digest ) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch ( final NoSuchAlgorithmException e ) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private File file( final String name ) {
+        return new File(directory, name + FILE_EXTENSION);
+    }
+
+    private ByteBuffer read( final String name, final byte[] key ) throws IOException {
+        synchronized ( this ) {
+            if ( entries.get(name) == null ) {
+                return null;
+            }
+        }
+
+        final File file = file(name);
+        final ByteBuffer buffer;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        } catch ( final FileNotFoundException e ) {
+            // evicted concurrently
+            return null;
+        } finally {
+            if ( raf != null ) {
+                raf.close();
+            }
+        }
+
+        if ( buffer.limit() < ENTRY_HEADER_SIZE || buffer.getInt(8) != key.length || buffer.limit() < ENTRY_HEADER_SIZE + key.length ) {
+            remove(name);
+            return null;
+        }
+        if ( buffer.getLong(0) < System.currentTimeMillis() ) {
+            remove(name);
+            return null;
+        }
+        for ( int i = 0; i < key.length; i++ ) {
+            if ( buffer.get(ENTRY_HEADER_SIZE + i) != key[i] ) {
+                // hash collision
+                return null;
+            }
+        }
+
+        // access time is persisted as modification time of the file
+        file.setLastModified(System.currentTimeMillis());
+        buffer.position(ENTRY_HEADER_SIZE + key.length);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    private void write( final String name, final byte[] key, final byte[] message, final long ttl ) throws IOException {
+        if ( message.length > 8 && message[8] == ERROR_TYPE ) {
+            return;
+        }
+        final long entrySize = ENTRY_HEADER_SIZE + key.length + message.length;
+        if ( entrySize > maxSize ) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl);
+        header.putInt(key.length);
+        header.flip();
+
+        // written aside and renamed, so that readers never see partial entries
+        final File temp = new File(directory, name + "." + tempCounter.getAndIncrement() + ".tmp");
+        final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer[] buffers = new ByteBuffer[] { header, ByteBuffer.wrap(key), ByteBuffer.wrap(message) };
+            while ( buffers[2].hasRemaining() ) {
+                channel.write(buffers);
+            }
+        } finally {
+            raf.close();
+        }
+
+        synchronized ( this ) {
+            final File file = file(name);
+            if ( !temp.renameTo(file) && !(file.delete() && temp.renameTo(file)) ) {
+                temp.delete();
+                throw new IOException("Cannot store cached result: " + file);
+            }
+
+            final Long previous = entries.put(name, entrySize);
+            size += entrySize - (previous != null ? previous : 0);
+            evict();
+        }
+    }
+
+    private synchronized void remove( final String name ) {
+        final Long entrySize = entries.remove(name);
+        if ( entrySize != null ) {
+            size -= entrySize;
+            file(name).delete();
+        }
+    }
+
+    private synchronized void evict() {
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while ( size > maxSize && iterator.hasNext() ) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            file(eldest.getKey()).delete();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Retrieves directory storing cached results.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Retrieves total size of cached results.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Retrieves number of cached results, including expired ones which haven't been accessed yet.
+     *
+     * @return number of entries
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Retrieves number of queries answered from the cache.
+     *
+     * @return number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Retrieves number of queries not found in the cache.
+     *
+     * @return number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Retrieves number of results evicted due to the size limit.
+     *
+     * @return number of evictions
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+}
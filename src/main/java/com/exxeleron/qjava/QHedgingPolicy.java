@@ -0,0 +1,136 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines when a synchronous query should be hedged, i.e. sent to a second replica.
+ * <p>
+ * The hedging delay is the configured percentile of recently observed response times, bounded by the minimal and
+ * maximal delay. Until enough response times have been observed, the maximal delay is used.
+ * </p>
+ * <p>
+ * Methods of {@link QHedgingPolicy} are thread safe.
+ * </p>
+ */
+public class QHedgingPolicy {
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final int DEFAULT_WINDOW_SIZE = 1000;
+
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECALCULATION_INTERVAL = 64;
+
+    private final double percentile;
+    private final long minDelay;
+    private final long maxDelay;
+    private final long[] samples;
+
+    private int count;
+    private int position;
+    private int recorded;
+    private long delay;
+
+    /**
+     * Creates new {@link QHedgingPolicy} object.
+     *
+     * @param percentile
+     *            percentile of response times used as hedging delay, from (0, 1) range
+     * @param minDelay
+     *            minimal hedging delay
+     * @param maxDelay
+     *            maximal hedging delay
+     * @param unit
+     *            time unit of delay arguments
+     * @param windowSize
+     *            number of most recent response times taken into account
+     */
+    public QHedgingPolicy(final double percentile, final long minDelay, final long maxDelay, final TimeUnit unit, final int windowSize) {
+        if ( percentile <= 0 || percentile >= 1 ) {
+            throw new IllegalArgumentException("Percentile has to be in (0, 1) range");
+        }
+        if ( minDelay < 0 || maxDelay < minDelay ) {
+            throw new IllegalArgumentException("Invalid hedging delay range");
+        }
+        if ( windowSize < MIN_SAMPLES ) {
+            throw new IllegalArgumentException("Window size cannot be smaller than " + MIN_SAMPLES);
+        }
+
+        this.percentile = percentile;
+        this.minDelay = unit.toNanos(minDelay);
+        this.maxDelay = unit.toNanos(maxDelay);
+        this.samples = new long[windowSize];
+        this.delay = this.maxDelay;
+    }
+
+    /**
+     * Creates new {@link QHedgingPolicy} object with the window of {@value #DEFAULT_WINDOW_SIZE} response times.
+     *
+     * @param percentile
+     *            percentile of response times used as hedging delay, from (0, 1) range
+     * @param minDelay
+     *            minimal hedging delay
+     * @param maxDelay
+     *            maximal hedging delay
+     * @param unit
+     *            time unit of delay arguments
+     */
+    public QHedgingPolicy(final double percentile, final long minDelay, final long maxDelay, final TimeUnit unit) {
+        this(percentile, minDelay, maxDelay, unit, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Records response time of a query which has not been hedged or of the first replica a query has been sent to.
+     *
+     * @param latency
+     *            response time in nanoseconds
+     */
+    public synchronized void record( final long latency ) {
+        samples[position] = latency;
+        position = (position + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+
+        if ( count >= MIN_SAMPLES && (++recorded >= RECALCULATION_INTERVAL || count == MIN_SAMPLES) ) {
+            recorded = 0;
+            final long[] sorted = new long[count];
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            final long value = sorted[Math.min((int) (percentile * count), count - 1)];
+            delay = Math.max(minDelay, Math.min(maxDelay, value));
+        }
+    }
+
+    /**
+     * Retrieves the current hedging delay.
+     *
+     * @return hedging delay in nanoseconds
+     */
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Retrieves the percentile of response times used as hedging delay.
+     *
+     * @return percentile from (0, 1) range
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+}
@@ -0,0 +1,541 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Durable local journal of asynchronous messages, allowing publishers to store messages while the q service is not
+ * available and forward them once the connection is established again.
+ * <p>
+ * Messages are appended as serialized q IPC messages to a sequence of memory-mapped segment files and numbered with
+ * consecutive sequence numbers. {@link #replay(QBasicConnection)} sends all messages not acknowledged yet, in order,
+ * and acknowledges them once the q service has confirmed their processing. Messages sent before a failure are sent
+ * again, thus each message is delivered at least once. Segments containing only acknowledged messages are deleted.
+ * </p>
+ *
+ * <pre>
+ * QJournal journal = new QJournal(new File(&quot;/var/lib/feed/journal&quot;), 64 &lt;&lt; 20);
+ * journal.append(&quot;.u.upd&quot;, &quot;trade&quot;, data);
+ * try {
+ *     journal.replay(q);
+ * } catch ( IOException e ) {
+ *     // messages are kept in the journal until q is reconnected
+ * }
+ * </pre>
+ * <p>
+ * Appended messages survive a crash of the application immediately. Segments are forced to the disk in batches, once
+ * the configured amount of data has been appended or the configured time has elapsed, or on {@link #sync()}. Both
+ * thresholds are checked only when a message is appended, thus an idle journal keeps the last batch unforced until
+ * {@link #sync()} is called. Publishers that need a bounded time to durability on a crash of the host, not only of the
+ * application, have to call {@link #sync()} periodically, e.g. from a scheduled task. Methods of {@link QJournal} are
+ * thread safe.
+ * </p>
+ */
+public class QJournal {
+
+    public static final String FILE_EXTENSION = ".qjournal";
+    public static final String ACK_FILE = "ack";
+
+    /**
+     * Query confirming that all preceding asynchronous messages have been processed by the q service.
+     */
+    public static final String CONFIRM_QUERY = "::";
+
+    public static final int DEFAULT_SYNC_BYTES = 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 100;
+
+    // length of the message (4 bytes) and sequence number (8 bytes)
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private final File directory;
+    private final int segmentSize;
+    private final String encoding;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final MappedByteBuffer ack;
+    private final QSerializer serializer;
+
+    // guarded by this
+    private long nextSequence;
+    private long acknowledged;
+    private int syncBytes = DEFAULT_SYNC_BYTES;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    private long unsyncedBytes;
+    private long lastSync = System.currentTimeMillis();
+    private boolean closed;
+
+    /**
+     * Copy of consecutive messages being replayed.
+     */
+    private static class Batch {
+
+        byte[] data;
+        int count;
+        long lastSequence;
+    }
+
+    /**
+     * Single memory-mapped segment file.
+     */
+    private static class Segment {
+
+        final File file;
+        final MappedByteBuffer buffer;
+        final long firstSequence;
+        long lastSequence;
+        int position;
+
+        Segment(final File file, final long firstSequence, final int size) throws IOException {
+            this.file = file;
+            this.firstSequence = firstSequence;
+            this.lastSequence = firstSequence - 1;
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if ( raf.length() < size ) {
+                    raf.setLength(size);
+                }
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Finds the end of the segment. Length is written as the last part of the record, thus scanning stops at the
+         * first incomplete record.
+         */
+        void recover() {
+            position = 0;
+            while ( position + RECORD_HEADER_SIZE <= buffer.limit() ) {
+                final int length = buffer.getInt(position);
+                if ( length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.limit() || buffer.getLong(position + 4) != lastSequence + 1 ) {
+                    break;
+                }
+                lastSequence++;
+                position += RECORD_HEADER_SIZE + length;
+            }
+            // clears remains of incomplete record
+            for ( int i = position; i < buffer.limit() && i < position + RECORD_HEADER_SIZE; i++ ) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+
+        void read( final int position, final byte[] target, final int offset, final int length ) {
+            final ByteBuffer data = buffer.duplicate();
+            data.position(position + RECORD_HEADER_SIZE);
+            data.get(target, offset, length);
+        }
+
+        boolean fits( final int length ) {
+            return position + RECORD_HEADER_SIZE + length <= buffer.limit();
+        }
+
+        void append( final long sequence, final byte[] message ) {
+            buffer.putLong(position + 4, sequence);
+            final ByteBuffer data = buffer.duplicate();
+            data.position(position + RECORD_HEADER_SIZE);
+            data.put(message);
+            buffer.putInt(position, message.length);
+            position += RECORD_HEADER_SIZE + message.length;
+            lastSequence = sequence;
+        }
+    }
+
+    /**
+     * Creates new {@link QJournal} object. Messages already stored in the directory are recovered.
+     *
+     * @param directory
+     *            directory storing the journal
+     * @param segmentSize
+     *            size of a single segment file, in bytes
+     * @param encoding
+     *            encoding used for serialization of string objects
+     * @throws IOException
+     *             if the journal cannot be opened
+     */
+    public QJournal(final File directory, final int segmentSize, final String encoding) throws IOException {
+        if ( segmentSize <= RECORD_HEADER_SIZE ) {
+            throw new IllegalArgumentException("Segment size has to be greater than " + RECORD_HEADER_SIZE);
+        }
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Cannot create journal directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.encoding = encoding;
+        this.serializer = new QSerializer(encoding);
+
+        final RandomAccessFile raf = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        try {
+            if ( raf.length() < 8 ) {
+                raf.setLength(8);
+            }
+            ack = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            ack.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+        acknowledged = ack.getLong(0);
+        load();
+    }
+
+    /**
+     * Creates new {@link QJournal} object with ISO-8859-1 encoding. Messages already stored in the directory are
+     * recovered.
+     *
+     * @param directory
+     *            directory storing the journal
+     * @param segmentSize
+     *            size of a single segment file, in bytes
+     * @throws IOException
+     *             if the journal cannot be opened
+     */
+    public QJournal(final File directory, final int segmentSize) throws IOException {
+        this(directory, segmentSize, QBasicConnection.DEFAULT_ENCODING);
+    }
+
+    private synchronized void load() throws IOException {
+        final File[] files = directory.listFiles(new FileFilter() {
+
+            public boolean accept( final File file ) {
+                return file.isFile() && file.getName().endsWith(FILE_EXTENSION);
+            }
+        });
+        // names are zero padded first sequence numbers
+        Arrays.sort(files);
+
+        nextSequence = acknowledged + 1;
+        for ( final File file : files ) {
+            final long first;
+            try {
+                first = Long.parseLong(file.getName().substring(0, file.getName().length() - FILE_EXTENSION.length()));
+            } catch ( final NumberFormatException e ) {
+                continue;
+            }
+            if ( !segments.isEmpty() && first != nextSequence ) {
+                throw new IOException("Journal is not continuous, expected segment starting with " + nextSequence + ": " + file);
+            }
+
+            final Segment segment = new Segment(file, first, 0);
+            segment.recover();
+            segments.add(segment);
+            nextSequence = segment.lastSequence + 1;
+        }
+
+        if ( nextSequence <= acknowledged ) {
+            // acknowledgment has been persisted but messages have not
+            for ( final Segment segment : segments ) {
+                segment.file.delete();
+            }
+            segments.clear();
+            nextSequence = acknowledged + 1;
+        }
+        removeAcknowledged();
+    }
+
+    /**
+     * Sets thresholds of forcing appended messages to the disk. Setting both to <code>0</code> forces each message.
+     *
+     * @param syncBytes
+     *            amount of appended data, in bytes
+     * @param syncInterval
+     *            time since the last sync, in milliseconds
+     */
+    public synchronized void setSyncPolicy( final int syncBytes, final long syncInterval ) {
+        this.syncBytes = syncBytes;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Serializes and appends an asynchronous query to the journal.
+     *
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return sequence number of the message
+     * @throws QException
+     *             if the query cannot be serialized
+     * @throws IOException
+     *             if the message cannot be stored
+     */
+    public synchronized long append( final String query, final Object... parameters ) throws QException, IOException {
+        if ( parameters.length == 0 ) {
+            return append(serializer.serialize(query.toCharArray()));
+        } else {
+            final Object[] request = new Object[parameters.length + 1];
+            request[0] = query.toCharArray();
+            System.arraycopy(parameters, 0, request, 1, parameters.length);
+            return append(serializer.serialize(request));
+        }
+    }
+
+    /**
+     * Appends already serialized asynchronous message, including the 8 bytes header, to the journal.
+     *
+     * @param message
+     *            serialized message
+     * @return sequence number of the message
+     * @throws IOException
+     *             if the message cannot be stored
+     */
+    public synchronized long append( final byte[] message ) throws IOException {
+        checkState();
+        if ( message.length == 0 ) {
+            throw new IllegalArgumentException("Message cannot be empty");
+        }
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if ( segment == null || !segment.fits(message.length) ) {
+            if ( segment != null && segment.lastSequence < segment.firstSequence ) {
+                // empty segment is replaced by a larger one
+                segments.remove(segments.size() - 1);
+            } else if ( segment != null ) {
+                segment.buffer.force();
+            }
+            segment = new Segment(new File(directory, String.format("%020d", nextSequence) + FILE_EXTENSION), nextSequence, Math.max(segmentSize,
+                    RECORD_HEADER_SIZE + message.length));
+            segments.add(segment);
+        }
+
+        final long sequence = nextSequence++;
+        segment.append(sequence, message);
+
+        unsyncedBytes += RECORD_HEADER_SIZE + message.length;
+        if ( unsyncedBytes >= syncBytes || System.currentTimeMillis() - lastSync >= syncInterval ) {
+            sync();
+        }
+        return sequence;
+    }
+
+    /**
+     * Forces appended messages and acknowledgments to the disk.
+     *
+     * @throws IOException
+     *             if the journal is closed
+     */
+    public synchronized void sync() throws IOException {
+        checkState();
+        if ( !segments.isEmpty() ) {
+            segments.get(segments.size() - 1).buffer.force();
+        }
+        ack.force();
+        unsyncedBytes = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends all messages not acknowledged yet, in order, and acknowledges them once {@link #CONFIRM_QUERY} has been
+     * answered by the q service. If sending fails, the messages remain in the journal and are sent again by the next
+     * replay. Messages are copied from the journal segment by segment and sent without holding the lock, so appending
+     * is not blocked by a slow connection. Messages appended during the replay are left for the next one.
+     *
+     * @param connection
+     *            opened connection to the q service
+     * @return number of sent messages
+     * @throws QException
+     *             if the q service fails to answer the confirmation query
+     * @throws IOException
+     *             if sending has failed
+     */
+    public int replay( final QBasicConnection connection ) throws QException, IOException {
+        final long end;
+        long last;
+        synchronized ( this ) {
+            checkState();
+            end = nextSequence - 1;
+            last = acknowledged;
+        }
+
+        int count = 0;
+        Batch batch;
+        while ( (batch = copy(last, end)) != null ) {
+            connection.send(batch.data, 0, batch.data.length);
+            last = batch.lastSequence;
+            count += batch.count;
+        }
+
+        if ( count > 0 ) {
+            connection.sync(CONFIRM_QUERY);
+            acknowledge(last);
+        }
+        return count;
+    }
+
+    /**
+     * Copies messages following the given sequence number, up to the end of their segment.
+     *
+     * @return copied messages, or <code>null</code> if there are no messages in the range
+     */
+    private synchronized Batch copy( final long after, final long end ) throws IOException {
+        checkState();
+        for ( final Segment segment : segments ) {
+            if ( segment.lastSequence <= after ) {
+                continue;
+            }
+
+            final Batch batch = new Batch();
+            int size = 0;
+            int position = 0;
+            while ( position < segment.position ) {
+                final int length = segment.buffer.getInt(position);
+                final long sequence = segment.buffer.getLong(position + 4);
+                if ( sequence > end ) {
+                    break;
+                }
+                if ( sequence > after ) {
+                    size += length;
+                    batch.count++;
+                    batch.lastSequence = sequence;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            if ( batch.count == 0 ) {
+                return null;
+            }
+
+            batch.data = new byte[size];
+            int offset = 0;
+            position = 0;
+            while ( offset < size ) {
+                final int length = segment.buffer.getInt(position);
+                if ( segment.buffer.getLong(position + 4) > after ) {
+                    segment.read(position, batch.data, offset, length);
+                    offset += length;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            return batch;
+        }
+        return null;
+    }
+
+    /**
+     * Acknowledges all messages up to the given sequence number, e.g. when the delivery has been confirmed by other
+     * means than {@link #replay(QBasicConnection)}. Segments containing only acknowledged messages are deleted.
+     *
+     * @param sequence
+     *            sequence number of the last delivered message
+     * @throws IOException
+     *             if the journal is closed
+     */
+    public synchronized void acknowledge( final long sequence ) throws IOException {
+        checkState();
+        if ( sequence >= nextSequence ) {
+            throw new IllegalArgumentException("Message " + sequence + " has not been appended yet");
+        }
+        if ( sequence <= acknowledged ) {
+            return;
+        }
+
+        acknowledged = sequence;
+        ack.putLong(0, sequence);
+        removeAcknowledged();
+    }
+
+    private void removeAcknowledged() {
+        // the last segment is kept for appending
+        while ( segments.size() > 1 && segments.get(0).lastSequence <= acknowledged ) {
+            segments.remove(0).file.delete();
+        }
+    }
+
+    /**
+     * Forces pending data to the disk and closes the journal.
+     *
+     * @throws IOException
+     *             if the journal is closed
+     */
+    public synchronized void close() throws IOException {
+        sync();
+        closed = true;
+        segments.clear();
+    }
+
+    private void checkState() throws IOException {
+        if ( closed ) {
+            throw new IOException("Journal is closed");
+        }
+    }
+
+    /**
+     * Retrieves directory storing the journal.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Retrieves encoding used for serialization of string objects.
+     *
+     * @return encoding
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Retrieves sequence number of the last appended message.
+     *
+     * @return sequence number, or <code>0</code> if no message has been appended
+     */
+    public synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Retrieves sequence number of the last acknowledged message.
+     *
+     * @return sequence number, or <code>0</code> if no message has been acknowledged
+     */
+    public synchronized long getAcknowledgedSequence() {
+        return acknowledged;
+    }
+
+    /**
+     * Retrieves number of messages not acknowledged yet.
+     *
+     * @return number of messages
+     */
+    public synchronized long getPendingCount() {
+        return nextSequence - 1 - acknowledged;
+    }
+
+    /**
+     * Retrieves number of segment files.
+     *
+     * @return number of segments
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+}
@@ -0,0 +1,479 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maintains the latest row per key of a table published by a kdb+ tickerplant.
+ * <p>
+ * Rows received via <code>upd</code> messages, i.e. <code>(`upd; `table; data)</code>, are stored in columnar arrays
+ * of the same types as received from q. Storage is divided into stripes by the hash of the key; each stripe is an
+ * immutable segment replaced as a whole (copy-on-write) when updated. Lookups and snapshots never block and always see
+ * a consistent row, while ingestion continues.
+ * </p>
+ *
+ * <pre>
+ * QLastValueCache quotes = new QLastValueCache(&quot;quote&quot;, &quot;sym&quot;);
+ * q.addMessagesListener(quotes);
+ * quotes.update((QTable) ((Object[]) q.subscribe(&quot;.u.sub&quot;, &quot;quote&quot;, &quot;&quot;))[1]);
+ * q.startListener();
+ *
+ * double bid = quotes.getDouble(&quot;IBM&quot;, &quot;bid&quot;);
+ * </pre>
+ * <p>
+ * Updates are expected to be applied by a single thread, as is the case with the listener thread of
+ * {@link QCallbackConnection}. Snapshot of the whole table is consistent per stripe only.
+ * </p>
+ */
+public class QLastValueCache implements QMessagesListener, QUpdateHandler {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String table;
+    private final String keyColumn;
+    private final int stripes;
+    private volatile State state;
+    private volatile String updateFunction = QPartitionedDispatcher.DEFAULT_UPDATE_FUNCTION;
+
+    /**
+     * Creates new {@link QLastValueCache} object.
+     *
+     * @param table
+     *            name of the cached table
+     * @param keyColumn
+     *            name of the key column, e.g. <code>sym</code>
+     * @param stripes
+     *            number of stripes, has to be a power of 2
+     */
+    public QLastValueCache(final String table, final String keyColumn, final int stripes) {
+        if ( stripes < 1 || Integer.bitCount(stripes) != 1 ) {
+            throw new IllegalArgumentException("Number of stripes has to be a power of 2");
+        }
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.stripes = stripes;
+    }
+
+    /**
+     * Creates new {@link QLastValueCache} object with {@link #DEFAULT_STRIPES} stripes.
+     *
+     * @param table
+     *            name of the cached table
+     * @param keyColumn
+     *            name of the key column, e.g. <code>sym</code>
+     */
+    public QLastValueCache(final String table, final String keyColumn) {
+        this(table, keyColumn, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Applies received update of the cached table.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#messageReceived(com.exxeleron.qjava.QMessage)
+     */
+    public void messageReceived( final QMessage message ) {
+        final Object data = message.getData();
+        if ( data instanceof Object[] ) {
+            final Object[] update = (Object[]) data;
+            if ( update.length == 3 && Utils.isFunctionName(update[0], updateFunction) && table.equals(update[1]) && update[2] instanceof QTable ) {
+                update((QTable) update[2]);
+            }
+        }
+    }
+
+    /**
+     * Ignores errors.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#errorReceived(com.exxeleron.qjava.QErrorMessage)
+     */
+    public void errorReceived( final QErrorMessage message ) {
+        // cache retains last values
+    }
+
+    /**
+     * Applies rows to the cache, if they belong to the cached table.
+     *
+     * @see #update(QTable)
+     */
+    public void updateReceived( final String table, final QTable rows ) {
+        if ( this.table.equals(table) ) {
+            update(rows);
+        }
+    }
+
+    /**
+     * Applies rows to the cache, e.g. the snapshot returned by <code>.u.sub</code>. The cache is cleared if columns or
+     * their types differ from previously applied rows.
+     *
+     * @param rows
+     *            updated rows
+     */
+    public synchronized void update( final QTable rows ) {
+        if ( !rows.hasColumn(keyColumn) ) {
+            throw new IllegalArgumentException("Key column " + keyColumn + " not found");
+        }
+
+        State current = state;
+        if ( current == null || !current.matches(rows) ) {
+            current = new State(rows, stripes);
+            state = current;
+        }
+
+        final Object keys = rows.getData()[rows.getColumnIndex(keyColumn)];
+        final int rowsCount = rows.getRowsCount();
+        final int[] stripeOf = new int[rowsCount];
+        final int[] counts = new int[stripes];
+        for ( int i = 0; i < rowsCount; i++ ) {
+            stripeOf[i] = stripe(Array.get(keys, i));
+            counts[stripeOf[i]]++;
+        }
+
+        final int[][] indices = new int[stripes][];
+        final int[] position = new int[stripes];
+        for ( int i = 0; i < rowsCount; i++ ) {
+            final int s = stripeOf[i];
+            if ( indices[s] == null ) {
+                indices[s] = new int[counts[s]];
+            }
+            indices[s][position[s]++] = i;
+        }
+
+        final Object[] data = rows.getData();
+        for ( int s = 0; s < stripes; s++ ) {
+            if ( indices[s] != null ) {
+                current.segments.set(s, current.segments.get(s).apply(keys, data, indices[s]));
+            }
+        }
+    }
+
+    private int stripe( final Object key ) {
+        int h = key != null ? key.hashCode() : 0;
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (stripes - 1);
+    }
+
+    private Segment segment( final Object key ) {
+        final State current = state;
+        return current != null ? current.segments.get(stripe(key)) : null;
+    }
+
+    private static int column( final State current, final String column ) {
+        final Integer index = current.columnIndex.get(column);
+        if ( index == null ) {
+            throw new IllegalArgumentException("Column " + column + " not found");
+        }
+        return index;
+    }
+
+    /**
+     * Checks whether the cache contains the key.
+     *
+     * @param key
+     *            value of the key column
+     * @return <code>true</code> if a row with the key has been received, <code>false</code> otherwise
+     */
+    public boolean contains( final Object key ) {
+        final Segment segment = segment(key);
+        return segment != null && segment.index.containsKey(key);
+    }
+
+    /**
+     * Retrieves the latest value in the column.
+     *
+     * @param key
+     *            value of the key column
+     * @param column
+     *            name of the column
+     * @return the value or <code>null</code> if no row with the key has been received
+     * @throws IllegalArgumentException
+     *             if the column is not part of the received rows
+     */
+    public Object get( final Object key, final String column ) {
+        // segment and column index have to come from the same state
+        final State current = state;
+        if ( current == null ) {
+            return null;
+        }
+
+        final int c = column(current, column);
+        final Segment segment = current.segments.get(stripe(key));
+        final Integer row = segment.index.get(key);
+        return row != null ? Array.get(segment.columns[c], row) : null;
+    }
+
+    /**
+     * Retrieves the latest value in the numeric column without boxing, if the column is of type float.
+     *
+     * @param key
+     *            value of the key column
+     * @param column
+     *            name of the column
+     * @return the value or {@link Double#NaN} (q null) if no row with the key has been received
+     * @throws IllegalArgumentException
+     *             if the column is not part of the received rows
+     */
+    public double getDouble( final Object key, final String column ) {
+        final State current = state;
+        if ( current == null ) {
+            return Double.NaN;
+        }
+
+        final int c = column(current, column);
+        final Segment segment = current.segments.get(stripe(key));
+        final Integer row = segment.index.get(key);
+        if ( row == null ) {
+            return Double.NaN;
+        }
+
+        final Object values = segment.columns[c];
+        return values instanceof double[] ? ((double[]) values)[row] : ((Number) Array.get(values, row)).doubleValue();
+    }
+
+    /**
+     * Retrieves the latest value in the numeric column without boxing, if the column is of type long.
+     *
+     * @param key
+     *            value of the key column
+     * @param column
+     *            name of the column
+     * @return the value or {@link Long#MIN_VALUE} (q null) if no row with the key has been received
+     * @throws IllegalArgumentException
+     *             if the column is not part of the received rows
+     */
+    public long getLong( final Object key, final String column ) {
+        final State current = state;
+        if ( current == null ) {
+            return Long.MIN_VALUE;
+        }
+
+        final int c = column(current, column);
+        final Segment segment = current.segments.get(stripe(key));
+        final Integer row = segment.index.get(key);
+        if ( row == null ) {
+            return Long.MIN_VALUE;
+        }
+
+        final Object values = segment.columns[c];
+        return values instanceof long[] ? ((long[]) values)[row] : ((Number) Array.get(values, row)).longValue();
+    }
+
+    /**
+     * Retrieves the latest row with the key.
+     *
+     * @param key
+     *            value of the key column
+     * @return values of the row in order of columns or <code>null</code> if no row with the key has been received
+     */
+    public Object[] getRow( final Object key ) {
+        final Segment segment = segment(key);
+        final Integer row = segment != null ? segment.index.get(key) : null;
+        if ( row == null ) {
+            return null;
+        }
+
+        final Object[] values = new Object[segment.columns.length];
+        for ( int c = 0; c < values.length; c++ ) {
+            values[c] = Array.get(segment.columns[c], row);
+        }
+        return values;
+    }
+
+    /**
+     * Retrieves the latest rows of all keys.
+     *
+     * @return the {@link QTable} or <code>null</code> if no rows have been received
+     */
+    public QTable snapshot() {
+        final State current = state;
+        if ( current == null ) {
+            return null;
+        }
+
+        final Segment[] segments = new Segment[stripes];
+        int size = 0;
+        for ( int s = 0; s < stripes; s++ ) {
+            segments[s] = current.segments.get(s);
+            size += segments[s].size;
+        }
+
+        final Object[] data = new Object[current.columns.length];
+        for ( int c = 0; c < data.length; c++ ) {
+            data[c] = java.lang.reflect.Array.newInstance(current.types[c], size);
+            int offset = 0;
+            for ( final Segment segment : segments ) {
+                System.arraycopy(segment.columns[c], 0, data[c], offset, segment.size);
+                offset += segment.size;
+            }
+        }
+        return new QTable(current.columns, data);
+    }
+
+    /**
+     * Retrieves number of cached keys.
+     *
+     * @return number of keys
+     */
+    public int size() {
+        final State current = state;
+        int size = 0;
+        if ( current != null ) {
+            for ( int s = 0; s < stripes; s++ ) {
+                size += current.segments.get(s).size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all cached rows.
+     */
+    public synchronized void clear() {
+        state = null;
+    }
+
+    /**
+     * Retrieves name of the cached table.
+     *
+     * @return name of the table
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Retrieves name of the key column.
+     *
+     * @return name of the key column
+     */
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * Retrieves names of the cached columns.
+     *
+     * @return names of the columns or <code>null</code> if no rows have been received
+     */
+    public String[] getColumns() {
+        final State current = state;
+        return current != null ? current.columns.clone() : null;
+    }
+
+    /**
+     * Sets name of the function used by the tickerplant to publish updates. Default: <code>upd</code>.
+     *
+     * @param updateFunction
+     *            name of the function
+     */
+    public void setUpdateFunction( final String updateFunction ) {
+        this.updateFunction = updateFunction;
+    }
+
+    /**
+     * Schema of the cached table and its stripes.
+     */
+    private static final class State {
+
+        final String[] columns;
+        final Class<?>[] types;
+        final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+        final AtomicReferenceArray<Segment> segments;
+
+        State(final QTable rows, final int stripes) {
+            this.columns = rows.getColumns();
+            this.types = new Class<?>[columns.length];
+            for ( int c = 0; c < columns.length; c++ ) {
+                types[c] = rows.getData()[c].getClass().getComponentType();
+                columnIndex.put(columns[c], c);
+            }
+
+            this.segments = new AtomicReferenceArray<Segment>(stripes);
+            final Segment empty = new Segment(new HashMap<Object, Integer>(), new Object[columns.length], 0);
+            for ( int c = 0; c < columns.length; c++ ) {
+                empty.columns[c] = java.lang.reflect.Array.newInstance(types[c], 0);
+            }
+            for ( int s = 0; s < stripes; s++ ) {
+                segments.set(s, empty);
+            }
+        }
+
+        boolean matches( final QTable rows ) {
+            if ( rows.getColumnsCount() != columns.length ) {
+                return false;
+            }
+            for ( int c = 0; c < columns.length; c++ ) {
+                if ( !columns[c].equals(rows.getColumns()[c]) || types[c] != rows.getData()[c].getClass().getComponentType() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Immutable, once published, content of a stripe.
+     */
+    private static final class Segment {
+
+        final Map<Object, Integer> index;
+        final Object[] columns;
+        final int size;
+
+        Segment(final Map<Object, Integer> index, final Object[] columns, final int size) {
+            this.index = index;
+            this.columns = columns;
+            this.size = size;
+        }
+
+        Segment apply( final Object keys, final Object[] data, final int[] rows ) {
+            Map<Object, Integer> newIndex = index;
+            int newSize = size;
+            for ( final int row : rows ) {
+                final Object key = Array.get(keys, row);
+                if ( !newIndex.containsKey(key) ) {
+                    if ( newIndex == index ) {
+                        newIndex = new HashMap<Object, Integer>(index);
+                    }
+                    newIndex.put(key, newSize++);
+                }
+            }
+
+            final int capacity = java.lang.reflect.Array.getLength(columns[0]);
+            final int newCapacity = newSize > capacity ? Math.max(newSize, Math.max(INITIAL_CAPACITY, capacity * 2)) : capacity;
+            final Object[] newColumns = new Object[columns.length];
+            for ( int c = 0; c < columns.length; c++ ) {
+                newColumns[c] = java.lang.reflect.Array.newInstance(columns[c].getClass().getComponentType(), newCapacity);
+                System.arraycopy(columns[c], 0, newColumns[c], 0, size);
+            }
+
+            for ( final int row : rows ) {
+                final int position = newIndex.get(Array.get(keys, row));
+                for ( int c = 0; c < columns.length; c++ ) {
+                    System.arraycopy(data[c], row, newColumns[c], position, 1);
+                }
+            }
+
+            return new Segment(newIndex, newColumns, newSize);
+        }
+    }
+
+}
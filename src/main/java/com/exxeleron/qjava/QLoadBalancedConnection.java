@@ -0,0 +1,817 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connector which spreads queries across a set of identical kdb+ replicas.
+ * <p>
+ * Each query is routed to a single replica selected according to the configured {@link Policy}. Replicas which fail
+ * with an I/O error, or which become considerably slower than the rest of the set, are ejected for a period of time.
+ * Once the ejection period expires, the next query routed to the replica acts as a probe: success brings the replica
+ * back into rotation, failure ejects it again for an exponentially growing period.
+ * </p>
+ * <p>
+ * Replicas can be accessed either via blocking connections, e.g. {@link QBasicConnection}, or via
+ * {@link QPipelinedConnection}. Read-only queries against pipelined replicas can be hedged, see
+ * {@link #hedgedSync(String, Object...)}.
+ * </p>
+ * <p>
+ * Methods of {@link QLoadBalancedConnection} are thread safe. Calls routed to a single blocking replica are
+ * serialized, so the balancer should be the only user of the wrapped connections.
+ * </p>
+ */
+public class QLoadBalancedConnection implements QConnection {
+
+    /**
+     * Defines replica selection policies.
+     */
+    public static enum Policy {
+        /**
+         * Selects the replica with the least number of requests in flight.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Selects the replica with the lowest exponentially weighted moving average of response time, weighted by the
+         * number of requests in flight.
+         */
+        LATENCY_EWMA
+    }
+
+    public static final long DEFAULT_EJECTION_TIME = 1000;
+    public static final long DEFAULT_MAX_EJECTION_TIME = 30000;
+    public static final double DEFAULT_EWMA_WEIGHT = 0.2;
+
+    private final List<Replica> replicas;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    private volatile Policy policy;
+    private volatile long ejectionTime = DEFAULT_EJECTION_TIME;
+    private volatile long maxEjectionTime = DEFAULT_MAX_EJECTION_TIME;
+    private volatile double ewmaWeight = DEFAULT_EWMA_WEIGHT;
+    private volatile double slowReplicaFactor = 0;
+    private volatile QHedgingPolicy hedgingPolicy;
+
+    /**
+     * Initializes a new {@link QLoadBalancedConnection} instance.
+     *
+     * @param policy
+     *            replica selection policy
+     * @param connections
+     *            connections to the replicas
+     *
+     * @throws IllegalArgumentException
+     *             if no connection is given
+     */
+    public QLoadBalancedConnection(final Policy policy, final List<? extends QConnection> connections) {
+        if ( connections == null || connections.isEmpty() ) {
+            throw new IllegalArgumentException("At least one replica connection is required");
+        }
+
+        final List<Replica> list = new ArrayList<Replica>(connections.size());
+        for ( final QConnection connection : connections ) {
+            list.add(new Replica(connection));
+        }
+
+        this.policy = policy;
+        this.replicas = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Initializes a new {@link QLoadBalancedConnection} instance with {@link Policy#LEAST_OUTSTANDING} policy.
+     *
+     * @param connections
+     *            connections to the replicas
+     */
+    public QLoadBalancedConnection(final QConnection... connections) {
+        this(Policy.LEAST_OUTSTANDING, Arrays.asList(connections));
+    }
+
+    /**
+     * Opens connections to all replicas. Replicas which cannot be reached are ejected.
+     *
+     * @throws IOException
+     *             if none of replicas can be reached
+     * @throws QException
+     *             if none of replicas can be reached
+     */
+    public void open() throws IOException, QException {
+        Exception lastError = null;
+        int opened = 0;
+
+        for ( final Replica replica : replicas ) {
+            try {
+                replica.open();
+                opened++;
+            } catch ( final IOException e ) {
+                replica.failed();
+                lastError = e;
+            } catch ( final QException e ) {
+                replica.failed();
+                lastError = e;
+            }
+        }
+
+        if ( opened == 0 ) {
+            throw new QConnectionException("Cannot connect to any of replicas: " + this, lastError);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+        IOException lastError = null;
+        for ( final Replica replica : replicas ) {
+            try {
+                replica.close();
+            } catch ( final IOException e ) {
+                lastError = e;
+            }
+        }
+
+        if ( lastError != null ) {
+            throw lastError;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() throws IOException, QException {
+        close();
+        for ( final Replica replica : replicas ) {
+            replica.reinstate();
+        }
+        open();
+    }
+
+    /**
+     * Checks whether connection with at least one of the replicas has been established.
+     *
+     * @return <code>true</code> if at least one replica is connected, <code>false</code> otherwise
+     */
+    public boolean isConnected() {
+        for ( final Replica replica : replicas ) {
+            if ( replica.connection.isConnected() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes a synchronous query against one of the replicas. Query is not retried on a different replica once it
+     * has been sent.
+     *
+     * @see com.exxeleron.qjava.QConnection#sync(java.lang.String, java.lang.Object[])
+     */
+    public Object sync( final String query, final Object... parameters ) throws QException, IOException {
+        return sync(select(), query, parameters);
+    }
+
+    private Object sync( final Replica replica, final String query, final Object... parameters ) throws QException, IOException {
+        if ( replica.isPipelined() ) {
+            return replica.submit(query, parameters).getResult();
+        }
+
+        replica.outstanding.incrementAndGet();
+        try {
+            synchronized ( replica.connection ) {
+                replica.ensureOpen();
+                final long start = System.nanoTime();
+                final Object result = replica.connection.sync(query, parameters);
+                replica.succeeded(System.nanoTime() - start);
+                return result;
+            }
+        } catch ( final QConnectionException e ) {
+            replica.failed();
+            throw e;
+        } catch ( final IOException e ) {
+            replica.failed();
+            throw e;
+        } catch ( final QException e ) {
+            // q error is a valid response from the replica
+            replica.succeeded(-1);
+            throw e;
+        } finally {
+            replica.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Executes a synchronous, read-only query against one of the replicas. If the response has not been received within
+     * the delay defined by the {@link QHedgingPolicy}, the query is sent to a second replica. The first response is
+     * returned, while the other one is discarded.
+     * <p>
+     * Query is executed as a regular {@link #sync(String, Object...)} if hedging policy is not set or the selected
+     * replica is not accessed via {@link QPipelinedConnection}.
+     * </p>
+     *
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return deserialized response from the remote q service
+     * @throws QException
+     * @throws IOException
+     */
+    public Object hedgedSync( final String query, final Object... parameters ) throws QException, IOException {
+        final QHedgingPolicy policy = hedgingPolicy;
+        final Replica primary = select();
+        if ( policy == null || !primary.isPipelined() ) {
+            return sync(primary, query, parameters);
+        }
+
+        final BlockingQueue<QResponseFuture> responses = new LinkedBlockingQueue<QResponseFuture>();
+        final QResponseFuture.Listener listener = new QResponseFuture.Listener() {
+
+            public void responseReceived( final QResponseFuture future ) {
+                responses.add(future);
+            }
+        };
+
+        final long start = System.nanoTime();
+        final QResponseFuture first = primary.submit(query, parameters);
+        first.addListener(new QResponseFuture.Listener() {
+
+            public void responseReceived( final QResponseFuture future ) {
+                if ( future.getFailure() == null ) {
+                    policy.record(System.nanoTime() - start);
+                }
+            }
+        });
+        first.addListener(listener);
+
+        QResponseFuture second = null;
+        try {
+            QResponseFuture winner = responses.poll(policy.getDelay(), TimeUnit.NANOSECONDS);
+            if ( winner == null ) {
+                final Replica secondary = select(primary);
+                if ( secondary != null && secondary.isPipelined() && !secondary.isEjected(System.currentTimeMillis()) ) {
+                    try {
+                        second = secondary.submit(query, parameters);
+                        second.addListener(listener);
+                    } catch ( final IOException e ) {
+                        // secondary replica is not available, keep waiting for the first one
+                    }
+                }
+
+                winner = responses.take();
+                if ( second != null && isConnectionFailure(winner.getFailure()) ) {
+                    // give the other replica a chance to respond
+                    winner = responses.take();
+                }
+            }
+
+            return winner.getResult();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        } finally {
+            first.cancel(false);
+            if ( second != null ) {
+                second.cancel(false);
+            }
+        }
+    }
+
+    private static boolean isConnectionFailure( final Throwable cause ) {
+        return cause instanceof IOException || cause instanceof QConnectionException;
+    }
+
+    /**
+     * Executes an asynchronous query against one of the replicas.
+     *
+     * @see com.exxeleron.qjava.QConnection#async(java.lang.String, java.lang.Object[])
+     */
+    public void async( final String query, final Object... parameters ) throws QException, IOException {
+        query(MessageType.ASYNC, query, parameters);
+    }
+
+    /**
+     * Sends an asynchronous query to one of the replicas. As responses cannot be matched with replicas by subsequent
+     * calls to {@link #receive()}, only {@link QConnection.MessageType#ASYNC} messages are supported.
+     *
+     * @throws UnsupportedOperationException
+     *             if message type other than {@link QConnection.MessageType#ASYNC} is requested
+     * @see com.exxeleron.qjava.QConnection#query(com.exxeleron.qjava.QConnection.MessageType, java.lang.String,
+     *      java.lang.Object[])
+     */
+    public int query( final MessageType msgType, final String query, final Object... parameters ) throws QException, IOException {
+        if ( msgType != MessageType.ASYNC ) {
+            throw new UnsupportedOperationException("Only asynchronous queries can be sent via load balanced connection");
+        }
+
+        final Replica replica = select();
+        replica.outstanding.incrementAndGet();
+        try {
+            synchronized ( replica.connection ) {
+                replica.ensureOpen();
+                return replica.connection.query(msgType, query, parameters);
+            }
+        } catch ( final IOException e ) {
+            replica.failed();
+            throw e;
+        } finally {
+            replica.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Not supported by {@link QLoadBalancedConnection}.
+     *
+     * @throws UnsupportedOperationException
+     */
+    public Object receive( final boolean dataOnly, final boolean raw ) throws IOException, QException {
+        throw new UnsupportedOperationException("Messages cannot be received via load balanced connection");
+    }
+
+    /**
+     * Not supported by {@link QLoadBalancedConnection}.
+     *
+     * @throws UnsupportedOperationException
+     */
+    public Object receive() throws IOException, QException {
+        return receive(true, false);
+    }
+
+    /**
+     * Selects a replica for the next request.
+     *
+     * @return selected {@link Replica}
+     */
+    protected Replica select() {
+        return select(null);
+    }
+
+    /**
+     * Selects a replica for the next request.
+     *
+     * @param excluded
+     *            replica which shouldn't be selected, may be <code>null</code>
+     * @return selected {@link Replica}, <code>null</code> if no other replica is available
+     */
+    protected Replica select( final Replica excluded ) {
+        final int size = replicas.size();
+        final int offset = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % size;
+        final long now = System.currentTimeMillis();
+
+        Replica best = null;
+        double bestScore = Double.MAX_VALUE;
+        Replica probe = null;
+        Replica leastEjected = null;
+
+        for ( int i = 0; i < size; i++ ) {
+            final Replica replica = replicas.get((offset + i) % size);
+            if ( replica == excluded ) {
+                continue;
+            } else if ( replica.isEjected(now) ) {
+                if ( leastEjected == null || replica.ejectedUntil < leastEjected.ejectedUntil ) {
+                    leastEjected = replica;
+                }
+            } else if ( replica.ejectedUntil != 0 ) {
+                // ejection period expired, replica awaits a probe request
+                if ( probe == null ) {
+                    probe = replica;
+                }
+            } else {
+                final double score = score(replica);
+                if ( score < bestScore ) {
+                    best = replica;
+                    bestScore = score;
+                }
+            }
+        }
+
+        if ( probe != null && probe.startProbe() ) {
+            return probe;
+        }
+
+        if ( best != null ) {
+            return best;
+        }
+
+        // all replicas are ejected, fail open
+        return probe != null ? probe : leastEjected;
+    }
+
+    private double score( final Replica replica ) {
+        final int outstanding = replica.outstanding.get();
+        if ( policy == Policy.LATENCY_EWMA ) {
+            return replica.latencyEwma * (outstanding + 1);
+        } else {
+            return outstanding;
+        }
+    }
+
+    private boolean isSlow( final Replica replica ) {
+        if ( slowReplicaFactor <= 0 ) {
+            return false;
+        }
+
+        double fastest = Double.MAX_VALUE;
+        int healthy = 0;
+        for ( final Replica other : replicas ) {
+            if ( other.ejectedUntil == 0 ) {
+                healthy++;
+                if ( other != replica && other.latencyEwma > 0 ) {
+                    fastest = Math.min(fastest, other.latencyEwma);
+                }
+            }
+        }
+
+        return healthy > 1 && fastest != Double.MAX_VALUE && replica.latencyEwma > slowReplicaFactor * fastest;
+    }
+
+    /**
+     * Retrieves the list of replicas handled by this connection.
+     *
+     * @return unmodifiable list of replicas
+     */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Retrieves replica selection policy.
+     *
+     * @return the {@link Policy}
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets replica selection policy.
+     *
+     * @param policy
+     *            the {@link Policy}
+     */
+    public void setPolicy( final Policy policy ) {
+        this.policy = policy;
+    }
+
+    /**
+     * Retrieves the policy for hedged queries.
+     *
+     * @return the {@link QHedgingPolicy} or <code>null</code> if queries are not hedged
+     */
+    public QHedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Sets the policy for queries executed via {@link #hedgedSync(String, Object...)}.
+     *
+     * @param hedgingPolicy
+     *            the {@link QHedgingPolicy} or <code>null</code> to disable hedging
+     */
+    public void setHedgingPolicy( final QHedgingPolicy hedgingPolicy ) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * Retrieves initial period, in milliseconds, for which a failing replica is ejected.
+     *
+     * @return ejection period in milliseconds
+     */
+    public long getEjectionTime() {
+        return ejectionTime;
+    }
+
+    /**
+     * Sets initial period, in milliseconds, for which a failing replica is ejected. Period is doubled with every
+     * consecutive failure up to {@link #getMaxEjectionTime()}.
+     *
+     * @param ejectionTime
+     *            ejection period in milliseconds
+     */
+    public void setEjectionTime( final long ejectionTime ) {
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * Retrieves maximal period, in milliseconds, for which a failing replica is ejected.
+     *
+     * @return maximal ejection period in milliseconds
+     */
+    public long getMaxEjectionTime() {
+        return maxEjectionTime;
+    }
+
+    /**
+     * Sets maximal period, in milliseconds, for which a failing replica is ejected.
+     *
+     * @param maxEjectionTime
+     *            maximal ejection period in milliseconds
+     */
+    public void setMaxEjectionTime( final long maxEjectionTime ) {
+        this.maxEjectionTime = maxEjectionTime;
+    }
+
+    /**
+     * Retrieves weight of the most recent sample in the response time moving average.
+     *
+     * @return weight from (0, 1] range
+     */
+    public double getEwmaWeight() {
+        return ewmaWeight;
+    }
+
+    /**
+     * Sets weight of the most recent sample in the response time moving average.
+     *
+     * @param ewmaWeight
+     *            weight from (0, 1] range
+     */
+    public void setEwmaWeight( final double ewmaWeight ) {
+        if ( ewmaWeight <= 0 || ewmaWeight > 1 ) {
+            throw new IllegalArgumentException("EWMA weight has to be in (0, 1] range");
+        }
+        this.ewmaWeight = ewmaWeight;
+    }
+
+    /**
+     * Retrieves the slow replica factor.
+     *
+     * @return slow replica factor, <code>0</code> if slow replicas are not ejected
+     */
+    public double getSlowReplicaFactor() {
+        return slowReplicaFactor;
+    }
+
+    /**
+     * Sets the slow replica factor. Replica is ejected when its average response time exceeds the average response
+     * time of the fastest healthy replica multiplied by this factor. Setting factor to <code>0</code> disables ejection
+     * of slow replicas.
+     *
+     * @param slowReplicaFactor
+     *            slow replica factor
+     */
+    public void setSlowReplicaFactor( final double slowReplicaFactor ) {
+        this.slowReplicaFactor = slowReplicaFactor;
+    }
+
+    /**
+     * Returns a String that represents the current {@link QLoadBalancedConnection}.
+     *
+     * @return a String that represents the current {@link QLoadBalancedConnection}
+     */
+    @Override
+    public String toString() {
+        final StringBuilder buffer = new StringBuilder();
+        for ( final Replica replica : replicas ) {
+            if ( buffer.length() > 0 ) {
+                buffer.append(',');
+            }
+            buffer.append(replica.connection);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Returns the host of the first replica.
+     *
+     * @see com.exxeleron.qjava.QConnection#getHost()
+     */
+    public String getHost() {
+        return replicas.get(0).connection.getHost();
+    }
+
+    /**
+     * Returns the port of the first replica.
+     *
+     * @see com.exxeleron.qjava.QConnection#getPort()
+     */
+    public int getPort() {
+        return replicas.get(0).connection.getPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUsername() {
+        return replicas.get(0).connection.getUsername();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPassword() {
+        return replicas.get(0).connection.getPassword();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getEncoding() {
+        return replicas.get(0).connection.getEncoding();
+    }
+
+    /**
+     * Retrieves the lowest version of the IPC protocol among connected replicas.
+     *
+     * @return protocol version
+     */
+    public int getProtocolVersion() {
+        int version = Integer.MAX_VALUE;
+        for ( final Replica replica : replicas ) {
+            if ( replica.connection.isConnected() ) {
+                version = Math.min(version, replica.connection.getProtocolVersion());
+            }
+        }
+        return version == Integer.MAX_VALUE ? 0 : version;
+    }
+
+    /**
+     * Represents the state of a single replica.
+     */
+    public final class Replica {
+
+        private final QConnection connection;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private volatile double latencyEwma;
+        private volatile long ejectedUntil;
+        private int failures;
+        private boolean probing;
+
+        Replica(final QConnection connection) {
+            this.connection = connection;
+        }
+
+        void open() throws IOException, QException {
+            synchronized ( connection ) {
+                connection.open();
+            }
+        }
+
+        void close() throws IOException {
+            if ( isPipelined() ) {
+                // pipelined connection is thread safe, its pipeline thread might wait for the monitor in failed()
+                connection.close();
+            } else {
+                synchronized ( connection ) {
+                    connection.close();
+                }
+            }
+        }
+
+        void ensureOpen() throws IOException, QException {
+            if ( !connection.isConnected() ) {
+                connection.open();
+            }
+        }
+
+        boolean isPipelined() {
+            return connection instanceof QPipelinedConnection;
+        }
+
+        QResponseFuture submit( final String query, final Object... parameters ) throws QException, IOException {
+            final QResponseFuture future;
+            outstanding.incrementAndGet();
+            try {
+                synchronized ( connection ) {
+                    ensureOpen();
+                }
+                future = ((QPipelinedConnection) connection).submit(query, parameters);
+            } catch ( final IOException e ) {
+                outstanding.decrementAndGet();
+                failed();
+                throw e;
+            } catch ( final QException e ) {
+                outstanding.decrementAndGet();
+                throw e;
+            }
+
+            final long start = System.nanoTime();
+            future.addListener(new QResponseFuture.Listener() {
+
+                public void responseReceived( final QResponseFuture future ) {
+                    outstanding.decrementAndGet();
+                    final Throwable failure = future.getFailure();
+                    if ( failure == null ) {
+                        succeeded(System.nanoTime() - start);
+                    } else if ( isConnectionFailure(failure) ) {
+                        failed();
+                    } else {
+                        succeeded(-1);
+                    }
+                }
+            });
+            return future;
+        }
+
+        boolean isEjected( final long now ) {
+            return ejectedUntil > now;
+        }
+
+        synchronized boolean startProbe() {
+            if ( probing || ejectedUntil == 0 ) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void succeeded( final long latency ) {
+            if ( latency >= 0 ) {
+                latencyEwma = latencyEwma == 0 ? latency : ewmaWeight * latency + (1 - ewmaWeight) * latencyEwma;
+            }
+
+            if ( ejectedUntil != 0 ) {
+                reinstate();
+            } else if ( ejectedUntil == 0 && isSlow(this) ) {
+                ejectedUntil = System.currentTimeMillis() + ejectionTime;
+            }
+        }
+
+        void failed() {
+            synchronized ( this ) {
+                failures++;
+                probing = false;
+
+                final long period = ejectionTime << Math.min(failures - 1, 30);
+                ejectedUntil = System.currentTimeMillis() + Math.min(Math.max(period, 0), maxEjectionTime);
+            }
+
+            try {
+                close();
+            } catch ( final IOException e ) {
+                // ignore
+            }
+        }
+
+        synchronized void reinstate() {
+            failures = 0;
+            probing = false;
+            ejectedUntil = 0;
+        }
+
+        /**
+         * Retrieves the connection to the replica.
+         *
+         * @return the {@link QConnection}
+         */
+        public QConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Retrieves the number of requests in flight.
+         *
+         * @return number of requests in flight
+         */
+        public int getOutstandingRequests() {
+            return outstanding.get();
+        }
+
+        /**
+         * Retrieves moving average of response time.
+         *
+         * @return average response time in nanoseconds
+         */
+        public double getLatencyEwma() {
+            return latencyEwma;
+        }
+
+        /**
+         * Indicates whether replica is currently excluded from the rotation.
+         *
+         * @return <code>true</code> if replica is ejected, <code>false</code> otherwise
+         */
+        public boolean isEjected() {
+            return ejectedUntil != 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(connection);
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+/**
+ * Decides whether a message received by {@link QCallbackConnection} is deserialized and delivered to
+ * {@link QMessagesListener}s, based on the message header and leading items peeked via
+ * {@link QReader#peek(QMessage, int)}.
+ */
+public interface QMessageFilter {
+
+    /**
+     * Verifies whether the message should be deserialized.
+     * 
+     * @param message
+     *            {@link QMessage} instance encapsulating raw message
+     * @param prefix
+     *            leading symbols and strings of the message, e.g. <code>{ "upd", "trade" }</code>; empty if the message
+     *            is not a general list
+     * @return <code>true</code> if the message should be deserialized and delivered, <code>false</code> if it should
+     *         be discarded
+     */
+    public boolean accept( QMessage message, String[] prefix );
+
+}
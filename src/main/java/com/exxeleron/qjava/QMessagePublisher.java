@@ -0,0 +1,476 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes messages received by {@link QCallbackConnection} to subscribers with demand-driven flow control.
+ * <p>
+ * The {@link Subscriber} and {@link Subscription} interfaces follow the contract of
+ * <code>java.util.concurrent.Flow</code> and Reactive Streams, so they can be bridged to either API with a trivial
+ * adapter. Each subscriber receives messages only when they have been requested via {@link Subscription#request(long)}.
+ * Messages received without outstanding demand are handled according to the {@link OverflowStrategy}:
+ * </p>
+ * <ul>
+ * <li>{@link OverflowStrategy#BUFFER} - up to <code>capacity</code> messages are buffered, afterwards the listener
+ * thread stops reading from the socket until demand is signalled, so that TCP flow control slows down the q process,</li>
+ * <li>{@link OverflowStrategy#DROP_OLDEST} - up to <code>capacity</code> messages are buffered, afterwards the oldest
+ * buffered message is dropped,</li>
+ * <li>{@link OverflowStrategy#CONFLATE} - only the most recent message per key is buffered.</li>
+ * </ul>
+ *
+ * <pre>
+ * QMessagePublisher publisher = new QMessagePublisher(QMessagePublisher.OverflowStrategy.BUFFER, 1024);
+ * publisher.subscribe(subscriber);
+ * q.addMessagesListener(publisher);
+ * q.startListener();
+ * </pre>
+ * <p>
+ * Errors received from the connection terminate all subscriptions. If the connection reestablishes lost connection via
+ * {@link QReconnectPolicy}, {@link #setTerminalErrorsOnly(boolean)} should be enabled, so that subscriptions survive
+ * errors reported before reconnection attempts.
+ * </p>
+ */
+public class QMessagePublisher implements QMessagesListener {
+
+    /**
+     * Receives messages from {@link QMessagePublisher}. Methods are invoked serially.
+     */
+    public interface Subscriber {
+
+        /**
+         * Invoked before any other method of the subscriber.
+         *
+         * @param subscription
+         *            the {@link Subscription} used to request messages
+         */
+        public void onSubscribe( Subscription subscription );
+
+        /**
+         * Invoked with next message, if requested.
+         *
+         * @param message
+         *            received message
+         */
+        public void onNext( QMessage message );
+
+        /**
+         * Invoked when the subscription has been terminated by an error. No further methods are invoked.
+         *
+         * @param throwable
+         *            the error
+         */
+        public void onError( Throwable throwable );
+
+        /**
+         * Invoked when the publisher has been closed. No further methods are invoked.
+         */
+        public void onComplete();
+    }
+
+    /**
+     * Links {@link Subscriber} with {@link QMessagePublisher}.
+     */
+    public interface Subscription {
+
+        /**
+         * Adds given number of messages to the outstanding demand.
+         *
+         * @param n
+         *            number of messages, has to be positive
+         */
+        public void request( long n );
+
+        /**
+         * Stops delivery of messages to the subscriber.
+         */
+        public void cancel();
+    }
+
+    /**
+     * Defines how messages received without outstanding demand are handled.
+     */
+    public enum OverflowStrategy {
+        /**
+         * Buffers messages up to the capacity, then blocks the listener thread.
+         */
+        BUFFER,
+        /**
+         * Buffers messages up to the capacity, then drops the oldest buffered message.
+         */
+        DROP_OLDEST,
+        /**
+         * Buffers only the most recent message per key.
+         */
+        CONFLATE
+    }
+
+    /**
+     * Extracts conflation key from a message.
+     */
+    public interface KeySelector {
+
+        /**
+         * Retrieves conflation key of the message.
+         *
+         * @param message
+         *            received message
+         * @return the key
+         */
+        public Object getKey( QMessage message );
+    }
+
+    /**
+     * Conflates <code>(`upd; `table; data)</code> messages by table name, other messages by their content.
+     */
+    public static final KeySelector TABLE_NAME = new KeySelector() {
+
+        public Object getKey( final QMessage message ) {
+            final Object data = message.getData();
+            if ( data instanceof Object[] && ((Object[]) data).length == 3 ) {
+                return ((Object[]) data)[1];
+            }
+            return data;
+        }
+    };
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final OverflowStrategy overflowStrategy;
+    private final int capacity;
+    private final KeySelector keySelector;
+    private final List<QSubscription> subscriptions = new CopyOnWriteArrayList<QSubscription>();
+    private volatile boolean closed;
+    private volatile boolean terminalErrorsOnly;
+
+    /**
+     * Creates new {@link QMessagePublisher} object.
+     *
+     * @param overflowStrategy
+     *            the {@link OverflowStrategy}
+     * @param capacity
+     *            maximal number of buffered messages per subscriber, ignored by {@link OverflowStrategy#CONFLATE}
+     * @param keySelector
+     *            the {@link KeySelector} used by {@link OverflowStrategy#CONFLATE}
+     */
+    public QMessagePublisher(final OverflowStrategy overflowStrategy, final int capacity, final KeySelector keySelector) {
+        if ( overflowStrategy == null ) {
+            throw new IllegalArgumentException("Overflow strategy cannot be null");
+        }
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("Capacity has to be positive");
+        }
+        if ( overflowStrategy == OverflowStrategy.CONFLATE && keySelector == null ) {
+            throw new IllegalArgumentException("Key selector is required by conflating strategy");
+        }
+
+        this.overflowStrategy = overflowStrategy;
+        this.capacity = capacity;
+        this.keySelector = keySelector;
+    }
+
+    /**
+     * Creates new {@link QMessagePublisher} object. Messages are conflated by {@link #TABLE_NAME}.
+     *
+     * @param overflowStrategy
+     *            the {@link OverflowStrategy}
+     * @param capacity
+     *            maximal number of buffered messages per subscriber, ignored by {@link OverflowStrategy#CONFLATE}
+     */
+    public QMessagePublisher(final OverflowStrategy overflowStrategy, final int capacity) {
+        this(overflowStrategy, capacity, TABLE_NAME);
+    }
+
+    /**
+     * Creates new {@link QMessagePublisher} object which buffers up to {@link #DEFAULT_CAPACITY} messages.
+     */
+    public QMessagePublisher() {
+        this(OverflowStrategy.BUFFER, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Sets whether subscriptions are terminated only by {@link QConnectionException}, reported by
+     * {@link QCallbackConnection} when lost connection cannot be reestablished. Other errors, e.g. reported before
+     * reconnection attempts, are ignored. Default: <code>false</code>, any error terminates subscriptions.
+     *
+     * @param terminalErrorsOnly
+     *            <code>true</code> to ignore transient errors
+     */
+    public void setTerminalErrorsOnly( final boolean terminalErrorsOnly ) {
+        this.terminalErrorsOnly = terminalErrorsOnly;
+    }
+
+    /**
+     * Registers subscriber. The subscriber receives messages published after the registration.
+     *
+     * @param subscriber
+     *            the {@link Subscriber}
+     */
+    public void subscribe( final Subscriber subscriber ) {
+        if ( subscriber == null ) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+
+        final QSubscription subscription = new QSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if ( closed ) {
+            subscription.terminate(null);
+        } else {
+            subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Completes all subscriptions once buffered messages have been delivered.
+     */
+    public void close() {
+        closed = true;
+        for ( final QSubscription subscription : subscriptions ) {
+            subscription.terminate(null);
+        }
+        subscriptions.clear();
+    }
+
+    /**
+     * Publishes received message to all subscribers.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#messageReceived(com.exxeleron.qjava.QMessage)
+     */
+    public void messageReceived( final QMessage message ) {
+        for ( final QSubscription subscription : subscriptions ) {
+            subscription.offer(message);
+        }
+    }
+
+    /**
+     * Terminates all subscriptions with the error once buffered messages have been delivered, unless the error is
+     * ignored due to {@link #setTerminalErrorsOnly(boolean)}.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#errorReceived(com.exxeleron.qjava.QErrorMessage)
+     */
+    public void errorReceived( final QErrorMessage message ) {
+        if ( terminalErrorsOnly && !(message.getCause() instanceof QConnectionException) ) {
+            return;
+        }
+        for ( final QSubscription subscription : subscriptions ) {
+            subscription.terminate(message.getCause());
+        }
+        subscriptions.clear();
+    }
+
+    /**
+     * Retrieves number of active subscriptions.
+     *
+     * @return number of subscriptions
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Retrieves the strategy of handling messages received without outstanding demand.
+     *
+     * @return the {@link OverflowStrategy}
+     */
+    public OverflowStrategy getOverflowStrategy() {
+        return overflowStrategy;
+    }
+
+    /**
+     * Retrieves maximal number of buffered messages per subscriber.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private final class QSubscription implements Subscription {
+
+        private final Subscriber subscriber;
+        private final AtomicInteger wip = new AtomicInteger();
+        private final LinkedList<QMessage> buffer = new LinkedList<QMessage>();
+        private final Map<Object, QMessage> conflated = new LinkedHashMap<Object, QMessage>();
+
+        private long requested;
+        private boolean cancelled;
+        private boolean done;
+        private Throwable error;
+        private long dropped;
+
+        QSubscription(final Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request( final long n ) {
+            if ( n <= 0 ) {
+                terminate(new IllegalArgumentException("Requested number of messages has to be positive"));
+                return;
+            }
+
+            synchronized ( this ) {
+                requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            }
+            drain();
+        }
+
+        public void cancel() {
+            synchronized ( this ) {
+                cancelled = true;
+                buffer.clear();
+                conflated.clear();
+                notifyAll();
+            }
+            subscriptions.remove(this);
+        }
+
+        void offer( final QMessage message ) {
+            synchronized ( this ) {
+                if ( cancelled || done ) {
+                    return;
+                }
+
+                switch ( overflowStrategy ) {
+                    case BUFFER:
+                        while ( buffer.size() >= capacity && requested == 0 && !cancelled && !done ) {
+                            try {
+                                wait();
+                            } catch ( final InterruptedException e ) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                        if ( cancelled || done ) {
+                            return;
+                        }
+                        buffer.add(message);
+                        break;
+                    case DROP_OLDEST:
+                        if ( buffer.size() >= capacity ) {
+                            buffer.removeFirst();
+                            dropped++;
+                        }
+                        buffer.add(message);
+                        break;
+                    case CONFLATE:
+                        if ( conflated.put(keySelector.getKey(message), message) != null ) {
+                            dropped++;
+                        }
+                        break;
+                }
+            }
+            drain();
+        }
+
+        void terminate( final Throwable throwable ) {
+            synchronized ( this ) {
+                if ( done ) {
+                    return;
+                }
+                done = true;
+                error = throwable;
+                notifyAll();
+            }
+            drain();
+        }
+
+        private QMessage poll() {
+            if ( overflowStrategy == OverflowStrategy.CONFLATE ) {
+                final Iterator<QMessage> iterator = conflated.values().iterator();
+                final QMessage message = iterator.next();
+                iterator.remove();
+                return message;
+            }
+            return buffer.removeFirst();
+        }
+
+        private boolean isEmpty() {
+            return buffer.isEmpty() && conflated.isEmpty();
+        }
+
+        private void drain() {
+            if ( wip.getAndIncrement() != 0 ) {
+                return;
+            }
+
+            int missed = 1;
+            while ( true ) {
+                while ( true ) {
+                    QMessage next = null;
+                    boolean terminal = false;
+                    Throwable failure = null;
+
+                    synchronized ( this ) {
+                        if ( cancelled ) {
+                            return;
+                        }
+                        if ( requested > 0 && !isEmpty() ) {
+                            next = poll();
+                            if ( requested != Long.MAX_VALUE ) {
+                                requested--;
+                            }
+                            notifyAll();
+                        } else if ( done && isEmpty() ) {
+                            cancelled = true;
+                            terminal = true;
+                            failure = error;
+                        } else {
+                            break;
+                        }
+                    }
+
+                    if ( terminal ) {
+                        subscriptions.remove(this);
+                        if ( failure != null ) {
+                            subscriber.onError(failure);
+                        } else {
+                            subscriber.onComplete();
+                        }
+                        return;
+                    }
+
+                    try {
+                        subscriber.onNext(next);
+                    } catch ( final RuntimeException e ) {
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+                if ( missed == 0 ) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized ( this ) {
+                return "QSubscription [requested=" + requested + ", buffered=" + (buffer.size() + conflated.size()) + ", dropped=" + dropped + "]";
+            }
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays messages received from an upstream connection, e.g. a tickerplant subscription, to many downstream sinks
+ * without deserializing them.
+ * <p>
+ * Messages are read via {@link QConnection#receive(boolean, boolean)} in raw form. Each message is assembled once into
+ * a frame, including the original IPC header, and the same frame is queued to all sinks. Each sink is written by its
+ * own thread from a bounded queue, so a slow sink doesn't delay the others; behaviour of a sink with full queue is
+ * defined by the {@link OverflowStrategy}:
+ * </p>
+ *
+ * <pre>
+ * QBasicConnection tickerplant = new QBasicConnection(&quot;tp&quot;, 5010, null, null);
+ * tickerplant.open();
+ * tickerplant.sync(&quot;.u.sub&quot;, &quot;trade&quot;, &quot;&quot;);
+ *
+ * QMessageRelay relay = new QMessageRelay(tickerplant);
+ * relay.addSink(QMessageRelay.sink(downstream)); // QBasicConnection or QServer.Session
+ * relay.start();
+ * </pre>
+ */
+public class QMessageRelay {
+
+    /**
+     * Destination of relayed frames.
+     */
+    public interface Sink {
+
+        /**
+         * Writes the frame. The frame is shared among all sinks and must not be modified.
+         *
+         * @param frame
+         *            serialized message including the IPC header
+         * @throws IOException
+         *             causes removal of the sink
+         */
+        void write( byte[] frame ) throws IOException;
+
+        /**
+         * Releases resources of the sink once it is removed from the relay.
+         */
+        void close();
+    }
+
+    /**
+     * Defines behaviour of the relay when queue of a sink is full.
+     */
+    public enum OverflowStrategy {
+        /**
+         * Blocks reading from the upstream until the sink catches up.
+         */
+        BLOCK,
+        /**
+         * Drops the frame for the sink.
+         */
+        DROP,
+        /**
+         * Removes and closes the sink.
+         */
+        DISCONNECT
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final byte[] POISON = new byte[0];
+
+    private final QConnection upstream;
+    private final int queueCapacity;
+    private final OverflowStrategy overflowStrategy;
+    private final List<SinkWorker> workers = new CopyOnWriteArrayList<SinkWorker>();
+    private final AtomicLong relayedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private Thread readerThread;
+    private volatile boolean running;
+    private volatile Exception lastError;
+
+    /**
+     * Creates new {@link QMessageRelay} object.
+     *
+     * @param upstream
+     *            opened connection delivering messages
+     * @param queueCapacity
+     *            number of frames queued per sink
+     * @param overflowStrategy
+     *            behaviour when queue of a sink is full
+     */
+    public QMessageRelay(final QConnection upstream, final int queueCapacity, final OverflowStrategy overflowStrategy) {
+        if ( queueCapacity < 1 ) {
+            throw new IllegalArgumentException("Queue capacity has to be positive");
+        }
+        if ( overflowStrategy == null ) {
+            throw new IllegalArgumentException("Overflow strategy cannot be null");
+        }
+        this.upstream = upstream;
+        this.queueCapacity = queueCapacity;
+        this.overflowStrategy = overflowStrategy;
+    }
+
+    /**
+     * Creates new {@link QMessageRelay} object with default queue capacity, disconnecting sinks which fall behind.
+     *
+     * @param upstream
+     *            opened connection delivering messages
+     */
+    public QMessageRelay(final QConnection upstream) {
+        this(upstream, DEFAULT_QUEUE_CAPACITY, OverflowStrategy.DISCONNECT);
+    }
+
+    /**
+     * Creates a {@link Sink} writing frames to a connection, e.g. a kdb+ process.
+     *
+     * @param connection
+     *            opened connection
+     * @return the {@link Sink}
+     */
+    public static Sink sink( final QBasicConnection connection ) {
+        return new Sink() {
+
+            public void write( final byte[] frame ) throws IOException {
+                connection.send(frame, 0, frame.length);
+            }
+
+            public void close() {
+                try {
+                    connection.close();
+                } catch ( final IOException e ) {
+                    // ignore
+                }
+            }
+
+            @Override
+            public String toString() {
+                return connection.toString();
+            }
+        };
+    }
+
+    /**
+     * Creates a {@link Sink} writing frames to a client connected to {@link QServer}.
+     *
+     * @param session
+     *            session of the client
+     * @return the {@link Sink}
+     */
+    public static Sink sink( final QServer.Session session ) {
+        return new Sink() {
+
+            public void write( final byte[] frame ) throws IOException {
+                session.send(frame, 0, frame.length);
+            }
+
+            public void close() {
+                session.close();
+            }
+
+            @Override
+            public String toString() {
+                return String.valueOf(session.getRemoteAddress());
+            }
+        };
+    }
+
+    /**
+     * Assembles raw message into a frame including the IPC header.
+     *
+     * @param message
+     *            message retrieved in raw form
+     * @return serialized message
+     */
+    static byte[] toFrame( final QMessage message ) {
+        final int dataSize = message.getDataSize();
+        final ByteBuffer frame = ByteBuffer.allocate(dataSize + 8).order(message.getEndianess());
+        frame.put((byte) (message.getEndianess() == ByteOrder.BIG_ENDIAN ? 0 : 1));
+        frame.put((byte) message.getMessageType().ordinal());
+        frame.put((byte) (message.isCompressed() ? 1 : 0));
+        frame.put((byte) 0);
+        frame.putInt(dataSize + 8);
+        frame.put((byte[]) message.getData(), 0, dataSize);
+        return frame.array();
+    }
+
+    /**
+     * Starts thread reading messages from the upstream connection.
+     */
+    public synchronized void start() {
+        if ( readerThread != null ) {
+            throw new IllegalStateException("Relay is already started");
+        }
+
+        running = true;
+        readerThread = new Thread(new Runnable() {
+
+            public void run() {
+                while ( running ) {
+                    try {
+                        publish(toFrame((QMessage) upstream.receive(false, true)));
+                    } catch ( final Exception e ) {
+                        if ( running ) {
+                            lastError = e;
+                            running = false;
+                        }
+                    }
+                }
+            }
+        }, "qJava-relay");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Queues the frame to all sinks. Can be used to relay messages from other sources than the upstream connection.
+     *
+     * @param frame
+     *            serialized message including the IPC header
+     * @throws InterruptedException
+     *             if interrupted while waiting for a sink with {@link OverflowStrategy#BLOCK} strategy
+     */
+    public void publish( final byte[] frame ) throws InterruptedException {
+        // counted before sinks can observe the frame
+        relayedCount.incrementAndGet();
+        for ( final SinkWorker worker : workers ) {
+            // last slot of the queue is reserved for the stop marker
+            if ( worker.queue.remainingCapacity() > 1 ) {
+                worker.queue.offer(frame);
+            } else {
+                switch ( overflowStrategy ) {
+                case BLOCK:
+                    worker.queue.put(frame);
+                    break;
+                case DROP:
+                    droppedCount.incrementAndGet();
+                    break;
+                case DISCONNECT:
+                    remove(worker);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers sink receiving frames published afterwards.
+     *
+     * @param sink
+     *            the {@link Sink}
+     */
+    public void addSink( final Sink sink ) {
+        final SinkWorker worker = new SinkWorker(sink);
+        workers.add(worker);
+        worker.thread.start();
+    }
+
+    /**
+     * Unregisters sink once queued frames are written. The sink is not closed, unless it is stalled with a full queue,
+     * in which case queued frames are discarded.
+     *
+     * @param sink
+     *            the {@link Sink}
+     */
+    public void removeSink( final Sink sink ) {
+        for ( final SinkWorker worker : workers ) {
+            if ( worker.sink == sink && workers.remove(worker) ) {
+                stop(worker);
+            }
+        }
+    }
+
+    private void stop( final SinkWorker worker ) {
+        // queued frames are written before the stop marker
+        if ( !worker.queue.offer(POISON) ) {
+            // reserved slot has been taken by OverflowStrategy.BLOCK, the sink is stalled
+            worker.failed = true;
+            worker.queue.clear();
+            worker.queue.offer(POISON);
+            worker.thread.interrupt();
+        }
+    }
+
+    private void remove( final SinkWorker worker ) {
+        if ( workers.remove(worker) ) {
+            worker.failed = true;
+            worker.queue.clear();
+            worker.queue.offer(POISON);
+            worker.thread.interrupt();
+        }
+    }
+
+    /**
+     * Stops reading from the upstream connection by closing it and removes all sinks once queued frames are written.
+     * Sinks stalled with a full queue are closed without writing queued frames.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        running = false;
+        upstream.close();
+        for ( final SinkWorker worker : workers ) {
+            if ( workers.remove(worker) ) {
+                stop(worker);
+            }
+        }
+    }
+
+    /**
+     * Retrieves number of registered sinks.
+     *
+     * @return number of sinks
+     */
+    public int getSinkCount() {
+        return workers.size();
+    }
+
+    /**
+     * Retrieves number of published frames.
+     *
+     * @return number of frames
+     */
+    public long getRelayedCount() {
+        return relayedCount.get();
+    }
+
+    /**
+     * Retrieves number of frames dropped by {@link OverflowStrategy#DROP} strategy, summed over all sinks.
+     *
+     * @return number of dropped frames
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Retrieves error which stopped reading from the upstream connection.
+     *
+     * @return the error or <code>null</code> if the relay is running
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Indicates whether the relay reads from the upstream connection.
+     *
+     * @return <code>true</code> if the relay is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    private final class SinkWorker implements Runnable {
+
+        final Sink sink;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueCapacity + 1);
+        final Thread thread;
+        volatile boolean failed;
+
+        SinkWorker(final Sink sink) {
+            this.sink = sink;
+            this.thread = new Thread(this, "qJava-relay-" + sink);
+            this.thread.setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                byte[] frame;
+                while ( (frame = queue.take()) != POISON && !failed ) {
+                    sink.write(frame);
+                }
+            } catch ( final InterruptedException e ) {
+                // removed
+            } catch ( final IOException e ) {
+                failed = true;
+                workers.remove(this);
+                // frees publisher blocked by OverflowStrategy.BLOCK on the full queue
+                queue.clear();
+            }
+
+            if ( failed ) {
+                sink.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,408 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes updates published by a kdb+ tickerplant in parallel, preserving order of updates per key.
+ * <p>
+ * Each table received via <code>upd</code> message, i.e. <code>(`upd; `table; data)</code>, is split by the key
+ * column into row batches, one per partition. The partition of a row is determined by consistent hashing of its key,
+ * so all rows with the same key are processed by the same worker thread, in the order in which they were received.
+ * Tables without the key column are processed as a whole by a partition determined by the table name.
+ * </p>
+ *
+ * <pre>
+ * QPartitionedDispatcher dispatcher = new QPartitionedDispatcher(&quot;sym&quot;, 4, handler);
+ * q.addMessagesListener(dispatcher);
+ * q.startListener();
+ * </pre>
+ * <p>
+ * Other messages and errors are passed to the optional fallback {@link QMessagesListener} on the thread which received
+ * them.
+ * </p>
+ */
+public class QPartitionedDispatcher implements QMessagesListener, QUpdateHandler {
+
+    /**
+     * Processes row batches of a single partition.
+     */
+    public interface Handler {
+
+        /**
+         * Invoked by the worker thread of the partition. Consecutive invocations for the same key preserve the order
+         * of received updates.
+         *
+         * @param table
+         *            name of the updated table
+         * @param rows
+         *            rows belonging to the partition
+         * @param partition
+         *            index of the partition
+         */
+        public void updateReceived( String table, QTable rows, int partition );
+    }
+
+    public static final String DEFAULT_UPDATE_FUNCTION = "upd";
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final Batch POISON = new Batch(null, null);
+
+    private final String keyColumn;
+    private final Handler handler;
+    private final Worker[] workers;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile String updateFunction = DEFAULT_UPDATE_FUNCTION;
+    private volatile QMessagesListener fallbackListener;
+    private volatile boolean closed;
+
+    /**
+     * Creates new {@link QPartitionedDispatcher} object and starts its worker threads.
+     *
+     * @param keyColumn
+     *            name of the column rows are partitioned by, e.g. <code>sym</code>
+     * @param partitions
+     *            number of partitions, each processed by its own thread
+     * @param handler
+     *            the {@link Handler} processing row batches
+     * @param queueCapacity
+     *            maximal number of batches awaiting processing per partition; the receiving thread waits if the queue is
+     *            full
+     */
+    public QPartitionedDispatcher(final String keyColumn, final int partitions, final Handler handler, final int queueCapacity) {
+        if ( partitions < 1 ) {
+            throw new IllegalArgumentException("Number of partitions has to be positive");
+        }
+        if ( handler == null ) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+
+        this.keyColumn = keyColumn;
+        this.handler = handler;
+        this.workers = new Worker[partitions];
+        for ( int i = 0; i < partitions; i++ ) {
+            workers[i] = new Worker(i, queueCapacity);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * Creates new {@link QPartitionedDispatcher} object with default queue capacity and starts its worker threads.
+     *
+     * @param keyColumn
+     *            name of the column rows are partitioned by, e.g. <code>sym</code>
+     * @param partitions
+     *            number of partitions, each processed by its own thread
+     * @param handler
+     *            the {@link Handler} processing row batches
+     */
+    public QPartitionedDispatcher(final String keyColumn, final int partitions, final Handler handler) {
+        this(keyColumn, partitions, handler, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Splits received update into row batches and queues them for processing by partition workers.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#messageReceived(com.exxeleron.qjava.QMessage)
+     */
+    public void messageReceived( final QMessage message ) {
+        final Object data = message.getData();
+        if ( data instanceof Object[] ) {
+            final Object[] update = (Object[]) data;
+            if ( update.length == 3 && Utils.isFunctionName(update[0], updateFunction) && update[1] instanceof String && update[2] instanceof QTable ) {
+                dispatch((String) update[1], (QTable) update[2]);
+                return;
+            }
+        }
+
+        final QMessagesListener listener = fallbackListener;
+        if ( listener != null ) {
+            listener.messageReceived(message);
+        }
+    }
+
+    /**
+     * Passes error to the fallback listener.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#errorReceived(com.exxeleron.qjava.QErrorMessage)
+     */
+    public void errorReceived( final QErrorMessage message ) {
+        final QMessagesListener listener = fallbackListener;
+        if ( listener != null ) {
+            listener.errorReceived(message);
+        }
+    }
+
+    /**
+     * Splits table into row batches and queues them for processing by partition workers.
+     *
+     * @see #dispatch(String, QTable)
+     */
+    public void updateReceived( final String table, final QTable rows ) {
+        dispatch(table, rows);
+    }
+
+    /**
+     * Splits table into row batches and queues them for processing by partition workers.
+     * <p>
+     * If the calling thread is interrupted while waiting for space in a full queue, the batch is dropped and reported
+     * to the fallback listener as {@link QException}. The interrupted status of the thread is preserved.
+     * </p>
+     *
+     * @param table
+     *            name of the updated table
+     * @param rows
+     *            updated rows
+     */
+    public void dispatch( final String table, final QTable rows ) {
+        if ( closed ) {
+            throw new IllegalStateException("Dispatcher is closed");
+        }
+
+        final int keyIndex = keyColumn != null && rows.hasColumn(keyColumn) ? rows.getColumnIndex(keyColumn) : -1;
+        if ( keyIndex < 0 || workers.length == 1 ) {
+            workers[getPartition(table)].enqueue(new Batch(table, rows));
+            return;
+        }
+
+        final Object keys = rows.getData()[keyIndex];
+        final int rowsCount = rows.getRowsCount();
+        final int[] partitionOf = new int[rowsCount];
+        final int[] counts = new int[workers.length];
+        for ( int i = 0; i < rowsCount; i++ ) {
+            final int partition = getPartition(Array.get(keys, i));
+            partitionOf[i] = partition;
+            counts[partition]++;
+        }
+
+        final int[][] indices = new int[workers.length][];
+        for ( int p = 0; p < workers.length; p++ ) {
+            if ( counts[p] == rowsCount ) {
+                workers[p].enqueue(new Batch(table, rows));
+                return;
+            }
+            indices[p] = new int[counts[p]];
+        }
+
+        final int[] position = new int[workers.length];
+        for ( int i = 0; i < rowsCount; i++ ) {
+            final int partition = partitionOf[i];
+            indices[partition][position[partition]++] = i;
+        }
+
+        final Object[] data = rows.getData();
+        for ( int p = 0; p < workers.length; p++ ) {
+            if ( counts[p] > 0 ) {
+                final Object[] columns = new Object[data.length];
+                for ( int c = 0; c < data.length; c++ ) {
+                    columns[c] = Utils.selectRows(data[c], indices[p], counts[p]);
+                }
+                workers[p].enqueue(new Batch(table, new QTable(rows.getColumns(), columns)));
+            }
+        }
+    }
+
+    /**
+     * Retrieves partition of the given key.
+     *
+     * @param key
+     *            value of the key column
+     * @return index of the partition
+     */
+    public int getPartition( final Object key ) {
+        return jumpConsistentHash(key != null ? key.hashCode() : 0, workers.length);
+    }
+
+    /**
+     * Maps key to a bucket, so that only <code>1/buckets</code> of keys change their bucket when the number of buckets
+     * changes (Lamping, Veach: A Fast, Minimal Memory, Consistent Hash Algorithm).
+     */
+    static int jumpConsistentHash( final long key, final int buckets ) {
+        long k = key;
+        long b = -1;
+        long j = 0;
+        while ( j < buckets ) {
+            b = j;
+            k = k * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((k >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * Stops worker threads once they have processed already queued batches.
+     */
+    public void close() {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+
+        for ( final Worker worker : workers ) {
+            worker.enqueue(POISON);
+        }
+        for ( final Worker worker : workers ) {
+            if ( Thread.currentThread() != worker.thread ) {
+                try {
+                    worker.thread.join();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves name of the key column.
+     *
+     * @return name of the key column
+     */
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * Retrieves number of partitions.
+     *
+     * @return number of partitions
+     */
+    public int getPartitionsCount() {
+        return workers.length;
+    }
+
+    /**
+     * Retrieves number of batches awaiting processing by the given partition.
+     *
+     * @param partition
+     *            index of the partition
+     * @return number of queued batches
+     */
+    public int getQueueSize( final int partition ) {
+        return workers[partition].queue.size();
+    }
+
+    /**
+     * Retrieves number of row batches dropped, because the dispatching thread has been interrupted while waiting for
+     * space in a full queue.
+     *
+     * @return number of dropped batches
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Retrieves name of the function used by the tickerplant to publish updates.
+     *
+     * @return name of the function
+     */
+    public String getUpdateFunction() {
+        return updateFunction;
+    }
+
+    /**
+     * Sets name of the function used by the tickerplant to publish updates. Default: <code>upd</code>.
+     *
+     * @param updateFunction
+     *            name of the function
+     */
+    public void setUpdateFunction( final String updateFunction ) {
+        this.updateFunction = updateFunction;
+    }
+
+    /**
+     * Retrieves listener receiving messages which are not updates and errors.
+     *
+     * @return the {@link QMessagesListener} or <code>null</code>
+     */
+    public QMessagesListener getFallbackListener() {
+        return fallbackListener;
+    }
+
+    /**
+     * Sets listener receiving messages which are not updates and errors. The listener also receives exceptions thrown
+     * by the {@link Handler} and reports of dropped batches.
+     *
+     * @param fallbackListener
+     *            the {@link QMessagesListener} or <code>null</code> to ignore such messages
+     */
+    public void setFallbackListener( final QMessagesListener fallbackListener ) {
+        this.fallbackListener = fallbackListener;
+    }
+
+    private static final class Batch {
+
+        final String table;
+        final QTable rows;
+
+        Batch(final String table, final QTable rows) {
+            this.table = table;
+            this.rows = rows;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        final int partition;
+        final BlockingQueue<Batch> queue;
+        final Thread thread;
+
+        Worker(final int partition, final int queueCapacity) {
+            this.partition = partition;
+            this.queue = new ArrayBlockingQueue<Batch>(queueCapacity);
+            this.thread = new Thread(this, "qJava-partition-" + partition);
+            this.thread.setDaemon(true);
+        }
+
+        void enqueue( final Batch batch ) {
+            try {
+                queue.put(batch);
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                if ( batch != POISON ) {
+                    droppedCount.incrementAndGet();
+                    errorReceived(new QErrorMessage(new QException("Update of " + batch.table + " dropped, interrupted while waiting for partition "
+                            + partition, e)));
+                }
+            }
+        }
+
+        public void run() {
+            while ( true ) {
+                final Batch batch;
+                try {
+                    batch = queue.take();
+                } catch ( final InterruptedException e ) {
+                    break;
+                }
+                if ( batch == POISON ) {
+                    break;
+                }
+
+                try {
+                    handler.updateReceived(batch.table, batch.rows, partition);
+                } catch ( final RuntimeException e ) {
+                    errorReceived(new QErrorMessage(e));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The {@link QPipelinedConnection}, in addition to {@link QBasicConnection}, allows multiple synchronous queries to be
+ * in flight over a single connection.
+ * <p>
+ * Queries are written to the connection immediately and their responses are matched in order by an internal thread,
+ * as kdb+ replies to synchronous queries in the order they were received. Each query is represented by a
+ * {@link QResponseFuture}.
+ * </p>
+ * <p>
+ * Methods of {@link QPipelinedConnection} are thread safe. Messages received from q which are not responses are not
+ * delivered to the application; the {@link #receive()} methods are not supported.
+ * </p>
+ */
+public class QPipelinedConnection extends QBasicConnection {
+
+    // bounds the wait for the pipeline thread, which might be blocked by a listener of a completed future
+    private static final long STOP_TIMEOUT = 1000;
+
+    private final Object writeLock = new Object();
+    private volatile Pipeline pipeline;
+
+    /**
+     * Initializes a new {@link QPipelinedConnection} instance.
+     *
+     * @param host
+     *            Host of remote q service
+     * @param port
+     *            Port of remote q service
+     * @param username
+     *            Username for remote authorization
+     * @param password
+     *            Password for remote authorization
+     * @param encoding
+     *            Encoding used for serialization/deserialization of string objects
+     */
+    public QPipelinedConnection(final String host, final int port, final String username, final String password, final String encoding) {
+        super(host, port, username, password, encoding);
+    }
+
+    /**
+     * Initializes a new {@link QPipelinedConnection} instance with encoding set to "ISO-8859-1".
+     *
+     * @param host
+     *            Host of remote q service
+     * @param port
+     *            Port of remote q service
+     * @param username
+     *            Username for remote authorization
+     * @param password
+     *            Password for remote authorization
+     */
+    public QPipelinedConnection(final String host, final int port, final String username, final String password) {
+        this(host, port, username, password, DEFAULT_ENCODING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open() throws IOException, QException {
+        synchronized ( writeLock ) {
+            if ( !isConnected() ) {
+                super.open();
+                pipeline = new Pipeline();
+                pipeline.start("qJava-pipeline" + this.toString());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        final Pipeline closed;
+        synchronized ( writeLock ) {
+            closed = pipeline;
+            pipeline = null;
+            super.close();
+        }
+
+        if ( closed != null ) {
+            closed.stop(new QConnectionException("Connection closed"));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() throws IOException, QException {
+        close();
+        open();
+    }
+
+    /**
+     * Sends a synchronous query to the remote q service without waiting for the response.
+     *
+     * @param query
+     *            Query to be executed
+     * @param parameters
+     *            Additional parameters
+     * @return {@link QResponseFuture} representing the response
+     * @throws QException
+     * @throws IOException
+     */
+    public QResponseFuture submit( final String query, final Object... parameters ) throws QException, IOException {
+        final QResponseFuture future = new QResponseFuture();
+        send(QConnection.MessageType.SYNC, future, query, parameters);
+        return future;
+    }
+
+    /**
+     * Executes a synchronous query against the remote q service. Other threads can issue queries while the response is
+     * awaited.
+     *
+     * @see com.exxeleron.qjava.QBasicConnection#sync(java.lang.String, java.lang.Object[])
+     */
+    @Override
+    public Object sync( final String query, final Object... parameters ) throws QException, IOException {
+        if ( getOptions().getSyncTimeout() > 0 ) {
+            return sync(getOptions().getSyncTimeout(), TimeUnit.MILLISECONDS, query, parameters);
+        }
+        return submit(query, parameters).getResult();
+    }
+
+    /**
+     * Executes a synchronous query against the remote q service which has to complete before the deadline. Contrary
+     * to {@link QBasicConnection}, the connection is not closed when the deadline expires; the late response is
+     * discarded when it arrives.
+     *
+     * @see com.exxeleron.qjava.QBasicConnection#sync(long, java.util.concurrent.TimeUnit, java.lang.String,
+     *      java.lang.Object[])
+     */
+    @Override
+    public Object sync( final long timeout, final TimeUnit unit, final String query, final Object... parameters ) throws QException, IOException {
+        final QResponseFuture future = submit(query, parameters);
+        try {
+            return future.getResult(timeout, unit);
+        } catch ( final TimeoutException e ) {
+            future.cancel(false);
+            throw (SocketTimeoutException) new SocketTimeoutException("Query deadline of " + unit.toMillis(timeout) + " ms exceeded").initCause(e);
+        }
+    }
+
+    /**
+     * Executes a query against the remote q service. Responses to synchronous queries sent via this method are
+     * discarded.
+     *
+     * @see com.exxeleron.qjava.QBasicConnection#query(com.exxeleron.qjava.QConnection.MessageType, java.lang.String,
+     *      java.lang.Object[])
+     */
+    @Override
+    public int query( final QConnection.MessageType msgType, final String query, final Object... parameters ) throws QException, IOException {
+        final QResponseFuture future = msgType == QConnection.MessageType.SYNC ? new QResponseFuture() : null;
+        if ( future != null ) {
+            future.cancel(false);
+        }
+        return send(msgType, future, query, parameters);
+    }
+
+    private int send( final QConnection.MessageType msgType, final QResponseFuture future, final String query, final Object... parameters ) throws QException,
+            IOException {
+        synchronized ( writeLock ) {
+            final Pipeline current = pipeline;
+            if ( current == null ) {
+                throw new IOException("Connection is not established.");
+            }
+
+            if ( future != null ) {
+                current.pending.add(future);
+            }
+
+            boolean sent = false;
+            try {
+                final int size = super.query(msgType, query, parameters);
+                sent = true;
+                return size;
+            } finally {
+                if ( !sent && future != null ) {
+                    current.pending.remove(future);
+                }
+            }
+        }
+    }
+
+    /**
+     * Not supported by {@link QPipelinedConnection}.
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public Object receive( final boolean dataOnly, final boolean raw ) throws IOException, QException {
+        throw new UnsupportedOperationException("Messages are received by the connection pipeline");
+    }
+
+    /**
+     * Retrieves number of queries awaiting response.
+     *
+     * @return number of queries awaiting response
+     */
+    public int getPendingCount() {
+        final Pipeline current = pipeline;
+        return current == null ? 0 : current.pending.size();
+    }
+
+    private void broken( final Pipeline broken, final Exception cause ) {
+        synchronized ( writeLock ) {
+            if ( pipeline == broken ) {
+                pipeline = null;
+                try {
+                    super.close();
+                } catch ( final IOException e ) {
+                    // ignore
+                }
+            }
+        }
+        broken.failPending(cause);
+    }
+
+    private class Pipeline implements Runnable {
+
+        final Queue<QResponseFuture> pending = new ConcurrentLinkedQueue<QResponseFuture>();
+        private Thread thread;
+
+        void start( final String threadName ) {
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop( final Exception cause ) {
+            // listeners of failed futures are invoked before waiting, as they might need locks held by the caller
+            failPending(cause);
+            if ( thread != Thread.currentThread() ) {
+                try {
+                    thread.join(STOP_TIMEOUT);
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void failPending( final Exception cause ) {
+            QResponseFuture future;
+            while ( (future = pending.poll()) != null ) {
+                future.fail(cause);
+            }
+        }
+
+        public void run() {
+            while ( pipeline == this ) {
+                final QMessage message;
+                try {
+                    message = reader.read(true);
+                } catch ( final Exception e ) {
+                    if ( pipeline == this ) {
+                        broken(this, e);
+                    }
+                    break;
+                }
+
+                try {
+                    dispatch(message);
+                } catch ( final IOException e ) {
+                    broken(this, e);
+                    break;
+                }
+            }
+        }
+
+        private void dispatch( final QMessage message ) throws IOException {
+            if ( message.getMessageType() == QConnection.MessageType.RESPONSE ) {
+                final QResponseFuture future = pending.poll();
+                if ( future == null ) {
+                    return;
+                }
+
+                if ( future.isCancelled() ) {
+                    // drain the response without deserialization
+                    future.complete(null);
+                    return;
+                }
+
+                try {
+                    future.complete(reader.parse(message).getData());
+                } catch ( final QException e ) {
+                    future.fail(e);
+                } catch ( final RuntimeException e ) {
+                    future.fail(new QReaderException("Cannot deserialize response", e));
+                }
+            } else if ( message.getMessageType() == QConnection.MessageType.SYNC ) {
+                synchronized ( writeLock ) {
+                    try {
+                        writer.write(new QException("nyi: qJava expected response message"), QConnection.MessageType.RESPONSE);
+                    } catch ( final QException e ) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -38,6 +39,7 @@ public abstract class QReader {
 
     protected byte[] header;
     protected byte[] rawData;
+    private byte[] scratch = new byte[0];
 
     /**
      * Sets the input stream for deserialization.
@@ -97,12 +99,32 @@ public abstract class QReader {
         rawData = new byte[dataSize];
         stream.readFully(rawData, 0, dataSize);
 
-        if ( raw ) {
-            return new QMessage(rawData, messageType, endianess, compressed, raw, messageSize, dataSize);
+        final QMessage message = new QMessage(rawData, messageType, endianess, compressed, true, messageSize, dataSize);
+        return raw ? message : parse(message);
+    }
+
+    /**
+     * Deserializes data payload of a message retrieved in a raw form.
+     *
+     * @param message
+     *            {@link QMessage} instance encapsulating raw message
+     * @return {@link QMessage} instance encapsulating a deserialized message, or the message itself if it has already
+     *         been parsed
+     *
+     * @throws IOException
+     * @throws QException
+     */
+    public QMessage parse( final QMessage message ) throws IOException, QException {
+        if ( !message.isRaw() ) {
+            return message;
         }
 
+        final ByteOrder endianess = message.getEndianess();
+        rawData = (byte[]) message.getData();
+
         byte[] data = rawData;
-        if ( compressed ) {
+        int dataSize = message.getDataSize();
+        if ( message.isCompressed() ) {
             data = uncompress(rawData, endianess);
             dataSize = data.length;
         }
@@ -111,7 +133,60 @@ public abstract class QReader {
         reader.setOrder(endianess);
 
         try {
-            return new QMessage(readObject(), messageType, endianess, compressed, raw, messageSize, dataSize);
+            return new QMessage(readObject(), message.getMessageType(), endianess, message.isCompressed(), false, message.getMessageSize(), dataSize);
+        } catch ( final QReaderException e ) {
+            protocolDebug(e);
+            throw e;
+        } catch ( final RuntimeException e ) {
+            protocolDebug(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Deserializes a message, including header (8 bytes), from a byte array, equivalent of q <code>-9!</code>
+     * operator. Uncompressed message is parsed in place, without copying.
+     * 
+     * @param message
+     *            buffer containing serialized message
+     * @param offset
+     *            offset of the message in the buffer
+     * @param length
+     *            number of bytes available in the buffer
+     * @return {@link QMessage} instance encapsulating a deserialized message
+     * 
+     * @throws IOException
+     * @throws QException
+     *             if the message is malformed or incomplete
+     */
+    public QMessage deserialize( final byte[] message, final int offset, final int length ) throws IOException, QException {
+        if ( length < 8 ) {
+            throw new QReaderException("Incomplete message header: " + length + " bytes");
+        }
+
+        final ByteOrder endianess = message[offset] == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        final QConnection.MessageType messageType = QConnection.MessageType.getMessageType(message[offset + 1]);
+        final boolean compressed = message[offset + 2] == 1;
+        final int messageSize = ByteBuffer.wrap(message, offset + 4, 4).order(endianess).getInt();
+        if ( messageSize < 8 || messageSize > length ) {
+            throw new QReaderException("Invalid message size: " + messageSize + ", available: " + length + " bytes");
+        }
+
+        byte[] data = message;
+        int dataOffset = offset + 8;
+        int dataSize = messageSize - 8;
+        if ( compressed ) {
+            data = uncompress(message, dataOffset, endianess);
+            dataOffset = 0;
+            dataSize = data.length;
+        }
+
+        rawData = data;
+        reader.wrap(data, dataOffset);
+        reader.setOrder(endianess);
+
+        try {
+            return new QMessage(readObject(), messageType, endianess, compressed, false, messageSize, dataSize);
         } catch ( final QReaderException e ) {
             protocolDebug(e);
             throw e;
@@ -121,6 +196,151 @@ public abstract class QReader {
         }
     }
 
+    /**
+     * Deserializes a message, including header (8 bytes), from a buffer starting at its current position, equivalent
+     * of q <code>-9!</code> operator. Position of the buffer is advanced by size of the message. Uncompressed message
+     * backed by an accessible array is parsed in place, otherwise it is copied into internal buffer reused between
+     * invocations.
+     * 
+     * @param buffer
+     *            buffer containing serialized message
+     * @return {@link QMessage} instance encapsulating a deserialized message
+     * 
+     * @throws IOException
+     * @throws QException
+     *             if the message is malformed or incomplete
+     */
+    public QMessage deserialize( final ByteBuffer buffer ) throws IOException, QException {
+        final QMessage message;
+        if ( buffer.hasArray() ) {
+            message = deserialize(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            if ( buffer.remaining() < 8 ) {
+                throw new QReaderException("Incomplete message header: " + buffer.remaining() + " bytes");
+            }
+            final int start = buffer.position();
+            final ByteOrder endianess = buffer.get(start) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            final int messageSize = buffer.duplicate().order(endianess).getInt(start + 4);
+            if ( messageSize < 8 || messageSize > buffer.remaining() ) {
+                throw new QReaderException("Invalid message size: " + messageSize + ", available: " + buffer.remaining() + " bytes");
+            }
+            if ( scratch.length < messageSize ) {
+                scratch = new byte[messageSize];
+            }
+            buffer.duplicate().get(scratch, 0, messageSize);
+            message = deserialize(scratch, 0, messageSize);
+        }
+        buffer.position(buffer.position() + message.getMessageSize());
+        return message;
+    }
+
+    /**
+     * Uncompresses payload of a message retrieved in a raw form. The result can be inspected via
+     * {@link #peek(QMessage, int)} and then deserialized via {@link #parse(QMessage)} without uncompressing the payload
+     * again.
+     * 
+     * @param message
+     *            {@link QMessage} instance encapsulating raw message
+     * @return raw {@link QMessage} with uncompressed payload, not marked as compressed; the message itself if it is not
+     *         compressed or has already been parsed
+     * 
+     * @throws QException
+     *             if the payload cannot be uncompressed
+     */
+    public QMessage uncompress( final QMessage message ) throws QException {
+        if ( !message.isRaw() || !message.isCompressed() ) {
+            return message;
+        }
+
+        final byte[] data = uncompress((byte[]) message.getData(), message.getEndianess());
+        return new QMessage(data, message.getMessageType(), message.getEndianess(), false, true, message.getMessageSize(), data.length);
+    }
+
+    /**
+     * Parses leading symbols and strings of a general list from a message retrieved in a raw form, without
+     * deserializing the rest of the message. Allows to discard messages before full deserialization, e.g. updates of
+     * tables which are not of interest. Compressed payload is uncompressed by each call, use
+     * {@link #uncompress(QMessage)} first if the message is going to be deserialized afterwards.
+     * 
+     * @param message
+     *            {@link QMessage} instance encapsulating raw message
+     * @param count
+     *            maximal number of leading items to be parsed
+     * @return leading items preceding the first item which is neither symbol nor string, e.g.
+     *         <code>{ "upd", "trade" }</code>; empty array if the message is not a general list
+     * 
+     * @throws IOException
+     * @throws QException
+     */
+    public String[] peek( final QMessage message, final int count ) throws IOException, QException {
+        if ( !message.isRaw() ) {
+            return peekParsed(message.getData(), count);
+        }
+
+        final byte[] data = message.isCompressed() ? uncompress((byte[]) message.getData(), message.getEndianess()) : (byte[]) message.getData();
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(message.getEndianess());
+        if ( data.length < 6 || buffer.get() != QType.GENERAL_LIST.getTypeCode() ) {
+            return new String[0];
+        }
+        buffer.get(); // ignore attributes
+
+        try {
+            return peekItems(data, buffer, count);
+        } catch ( final RuntimeException e ) {
+            throw new QReaderException("Malformed message: " + e);
+        }
+    }
+
+    private String[] peekItems( final byte[] data, final ByteBuffer buffer, final int count ) throws UnsupportedEncodingException {
+        final String[] items = new String[Math.max(0, Math.min(count, buffer.getInt()))];
+        for ( int i = 0; i < items.length; i++ ) {
+            final byte type = buffer.get();
+            final int start;
+            final int length;
+            if ( type == QType.SYMBOL.getTypeCode() ) {
+                start = buffer.position();
+                while ( buffer.get() != 0 ) {
+                    // empty
+                }
+                length = buffer.position() - 1 - start;
+            } else if ( type == QType.STRING.getTypeCode() ) {
+                buffer.get(); // ignore attributes
+                length = buffer.getInt();
+                start = buffer.position();
+                buffer.position(start + length);
+            } else {
+                return copyOf(items, i);
+            }
+            items[i] = new String(data, start, length, encoding);
+        }
+        return items;
+    }
+
+    private static String[] peekParsed( final Object data, final int count ) {
+        if ( !(data instanceof Object[]) ) {
+            return new String[0];
+        }
+
+        final Object[] list = (Object[]) data;
+        final String[] items = new String[Math.max(0, Math.min(count, list.length))];
+        for ( int i = 0; i < items.length; i++ ) {
+            if ( list[i] instanceof String ) {
+                items[i] = (String) list[i];
+            } else if ( list[i] instanceof char[] ) {
+                items[i] = new String((char[]) list[i]);
+            } else {
+                return copyOf(items, i);
+            }
+        }
+        return items;
+    }
+
+    private static String[] copyOf( final String[] items, final int length ) {
+        final String[] copy = new String[length];
+        System.arraycopy(items, 0, copy, 0, length);
+        return copy;
+    }
+
     /**
      * Conditionally dumps IPC stream to file in case of exception while parsing.
      * 
@@ -164,9 +384,26 @@ public abstract class QReader {
      *             in case of uncompression error
      */
     protected byte[] uncompress( final byte[] compressedData, final ByteOrder endianess ) throws QException {
+        return uncompress(compressedData, 0, endianess);
+    }
+
+    /**
+     * Uncompresses the IPC stream.
+     * 
+     * @param compressedData
+     *            buffer containing compressed data
+     * @param offset
+     *            offset of compressed data in the buffer
+     * @param endianess
+     *            endianess of the stream
+     * @return uncompressed stream
+     * @throws QException
+     *             in case of uncompression error
+     */
+    protected byte[] uncompress( final byte[] compressedData, final int offset, final ByteOrder endianess ) throws QException {
         // size of the uncompressed message is encoded on first 4 bytes
         // size has to be decreased by header length (8 bytes)
-        final ByteBuffer byteBuffer = ByteBuffer.wrap(compressedData, 0, 4);
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(compressedData, offset, 4);
         byteBuffer.order(endianess);
         final int uncompressedSize = -8 + byteBuffer.getInt();
 
@@ -177,7 +414,7 @@ public abstract class QReader {
         final byte[] uncompressed = new byte[uncompressedSize];
         final int[] buffer = new int[256];
         short i = 0;
-        int n = 0, r = 0, f = 0, s = 0, p = 0, d = 4;
+        int n = 0, r = 0, f = 0, s = 0, p = 0, d = offset + 4;
 
         while ( s < uncompressedSize ) {
             if ( i == 0 ) {
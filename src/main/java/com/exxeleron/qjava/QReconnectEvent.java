@@ -0,0 +1,119 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+/**
+ * Marks a gap in the stream of messages caused by a lost connection which has been reestablished.
+ * <p>
+ * Messages published by the remote q service between {@link #getDisconnectTime()} and {@link #getReconnectTime()}
+ * have not been received and may need to be replayed.
+ * </p>
+ */
+public final class QReconnectEvent {
+
+    private final Throwable cause;
+    private final long disconnectTime;
+    private final long reconnectTime;
+    private final int attempts;
+    private final long reconnectLatency;
+    private final Object[] subscriptionResults;
+
+    /**
+     * Creates new {@link QReconnectEvent} object.
+     *
+     * @param cause
+     *            the error which caused the connection loss
+     * @param disconnectTime
+     *            time when the connection loss has been detected, in milliseconds since the epoch
+     * @param reconnectTime
+     *            time when the subscriptions have been reestablished, in milliseconds since the epoch
+     * @param attempts
+     *            number of reconnection attempts
+     * @param reconnectLatency
+     *            time in nanoseconds between detection of the connection loss and reestablishing subscriptions
+     * @param subscriptionResults
+     *            responses to the subscription calls
+     */
+    public QReconnectEvent(final Throwable cause, final long disconnectTime, final long reconnectTime, final int attempts, final long reconnectLatency,
+            final Object[] subscriptionResults) {
+        this.cause = cause;
+        this.disconnectTime = disconnectTime;
+        this.reconnectTime = reconnectTime;
+        this.attempts = attempts;
+        this.reconnectLatency = reconnectLatency;
+        this.subscriptionResults = subscriptionResults;
+    }
+
+    /**
+     * Retrieves the error which caused the connection loss.
+     *
+     * @return the error
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * Retrieves time when the connection loss has been detected.
+     *
+     * @return time in milliseconds since the epoch
+     */
+    public long getDisconnectTime() {
+        return disconnectTime;
+    }
+
+    /**
+     * Retrieves time when the subscriptions have been reestablished.
+     *
+     * @return time in milliseconds since the epoch
+     */
+    public long getReconnectTime() {
+        return reconnectTime;
+    }
+
+    /**
+     * Retrieves number of reconnection attempts.
+     *
+     * @return number of attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Retrieves time between detection of the connection loss and reestablishing subscriptions.
+     *
+     * @return time in nanoseconds
+     */
+    public long getReconnectLatency() {
+        return reconnectLatency;
+    }
+
+    /**
+     * Retrieves responses to the subscription calls, in the order of registration.
+     *
+     * @return responses to the subscription calls
+     */
+    public Object[] getSubscriptionResults() {
+        return subscriptionResults;
+    }
+
+    @Override
+    public String toString() {
+        return "QReconnectEvent: gap " + disconnectTime + "-" + reconnectTime + " after " + attempts + " attempt(s)";
+    }
+
+}
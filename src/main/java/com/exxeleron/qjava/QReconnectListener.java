@@ -0,0 +1,33 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.EventListener;
+
+/**
+ * Listener class for reconnection of {@link QCallbackConnection}.
+ */
+public interface QReconnectListener extends EventListener {
+
+    /**
+     * Invoked by the listener thread when the connection has been reestablished and subscriptions have been renewed,
+     * before any further message is delivered.
+     *
+     * @param event
+     *            a {@link QReconnectEvent} describing the gap in received messages
+     */
+    public void reconnected( QReconnectEvent event );
+}
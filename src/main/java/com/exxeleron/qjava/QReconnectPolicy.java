@@ -0,0 +1,141 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.Random;
+
+/**
+ * Defines how {@link QCallbackConnection} reconnects after the connection with the remote q service has been lost.
+ * <p>
+ * Delay before each reconnection attempt grows exponentially from the initial delay up to the maximal delay. The delay
+ * is randomly shortened by up to the jitter fraction, so that many clients don't reconnect at the same time.
+ * </p>
+ */
+public class QReconnectPolicy {
+
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    /**
+     * Creates new {@link QReconnectPolicy} object.
+     *
+     * @param initialDelay
+     *            delay in milliseconds before the first reconnection attempt
+     * @param maxDelay
+     *            maximal delay in milliseconds between reconnection attempts
+     * @param multiplier
+     *            factor by which delay grows with every attempt
+     * @param jitter
+     *            maximal fraction of the delay which is randomly cut off, from [0, 1] range
+     * @param maxAttempts
+     *            maximal number of reconnection attempts, <code>0</code> for unlimited
+     */
+    public QReconnectPolicy(final long initialDelay, final long maxDelay, final double multiplier, final double jitter, final int maxAttempts) {
+        if ( initialDelay < 0 || maxDelay < initialDelay ) {
+            throw new IllegalArgumentException("Invalid reconnection delay range");
+        }
+        if ( multiplier < 1 ) {
+            throw new IllegalArgumentException("Multiplier cannot be smaller than 1");
+        }
+        if ( jitter < 0 || jitter > 1 ) {
+            throw new IllegalArgumentException("Jitter has to be in [0, 1] range");
+        }
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Creates new {@link QReconnectPolicy} object which retries infinitely, doubling the delay with every attempt.
+     *
+     * @param initialDelay
+     *            delay in milliseconds before the first reconnection attempt
+     * @param maxDelay
+     *            maximal delay in milliseconds between reconnection attempts
+     */
+    public QReconnectPolicy(final long initialDelay, final long maxDelay) {
+        this(initialDelay, maxDelay, DEFAULT_MULTIPLIER, DEFAULT_JITTER, 0);
+    }
+
+    /**
+     * Calculates delay before given reconnection attempt.
+     *
+     * @param attempt
+     *            1 based number of the attempt
+     * @param random
+     *            source of jitter
+     * @return delay in milliseconds
+     */
+    public long getDelay( final int attempt, final Random random ) {
+        final double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt - 1));
+        return (long) (delay - delay * jitter * random.nextDouble());
+    }
+
+    /**
+     * Retrieves delay before the first reconnection attempt.
+     *
+     * @return delay in milliseconds
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * Retrieves maximal delay between reconnection attempts.
+     *
+     * @return delay in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Retrieves factor by which delay grows with every attempt.
+     *
+     * @return the multiplier
+     */
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Retrieves maximal fraction of the delay which is randomly cut off.
+     *
+     * @return the jitter
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Retrieves maximal number of reconnection attempts.
+     *
+     * @return maximal number of attempts, <code>0</code> for unlimited
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+}
@@ -0,0 +1,202 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Represents a pending response to a synchronous query.
+ * <p>
+ * Cancelling the future doesn't withdraw the query from the remote q service. The response is still read from the
+ * connection, but it is discarded without being deserialized.
+ * </p>
+ */
+public class QResponseFuture extends FutureTask<Object> {
+
+    private static final Callable<Object> NONE = new Callable<Object>() {
+
+        public Object call() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    /**
+     * Listener notified when a response has been received.
+     */
+    public static interface Listener {
+
+        /**
+         * Invoked when a response for the query has been received or the query has failed. The listener is notified
+         * even if the future has been cancelled.
+         *
+         * @param future
+         *            the completed {@link QResponseFuture}
+         */
+        public void responseReceived( QResponseFuture future );
+    }
+
+    private final List<Listener> listeners = new ArrayList<Listener>(1);
+    private boolean received;
+    private volatile Throwable failure;
+
+    /**
+     * Creates new {@link QResponseFuture} object.
+     */
+    public QResponseFuture() {
+        super(NONE);
+    }
+
+    /**
+     * Does nothing, {@link QResponseFuture} is completed by the connection.
+     *
+     * @see java.util.concurrent.FutureTask#run()
+     */
+    @Override
+    public void run() {
+        // completed by the connection
+    }
+
+    /**
+     * Completes the future with the query result.
+     *
+     * @param result
+     *            query result
+     */
+    void complete( final Object result ) {
+        set(result);
+        fireResponseReceived();
+    }
+
+    /**
+     * Completes the future with an error.
+     *
+     * @param cause
+     *            the error
+     */
+    void fail( final Throwable cause ) {
+        failure = cause;
+        setException(cause);
+        fireResponseReceived();
+    }
+
+    /**
+     * Retrieves the error the query has failed with.
+     *
+     * @return the error or <code>null</code> if the query hasn't failed
+     */
+    Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Registers listener to be notified when a response has been received. If the response has already been received,
+     * the listener is invoked immediately by the calling thread.
+     *
+     * @param listener
+     *            a {@link Listener} to be registered
+     */
+    public void addListener( final Listener listener ) {
+        synchronized ( listeners ) {
+            if ( !received ) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.responseReceived(this);
+    }
+
+    private void fireResponseReceived() {
+        final Listener[] copy;
+        synchronized ( listeners ) {
+            received = true;
+            copy = listeners.toArray(new Listener[listeners.size()]);
+            listeners.clear();
+        }
+
+        for ( final Listener listener : copy ) {
+            listener.responseReceived(this);
+        }
+    }
+
+    /**
+     * Waits for the response and retrieves the query result.
+     *
+     * @return deserialized response from the remote q service
+     * @throws QException
+     *             if the remote q service returned an error
+     * @throws IOException
+     *             if the response cannot be retrieved
+     */
+    public Object getResult() throws QException, IOException {
+        try {
+            return get();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        } catch ( final ExecutionException e ) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Waits for the response for at most the given time and retrieves the query result.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the time unit of the timeout argument
+     * @return deserialized response from the remote q service
+     * @throws QException
+     *             if the remote q service returned an error
+     * @throws IOException
+     *             if the response cannot be retrieved
+     * @throws TimeoutException
+     *             if the wait timed out
+     */
+    public Object getResult( final long timeout, final TimeUnit unit ) throws QException, IOException, TimeoutException {
+        try {
+            return get(timeout, unit);
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        } catch ( final ExecutionException e ) {
+            throw unwrap(e);
+        }
+    }
+
+    private static QException unwrap( final ExecutionException e ) throws IOException {
+        final Throwable cause = e.getCause();
+        if ( cause instanceof QException ) {
+            return (QException) cause;
+        } else if ( cause instanceof IOException ) {
+            throw (IOException) cause;
+        } else if ( cause instanceof RuntimeException ) {
+            throw (RuntimeException) cause;
+        } else if ( cause instanceof Error ) {
+            throw (Error) cause;
+        }
+        return new QException("Query failed", cause);
+    }
+
+}
@@ -0,0 +1,380 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples the listener thread of {@link QCallbackConnection} from application listeners via pre-allocated ring
+ * buffer.
+ * <p>
+ * The {@link QRingBufferDispatcher} is registered as the only {@link QMessagesListener} of the connection. Messages
+ * are published into the ring buffer by the listener thread and each {@link QMessagesListener} registered with the
+ * dispatcher consumes them on its own thread, tracking its own sequence. A slow listener doesn't delay other listeners
+ * and doesn't block reading from the socket until it falls behind by the whole capacity of the ring buffer.
+ * </p>
+ *
+ * <pre>
+ * QRingBufferDispatcher dispatcher = new QRingBufferDispatcher(65536, QRingBufferDispatcher.WaitStrategy.YIELD);
+ * dispatcher.addMessagesListener(listener);
+ * q.addMessagesListener(dispatcher);
+ * q.startListener();
+ * </pre>
+ * <p>
+ * Messages are published by a single thread. Each listener receives messages in the order of publication. Slots are
+ * released once all listeners registered at the time of publication have consumed them, so that the ring buffer doesn't
+ * retain processed messages.
+ * </p>
+ */
+public class QRingBufferDispatcher implements QMessagesListener {
+
+    /**
+     * Defines how threads wait for the ring buffer: consumers for new messages and the publisher for free space.
+     */
+    public enum WaitStrategy {
+        /**
+         * Spins in a tight loop. Lowest latency, occupies a CPU core per waiting thread.
+         */
+        BUSY_SPIN {
+
+            @Override
+            void idle( final int counter ) {
+                // spin
+            }
+        },
+        /**
+         * Yields the CPU to other threads between checks.
+         */
+        YIELD {
+
+            @Override
+            void idle( final int counter ) {
+                Thread.yield();
+            }
+        },
+        /**
+         * Spins and yields for a short while, then parks the waiting thread between checks. Lowest CPU usage, highest
+         * wake-up latency.
+         */
+        PARK {
+
+            @Override
+            void idle( final int counter ) {
+                if ( counter < SPIN_TRIES ) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        };
+
+        private static final int SPIN_TRIES = 100;
+        private static final long PARK_NANOS = 50000L;
+
+        abstract void idle( int counter );
+    }
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    // bounds the wait for a consumer thread, which might be blocked by its listener
+    private static final long HALT_TIMEOUT = 1000;
+
+    private final Slot[] ring;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+    // consumers receiving subsequently published messages, guarded by this
+    private volatile Consumer[] receivers = new Consumer[0];
+
+    private volatile long cursor = -1;
+    private volatile boolean closed;
+
+    /**
+     * Creates new {@link QRingBufferDispatcher} object.
+     *
+     * @param capacity
+     *            number of slots in the ring buffer, has to be a power of 2
+     * @param waitStrategy
+     *            strategy of waiting for the ring buffer
+     */
+    public QRingBufferDispatcher(final int capacity, final WaitStrategy waitStrategy) {
+        if ( capacity < 1 || Integer.bitCount(capacity) != 1 ) {
+            throw new IllegalArgumentException("Capacity has to be a power of 2");
+        }
+        if ( waitStrategy == null ) {
+            throw new IllegalArgumentException("Wait strategy cannot be null");
+        }
+
+        this.ring = new Slot[capacity];
+        for ( int i = 0; i < capacity; i++ ) {
+            ring[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Creates new {@link QRingBufferDispatcher} object with default capacity and {@link WaitStrategy#PARK} wait
+     * strategy.
+     */
+    public QRingBufferDispatcher() {
+        this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+
+    /**
+     * Registers listener and starts its consumer thread. The listener receives messages published after the
+     * registration.
+     *
+     * @param listener
+     *            a {@link QMessagesListener} to be registered
+     */
+    public synchronized void addMessagesListener( final QMessagesListener listener ) {
+        if ( closed ) {
+            throw new IllegalStateException("Dispatcher is closed");
+        }
+        for ( final Consumer consumer : consumers ) {
+            if ( consumer.listener == listener ) {
+                return;
+            }
+        }
+
+        final Consumer consumer = new Consumer(listener, cursor);
+        consumers.add(consumer);
+        receivers = consumers.toArray(new Consumer[consumers.size()]);
+        consumer.thread.start();
+    }
+
+    /**
+     * Unregisters listener and stops its consumer thread once it has processed already published messages. Waits for
+     * the consumer thread at most one second.
+     *
+     * @param listener
+     *            a {@link QMessagesListener} to be unregistered
+     */
+    public synchronized void removeMessagesListener( final QMessagesListener listener ) {
+        for ( final Consumer consumer : consumers ) {
+            if ( consumer.listener == listener ) {
+                receivers = without(consumer);
+                consumer.halt();
+                consumers.remove(consumer);
+                return;
+            }
+        }
+    }
+
+    private Consumer[] without( final Consumer removed ) {
+        final List<Consumer> remaining = new ArrayList<Consumer>(consumers);
+        remaining.remove(removed);
+        return remaining.toArray(new Consumer[remaining.size()]);
+    }
+
+    /**
+     * Stops all consumer threads once they have processed already published messages. Messages published afterwards
+     * are discarded. Waits for each consumer thread at most one second.
+     */
+    public synchronized void close() {
+        closed = true;
+        receivers = new Consumer[0];
+        for ( final Consumer consumer : consumers ) {
+            consumer.halt();
+        }
+        consumers.clear();
+    }
+
+    /**
+     * Publishes received message into the ring buffer. Waits if the slowest listener is behind by the whole capacity.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#messageReceived(com.exxeleron.qjava.QMessage)
+     */
+    public void messageReceived( final QMessage message ) {
+        publish(message, null);
+    }
+
+    /**
+     * Publishes error into the ring buffer. Waits if the slowest listener is behind by the whole capacity.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#errorReceived(com.exxeleron.qjava.QErrorMessage)
+     */
+    public void errorReceived( final QErrorMessage message ) {
+        publish(null, message);
+    }
+
+    private void publish( final QMessage message, final QErrorMessage error ) {
+        if ( closed ) {
+            return;
+        }
+
+        final long next = cursor + 1;
+        final long wrapPoint = next - ring.length;
+        int counter = 0;
+        while ( wrapPoint > getMinimumSequence(next) ) {
+            if ( closed ) {
+                return;
+            }
+            waitStrategy.idle(counter++);
+        }
+
+        final Slot slot = ring[(int) next & mask];
+        final Consumer[] current = receivers;
+        final boolean received = current.length > 0;
+        slot.message = received ? message : null;
+        slot.error = received ? error : null;
+        slot.receivers = received ? current : null;
+        slot.remaining.set(current.length);
+        cursor = next;
+    }
+
+    private long getMinimumSequence( final long defaultValue ) {
+        long minimum = defaultValue;
+        for ( final Consumer consumer : consumers ) {
+            minimum = Math.min(minimum, consumer.sequence);
+        }
+        return minimum;
+    }
+
+    /**
+     * Retrieves capacity of the ring buffer.
+     *
+     * @return number of slots
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Retrieves number of messages published, but not yet processed by the slowest listener.
+     *
+     * @return number of pending messages
+     */
+    public long getBacklog() {
+        final long published = cursor;
+        return published - getMinimumSequence(published);
+    }
+
+    /**
+     * Retrieves strategy of waiting for the ring buffer.
+     *
+     * @return the {@link WaitStrategy}
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    private static final class Slot {
+
+        QMessage message;
+        QErrorMessage error;
+        Consumer[] receivers;
+        final AtomicInteger remaining = new AtomicInteger();
+
+        boolean isReceivedBy( final Consumer consumer ) {
+            final Consumer[] current = receivers;
+            if ( current != null ) {
+                for ( final Consumer receiver : current ) {
+                    if ( receiver == consumer ) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void consumed() {
+            // released by the last receiver, before the publisher can reuse the slot
+            if ( remaining.decrementAndGet() == 0 ) {
+                message = null;
+                error = null;
+                receivers = null;
+            }
+        }
+    }
+
+    private final class Consumer implements Runnable {
+
+        final QMessagesListener listener;
+        final Thread thread;
+        volatile long sequence;
+        volatile boolean running = true;
+
+        Consumer(final QMessagesListener listener, final long sequence) {
+            this.listener = listener;
+            this.sequence = sequence;
+            this.thread = new Thread(this, "qJava-dispatcher-" + listener);
+            this.thread.setDaemon(true);
+        }
+
+        public void run() {
+            int counter = 0;
+            while ( true ) {
+                // read flag before cursor, so that messages published before halt are not missed
+                final boolean halted = !running;
+                final long available = cursor;
+                if ( available > sequence ) {
+                    for ( long s = sequence + 1; s <= available; s++ ) {
+                        final Slot slot = ring[(int) s & mask];
+                        // skips messages published before the consumer has been registered
+                        if ( slot.isReceivedBy(this) ) {
+                            dispatch(slot);
+                            slot.consumed();
+                        }
+                    }
+                    sequence = available;
+                    counter = 0;
+                } else if ( halted ) {
+                    break;
+                } else {
+                    waitStrategy.idle(counter++);
+                }
+            }
+            sequence = Long.MAX_VALUE;
+        }
+
+        private void dispatch( final Slot slot ) {
+            try {
+                if ( slot.error != null ) {
+                    listener.errorReceived(slot.error);
+                } else {
+                    listener.messageReceived(slot.message);
+                }
+            } catch ( final RuntimeException e ) {
+                // failure of a single listener shall not stall the ring buffer
+                if ( slot.error == null ) {
+                    try {
+                        listener.errorReceived(new QErrorMessage(e));
+                    } catch ( final RuntimeException ignored ) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        void halt() {
+            running = false;
+            if ( Thread.currentThread() != thread ) {
+                try {
+                    thread.join(HALT_TIMEOUT);
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes and deserializes objects to q IPC format in memory, without a connection, equivalent of q
+ * <code>-8!</code> and <code>-9!</code> operators.
+ * <p>
+ * Serialized messages include the 8 bytes IPC header, so they can be stored, sent via other transports or passed to
+ * <code>-9!</code> in q:
+ * </p>
+ *
+ * <pre>
+ * QSerializer serializer = new QSerializer();
+ * byte[] bytes = serializer.serialize(table, true); // compressed if large enough
+ * QTable copy = (QTable) serializer.deserialize(bytes);
+ * </pre>
+ * <p>
+ * Internal buffers are reused between invocations. Methods of {@link QSerializer} are not thread safe.
+ * </p>
+ */
+public class QSerializer {
+
+    private final QWriter writer;
+    private final QReader reader;
+
+    /**
+     * Creates new {@link QSerializer} object.
+     *
+     * @param writer
+     *            the {@link QWriter} used for serialization
+     * @param reader
+     *            the {@link QReader} used for deserialization
+     * @param encoding
+     *            encoding used for serialization/deserialization of string objects
+     */
+    public QSerializer(final QWriter writer, final QReader reader, final String encoding) {
+        this.writer = writer;
+        this.reader = reader;
+        this.writer.setEncoding(encoding);
+        this.reader.setEncoding(encoding);
+    }
+
+    /**
+     * Creates new {@link QSerializer} object.
+     *
+     * @param encoding
+     *            encoding used for serialization/deserialization of string objects
+     */
+    public QSerializer(final String encoding) {
+        this(new DefaultQWriter(), new DefaultQReader(), encoding);
+    }
+
+    /**
+     * Creates new {@link QSerializer} object with ISO-8859-1 encoding.
+     */
+    public QSerializer() {
+        this(QBasicConnection.DEFAULT_ENCODING);
+    }
+
+    /**
+     * Sets the kdb+ protocol version of serialized messages. Default: 3.
+     *
+     * @param protocolVersion
+     *            kdb+ protocol version
+     */
+    public void setProtocolVersion( final int protocolVersion ) {
+        writer.setProtocolVersion(protocolVersion);
+    }
+
+    /**
+     * Serializes object into a new array.
+     *
+     * @param obj
+     *            object to be serialized
+     * @return serialized message, including header
+     * @throws IOException
+     * @throws QException
+     *             if the object cannot be serialized
+     */
+    public byte[] serialize( final Object obj ) throws IOException, QException {
+        return serialize(obj, false);
+    }
+
+    /**
+     * Serializes object into a new array.
+     *
+     * @param obj
+     *            object to be serialized
+     * @param compress
+     *            indicates whether message larger than {@link QWriter#COMPRESSION_THRESHOLD} should be compressed
+     * @return serialized message, including header
+     * @throws IOException
+     * @throws QException
+     *             if the object cannot be serialized
+     */
+    public byte[] serialize( final Object obj, final boolean compress ) throws IOException, QException {
+        return writer.serialize(obj, QConnection.MessageType.ASYNC, compress);
+    }
+
+    /**
+     * Serializes object into the target buffer, starting at its current position.
+     *
+     * @param obj
+     *            object to be serialized
+     * @param compress
+     *            indicates whether message larger than {@link QWriter#COMPRESSION_THRESHOLD} should be compressed
+     * @param target
+     *            buffer receiving serialized message, position of the buffer is advanced by size of the message
+     * @return size of the serialized message, including header
+     * @throws IOException
+     * @throws QException
+     *             if the object cannot be serialized or doesn't fit into the target buffer
+     */
+    public int serialize( final Object obj, final boolean compress, final ByteBuffer target ) throws IOException, QException {
+        return writer.serialize(obj, QConnection.MessageType.ASYNC, compress, target);
+    }
+
+    /**
+     * Deserializes message, compressed or not.
+     *
+     * @param message
+     *            serialized message, including header
+     * @return deserialized object
+     * @throws IOException
+     * @throws QException
+     *             if the message is malformed or represents q error
+     */
+    public Object deserialize( final byte[] message ) throws IOException, QException {
+        return deserialize(message, 0, message.length);
+    }
+
+    /**
+     * Deserializes message, compressed or not.
+     *
+     * @param message
+     *            buffer containing serialized message, including header
+     * @param offset
+     *            offset of the message in the buffer
+     * @param length
+     *            number of bytes available in the buffer
+     * @return deserialized object
+     * @throws IOException
+     * @throws QException
+     *             if the message is malformed or represents q error
+     */
+    public Object deserialize( final byte[] message, final int offset, final int length ) throws IOException, QException {
+        return reader.deserialize(message, offset, length).getData();
+    }
+
+    /**
+     * Deserializes message starting at current position of the buffer. Position of the buffer is advanced by size of
+     * the message.
+     *
+     * @param buffer
+     *            buffer containing serialized message, including header
+     * @return deserialized object
+     * @throws IOException
+     * @throws QException
+     *             if the message is malformed or represents q error
+     */
+    public Object deserialize( final ByteBuffer buffer ) throws IOException, QException {
+        return reader.deserialize(buffer).getData();
+    }
+
+}
@@ -0,0 +1,431 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections from kdb+ processes and other q IPC clients, and routes received messages to a {@link Handler}.
+ * <p>
+ * The server performs the capability and authentication handshake, deserializes messages via {@link QReader} and
+ * replies to synchronous queries via {@link QWriter}. Errors thrown by the handler are returned to the client as q
+ * errors:
+ * </p>
+ *
+ * <pre>
+ * QServer server = new QServer(5010, new QServer.Handler() {
+ *     public Object syncReceived( QServer.Session session, Object query ) throws QException {
+ *         // e.g. h(&quot;getPrice&quot;; `IBM) in q is received as Object[] { char[] { 'g', ... }, &quot;IBM&quot; }
+ *         return 42.0;
+ *     }
+ *
+ *     public void asyncReceived( QServer.Session session, Object message ) {
+ *     }
+ * });
+ * server.start();
+ * </pre>
+ * <p>
+ * Each session is served by a separate thread, messages of a session are handled in order of arrival. The handler
+ * has to be thread safe if multiple clients are connected.
+ * </p>
+ */
+public class QServer {
+
+    /**
+     * Handles messages received by {@link QServer}.
+     */
+    public interface Handler {
+
+        /**
+         * Invoked when synchronous query is received. The returned object is sent back to the client.
+         *
+         * @param session
+         *            the {@link Session} which received the query
+         * @param query
+         *            the query, i.e. <code>char[]</code> for string query or <code>Object[]</code> for function call
+         * @return result of the query
+         * @throws QException
+         *             to return q error to the client
+         */
+        Object syncReceived( Session session, Object query ) throws QException;
+
+        /**
+         * Invoked when asynchronous message is received.
+         *
+         * @param session
+         *            the {@link Session} which received the message
+         * @param message
+         *            the message
+         * @throws QException
+         *             the error is not returned to the client
+         */
+        void asyncReceived( Session session, Object message ) throws QException;
+    }
+
+    /**
+     * Authenticates clients of {@link QServer}.
+     */
+    public interface Authenticator {
+
+        /**
+         * Verifies credentials of the connecting client.
+         *
+         * @param username
+         *            user name, might be empty
+         * @param password
+         *            password or <code>null</code> if not provided
+         * @return <code>true</code> if the client is permitted to connect
+         */
+        boolean authenticate( String username, String password );
+    }
+
+    private static final int MAX_CREDENTIALS_LENGTH = 1024;
+
+    private final int port;
+    private final Handler handler;
+    private final Set<Session> sessions = new CopyOnWriteArraySet<Session>();
+    private final AtomicInteger sessionCounter = new AtomicInteger();
+
+    private volatile Authenticator authenticator;
+    private volatile String encoding = QBasicConnection.DEFAULT_ENCODING;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    /**
+     * Creates new {@link QServer} object.
+     *
+     * @param port
+     *            port to listen on, <code>0</code> for any free port
+     * @param handler
+     *            the {@link Handler} receiving messages
+     */
+    public QServer(final int port, final Handler handler) {
+        if ( handler == null ) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+        this.port = port;
+        this.handler = handler;
+    }
+
+    /**
+     * Binds the server socket and starts accepting connections.
+     *
+     * @throws IOException
+     *             if the server socket cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if ( serverSocket != null ) {
+            throw new IllegalStateException("Server is already started");
+        }
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        final int localPort = serverSocket.getLocalPort();
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread(r, "qJava-server-" + localPort + "-" + sessionCounter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final ServerSocket socket = serverSocket;
+        final Thread acceptor = new Thread(new Runnable() {
+
+            public void run() {
+                while ( !socket.isClosed() ) {
+                    try {
+                        final Socket client = socket.accept();
+                        client.setTcpNoDelay(true);
+                        executor.execute(new Session(client));
+                    } catch ( final IOException e ) {
+                        // server socket closed
+                    } catch ( final RuntimeException e ) {
+                        // executor shut down
+                    }
+                }
+            }
+        }, "qJava-server-" + localPort + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting connections and closes all sessions.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if ( serverSocket != null ) {
+            serverSocket.close();
+            executor.shutdown();
+            for ( final Session session : sessions ) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Retrieves port the server is listening on.
+     *
+     * @return local port of the server socket, or the configured port if the server is not started
+     */
+    public synchronized int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    /**
+     * Retrieves currently connected sessions.
+     *
+     * @return set of sessions
+     */
+    public Set<Session> getSessions() {
+        return Collections.unmodifiableSet(sessions);
+    }
+
+    /**
+     * Sets authenticator of connecting clients. By default all clients are permitted.
+     *
+     * @param authenticator
+     *            the {@link Authenticator} or <code>null</code> to permit all clients
+     */
+    public void setAuthenticator( final Authenticator authenticator ) {
+        this.authenticator = authenticator;
+    }
+
+    /**
+     * Sets encoding used for serialization/deserialization of string objects. Default: ISO-8859-1.
+     *
+     * @param encoding
+     *            charset name
+     */
+    public void setEncoding( final String encoding ) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Connection of a client to {@link QServer}.
+     */
+    public final class Session implements Runnable {
+
+        private final Socket socket;
+        private final QReader reader = new DefaultQReader();
+        private final QWriter writer = new DefaultQWriter();
+        private OutputStream outputStream;
+        private String username = "";
+        private int protocolVersion;
+
+        Session(final Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Performs the handshake and processes messages until the connection is closed.
+         *
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                outputStream = new BufferedOutputStream(socket.getOutputStream());
+                if ( !initialize(inputStream) ) {
+                    return;
+                }
+
+                reader.setStream(inputStream);
+                reader.setEncoding(encoding);
+                writer.setStream(outputStream);
+                writer.setEncoding(encoding);
+                writer.setProtocolVersion(protocolVersion);
+                synchronized ( this ) {
+                    // listed before the handshake is answered, thus once the client is connected
+                    sessions.add(this);
+                    outputStream.write(protocolVersion);
+                    outputStream.flush();
+                }
+
+                while ( !socket.isClosed() ) {
+                    process(reader.read(true));
+                }
+            } catch ( final IOException e ) {
+                // connection closed
+            } catch ( final QException e ) {
+                // malformed message header
+            } finally {
+                sessions.remove(this);
+                close();
+            }
+        }
+
+        private boolean initialize( final DataInputStream inputStream ) throws IOException {
+            final ByteArrayOutputStream credentials = new ByteArrayOutputStream();
+            int b;
+            while ( (b = inputStream.read()) > 0 ) {
+                if ( credentials.size() == MAX_CREDENTIALS_LENGTH ) {
+                    return false;
+                }
+                credentials.write(b);
+            }
+            if ( b < 0 ) {
+                return false;
+            }
+
+            // credentials are optionally followed by the capability byte
+            final byte[] request = credentials.toByteArray();
+            int length = request.length;
+            int capability = 0;
+            if ( length > 0 && request[length - 1] < ' ' ) {
+                capability = request[--length];
+            }
+
+            final String[] userPassword = new String(request, 0, length, encoding).split(":", 2);
+            username = userPassword[0];
+            final Authenticator auth = authenticator;
+            if ( auth != null && !auth.authenticate(username, userPassword.length > 1 ? userPassword[1] : null) ) {
+                return false;
+            }
+
+            protocolVersion = Math.min(capability, 3);
+            return true;
+        }
+
+        private void process( final QMessage raw ) throws IOException, QException {
+            Object result;
+            try {
+                final Object data = reader.parse(raw).getData();
+                if ( raw.getMessageType() != QConnection.MessageType.SYNC ) {
+                    handler.asyncReceived(this, data);
+                    return;
+                }
+                result = handler.syncReceived(this, data);
+            } catch ( final QException e ) {
+                result = e;
+            } catch ( final RuntimeException e ) {
+                result = new QException(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+            }
+
+            if ( raw.getMessageType() == QConnection.MessageType.SYNC ) {
+                try {
+                    write(result, QConnection.MessageType.RESPONSE);
+                } catch ( final QException e ) {
+                    // result cannot be serialized
+                    write(e, QConnection.MessageType.RESPONSE);
+                }
+            }
+        }
+
+        private synchronized void write( final Object obj, final QConnection.MessageType msgType ) throws IOException, QException {
+            writer.write(obj, msgType);
+            outputStream.flush();
+        }
+
+        /**
+         * Sends asynchronous message to the client, e.g. an update of subscribed data.
+         *
+         * @param message
+         *            the message
+         * @throws IOException
+         * @throws QException
+         *             if the message cannot be serialized
+         */
+        public void async( final Object message ) throws IOException, QException {
+            write(message, QConnection.MessageType.ASYNC);
+        }
+
+        /**
+         * Writes already serialized message, including the 8 bytes header, to the client as is.
+         *
+         * @param message
+         *            buffer containing the message
+         * @param offset
+         *            offset of the message in the buffer
+         * @param length
+         *            length of the message
+         * @throws IOException
+         */
+        public synchronized void send( final byte[] message, final int offset, final int length ) throws IOException {
+            outputStream.write(message, offset, length);
+            outputStream.flush();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        public void close() {
+            try {
+                socket.close();
+            } catch ( final IOException e ) {
+                // ignore
+            }
+        }
+
+        /**
+         * Retrieves user name provided by the client.
+         *
+         * @return user name
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Retrieves address of the client.
+         *
+         * @return remote socket address
+         */
+        public SocketAddress getRemoteAddress() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        /**
+         * Retrieves protocol version negotiated with the client.
+         *
+         * @return kdb+ protocol version
+         */
+        public int getProtocolVersion() {
+            return protocolVersion;
+        }
+
+        /**
+         * Indicates whether the connection is open.
+         *
+         * @return <code>true</code> if the connection is open
+         */
+        public boolean isConnected() {
+            return !socket.isClosed();
+        }
+    }
+
+}
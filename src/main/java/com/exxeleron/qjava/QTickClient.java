@@ -0,0 +1,283 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscribes to tables published by a kdb+ tickerplant and routes updates to {@link QUpdateHandler}s by table name.
+ * <p>
+ * Subscriptions are established via <code>.u.sub</code> and registered with the {@link QCallbackConnection}, so that
+ * they are renewed after reconnection. Schemas of subscribed tables returned by <code>.u.sub</code> are cached and
+ * refreshed from the results of renewed subscriptions. Updates are routed by the table name, the second item of the
+ * published <code>(upd; table; data)</code> list, without checking the update function; data of subscribed tables are
+ * expected to be {@link QTable}s. The
+ * {@link QTickClient} is a {@link QMessagesListener}, so it can be registered with the connection directly or via
+ * {@link QRingBufferDispatcher}; handlers can be e.g. {@link QPartitionedDispatcher}, {@link QConflatingListener} or
+ * {@link QLastValueCache}.
+ * </p>
+ *
+ * <pre>
+ * QTickClient tick = new QTickClient(q);
+ * q.addMessagesListener(tick);
+ * q.open();
+ * tick.subscribe(&quot;trade&quot;, new String[] { &quot;IBM&quot;, &quot;MSFT&quot; }, tradeHandler);
+ * tick.subscribe(&quot;quote&quot;, quoteCache);
+ * q.startListener();
+ * </pre>
+ */
+public class QTickClient implements QMessagesListener, QReconnectListener {
+
+    public static final String DEFAULT_SUBSCRIBE_FUNCTION = ".u.sub";
+    public static final String DEFAULT_UNSUBSCRIBE_FUNCTION = "{.u.del[x;.z.w]}";
+
+    private final QCallbackConnection connection;
+    private final Map<String, QUpdateHandler> handlers = new ConcurrentHashMap<String, QUpdateHandler>();
+    private final Map<String, QTable> schemas = new ConcurrentHashMap<String, QTable>();
+    private final AtomicLong updateCount = new AtomicLong();
+    private volatile String subscribeFunction = DEFAULT_SUBSCRIBE_FUNCTION;
+    private volatile String unsubscribeFunction = DEFAULT_UNSUBSCRIBE_FUNCTION;
+    private volatile QMessagesListener fallbackListener;
+
+    /**
+     * Creates new {@link QTickClient} object and registers it as {@link QReconnectListener} of the connection.
+     *
+     * @param connection
+     *            connection to the tickerplant
+     */
+    public QTickClient(final QCallbackConnection connection) {
+        if ( connection == null ) {
+            throw new IllegalArgumentException("Connection cannot be null");
+        }
+        this.connection = connection;
+        connection.addReconnectListener(this);
+    }
+
+    /**
+     * Subscribes to all symbols of the table.
+     *
+     * @param table
+     *            name of the table
+     * @param handler
+     *            the {@link QUpdateHandler} receiving updates of the table
+     * @return schema of the table
+     * @throws QException
+     * @throws IOException
+     */
+    public QTable subscribe( final String table, final QUpdateHandler handler ) throws QException, IOException {
+        return subscribe(table, null, handler);
+    }
+
+    /**
+     * Subscribes to the given symbols of the table. If the subscription fails, the handler previously registered for
+     * the table, if any, is kept.
+     *
+     * @param table
+     *            name of the table
+     * @param symbols
+     *            symbols to subscribe to or <code>null</code> to subscribe to all symbols
+     * @param handler
+     *            the {@link QUpdateHandler} receiving updates of the table
+     * @return schema of the table
+     * @throws QException
+     * @throws IOException
+     */
+    public QTable subscribe( final String table, final String[] symbols, final QUpdateHandler handler ) throws QException, IOException {
+        if ( table == null || table.length() == 0 ) {
+            throw new IllegalArgumentException("Table name is required");
+        }
+        if ( handler == null ) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+
+        final QUpdateHandler previous = handlers.put(table, handler);
+        final Object response;
+        try {
+            response = connection.subscribe(subscribeFunction, table, symbols != null && symbols.length > 0 ? symbols : "");
+        } catch ( final QException e ) {
+            restoreHandler(table, previous);
+            throw e;
+        } catch ( final IOException e ) {
+            restoreHandler(table, previous);
+            throw e;
+        }
+
+        cacheSchemas(response);
+        return schemas.get(table);
+    }
+
+    private void restoreHandler( final String table, final QUpdateHandler previous ) {
+        if ( previous != null ) {
+            handlers.put(table, previous);
+        } else {
+            handlers.remove(table);
+        }
+    }
+
+    private void cacheSchemas( final Object response ) {
+        if ( response instanceof Object[] ) {
+            final Object[] list = (Object[]) response;
+            if ( list.length == 2 && list[0] instanceof String && list[1] instanceof QTable ) {
+                if ( handlers.containsKey(list[0]) ) {
+                    schemas.put((String) list[0], (QTable) list[1]);
+                }
+            } else {
+                for ( final Object item : list ) {
+                    cacheSchemas(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops routing updates of the table and unsubscribes from the tickerplant via asynchronous call of the
+     * unsubscription function. The subscription is no longer renewed after reconnection.
+     *
+     * @param table
+     *            name of the table
+     * @throws QException
+     * @throws IOException
+     *             if the unsubscription call cannot be sent, the handler is removed nevertheless
+     */
+    public void removeHandler( final String table ) throws QException, IOException {
+        if ( handlers.remove(table) != null ) {
+            connection.removeSubscriptions(subscribeFunction, table);
+            schemas.remove(table);
+            connection.query(QConnection.MessageType.ASYNC, unsubscribeFunction, table);
+        }
+    }
+
+    /**
+     * Routes received update to the handler of the table.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#messageReceived(com.exxeleron.qjava.QMessage)
+     */
+    public void messageReceived( final QMessage message ) {
+        final Object data = message.getData();
+        if ( data instanceof Object[] && ((Object[]) data).length == 3 ) {
+            final Object[] update = (Object[]) data;
+            final QUpdateHandler handler = update[1] != null ? handlers.get(update[1]) : null;
+            if ( handler != null ) {
+                updateCount.incrementAndGet();
+                handler.updateReceived((String) update[1], (QTable) update[2]);
+                return;
+            }
+        }
+
+        final QMessagesListener listener = fallbackListener;
+        if ( listener != null ) {
+            listener.messageReceived(message);
+        }
+    }
+
+    /**
+     * Refreshes cached schemas from the results of renewed subscriptions.
+     *
+     * @see com.exxeleron.qjava.QReconnectListener#reconnected(com.exxeleron.qjava.QReconnectEvent)
+     */
+    public void reconnected( final QReconnectEvent event ) {
+        for ( final Object result : event.getSubscriptionResults() ) {
+            cacheSchemas(result);
+        }
+    }
+
+    /**
+     * Passes error to the fallback listener.
+     *
+     * @see com.exxeleron.qjava.QMessagesListener#errorReceived(com.exxeleron.qjava.QErrorMessage)
+     */
+    public void errorReceived( final QErrorMessage message ) {
+        final QMessagesListener listener = fallbackListener;
+        if ( listener != null ) {
+            listener.errorReceived(message);
+        }
+    }
+
+    /**
+     * Retrieves schema of the subscribed table returned by the tickerplant.
+     *
+     * @param table
+     *            name of the table
+     * @return empty table or <code>null</code> if the table has not been subscribed
+     */
+    public QTable getSchema( final String table ) {
+        return schemas.get(table);
+    }
+
+    /**
+     * Retrieves names of tables with registered handlers.
+     *
+     * @return names of the tables
+     */
+    public Set<String> getTables() {
+        return Collections.unmodifiableSet(handlers.keySet());
+    }
+
+    /**
+     * Retrieves number of updates routed to handlers.
+     *
+     * @return number of updates
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * Retrieves connection to the tickerplant.
+     *
+     * @return the {@link QCallbackConnection}
+     */
+    public QCallbackConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Sets name of the subscription function of the tickerplant. Default: <code>.u.sub</code>.
+     *
+     * @param subscribeFunction
+     *            name of the function
+     */
+    public void setSubscribeFunction( final String subscribeFunction ) {
+        this.subscribeFunction = subscribeFunction;
+    }
+
+    /**
+     * Sets function unsubscribing from a table, invoked with the name of the table. Default:
+     * <code>{.u.del[x;.z.w]}</code>.
+     *
+     * @param unsubscribeFunction
+     *            the function
+     */
+    public void setUnsubscribeFunction( final String unsubscribeFunction ) {
+        this.unsubscribeFunction = unsubscribeFunction;
+    }
+
+    /**
+     * Sets listener receiving errors and messages which are not updates of subscribed tables.
+     *
+     * @param fallbackListener
+     *            the {@link QMessagesListener} or <code>null</code> to ignore such messages
+     */
+    public void setFallbackListener( final QMessagesListener fallbackListener ) {
+        this.fallbackListener = fallbackListener;
+    }
+
+}
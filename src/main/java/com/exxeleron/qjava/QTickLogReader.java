@@ -0,0 +1,536 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads kdb+ tickerplant log files, e.g. <code>.u.L</code>, directly from disk.
+ * <p>
+ * The log file is memory-mapped and scanned once on opening to build an index of entries, without deserializing them.
+ * Each entry, typically <code>(`upd; `table; data)</code>, is deserialized on demand via {@link DefaultQReader}, so
+ * entries can be accessed by index and replayed into any {@link QMessagesListener}.
+ * </p>
+ * <p>
+ * Tickerplant logs <code>data</code> as a list of columns, without column names. {@link QTickClient},
+ * {@link QConflatingListener} and {@link QLastValueCache} handle only updates carrying a {@link QTable}, so columns of
+ * the replayed tables have to be registered via {@link #setSchema(String, String[])}, e.g. from the schema returned by
+ * <code>.u.sub</code>. Entries of the registered tables are then converted to <code>(`upd; `table; QTable)</code>:
+ * </p>
+ *
+ * <pre>
+ * QTickLogReader log = new QTickLogReader(new File(&quot;/data/tplog/sym2015.06.01&quot;));
+ * try {
+ *     log.setSchema(&quot;trade&quot;, tick.getSchema(&quot;trade&quot;).getColumns());
+ *     log.replay(tick, 0, log.getEntryCount());
+ * } finally {
+ *     log.close();
+ * }
+ * </pre>
+ * <p>
+ * Large logs can be replayed in parallel by ranges of entries, see {@link #split(int)} and
+ * {@link #scan(int, QMessagesListener)}.
+ * </p>
+ * <p>
+ * Incomplete or corrupted tail of the log, e.g. an entry being written, is excluded from the index, see
+ * {@link #isTruncated()} and {@link #getValidLength()}. Log files are expected to be written by little endian kdb+
+ * process.
+ * </p>
+ */
+public class QTickLogReader {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int SEGMENT_SHIFT = 30;
+
+    // sizes of atoms and list items indexed by q type code, -1 for unsupported types
+    private static final int[] ITEM_SIZE = { -1, 1, 16, -1, 1, 2, 4, 8, 4, 8, 1, 0, 8, 4, 4, 8, 8, 4, 4, 4 };
+
+    // component types of single row columns, indexed by types of the logged atoms
+    private static final Map<Class<?>, Class<?>> PRIMITIVES = new HashMap<Class<?>, Class<?>>();
+    static {
+        PRIMITIVES.put(Boolean.class, boolean.class);
+        PRIMITIVES.put(Byte.class, byte.class);
+        PRIMITIVES.put(Short.class, short.class);
+        PRIMITIVES.put(Integer.class, int.class);
+        PRIMITIVES.put(Long.class, long.class);
+        PRIMITIVES.put(Float.class, float.class);
+        PRIMITIVES.put(Double.class, double.class);
+        PRIMITIVES.put(Character.class, char.class);
+    }
+
+    private final File file;
+    private final String encoding;
+    private final RandomAccessFile raf;
+    private final long length;
+    private final int segmentShift;
+    private final ByteBuffer[] segments;
+    private final long[] offsets;
+    private final int entryCount;
+    private final boolean truncated;
+    private final QReader reader;
+    private final Map<String, String[]> schemas = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * Opens the log file and builds index of its entries.
+     *
+     * @param file
+     *            the log file
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws QReaderException
+     *             if the file is not a kdb+ log file
+     */
+    public QTickLogReader(final File file) throws IOException, QException {
+        this(file, "ISO-8859-1");
+    }
+
+    /**
+     * Opens the log file and builds index of its entries.
+     *
+     * @param file
+     *            the log file
+     * @param encoding
+     *            encoding used for deserialization of string data
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws QReaderException
+     *             if the file is not a kdb+ log file
+     */
+    public QTickLogReader(final File file, final String encoding) throws IOException, QException {
+        this(file, encoding, SEGMENT_SHIFT);
+    }
+
+    QTickLogReader(final File file, final String encoding, final int segmentShift) throws IOException, QException {
+        this.file = file;
+        this.encoding = encoding;
+        this.segmentShift = segmentShift;
+        this.raf = new RandomAccessFile(file, "r");
+
+        try {
+            this.length = raf.length();
+            final FileChannel channel = raf.getChannel();
+            final long segmentSize = 1L << segmentShift;
+            segments = new ByteBuffer[(int) ((length + segmentSize - 1) >>> segmentShift)];
+            for ( int i = 0; i < segments.length; i++ ) {
+                final long position = (long) i << segmentShift;
+                final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, length - position));
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segments[i] = segment;
+            }
+
+            if ( length < HEADER_SIZE || get(0) != (byte) 0xff || get(1) != 0x01 || get(2) != QType.GENERAL_LIST.getTypeCode() ) {
+                throw new QReaderException("Not a kdb+ log file: " + file);
+            }
+
+            long[] index = new long[1024];
+            int count = 0;
+            long position = HEADER_SIZE;
+            boolean complete = true;
+            while ( position < length ) {
+                final long next;
+                try {
+                    next = skipObject(position);
+                } catch ( final IndexOutOfBoundsException e ) {
+                    complete = false;
+                    break;
+                } catch ( final QReaderException e ) {
+                    complete = false;
+                    break;
+                }
+
+                if ( count + 1 == index.length ) {
+                    final long[] grown = new long[index.length * 2];
+                    System.arraycopy(index, 0, grown, 0, index.length);
+                    index = grown;
+                }
+                index[count++] = position;
+                position = next;
+            }
+            index[count] = position;
+
+            this.offsets = index;
+            this.entryCount = count;
+            this.truncated = !complete;
+        } catch ( final IOException e ) {
+            raf.close();
+            throw e;
+        } catch ( final QException e ) {
+            raf.close();
+            throw e;
+        }
+
+        this.reader = createReader();
+    }
+
+    private QReader createReader() {
+        final QReader r = new DefaultQReader();
+        r.setEncoding(encoding);
+        return r;
+    }
+
+    private byte get( final long position ) {
+        if ( position >= length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return segments[(int) (position >>> segmentShift)].get((int) (position & ((1L << segmentShift) - 1)));
+    }
+
+    private int getInt( final long position ) {
+        final int offset = (int) (position & ((1L << segmentShift) - 1));
+        final ByteBuffer segment = position + 4 <= length ? segments[(int) (position >>> segmentShift)] : null;
+        if ( segment != null && offset + 4 <= segment.limit() ) {
+            return segment.getInt(offset);
+        }
+        // crosses boundary of segments
+        return (get(position) & 0xff) | (get(position + 1) & 0xff) << 8 | (get(position + 2) & 0xff) << 16 | (get(position + 3) & 0xff) << 24;
+    }
+
+    private int getCount( final long position ) throws QReaderException {
+        final int count = getInt(position);
+        if ( count < 0 ) {
+            throw new QReaderException("Invalid length: " + count);
+        }
+        return count;
+    }
+
+    private long skipSymbol( long position ) {
+        while ( get(position++) != 0 ) {
+            // skip
+        }
+        return position;
+    }
+
+    /**
+     * Calculates position following the serialized object, without deserializing it.
+     */
+    private long skipObject( long position ) throws QReaderException {
+        final int type = get(position++);
+
+        if ( type == QType.ERROR.getTypeCode() ) {
+            return skipSymbol(position);
+        } else if ( type < 0 && -type < ITEM_SIZE.length && ITEM_SIZE[-type] >= 0 ) {
+            return type == QType.SYMBOL.getTypeCode() ? skipSymbol(position) : checkBounds(position + ITEM_SIZE[-type]);
+        } else if ( type == QType.GENERAL_LIST.getTypeCode() ) {
+            final int count = getCount(position + 1);
+            position += 5;
+            for ( int i = 0; i < count; i++ ) {
+                position = skipObject(position);
+            }
+            return position;
+        } else if ( type > 0 && type < ITEM_SIZE.length && ITEM_SIZE[type] >= 0 ) {
+            final int count = getCount(position + 1);
+            position += 5;
+            if ( type == QType.SYMBOL_LIST.getTypeCode() ) {
+                for ( int i = 0; i < count; i++ ) {
+                    position = skipSymbol(position);
+                }
+                return position;
+            }
+            return checkBounds(position + (long) count * ITEM_SIZE[type]);
+        } else if ( type == QType.TABLE.getTypeCode() ) {
+            return skipObject(position + 1);
+        } else if ( type == QType.DICTIONARY.getTypeCode() || type == 127 ) {
+            return skipObject(skipObject(position));
+        } else if ( type == QType.LAMBDA.getTypeCode() ) {
+            return skipObject(skipSymbol(position));
+        } else if ( type >= QType.UNARY_PRIMITIVE_FUNC.getTypeCode() && type <= QType.TERNARY_OPERATOR_FUNC.getTypeCode() ) {
+            return checkBounds(position + 1);
+        } else if ( type == QType.PROJECTION.getTypeCode() || type == QType.COMPOSITION_FUNC.getTypeCode() ) {
+            final int count = getCount(position);
+            position += 4;
+            for ( int i = 0; i < count; i++ ) {
+                position = skipObject(position);
+            }
+            return position;
+        } else if ( type >= QType.ADVERB_FUNC_106.getTypeCode() && type <= QType.ADVERB_FUNC_111.getTypeCode() ) {
+            return skipObject(position);
+        }
+
+        throw new QReaderException("Unable to deserialize q type: " + type);
+    }
+
+    private long checkBounds( final long position ) {
+        if ( position > length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return position;
+    }
+
+    private QMessage readEntry( final QReader entryReader, final int index ) throws IOException, QException {
+        if ( index < 0 || index >= entryCount ) {
+            throw new IndexOutOfBoundsException("Entry index: " + index + ", entry count: " + entryCount);
+        }
+
+        final long start = offsets[index];
+        final int size = (int) (offsets[index + 1] - start);
+        final byte[] data = new byte[size];
+        int copied = 0;
+        while ( copied < size ) {
+            final long position = start + copied;
+            final ByteBuffer segment = segments[(int) (position >>> segmentShift)].duplicate();
+            segment.position((int) (position & ((1L << segmentShift) - 1)));
+            final int chunk = Math.min(size - copied, segment.remaining());
+            segment.get(data, copied, chunk);
+            copied += chunk;
+        }
+
+        final QMessage message = entryReader.parse(new QMessage(data, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, true, size + 8,
+                size));
+        final Object table = toTable(message.getData());
+        return table == message.getData() ? message : new QMessage(table, message.getMessageType(), message.getEndianess(), false, false,
+                message.getMessageSize(), message.getDataSize());
+    }
+
+    /**
+     * Converts <code>(func; `table; columns)</code> entry of a registered table to <code>(func; `table; QTable)</code>.
+     * Other entries are returned unchanged.
+     */
+    private Object toTable( final Object entry ) {
+        if ( !(entry instanceof Object[]) || ((Object[]) entry).length != 3 ) {
+            return entry;
+        }
+
+        final Object[] update = (Object[]) entry;
+        final String[] columns = update[1] instanceof String ? schemas.get(update[1]) : null;
+        if ( columns == null || !(update[2] instanceof Object[]) || ((Object[]) update[2]).length != columns.length ) {
+            return entry;
+        }
+
+        final Object[] values = (Object[]) update[2];
+        final Object[] data = new Object[values.length];
+        for ( int i = 0; i < values.length; i++ ) {
+            data[i] = values[i] != null && !values[i].getClass().isArray() ? toColumn(values[i]) : values[i];
+        }
+        return new Object[] { update[0], update[1], new QTable(columns, data) };
+    }
+
+    /**
+     * Wraps an atom of a single row update into one element list.
+     */
+    private static Object toColumn( final Object atom ) {
+        final Class<?> primitive = PRIMITIVES.get(atom.getClass());
+        final Object column = java.lang.reflect.Array.newInstance(primitive != null ? primitive : atom.getClass(), 1);
+        java.lang.reflect.Array.set(column, 0, atom);
+        return column;
+    }
+
+    /**
+     * Registers column names of the table, so that its entries logged as lists of columns are deserialized as
+     * {@link QTable}.
+     *
+     * @param table
+     *            name of the table
+     * @param columns
+     *            column names in order of the logged columns, <code>null</code> to remove the schema
+     */
+    public void setSchema( final String table, final String[] columns ) {
+        if ( columns == null ) {
+            schemas.remove(table);
+        } else {
+            schemas.put(table, columns);
+        }
+    }
+
+    /**
+     * Deserializes the entry of the log.
+     *
+     * @param index
+     *            index of the entry
+     * @return deserialized entry, e.g. <code>Object[] { "upd", "trade", Object[] columns }</code>, or
+     *         <code>Object[] { "upd", "trade", QTable }</code> if the table schema is registered
+     * @throws IOException
+     * @throws QException
+     */
+    public Object read( final int index ) throws IOException, QException {
+        synchronized ( reader ) {
+            return readEntry(reader, index).getData();
+        }
+    }
+
+    /**
+     * Deserializes range of entries and passes them to the listener as {@link QConnection.MessageType#ASYNC}
+     * messages, in order of the log.
+     *
+     * @param listener
+     *            the {@link QMessagesListener} receiving entries
+     * @param from
+     *            index of the first entry, inclusive
+     * @param to
+     *            index of the last entry, exclusive
+     * @return number of replayed entries
+     * @throws IOException
+     * @throws QException
+     */
+    public int replay( final QMessagesListener listener, final int from, final int to ) throws IOException, QException {
+        if ( from < 0 || to > entryCount || from > to ) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + to + "), entry count: " + entryCount);
+        }
+
+        final QReader entryReader = createReader();
+        for ( int i = from; i < to; i++ ) {
+            listener.messageReceived(readEntry(entryReader, i));
+        }
+        return to - from;
+    }
+
+    /**
+     * Splits entries of the log into ranges of similar size in bytes.
+     *
+     * @param parts
+     *            requested number of ranges
+     * @return indices of boundary entries: range <code>i</code> spans entries from <code>result[i]</code> inclusive
+     *         to <code>result[i + 1]</code> exclusive
+     */
+    public int[] split( final int parts ) {
+        if ( parts < 1 ) {
+            throw new IllegalArgumentException("Number of parts has to be positive");
+        }
+
+        final int[] bounds = new int[Math.max(1, Math.min(parts, entryCount)) + 1];
+        final long total = offsets[entryCount] - HEADER_SIZE;
+        int entry = 0;
+        for ( int i = 1; i < bounds.length - 1; i++ ) {
+            final long target = HEADER_SIZE + total * i / (bounds.length - 1);
+            while ( entry < entryCount && offsets[entry] < target ) {
+                entry++;
+            }
+            bounds[i] = Math.max(entry, bounds[i - 1]);
+        }
+        bounds[bounds.length - 1] = entryCount;
+        return bounds;
+    }
+
+    /**
+     * Replays all entries in parallel. Entries are split into ranges, see {@link #split(int)}, and each range is
+     * replayed in order by a separate thread. The listener has to be thread safe, order of entries is preserved only
+     * within a range.
+     *
+     * @param threads
+     *            number of threads
+     * @param listener
+     *            the {@link QMessagesListener} receiving entries
+     * @return number of replayed entries
+     * @throws IOException
+     * @throws QException
+     * @throws InterruptedException
+     *             if the current thread is interrupted while waiting for completion
+     */
+    public int scan( final int threads, final QMessagesListener listener ) throws IOException, QException, InterruptedException {
+        final int[] bounds = split(threads);
+        final Exception[] failures = new Exception[bounds.length - 1];
+        final Thread[] workers = new Thread[bounds.length - 1];
+
+        for ( int i = 0; i < workers.length; i++ ) {
+            final int part = i;
+            workers[i] = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        replay(listener, bounds[part], bounds[part + 1]);
+                    } catch ( final Exception e ) {
+                        failures[part] = e;
+                    }
+                }
+            }, "qJava-log-scan-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        for ( final Thread worker : workers ) {
+            worker.join();
+        }
+
+        for ( final Exception failure : failures ) {
+            if ( failure instanceof IOException ) {
+                throw (IOException) failure;
+            } else if ( failure instanceof QException ) {
+                throw (QException) failure;
+            } else if ( failure instanceof RuntimeException ) {
+                throw (RuntimeException) failure;
+            }
+        }
+        return entryCount;
+    }
+
+    /**
+     * Retrieves number of complete entries of the log.
+     *
+     * @return number of entries
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Retrieves offset of the entry in the log file.
+     *
+     * @param index
+     *            index of the entry, <code>getEntryCount()</code> for the end of the last entry
+     * @return offset in bytes
+     */
+    public long getOffset( final int index ) {
+        if ( index < 0 || index > entryCount ) {
+            throw new IndexOutOfBoundsException("Entry index: " + index + ", entry count: " + entryCount);
+        }
+        return offsets[index];
+    }
+
+    /**
+     * Retrieves length of the log file spanned by complete entries.
+     *
+     * @return length in bytes
+     */
+    public long getValidLength() {
+        return offsets[entryCount];
+    }
+
+    /**
+     * Indicates whether the log file ends with incomplete or corrupted entry.
+     *
+     * @return <code>true</code> if the tail of the log is excluded from the index
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Retrieves the log file.
+     *
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes the log file. Note that the memory mapping is released once garbage collected.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        raf.close();
+    }
+
+}
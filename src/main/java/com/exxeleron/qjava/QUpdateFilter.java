@@ -0,0 +1,85 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * {@link QMessageFilter} accepting <code>upd</code> messages, i.e. <code>(`upd; `table; data)</code>, only for the
+ * given tables. Other messages are accepted.
+ *
+ * <pre>
+ * q.addMessageFilter(new QUpdateFilter(&quot;trade&quot;, &quot;quote&quot;));
+ * </pre>
+ */
+public class QUpdateFilter implements QMessageFilter {
+
+    private final Set<String> tables;
+    private volatile String updateFunction = QPartitionedDispatcher.DEFAULT_UPDATE_FUNCTION;
+
+    /**
+     * Creates new {@link QUpdateFilter} object.
+     * 
+     * @param tables
+     *            names of accepted tables
+     */
+    public QUpdateFilter(final String... tables) {
+        this.tables = new CopyOnWriteArraySet<String>(Arrays.asList(tables));
+    }
+
+    /**
+     * @see com.exxeleron.qjava.QMessageFilter#accept(com.exxeleron.qjava.QMessage, java.lang.String[])
+     */
+    public boolean accept( final QMessage message, final String[] prefix ) {
+        if ( prefix.length >= 2 && prefix[0].equals(updateFunction) ) {
+            return tables.contains(prefix[1]);
+        }
+        return true;
+    }
+
+    /**
+     * Starts accepting updates of the table.
+     * 
+     * @param table
+     *            name of the table
+     */
+    public void addTable( final String table ) {
+        tables.add(table);
+    }
+
+    /**
+     * Stops accepting updates of the table.
+     * 
+     * @param table
+     *            name of the table
+     */
+    public void removeTable( final String table ) {
+        tables.remove(table);
+    }
+
+    /**
+     * Sets name of the function used by the tickerplant to publish updates. Default: <code>upd</code>.
+     * 
+     * @param updateFunction
+     *            name of the function
+     */
+    public void setUpdateFunction( final String updateFunction ) {
+        this.updateFunction = updateFunction;
+    }
+
+}
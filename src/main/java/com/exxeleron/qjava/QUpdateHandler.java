@@ -0,0 +1,34 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.util.EventListener;
+
+/**
+ * Handler of table updates published by a kdb+ tickerplant.
+ */
+public interface QUpdateHandler extends EventListener {
+
+    /**
+     * Invoked when rows have been published to the table.
+     *
+     * @param table
+     *            name of the updated table
+     * @param rows
+     *            published rows
+     */
+    public void updateReceived( String table, QTable rows );
+}
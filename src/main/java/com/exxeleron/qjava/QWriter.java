@@ -17,6 +17,7 @@ package com.exxeleron.qjava;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Provides serialization to q IPC protocol.
@@ -26,10 +27,17 @@ import java.io.OutputStream;
  */
 public abstract class QWriter {
 
+    /**
+     * Minimal size of a message, in bytes, which is compressed by {@link #serialize(Object, QConnection.MessageType, boolean)}.
+     */
+    public static final int COMPRESSION_THRESHOLD = 2000;
+
     protected OutputStream stream;
     private String encoding;
     protected ByteOutputStream writer = new ByteOutputStream();
     protected ByteOutputStream header = new ByteOutputStream(8);
+    protected byte[] compressed = new byte[0];
+    protected int compressedSize;
 
     protected int messageSize;
     protected int protocolVersion = 3;
@@ -94,25 +102,177 @@ public abstract class QWriter {
      * @throws QException
      */
     public int write( final Object obj, final QConnection.MessageType msgType ) throws IOException, QException {
+        prepare(obj, msgType, false);
+
+        // write message
+        stream.write(header.buffer(), 0, 8);
+        stream.write(writer.buffer(), 0, writer.count());
+
+        return messageSize;
+    }
+
+    /**
+     * Serializes object to q IPC protocol into a new array, equivalent of q <code>-8!</code> operator.
+     *
+     * @param obj
+     *            Object to be serialized
+     * @param msgType
+     *            Message type
+     * @param compress
+     *            indicates whether message larger than {@link #COMPRESSION_THRESHOLD} should be compressed; message
+     *            is left uncompressed if compression doesn't reduce its size by half
+     * @return serialized message, including header (8 bytes)
+     * @throws IOException
+     * @throws QException
+     */
+    public byte[] serialize( final Object obj, final QConnection.MessageType msgType, final boolean compress ) throws IOException, QException {
+        final byte[] message = new byte[prepare(obj, msgType, compress)];
+        copyMessage(ByteBuffer.wrap(message));
+        return message;
+    }
+
+    /**
+     * Serializes object to q IPC protocol into the target buffer, starting at its current position. Internal buffers
+     * are reused between invocations, so no intermediate arrays are allocated.
+     *
+     * @param obj
+     *            Object to be serialized
+     * @param msgType
+     *            Message type
+     * @param compress
+     *            indicates whether message larger than {@link #COMPRESSION_THRESHOLD} should be compressed; message
+     *            is left uncompressed if compression doesn't reduce its size by half
+     * @param target
+     *            buffer receiving serialized message, position of the buffer is advanced by size of the message
+     * @return total size of the message, includes header (8 bytes) and data payload
+     * @throws IOException
+     * @throws QException
+     *             if the object cannot be serialized or the message doesn't fit into the target buffer
+     */
+    public int serialize( final Object obj, final QConnection.MessageType msgType, final boolean compress, final ByteBuffer target ) throws IOException,
+            QException {
+        prepare(obj, msgType, compress);
+        if ( target.remaining() < messageSize ) {
+            throw new QWriterException("Target buffer too small: " + target.remaining() + " bytes remaining, " + messageSize + " bytes required");
+        }
+        copyMessage(target);
+        return messageSize;
+    }
+
+    /**
+     * Serializes object into internal buffers and prepares message header.
+     * 
+     * @return total size of the message, includes header (8 bytes) and data payload
+     */
+    private int prepare( final Object obj, final QConnection.MessageType msgType, final boolean compress ) throws IOException, QException {
         // serialize object
         writer.reset();
         writeObject(obj);
         messageSize = writer.count() + 8;
 
+        compressedSize = 0;
+        if ( compress && messageSize > COMPRESSION_THRESHOLD ) {
+            compressedSize = compress(writer.buffer(), writer.count());
+            if ( compressedSize > 0 ) {
+                messageSize = compressedSize + 8;
+            }
+        }
+
         // write header
         header.reset();
         header.write((byte) 1); // endianness
         header.write((byte) msgType.ordinal());
-        header.writeShort((short) 0);
+        header.write((byte) (compressedSize > 0 ? 1 : 0));
+        header.write((byte) 0);
         header.writeInt(messageSize);
 
-        // write message
-        stream.write(header.buffer(), 0, 8);
-        stream.write(writer.buffer(), 0, writer.count());
-
         return messageSize;
     }
 
+    private void copyMessage( final ByteBuffer target ) {
+        target.put(header.buffer(), 0, 8);
+        if ( compressedSize > 0 ) {
+            target.put(compressed, 0, compressedSize);
+        } else {
+            target.put(writer.buffer(), 0, writer.count());
+        }
+    }
+
+    /**
+     * Compresses data payload of a message into the {@link #compressed} buffer, mirroring
+     * {@link QReader#uncompress(byte[], java.nio.ByteOrder)}.
+     * 
+     * @param data
+     *            serialized data payload
+     * @param dataSize
+     *            size of the data payload
+     * @return size of the compressed data payload, or <code>0</code> if compression doesn't reduce size of the
+     *         message by half
+     */
+    protected int compress( final byte[] data, final int dataSize ) {
+        // positions are counted from start of the message, so that 0 marks empty hash slot
+        final int total = dataSize + 8;
+        final int limit = total / 2 - 8;
+        if ( compressed.length < limit ) {
+            compressed = new byte[limit];
+        }
+
+        // size of the uncompressed message is encoded on first 4 bytes
+        final byte[] out = compressed;
+        out[0] = (byte) total;
+        out[1] = (byte) (total >> 8);
+        out[2] = (byte) (total >> 16);
+        out[3] = (byte) (total >> 24);
+
+        final int[] buffer = new int[256];
+        byte i = 0;
+        int c = 4, d = 4, f = 0, h = 0, h0 = 0, s0 = 0, s = 8;
+        while ( s < total ) {
+            if ( i == 0 ) {
+                if ( d > limit - 17 ) {
+                    return 0;
+                }
+                i = 1;
+                out[c] = (byte) f;
+                c = d++;
+                f = 0;
+            }
+
+            boolean literal = s > total - 3;
+            int p = 0;
+            if ( !literal ) {
+                h = 0xff & (data[s - 8] ^ data[s - 7]);
+                p = buffer[h];
+                literal = p == 0 || data[s - 8] != data[p - 8];
+            }
+            if ( s0 > 0 ) {
+                buffer[h0] = s0;
+                s0 = 0;
+            }
+
+            if ( literal ) {
+                h0 = h;
+                s0 = s;
+                out[d++] = data[s++ - 8];
+            } else {
+                buffer[h] = s;
+                f |= 0xff & i;
+                p += 2;
+                final int r = s += 2;
+                final int q = Math.min(s + 255, total);
+                while ( s < q && data[p - 8] == data[s - 8] ) {
+                    p++;
+                    s++;
+                }
+                out[d++] = (byte) h;
+                out[d++] = (byte) (s - r);
+            }
+            i *= 2;
+        }
+        out[c] = (byte) f;
+        return d;
+    }
+
     /**
      * Serializes object into an IPC stream.
      * 
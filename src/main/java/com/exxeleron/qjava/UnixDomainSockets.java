@@ -0,0 +1,138 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Support for Unix domain socket transport.
+ * <p>
+ * Unix domain sockets are available via {@link SocketChannel} since Java 16. The required API is accessed
+ * reflectively, so that the library can be used with older Java versions over TCP.
+ * </p>
+ */
+final class UnixDomainSockets {
+
+    private UnixDomainSockets() {
+        // utility class
+    }
+
+    /**
+     * Returns the default path of the Unix domain socket kdb+ listens on.
+     *
+     * @param port
+     *            port of remote q service
+     * @return path of the socket
+     */
+    static String getDefaultPath( final int port ) {
+        return "/tmp/kx." + port;
+    }
+
+    /**
+     * Opens blocking {@link SocketChannel} connected to the Unix domain socket.
+     *
+     * @param path
+     *            path of the socket
+     * @return connected channel
+     * @throws IOException
+     *             if the connection cannot be established or Unix domain sockets are not supported
+     */
+    static SocketChannel open( final String path ) throws IOException {
+        final SocketAddress address;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+        } catch ( final ClassNotFoundException e ) {
+            throw new IOException("Unix domain sockets require Java 16 or newer");
+        } catch ( final InvocationTargetException e ) {
+            throw (IOException) new IOException("Invalid Unix domain socket path: " + path).initCause(e.getCause());
+        } catch ( final Exception e ) {
+            throw (IOException) new IOException("Unix domain sockets are not supported").initCause(e);
+        }
+
+        return SocketChannel.open(address);
+    }
+
+    /**
+     * Creates {@link InputStream} reading from the channel. Contrary to streams created via
+     * {@link java.nio.channels.Channels}, reading doesn't block concurrent writing.
+     *
+     * @param channel
+     *            blocking channel
+     * @return the {@link InputStream}
+     */
+    static InputStream newInputStream( final SocketChannel channel ) {
+        return new InputStream() {
+
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read( final byte[] b, final int off, final int len ) throws IOException {
+                if ( len == 0 ) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Creates {@link OutputStream} writing to the channel. Contrary to streams created via
+     * {@link java.nio.channels.Channels}, writing doesn't block concurrent reading.
+     *
+     * @param channel
+     *            blocking channel
+     * @return the {@link OutputStream}
+     */
+    static OutputStream newOutputStream( final SocketChannel channel ) {
+        return new OutputStream() {
+
+            @Override
+            public void write( final int b ) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write( final byte[] b, final int off, final int len ) throws IOException {
+                final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while ( buffer.hasRemaining() ) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+}
@@ -139,4 +139,47 @@ class Utils {
         }
     }
 
+    static boolean isFunctionName( final Object name, final String function ) {
+        if ( name instanceof String ) {
+            return function.equals(name);
+        } else if ( name instanceof char[] ) {
+            return function.equals(new String((char[]) name));
+        }
+        return false;
+    }
+
+    static Object selectRows( final Object list, final int[] indices, final int count ) {
+        final Object result = java.lang.reflect.Array.newInstance(list.getClass().getComponentType(), count);
+        if ( list instanceof Object[] ) {
+            final Object[] src = (Object[]) list;
+            final Object[] dst = (Object[]) result;
+            for ( int i = 0; i < count; i++ ) {
+                dst[i] = src[indices[i]];
+            }
+        } else if ( list instanceof long[] ) {
+            final long[] src = (long[]) list;
+            final long[] dst = (long[]) result;
+            for ( int i = 0; i < count; i++ ) {
+                dst[i] = src[indices[i]];
+            }
+        } else if ( list instanceof double[] ) {
+            final double[] src = (double[]) list;
+            final double[] dst = (double[]) result;
+            for ( int i = 0; i < count; i++ ) {
+                dst[i] = src[indices[i]];
+            }
+        } else if ( list instanceof int[] ) {
+            final int[] src = (int[]) list;
+            final int[] dst = (int[]) result;
+            for ( int i = 0; i < count; i++ ) {
+                dst[i] = src[indices[i]];
+            }
+        } else {
+            for ( int i = 0; i < count; i++ ) {
+                Array.set(result, i, Array.get(list, indices[i]));
+            }
+        }
+        return result;
+    }
+
 }
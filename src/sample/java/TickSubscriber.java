@@ -21,39 +21,40 @@ import com.exxeleron.qjava.QErrorMessage;
 import com.exxeleron.qjava.QMessage;
 import com.exxeleron.qjava.QMessagesListener;
 import com.exxeleron.qjava.QTable;
+import com.exxeleron.qjava.QTickClient;
+import com.exxeleron.qjava.QUpdateHandler;
 
 public class TickSubscriber {
 
     public static void main( final String[] args ) throws IOException {
         final QCallbackConnection q = new QCallbackConnection("localhost", 17010, "", "");
-        final QMessagesListener listener = new QMessagesListener() {
+        final QTickClient tick = new QTickClient(q);
+        tick.setFallbackListener(new QMessagesListener() {
 
             public void messageReceived( final QMessage message ) {
-                final Object data = message.getData();
-                if ( data instanceof Object[] ) {
-                    // unpack upd message
-                    final Object[] params = ((Object[]) data);
-                    if ( params.length == 3 && params[0].equals("upd") && params[2] instanceof QTable ) {
-                        final QTable table = (QTable) params[2];
-                        for ( final QTable.Row row : table ) {
-                            System.out.println(Arrays.toString(row.toArray()));
-                        }
-                    }
-                }
+                // ignore
             }
 
             public void errorReceived( final QErrorMessage message ) {
                 System.err.println(Utils.resultToString(message.getCause()));
             }
-        };
+        });
 
-        q.addMessagesListener(listener);
+        q.addMessagesListener(tick);
         try {
             q.open();
             System.out.println("Press <ENTER> to close application");
 
-            final Object response = q.sync(".u.sub", "trade", ""); // subscribe to tick
-            final QTable model = (QTable) ((Object[]) response)[1]; // get table model
+            // subscribe to tick
+            final QTable model = tick.subscribe("trade", new QUpdateHandler() {
+
+                public void updateReceived( final String table, final QTable rows ) {
+                    for ( final QTable.Row row : rows ) {
+                        System.out.println(Arrays.toString(row.toArray()));
+                    }
+                }
+            });
+            System.out.println("Subscribed to: " + Arrays.toString(model.getColumns()));
 
             q.startListener(); // activate messageListener
 
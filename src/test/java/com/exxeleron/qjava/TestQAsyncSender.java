@@ -0,0 +1,188 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQAsyncSender {
+
+    private final BlockingQueue<Object[]> received = new LinkedBlockingQueue<Object[]>();
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) {
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+                received.add((Object[]) message);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Connection with writes blocked until released.
+     */
+    private class StalledConnection extends QBasicConnection {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+
+        StalledConnection() {
+            super("localhost", server.getPort(), null, null);
+        }
+
+        @Override
+        public void send( final byte[] message, final int offset, final int length ) throws IOException {
+            try {
+                release.await();
+            } catch ( final InterruptedException e ) {
+                throw new IOException("Interrupted");
+            }
+            // shared by several senders
+            synchronized ( this ) {
+                writes.incrementAndGet();
+                super.send(message, offset, length);
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws IOException, QException, InterruptedException {
+        final StalledConnection q = new StalledConnection();
+        q.open();
+        final QAsyncSender sender = new QAsyncSender(q, 1000, QAsyncSender.OverflowPolicy.BLOCK);
+        try {
+            for ( int i = 0; i < 100; i++ ) {
+                sender.async("upd", "trade", (long) i);
+            }
+            assertTrue(sender.getPendingBytes() > 0);
+
+            q.release.countDown();
+            sender.flush();
+            assertEquals(0, sender.getQueueDepth());
+            assertEquals(0, sender.getPendingBytes());
+            assertEquals(100, sender.getSentCount());
+            // first message is taken before the release, the rest is written at once
+            assertTrue(sender.getBatchCount() <= 2);
+            assertEquals(sender.getBatchCount(), q.writes.get());
+
+            for ( int i = 0; i < 100; i++ ) {
+                final Object[] message = received.poll(1, TimeUnit.SECONDS);
+                assertNotNull(message);
+                assertArrayEquals("upd".toCharArray(), (char[]) message[0]);
+                assertEquals("trade", message[1]);
+                assertEquals((long) i, message[2]);
+            }
+        } finally {
+            sender.close();
+            q.close();
+        }
+
+        try {
+            sender.async("upd", "trade", 1L);
+            fail("Expected IOException");
+        } catch ( final IOException e ) {
+            // closed
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() throws IOException, QException, InterruptedException {
+        final StalledConnection q = new StalledConnection();
+        q.open();
+        final QAsyncSender failFast = new QAsyncSender(q, 2, QAsyncSender.OverflowPolicy.FAIL_FAST);
+        final QAsyncSender dropOldest = new QAsyncSender(q, 2, QAsyncSender.OverflowPolicy.DROP_OLDEST);
+        final QAsyncSender block = new QAsyncSender(q, 2, QAsyncSender.OverflowPolicy.BLOCK);
+        try {
+            // writer threads take one message each and stall
+            for ( final QAsyncSender sender : new QAsyncSender[] { failFast, dropOldest, block } ) {
+                sender.async("upd", "t", 0L);
+                while ( sender.getQueueDepth() > 0 ) {
+                    Thread.sleep(1);
+                }
+                sender.async("upd", "t", 1L);
+                sender.async("upd", "t", 2L);
+            }
+
+            try {
+                failFast.async("upd", "t", 3L);
+                fail("Expected RejectedExecutionException");
+            } catch ( final RejectedExecutionException e ) {
+                assertEquals(2, failFast.getQueueDepth());
+            }
+
+            dropOldest.async("upd", "t", 3L);
+            dropOldest.async("upd", "t", 4L);
+            assertEquals(2, dropOldest.getDroppedCount());
+            assertEquals(2, dropOldest.getQueueDepth());
+
+            final Thread blocked = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        block.async("upd", "t", 3L);
+                    } catch ( final Exception e ) {
+                        // ignored
+                    }
+                }
+            });
+            blocked.start();
+            blocked.join(100);
+            assertTrue(blocked.isAlive());
+            assertEquals(1, block.getStallCount());
+
+            q.release.countDown();
+            blocked.join(1000);
+            block.flush();
+            assertTrue(block.getStallTime() > 0);
+            assertEquals(4, block.getSentCount());
+            dropOldest.flush();
+            assertEquals(3, dropOldest.getSentCount());
+        } finally {
+            failFast.close();
+            dropOldest.close();
+            block.close();
+            q.close();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQBatch {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // emulates QBatch.BATCH_FUNCTION
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                calls.incrementAndGet();
+                final Object[] call = (Object[]) query;
+                if ( !QBatch.BATCH_FUNCTION.equals(new String((char[]) call[0])) ) {
+                    throw new QException("nyi");
+                }
+
+                final Object[] requests = (Object[]) call[1];
+                final Object[] results = new Object[requests.length];
+                for ( int i = 0; i < requests.length; i++ ) {
+                    try {
+                        results[i] = new Object[] { true, evaluate(requests[i]) };
+                    } catch ( final QException e ) {
+                        results[i] = new Object[] { false, e.getMessage().toCharArray() };
+                    }
+                }
+                return results;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+    }
+
+    private static Object evaluate( final Object request ) throws QException {
+        if ( request instanceof char[] ) {
+            if ( "`a`b".equals(new String((char[]) request)) ) {
+                return new String[] { "a", "b" };
+            }
+        } else if ( "add".equals(new String((char[]) ((Object[]) request)[0])) ) {
+            return (Long) ((Object[]) request)[1] + (Long) ((Object[]) request)[2];
+        }
+        throw new QException("type");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testExecute() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            final QBatch batch = new QBatch();
+            final QResponseFuture sum = batch.add("add", 1L, 2L);
+            final QResponseFuture error = batch.add("unknown");
+            final QResponseFuture symbols = batch.add("`a`b");
+            assertEquals(3, batch.size());
+
+            batch.execute(q);
+            assertEquals(1, calls.get());
+            assertEquals(3L, sum.getResult());
+            assertArrayEquals(new String[] { "a", "b" }, (String[]) symbols.getResult());
+            try {
+                error.getResult();
+                fail("Expected q error");
+            } catch ( final QException e ) {
+                assertEquals("type", e.getMessage());
+            }
+
+            try {
+                batch.add("add", 2L, 3L);
+                fail("Expected IllegalStateException");
+            } catch ( final IllegalStateException e ) {
+                // expected
+            }
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testSubmit() throws IOException, QException, TimeoutException {
+        final QPipelinedConnection q = new QPipelinedConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            final QBatch batch = new QBatch();
+            final QResponseFuture[] futures = new QResponseFuture[20];
+            for ( int i = 0; i < futures.length; i++ ) {
+                futures[i] = batch.add("add", (long) i, 1L);
+            }
+
+            batch.submit(q);
+            for ( int i = 0; i < futures.length; i++ ) {
+                assertEquals((long) i + 1, futures[i].getResult(1, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+        } finally {
+            q.close();
+        }
+
+        // failure of the whole batch is reported by all futures
+        final QBatch batch = new QBatch();
+        final QResponseFuture future = batch.add("add", 1L, 2L);
+        batch.execute(q);
+        try {
+            future.getResult();
+            fail("Expected IOException");
+        } catch ( final IOException e ) {
+            // connection closed
+        } catch ( final QException e ) {
+            // connection closed
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQBatchingPublisher {
+
+    private final BlockingQueue<Object[]> received = new LinkedBlockingQueue<Object[]>();
+    private QServer server;
+    private QBasicConnection q;
+
+    @Before
+    public void setUp() throws IOException, QException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) {
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+                received.add((Object[]) message);
+            }
+        });
+        server.start();
+        q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        q.close();
+        server.close();
+    }
+
+    @Test
+    public void testBatching() throws IOException, InterruptedException {
+        final QBatchingPublisher publisher = new QBatchingPublisher(q, 4, 1 << 20, 50);
+        try {
+            for ( int i = 0; i < 10; i++ ) {
+                publisher.publish("trade", new QTimespan((long) i), i % 2 == 0 ? "IBM" : "MSFT", 100.0 + i, (long) i);
+            }
+
+            // two batches by row count
+            for ( int b = 0; b < 2; b++ ) {
+                final Object[] message = received.poll(1, TimeUnit.SECONDS);
+                assertNotNull(message);
+                assertArrayEquals(".u.upd".toCharArray(), (char[]) message[0]);
+                assertEquals("trade", message[1]);
+                final Object[] columns = (Object[]) message[2];
+                assertEquals(4, columns.length);
+                assertArrayEquals(new String[] { "IBM", "MSFT", "IBM", "MSFT" }, (String[]) columns[1]);
+                assertArrayEquals(new double[] { 100 + 4 * b, 101 + 4 * b, 102 + 4 * b, 103 + 4 * b }, (double[]) columns[2], 0);
+                assertArrayEquals(new long[] { 4 * b, 4 * b + 1, 4 * b + 2, 4 * b + 3 }, (long[]) columns[3]);
+            }
+
+            // remaining rows are sent after linger time
+            final Object[] message = received.poll(1, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertArrayEquals(new QTimespan[] { new QTimespan(8L), new QTimespan(9L) }, (QTimespan[]) ((Object[]) message[2])[0]);
+
+            try {
+                publisher.publish("trade", new QTimespan(10L), "IBM", 1, 1L);
+                fail("Expected IllegalArgumentException");
+            } catch ( final IllegalArgumentException e ) {
+                // int instead of double
+            }
+        } finally {
+            publisher.close();
+        }
+        // counters are updated after the message has been written
+        assertEquals(3, publisher.getMessageCount());
+        assertEquals(10, publisher.getRowCount());
+    }
+
+    @Test
+    public void testFlush() throws IOException, InterruptedException {
+        final QBatchingPublisher publisher = new QBatchingPublisher(q, 1000, 1 << 20, 60000);
+        publisher.setUpdateFunction("upd");
+        publisher.publish("quote", "IBM", 1.5);
+        publisher.publish("trade", "MSFT", "note".toCharArray());
+        publisher.publish("quote", "GOOG", 2.5);
+        assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+
+        publisher.flush();
+        assertEquals(0, publisher.getPendingRows());
+
+        final Object[] quote = received.poll(1, TimeUnit.SECONDS);
+        assertEquals("quote", quote[1]);
+        assertArrayEquals(new String[] { "IBM", "GOOG" }, (String[]) ((Object[]) quote[2])[0]);
+        final Object[] trade = received.poll(1, TimeUnit.SECONDS);
+        assertEquals("trade", trade[1]);
+        assertArrayEquals("note".toCharArray(), (char[]) ((Object[]) ((Object[]) trade[2])[1])[0]);
+
+        // rows published after the flush are batched again
+        publisher.publish("quote", "MSFT", 3.5);
+        assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+        publisher.close();
+        assertEquals("quote", received.poll(1, TimeUnit.SECONDS)[1]);
+    }
+
+    @Test
+    public void testColumnTypes() throws IOException, InterruptedException {
+        // more rows than the initial capacity of columns
+        final int rows = 100;
+        final QBatchingPublisher publisher = new QBatchingPublisher(q, rows, 1 << 20, 60000);
+        try {
+            for ( int round = 0; round < 2; round++ ) {
+                for ( int i = 0; i < rows; i++ ) {
+                    publisher.publish("all", i % 2 == 0, (byte) i, (short) i, i, (long) i, (float) i, (double) i, (char) ('a' + i % 26), "s" + i);
+                }
+
+                final Object[] message = received.poll(1, TimeUnit.SECONDS);
+                assertNotNull(message);
+                final Object[] columns = (Object[]) message[2];
+                assertEquals(9, columns.length);
+                assertEquals(rows, ((boolean[]) columns[0]).length);
+                for ( int i = 0; i < rows; i++ ) {
+                    assertEquals(i % 2 == 0, ((boolean[]) columns[0])[i]);
+                    assertEquals((byte) i, ((byte[]) columns[1])[i]);
+                    assertEquals((short) i, ((short[]) columns[2])[i]);
+                    assertEquals(i, ((int[]) columns[3])[i]);
+                    assertEquals(i, ((long[]) columns[4])[i]);
+                    assertEquals(i, ((float[]) columns[5])[i], 0);
+                    assertEquals(i, ((double[]) columns[6])[i], 0);
+                    assertEquals('a' + i % 26, ((char[]) columns[7])[i]);
+                    assertEquals("s" + i, ((String[]) columns[8])[i]);
+                }
+            }
+
+            // partial batch is sent as lists of its length
+            publisher.publish("all", true, (byte) 1, (short) 1, 1, 1L, 1f, 1.0, 'x', "last");
+            publisher.flush();
+            final Object[] columns = (Object[]) received.poll(1, TimeUnit.SECONDS)[2];
+            assertArrayEquals(new long[] { 1 }, (long[]) columns[4]);
+            assertArrayEquals(new String[] { "last" }, (String[]) columns[8]);
+        } finally {
+            publisher.close();
+        }
+        assertEquals(2 * rows + 1, publisher.getRowCount());
+    }
+
+    @Test
+    public void testFlushWhilePublishing() throws IOException, InterruptedException {
+        final QBatchingPublisher publisher = new QBatchingPublisher(q, 1000, 1 << 20, 60000);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread producer = new Thread(new Runnable() {
+
+            public void run() {
+                while ( running.get() ) {
+                    publisher.publish("trade", "IBM", 1L);
+                }
+            }
+        });
+        producer.start();
+        try {
+            // flush waits only for rows published before the call
+            for ( int i = 0; i < 3; i++ ) {
+                Thread.sleep(10);
+                publisher.flush();
+            }
+        } finally {
+            running.set(false);
+            producer.join();
+            publisher.close();
+        }
+        assertEquals(0, publisher.getPendingRows());
+    }
+
+    @Test
+    public void testSizeLimit() throws IOException, InterruptedException {
+        final QBatchingPublisher publisher = new QBatchingPublisher(q, 1000, 100, 60000);
+        try {
+            // 10 bytes per row
+            for ( int i = 0; i < 12; i++ ) {
+                publisher.publish("t", "s", (long) i);
+            }
+            final Object[] message = received.poll(1, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals(10, ((long[]) ((Object[]) message[2])[1]).length);
+        } finally {
+            publisher.close();
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQCachingConnection {
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                queries.incrementAndGet();
+                final String function = new String((char[]) (query instanceof Object[] ? ((Object[]) query)[0] : query));
+                if ( "slow".equals(function) ) {
+                    try {
+                        release.await();
+                    } catch ( final InterruptedException e ) {
+                        throw new QException("interrupted");
+                    }
+                } else if ( "fail".equals(function) ) {
+                    throw new QException("fail");
+                }
+                return query instanceof Object[] ? new Object[] { function, ((Object[]) query)[1] } : function;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private QCachingConnection open( final int maxEntries, final QCachingConnection.EvictionPolicy policy ) throws IOException, QException {
+        final QCachingConnection q = new QCachingConnection(new QBasicConnection("localhost", server.getPort(), null, null), maxEntries, policy, 60000);
+        q.open();
+        return q;
+    }
+
+    @Test
+    public void testCaching() throws IOException, QException, InterruptedException {
+        final QCachingConnection q = open(10, QCachingConnection.EvictionPolicy.LRU);
+        try {
+            q.setTtl("rates", 1);
+            q.setTtl("live.*", 0);
+
+            final Object result = q.sync("instruments", "XNYS");
+            assertSame(result, q.sync("instruments", "XNYS"));
+            q.sync("instruments", "XLON");
+            assertEquals(2, queries.get());
+
+            q.sync("rates");
+            Thread.sleep(10);
+            q.sync("rates");
+            q.sync("liveData");
+            q.sync("liveData");
+            assertEquals(6, queries.get());
+
+            for ( int i = 0; i < 2; i++ ) {
+                try {
+                    q.sync("fail");
+                    fail("Expected q error");
+                } catch ( final QException e ) {
+                    assertEquals("fail", e.getMessage());
+                }
+            }
+            assertEquals(8, queries.get());
+
+            q.invalidate("instruments", "XNYS");
+            q.sync("instruments", "XNYS");
+            assertEquals(9, queries.get());
+            assertEquals(1, q.getHitCount());
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final QCachingConnection q = open(10, QCachingConnection.EvictionPolicy.LRU);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for ( int i = 0; i < 8; i++ ) {
+                results.add(executor.submit(new Callable<Object>() {
+
+                    public Object call() throws Exception {
+                        return q.sync("slow", 1L);
+                    }
+                }));
+            }
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ( q.getCoalescedCount() < 7 && System.currentTimeMillis() < deadline ) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            final Object result = results.get(0).get();
+            for ( final Future<Object> future : results ) {
+                assertSame(result, future.get());
+            }
+            assertEquals(1, queries.get());
+            assertEquals(7, q.getCoalescedCount());
+        } finally {
+            executor.shutdown();
+            q.close();
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException, QException {
+        final QCachingConnection lru = open(2, QCachingConnection.EvictionPolicy.LRU);
+        try {
+            lru.sync("a");
+            lru.sync("a");
+            lru.sync("a");
+            lru.sync("b");
+            lru.sync("c"); // evicts a
+            assertEquals(3, queries.get());
+            lru.sync("b");
+            lru.sync("a");
+            assertEquals(4, queries.get());
+            assertEquals(2, lru.getEvictionCount());
+        } finally {
+            lru.close();
+        }
+
+        queries.set(0);
+        final QCachingConnection lfu = open(2, QCachingConnection.EvictionPolicy.LFU);
+        try {
+            lfu.sync("a");
+            lfu.sync("a");
+            lfu.sync("a");
+            lfu.sync("b");
+            lfu.sync("c"); // evicts b
+            assertEquals(3, queries.get());
+            lfu.sync("a");
+            lfu.sync("b");
+            assertEquals(4, queries.get());
+        } finally {
+            lfu.close();
+        }
+    }
+
+}
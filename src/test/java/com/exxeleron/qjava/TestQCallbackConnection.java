@@ -0,0 +1,344 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQCallbackConnection {
+
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) {
+                subscriptions.incrementAndGet();
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private QServer.Session session() throws InterruptedException {
+        for ( int i = 0; i < 100 && server.getSessions().isEmpty(); i++ ) {
+            Thread.sleep(10);
+        }
+        return server.getSessions().iterator().next();
+    }
+
+    @Test
+    public void testFailingListener() throws IOException, QException, InterruptedException {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.setReconnectPolicy(new QReconnectPolicy(10, 100));
+        q.open();
+        try {
+            q.subscribe(".u.sub", "trade", "");
+            q.addMessagesListener(new QMessagesListener() {
+
+                public void messageReceived( final QMessage message ) {
+                    if ( "fail".equals(message.getData()) ) {
+                        throw new IllegalStateException("listener failure");
+                    }
+                    received.add(message.getData());
+                }
+
+                public void errorReceived( final QErrorMessage message ) {
+                    received.add(message.getCause());
+                }
+            });
+            q.startListener();
+
+            final QServer.Session session = session();
+            session.async("fail");
+            session.async("ok");
+
+            assertTrue(received.poll(1, TimeUnit.SECONDS) instanceof IllegalStateException);
+            assertEquals("ok", received.poll(1, TimeUnit.SECONDS));
+            // healthy connection is not reestablished
+            assertEquals(0, q.getReconnectCount());
+            assertEquals(1, subscriptions.get());
+            assertTrue(session.isConnected());
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testCloseWhileReconnecting() throws IOException, QException, InterruptedException {
+        final BlockingQueue<QErrorMessage> errors = new LinkedBlockingQueue<QErrorMessage>();
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.setReconnectPolicy(new QReconnectPolicy(50, 50));
+        q.open();
+        q.addMessagesListener(new QMessagesListener() {
+
+            public void messageReceived( final QMessage message ) {
+            }
+
+            public void errorReceived( final QErrorMessage message ) {
+                errors.add(message);
+            }
+        });
+        q.startListener();
+
+        // listener keeps reconnecting to the stopped server
+        session();
+        server.close();
+        assertNotNull(errors.poll(1, TimeUnit.SECONDS));
+        // socket is released by the first failed attempt
+        for ( int i = 0; i < 100 && q.connection != null; i++ ) {
+            Thread.sleep(10);
+        }
+        assertNull(q.connection);
+
+        q.close();
+        q.listenerThread.join(1000);
+        assertFalse(q.listenerThread.isAlive());
+        assertEquals(0, q.getReconnectCount());
+    }
+
+    @Test
+    public void testFailingReconnectListener() throws IOException, QException, InterruptedException {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.setReconnectPolicy(new QReconnectPolicy(10, 100));
+        q.open();
+        try {
+            q.subscribe(".u.sub", "trade", "");
+            q.addMessagesListener(new QMessagesListener() {
+
+                public void messageReceived( final QMessage message ) {
+                    received.add(message.getData());
+                }
+
+                public void errorReceived( final QErrorMessage message ) {
+                    received.add(message.getCause());
+                }
+            });
+            q.addReconnectListener(new QReconnectListener() {
+
+                public void reconnected( final QReconnectEvent event ) {
+                    throw new IllegalStateException("listener failure");
+                }
+            });
+            q.startListener();
+
+            final QServer.Session lost = session();
+            lost.close();
+            // connection loss, then the failure of the reconnect listener
+            assertTrue(received.poll(1, TimeUnit.SECONDS) instanceof IOException);
+            assertTrue(received.poll(1, TimeUnit.SECONDS) instanceof IllegalStateException);
+
+            // reestablished connection is kept, subscription is sent once
+            for ( int i = 0; i < 100 && server.getSessions().contains(lost); i++ ) {
+                Thread.sleep(10);
+            }
+            final QServer.Session session = session();
+            session.async("ok");
+            assertEquals("ok", received.poll(1, TimeUnit.SECONDS));
+            assertEquals(1, q.getReconnectCount());
+            assertEquals(2, subscriptions.get());
+            assertTrue(session.isConnected());
+        } finally {
+            q.close();
+        }
+    }
+
+    /**
+     * Listener recording received messages and errors, along with the delivering thread.
+     */
+    private static class Recorder implements QMessagesListener {
+
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final List<String> threads = new ArrayList<String>();
+
+        public void messageReceived( final QMessage message ) {
+            threads.add(Thread.currentThread().getName());
+            received.add(message.getData());
+        }
+
+        public void errorReceived( final QErrorMessage message ) {
+            threads.add(Thread.currentThread().getName());
+            received.add(message);
+        }
+    }
+
+    @Test
+    public void testDecodeThreadsPreserveOrder() throws IOException, QException, InterruptedException {
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null) {
+
+            @Override
+            protected QReader createReader() {
+                return new DefaultQReader() {
+
+                    @Override
+                    public QMessage parse( final QMessage message ) throws IOException, QException {
+                        final QMessage parsed = super.parse(message);
+                        if ( "bad".equals(parsed.getData()) ) {
+                            throw new QReaderException("Cannot decode");
+                        }
+                        return parsed;
+                    }
+                };
+            }
+        };
+        q.setDecodeThreads(4);
+        final Recorder recorder = new Recorder();
+        q.addMessagesListener(recorder);
+        q.open();
+        try {
+            q.startListener();
+            final QServer.Session session = session();
+            for ( long i = 0; i < 1000; i++ ) {
+                // messages of different size take different time to decode
+                session.async(i % 10 == 0 ? new long[10000] : (Object) i);
+                if ( i == 500 ) {
+                    session.async("bad");
+                }
+            }
+
+            for ( long i = 0; i < 1000; i++ ) {
+                final Object data = recorder.received.poll(1, TimeUnit.SECONDS);
+                if ( i % 10 == 0 ) {
+                    assertTrue(data instanceof long[]);
+                } else {
+                    assertEquals(i, data);
+                }
+                if ( i == 500 ) {
+                    // decoding error is delivered in place of the message
+                    final Object error = recorder.received.poll(1, TimeUnit.SECONDS);
+                    assertTrue(error instanceof QErrorMessage);
+                    assertTrue(((QErrorMessage) error).getCause() instanceof QReaderException);
+                }
+            }
+            for ( final String thread : recorder.threads ) {
+                assertTrue(thread, thread.endsWith("-delivery"));
+            }
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testDecodeThreadsErrorAfterMessages() throws IOException, QException, InterruptedException {
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.setDecodeThreads(2);
+        final Recorder recorder = new Recorder();
+        q.addMessagesListener(recorder);
+        q.open();
+        try {
+            q.startListener();
+            final QServer.Session session = session();
+            for ( long i = 0; i < 1000; i++ ) {
+                session.async(i % 10 == 0 ? new long[10000] : (Object) i);
+            }
+            // connection loss is detected by the listener thread while messages are being decoded
+            session.close();
+
+            for ( long i = 0; i < 1000; i++ ) {
+                final Object data = recorder.received.poll(1, TimeUnit.SECONDS);
+                assertNotNull(data);
+                assertFalse("Error delivered before message " + i, data instanceof QErrorMessage);
+            }
+            final Object error = recorder.received.poll(1, TimeUnit.SECONDS);
+            assertTrue(error instanceof QErrorMessage);
+            assertNull(recorder.received.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testDecodeThreadsFailingErrorListener() throws IOException, QException, InterruptedException {
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null) {
+
+            @Override
+            protected QReader createReader() {
+                return new DefaultQReader() {
+
+                    @Override
+                    public QMessage parse( final QMessage message ) throws IOException, QException {
+                        final QMessage parsed = super.parse(message);
+                        if ( "bad".equals(parsed.getData()) ) {
+                            throw new QReaderException("Cannot decode");
+                        }
+                        return parsed;
+                    }
+                };
+            }
+        };
+        q.setDecodeThreads(2);
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        q.addMessagesListener(new QMessagesListener() {
+
+            public void messageReceived( final QMessage message ) {
+                if ( "fail".equals(message.getData()) ) {
+                    throw new IllegalStateException("listener failure");
+                }
+                received.add(message.getData());
+            }
+
+            public void errorReceived( final QErrorMessage message ) {
+                throw new IllegalStateException("error listener failure");
+            }
+        });
+        q.open();
+        try {
+            q.startListener();
+            final QServer.Session session = session();
+            // both decoding error and failing listener are reported to the failing error listener
+            session.async("bad");
+            session.async("fail");
+            for ( long i = 0; i < 100; i++ ) {
+                session.async(i);
+            }
+
+            for ( long i = 0; i < 100; i++ ) {
+                assertEquals(i, received.poll(1, TimeUnit.SECONDS));
+            }
+            assertEquals(0, q.getReconnectCount());
+        } finally {
+            q.close();
+        }
+    }
+
+}
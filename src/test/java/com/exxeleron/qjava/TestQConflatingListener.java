@@ -0,0 +1,69 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestQConflatingListener {
+
+    private static QMessage update( final String table, final String[] syms, final String[] exchanges, final double[] prices ) {
+        final QTable rows = new QTable(new String[] { "sym", "ex", "price" }, new Object[] { syms, exchanges, prices });
+        return new QMessage(new Object[] { "upd", table, rows }, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, false, 0, 0);
+    }
+
+    @Test
+    public void testConflation() throws InterruptedException {
+        final QConflatingListener conflater = new QConflatingListener("sym");
+        assertFalse(conflater.waitForChanges(10, TimeUnit.MILLISECONDS));
+
+        conflater.messageReceived(update("quote", new String[] { "IBM", "MSFT", "IBM" }, new String[] { "N", "O", "N" }, new double[] { 1, 2, 3 }));
+        conflater.messageReceived(update("quote", new String[] { "MSFT", "GOOG" }, new String[] { "O", "O" }, new double[] { 4, 5 }));
+        assertTrue(conflater.waitForChanges(10, TimeUnit.MILLISECONDS));
+        assertEquals(3, conflater.getChangedCount());
+        assertEquals(2, conflater.getConflatedCount());
+
+        final QTable changed = conflater.poll("quote");
+        assertArrayEquals(new String[] { "IBM", "MSFT", "GOOG" }, (String[]) changed.getData()[0]);
+        assertArrayEquals(new double[] { 3, 4, 5 }, (double[]) changed.getData()[2], 0);
+        assertNull(conflater.poll("quote"));
+
+        conflater.messageReceived(update("quote", new String[] { "MSFT" }, new String[] { "O" }, new double[] { 6 }));
+        assertArrayEquals(new double[] { 6 }, (double[]) conflater.poll("quote").getData()[2], 0);
+        assertArrayEquals(new double[] { 3, 6, 5 }, (double[]) conflater.snapshot("quote").getData()[2], 0);
+        assertEquals(3, conflater.getKeyCount("quote"));
+        assertEquals(6, conflater.getUpdateCount());
+    }
+
+    @Test
+    public void testCompositeKey() {
+        final QConflatingListener conflater = new QConflatingListener("sym", "ex");
+        conflater.messageReceived(update("quote", new String[] { "IBM", "IBM", "IBM" }, new String[] { "N", "O", "N" }, new double[] { 1, 2, 3 }));
+
+        assertEquals(2, conflater.getKeyCount("quote"));
+        assertEquals(1, conflater.pollAll().size());
+        assertArrayEquals(new double[] { 3, 2 }, (double[]) conflater.snapshot("quote").getData()[2], 0);
+    }
+
+}
@@ -0,0 +1,164 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQConnectionOptions {
+
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // replies after the requested delay
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                final Object[] request = (Object[]) query;
+                try {
+                    Thread.sleep((Long) request[1]);
+                } catch ( final InterruptedException e ) {
+                    throw new QException("interrupted");
+                }
+                return request[1];
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static void assertTimeout( final QBasicConnection q, final long maxElapsed, final String query, final Object... parameters )
+            throws QException, IOException {
+        final long start = System.currentTimeMillis();
+        try {
+            q.sync(query, parameters);
+            fail("Expected SocketTimeoutException");
+        } catch ( final SocketTimeoutException e ) {
+            assertTrue(System.currentTimeMillis() - start < maxElapsed);
+        }
+        // connection with unread response cannot be reused
+        assertNull(q.connection);
+        assertFalse(q.isConnected());
+    }
+
+    @Test
+    public void testSocketOptions() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.setOptions(QConnectionOptions.builder().readTimeout(1000).tcpNoDelay(false).keepAlive(true).receiveBufferSize(64 * 1024).build());
+        q.open();
+        try {
+            assertEquals(1000, q.connection.getSoTimeout());
+            assertFalse(q.connection.getTcpNoDelay());
+            assertTrue(q.connection.getKeepAlive());
+            assertTrue(q.connection.getReceiveBufferSize() > 0);
+            assertEquals(10L, q.sync("delay", 10L));
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testConnectTimeout() throws IOException, QException {
+        // accepts connections, but never answers the handshake
+        final ServerSocket silent = new ServerSocket(0);
+        final QBasicConnection q = new QBasicConnection("localhost", silent.getLocalPort(), null, null);
+        q.setOptions(QConnectionOptions.builder().connectTimeout(100).build());
+        final long start = System.currentTimeMillis();
+        try {
+            q.open();
+            fail("Expected SocketTimeoutException");
+        } catch ( final SocketTimeoutException e ) {
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            q.close();
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testReadTimeout() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.setOptions(QConnectionOptions.builder().readTimeout(100).build());
+        q.open();
+        assertEquals(10L, q.sync("delay", 10L));
+        assertTimeout(q, 500, "delay", 1000L);
+    }
+
+    @Test
+    public void testSyncTimeout() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.setOptions(QConnectionOptions.builder().syncTimeout(100).build());
+        q.open();
+        assertEquals(10L, q.sync("delay", 10L));
+        assertTimeout(q, 500, "delay", 1000L);
+
+        // connection can be opened again
+        q.open();
+        try {
+            assertEquals(10L, q.sync("delay", 10L));
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testQueryDeadline() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            // response within the deadline keeps the connection open
+            assertEquals(10L, q.sync(500, TimeUnit.MILLISECONDS, "delay", 10L));
+            final Socket socket = q.connection;
+            assertFalse(socket.isClosed());
+
+            final long start = System.currentTimeMillis();
+            try {
+                q.sync(100, TimeUnit.MILLISECONDS, "delay", 1000L);
+                fail("Expected SocketTimeoutException");
+            } catch ( final SocketTimeoutException e ) {
+                assertTrue(System.currentTimeMillis() - start < 500);
+                assertTrue(e.getMessage().contains("deadline"));
+            }
+            // the watchdog has closed the socket the response was awaited on
+            assertTrue(socket.isClosed());
+            assertNull(q.connection);
+        } finally {
+            q.close();
+        }
+    }
+
+}
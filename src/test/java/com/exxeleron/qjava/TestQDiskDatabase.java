@@ -0,0 +1,198 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class TestQDiskDatabase {
+
+    private static File createDirectory( final File parent, final String name ) {
+        final File directory = new File(parent, name);
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void write( final File file, final byte[] data ) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+    }
+
+    private static byte[] bytes( final int... values ) {
+        final byte[] data = new byte[values.length];
+        for ( int i = 0; i < values.length; i++ ) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    private static void writeSymbols( final File file, final String... symbols ) throws IOException, QException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        final QWriter writer = new DefaultQWriter();
+        writer.setEncoding("ISO-8859-1");
+        writer.setStream(message);
+        writer.write(symbols, QConnection.MessageType.ASYNC);
+
+        // data file contains serialized object preceded by 0xff01 instead of IPC header
+        final byte[] data = message.toByteArray();
+        data[6] = (byte) 0xff;
+        data[7] = 0x01;
+        final byte[] content = new byte[data.length - 6];
+        System.arraycopy(data, 6, content, 0, content.length);
+        write(file, content);
+    }
+
+    private static ByteBuffer column( final int type, final int count, final int itemSize ) {
+        final ByteBuffer buffer = ByteBuffer.allocate(16 + count * itemSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0xfe).put((byte) 0x20).put((byte) type).put((byte) 0).putInt(0).putLong(count);
+        return buffer;
+    }
+
+    private static File createDatabase() throws IOException, QException {
+        final File root = createDirectory(new File(System.getProperty("java.io.tmpdir")), "qjava-hdb-" + System.nanoTime());
+        writeSymbols(new File(root, "sym"), "IBM", "MSFT", "GOOG");
+
+        for ( int p = 0; p < 3; p++ ) {
+            final File table = createDirectory(createDirectory(root, "2015.06.0" + (p + 1)), "trade");
+            writeSymbols(new File(table, ".d"), "sym", "price", "note");
+
+            final ByteBuffer sym = column(20, 2, 4);
+            sym.putInt(p % 3).putInt((p + 1) % 3);
+            write(new File(table, "sym"), sym.array());
+
+            final ByteBuffer price = column(9, 2, 8);
+            price.putDouble(p).putDouble(p + 0.5);
+            write(new File(table, "price"), price.array());
+
+            // nested strings: end offsets in the column file, characters in the # file
+            final ByteBuffer note = column(87, 2, 8);
+            note.putLong(2).putLong(5);
+            write(new File(table, "note"), note.array());
+            final ByteBuffer chars = column(10, 5, 1);
+            chars.put("abcde".getBytes("ISO-8859-1"));
+            write(new File(table, "note#"), chars.array());
+        }
+        return root;
+    }
+
+    @Test
+    public void testReadPartition() throws IOException, QException {
+        final QDiskDatabase hdb = new QDiskDatabase(createDatabase());
+        assertEquals(Arrays.asList("2015.06.01", "2015.06.02", "2015.06.03"), hdb.getPartitions());
+        assertEquals(Arrays.asList("trade"), hdb.getTables("2015.06.02"));
+
+        final QTable trade = hdb.readPartition("2015.06.02", "trade");
+        assertArrayEquals(new String[] { "sym", "price", "note" }, trade.getColumns());
+        assertArrayEquals(new String[] { "MSFT", "GOOG" }, (String[]) trade.getData()[0]);
+        assertArrayEquals(new double[] { 1, 1.5 }, (double[]) trade.getData()[1], 0);
+        final Object[] note = (Object[]) trade.getData()[2];
+        assertArrayEquals("ab".toCharArray(), (char[]) note[0]);
+        assertArrayEquals("cde".toCharArray(), (char[]) note[1]);
+
+        final QTable prices = hdb.readPartition("2015.06.03", "trade", "price");
+        assertEquals(1, prices.getColumnsCount());
+        assertArrayEquals(new double[] { 2, 2.5 }, (double[]) prices.getData()[0], 0);
+    }
+
+    /**
+     * Reads database from byte fixtures spelled out per the documented on-disk layouts, not written by the code
+     * under test.
+     */
+    @Test
+    public void testByteFixtures() throws IOException, QException {
+        final File root = createDirectory(new File(System.getProperty("java.io.tmpdir")), "qjava-hdb-" + System.nanoTime());
+        final File table = createDirectory(createDirectory(root, "2015.06.01"), "quote");
+        // sym: `IBM`MSFT, serialized symbol list
+        write(new File(root, "sym"), bytes(0xff, 0x01, 0x0b, 0x00, 0x02, 0x00, 0x00, 0x00, 'I', 'B', 'M', 0x00, 'M', 'S', 'F', 'T', 0x00));
+        // .d: `sym`bid`note
+        write(new File(table, ".d"), bytes(0xff, 0x01, 0x0b, 0x00, 0x03, 0x00, 0x00, 0x00, 's', 'y', 'm', 0x00, 'b', 'i', 'd', 0x00, 'n', 'o', 't',
+                'e', 0x00));
+        // sym: `sym$`MSFT`IBM`MSFT, serialized enumeration naming its domain
+        write(new File(table, "sym"), bytes(0xff, 0x01, 0x14, 0x00, 's', 'y', 'm', 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00));
+        // bid: 1.5 2 -0.25e, mapped list of reals
+        write(new File(table, "bid"), bytes(0xfe, 0x20, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x00, 0xc0, 0x3f, 0x00, 0x00, 0x00, 0x40, 0x00, 0x00, 0x80, 0xbe));
+        // note: ("x";"";"yz"), end offsets of strings in the mapped nested list, characters in note#
+        write(new File(table, "note"), bytes(0xfe, 0x20, 0x57, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01,
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x00));
+        write(new File(table, "note#"), bytes(0xfe, 0x20, 0x0a, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 'x',
+                'y', 'z'));
+
+        final QColumnFile sym = new QColumnFile(new File(table, "sym"));
+        assertTrue(sym.isEnumerated());
+        assertEquals("sym", sym.getDomain());
+        assertEquals(3, sym.getCount());
+
+        final QTable quote = new QDiskDatabase(root).readPartition("2015.06.01", "quote");
+        assertArrayEquals(new String[] { "sym", "bid", "note" }, quote.getColumns());
+        assertArrayEquals(new String[] { "MSFT", "IBM", "MSFT" }, (String[]) quote.getData()[0]);
+        assertArrayEquals(new float[] { 1.5f, 2, -0.25f }, (float[]) quote.getData()[1], 0);
+        final Object[] note = (Object[]) quote.getData()[2];
+        assertEquals(3, note.length);
+        assertArrayEquals("x".toCharArray(), (char[]) note[0]);
+        assertArrayEquals(new char[0], (char[]) note[1]);
+        assertArrayEquals("yz".toCharArray(), (char[]) note[2]);
+    }
+
+    @Test
+    public void testColumnFile() throws IOException, QException {
+        final File root = createDatabase();
+        final QColumnFile price = new QColumnFile(new File(root, "2015.06.01/trade/price"));
+        assertEquals(9, price.getTypeCode());
+        assertEquals(2, price.getCount());
+        assertEquals(0.5, price.getDouble(1), 0);
+
+        final QColumnFile sym = new QColumnFile(new File(root, "2015.06.01/trade/sym"));
+        assertTrue(sym.isEnumerated());
+        assertEquals(1, sym.getInt(1));
+    }
+
+    @Test
+    public void testParallelScan() throws IOException, QException, InterruptedException {
+        final QDiskDatabase hdb = new QDiskDatabase(createDatabase());
+        final Map<String, QTable> partitions = new ConcurrentHashMap<String, QTable>();
+        assertEquals(3, hdb.scan("trade", new String[] { "sym", "price" }, 2, new QDiskDatabase.PartitionHandler() {
+
+            public void partitionRead( final String partition, final QTable rows ) {
+                partitions.put(partition, rows);
+            }
+        }));
+        assertEquals(3, partitions.size());
+        assertArrayEquals(new String[] { "GOOG", "IBM" }, (String[]) partitions.get("2015.06.03").getData()[0]);
+    }
+
+}
@@ -0,0 +1,155 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestQDiskDatabaseWriter {
+
+    private static void delete( final File file ) {
+        final File[] files = file.listFiles();
+        if ( files != null ) {
+            for ( final File child : files ) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] read( final File file ) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] bytes( final int... values ) {
+        final byte[] data = new byte[values.length];
+        for ( int i = 0; i < values.length; i++ ) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    private static QTable trades( final String[] syms, final double[] prices ) {
+        final QTimespan[] times = new QTimespan[syms.length];
+        final Object[] notes = new Object[syms.length];
+        for ( int i = 0; i < syms.length; i++ ) {
+            times[i] = new QTimespan((long) i * 1000000000L);
+            notes[i] = ("note" + i).toCharArray();
+        }
+        return new QTable(new String[] { "sym", "price", "size", "time", "note" }, new Object[] { syms, prices, new long[syms.length], times, notes });
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, QException {
+        final File root = new File(System.getProperty("java.io.tmpdir"), "qjava-hdb-" + System.nanoTime());
+        try {
+            final QDiskDatabaseWriter writer = new QDiskDatabaseWriter(root, "ISO-8859-1", 4);
+            try {
+                writer.writePartition("2015.06.01", "trade", trades(new String[] { "IBM", "MSFT", "IBM" }, new double[] { 1, 2, 3 }));
+                writer.writePartition("2015.06.02", "trade", trades(new String[] { "GOOG", "MSFT" }, new double[] { 4, 5 }));
+                writer.writeTable("ref", new QTable(new String[] { "sym", "name" }, new Object[] { new String[] { "IBM" },
+                        new Object[] { "International Business Machines".toCharArray() } }));
+            } finally {
+                writer.close();
+            }
+
+            final QDiskDatabase hdb = new QDiskDatabase(root);
+            assertArrayEquals(new String[] { "IBM", "MSFT", "GOOG" }, hdb.getSymbols());
+            assertEquals(Arrays.asList("2015.06.01", "2015.06.02"), hdb.getPartitions());
+
+            final QTable trade = hdb.readPartition("2015.06.02", "trade");
+            assertArrayEquals(new String[] { "sym", "price", "size", "time", "note" }, trade.getColumns());
+            assertArrayEquals(new String[] { "GOOG", "MSFT" }, (String[]) trade.getData()[0]);
+            assertArrayEquals(new double[] { 4, 5 }, (double[]) trade.getData()[1], 0);
+            assertArrayEquals(new long[] { 0, 0 }, (long[]) trade.getData()[2]);
+            assertEquals(new QTimespan(1000000000L), ((QTimespan[]) trade.getData()[3])[1]);
+            assertArrayEquals("note1".toCharArray(), (char[]) ((Object[]) trade.getData()[4])[1]);
+
+            assertArrayEquals("International Business Machines".toCharArray(), (char[]) ((Object[]) hdb.readTable("ref").getData()[1])[0]);
+
+            // enumeration continues against existing sym file
+            final QDiskDatabaseWriter appender = new QDiskDatabaseWriter(root, "ISO-8859-1", 1);
+            try {
+                appender.writePartition("2015.06.03", "trade", trades(new String[] { "AAPL", "IBM" }, new double[] { 6, 7 }));
+            } finally {
+                appender.close();
+            }
+            assertArrayEquals(new String[] { "IBM", "MSFT", "GOOG", "AAPL" }, hdb.getSymbols());
+            assertArrayEquals(new String[] { "AAPL", "IBM" }, (String[]) hdb.readPartition("2015.06.03", "trade", "sym").getData()[0]);
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testFileLayout() throws IOException, QException {
+        final File root = new File(System.getProperty("java.io.tmpdir"), "qjava-hdb-" + System.nanoTime());
+        try {
+            final QDiskDatabaseWriter writer = new QDiskDatabaseWriter(root, "ISO-8859-1", 1);
+            try {
+                writer.writeTable("t", new QTable(new String[] { "s", "v" }, new Object[] { new String[] { "a", "b", "a" }, new long[] { 1, 2 } }));
+            } finally {
+                writer.close();
+            }
+
+            // `sym: `a`b
+            assertArrayEquals(bytes(0xff, 0x01, 0x0b, 0x00, 0x02, 0x00, 0x00, 0x00, 'a', 0x00, 'b', 0x00), read(new File(root, "sym")));
+            // .d: `s`v
+            assertArrayEquals(bytes(0xff, 0x01, 0x0b, 0x00, 0x02, 0x00, 0x00, 0x00, 's', 0x00, 'v', 0x00), read(new File(root, "t/.d")));
+            // s: `sym$`a`b`a, serialized enumeration naming its domain
+            assertArrayEquals(bytes(0xff, 0x01, 0x14, 0x00, 's', 'y', 'm', 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00,
+                    0x00, 0x00, 0x00, 0x00, 0x00), read(new File(root, "t/s")));
+            // v: 1 2j, mapped list
+            assertArrayEquals(bytes(0xfe, 0x20, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00,
+                    0x00, 0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00), read(new File(root, "t/v")));
+
+            final QColumnFile s = new QColumnFile(new File(root, "t/s"));
+            assertEquals("sym", s.getDomain());
+            assertEquals(3, s.getCount());
+            assertEquals(1, s.getInt(1));
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test(expected = QWriterException.class)
+    public void testUnsupportedColumn() throws IOException, QException {
+        final File root = new File(System.getProperty("java.io.tmpdir"), "qjava-hdb-" + System.nanoTime());
+        final QDiskDatabaseWriter writer = new QDiskDatabaseWriter(root, "ISO-8859-1", 1);
+        try {
+            writer.writeTable("t", new QTable(new String[] { "mixed" }, new Object[] { new Object[] { new long[] { 1 }, new double[] { 1 } } }));
+        } finally {
+            writer.close();
+            delete(root);
+        }
+    }
+
+}
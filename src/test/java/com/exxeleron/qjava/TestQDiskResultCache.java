@@ -0,0 +1,136 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQDiskResultCache {
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private QServer server;
+    private QBasicConnection q;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException, QException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                queries.incrementAndGet();
+                if ( query instanceof Object[] && "til".equals(new String((char[]) ((Object[]) query)[0])) ) {
+                    final long[] result = new long[((Long) ((Object[]) query)[1]).intValue()];
+                    for ( int i = 0; i < result.length; i++ ) {
+                        result[i] = i;
+                    }
+                    return result;
+                }
+                throw new QException("type");
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+        q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.open();
+        directory = new File(System.getProperty("java.io.tmpdir"), "qjava-cache-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        q.close();
+        server.close();
+        final File[] files = directory.listFiles();
+        if ( files != null ) {
+            for ( final File file : files ) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testHitAndPersistence() throws IOException, QException, InterruptedException {
+        final QDiskResultCache cache = new QDiskResultCache(directory, 1 << 20, 60000);
+        assertArrayEquals(new long[] { 0, 1, 2 }, (long[]) cache.sync(q, "til", 3L));
+        assertArrayEquals(new long[] { 0, 1, 2 }, (long[]) cache.sync(q, "til", 3L));
+        assertArrayEquals(new long[] { 0, 1, 2, 3 }, (long[]) cache.sync(q, "til", 4L));
+        assertEquals(2, queries.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getEntryCount());
+
+        // errors are not cached
+        for ( int i = 0; i < 2; i++ ) {
+            try {
+                cache.sync(q, "unknown");
+                fail("Expected q error");
+            } catch ( final QException e ) {
+                assertEquals("type", e.getMessage());
+            }
+        }
+        assertEquals(4, queries.get());
+
+        // results survive restart
+        final QDiskResultCache reopened = new QDiskResultCache(directory, 1 << 20, 60000);
+        assertEquals(cache.getSize(), reopened.getSize());
+        assertArrayEquals(new long[] { 0, 1, 2 }, (long[]) reopened.sync(q, "til", 3L));
+        assertNotNull(reopened.getMessage("til", 4L));
+        assertEquals(4, queries.get());
+
+        // expiry
+        reopened.sync(q, 1, "til", 5L);
+        Thread.sleep(10);
+        assertNull(reopened.getMessage("til", 5L));
+        reopened.sync(q, "til", 5L);
+        assertEquals(6, queries.get());
+
+        reopened.invalidate("til", 3L);
+        assertNull(reopened.getMessage("til", 3L));
+        reopened.clear();
+        assertEquals(0, reopened.getSize());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testEviction() throws IOException, QException {
+        // each entry holds 1000 longs
+        final QDiskResultCache cache = new QDiskResultCache(directory, 20000, 60000);
+        cache.sync(q, "til", 1000L);
+        cache.sync(q, "til", 1001L);
+        cache.sync(q, "til", 1000L);
+        cache.sync(q, "til", 1002L);
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.getMessage("til", 1001L));
+        assertNotNull(cache.getMessage("til", 1000L));
+        assertNotNull(cache.getMessage("til", 1002L));
+        assertEquals(2, directory.listFiles().length);
+    }
+
+}
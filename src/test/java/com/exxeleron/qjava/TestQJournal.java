@@ -0,0 +1,205 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQJournal {
+
+    private final BlockingQueue<Object[]> received = new LinkedBlockingQueue<Object[]>();
+    private QServer server;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                if ( !QJournal.CONFIRM_QUERY.equals(new String((char[]) query)) ) {
+                    throw new QException("nyi");
+                }
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+                received.add((Object[]) message);
+            }
+        });
+        server.start();
+        directory = new File(System.getProperty("java.io.tmpdir"), "qjava-journal-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        final File[] files = directory.listFiles();
+        if ( files != null ) {
+            for ( final File file : files ) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void assertReceived( final long from, final long to ) throws InterruptedException {
+        for ( long i = from; i <= to; i++ ) {
+            final Object[] message = received.poll(1, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertArrayEquals(".u.upd".toCharArray(), (char[]) message[0]);
+            assertEquals("trade", message[1]);
+            assertEquals(i, message[2]);
+        }
+    }
+
+    @Test
+    public void testStoreAndForward() throws IOException, QException, InterruptedException {
+        QJournal journal = new QJournal(directory, 256);
+        for ( long i = 1; i <= 20; i++ ) {
+            assertEquals(i, journal.append(".u.upd", "trade", i));
+        }
+        assertTrue(journal.getSegmentCount() > 1);
+        journal.close();
+
+        // messages are recovered after restart
+        journal = new QJournal(directory, 256);
+        assertEquals(20, journal.getLastSequence());
+        assertEquals(20, journal.getPendingCount());
+
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            assertEquals(20, journal.replay(q));
+            assertReceived(1, 20);
+            assertEquals(20, journal.getAcknowledgedSequence());
+            assertEquals(0, journal.getPendingCount());
+            assertEquals(1, journal.getSegmentCount());
+
+            assertEquals(21, journal.append(".u.upd", "trade", 21L));
+            assertEquals(1, journal.replay(q));
+            assertReceived(21, 21);
+            assertEquals(0, journal.replay(q));
+        } finally {
+            q.close();
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testAtLeastOnce() throws IOException, QException, InterruptedException {
+        QJournal journal = new QJournal(directory, 1024);
+        journal.setSyncPolicy(0, 0);
+        for ( long i = 1; i <= 10; i++ ) {
+            journal.append(".u.upd", "trade", i);
+        }
+        journal.acknowledge(4);
+
+        // connection is not established
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null);
+        try {
+            journal.replay(q);
+            fail("Expected IOException");
+        } catch ( final IOException e ) {
+            assertEquals(6, journal.getPendingCount());
+        }
+        journal.close();
+
+        journal = new QJournal(directory, 1024);
+        assertEquals(4, journal.getAcknowledgedSequence());
+        q.open();
+        try {
+            assertEquals(6, journal.replay(q));
+            assertReceived(5, 10);
+        } finally {
+            q.close();
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testAppendDuringReplay() throws IOException, QException, InterruptedException {
+        final QJournal journal = new QJournal(directory, 1024);
+        for ( long i = 1; i <= 3; i++ ) {
+            journal.append(".u.upd", "trade", i);
+        }
+
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), null, null) {
+
+            @Override
+            public void send( final byte[] message, final int offset, final int length ) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch ( final InterruptedException e ) {
+                    throw new IOException("Interrupted");
+                }
+                super.send(message, offset, length);
+            }
+        };
+        q.open();
+
+        final AtomicInteger replayed = new AtomicInteger(-1);
+        final Thread replay = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    replayed.set(journal.replay(q));
+                } catch ( final Exception e ) {
+                    // reported by the count
+                }
+            }
+        });
+        try {
+            replay.start();
+            assertTrue(sending.await(1, TimeUnit.SECONDS));
+            // the journal is not locked by the stalled connection
+            assertEquals(4, journal.append(".u.upd", "trade", 4L));
+            journal.sync();
+
+            release.countDown();
+            replay.join(1000);
+            assertEquals(3, replayed.get());
+            assertReceived(1, 3);
+            assertEquals(3, journal.getAcknowledgedSequence());
+            assertEquals(1, journal.getPendingCount());
+
+            assertEquals(1, journal.replay(q));
+            assertReceived(4, 4);
+        } finally {
+            release.countDown();
+            q.close();
+            journal.close();
+        }
+    }
+
+}
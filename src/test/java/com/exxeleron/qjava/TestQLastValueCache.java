@@ -0,0 +1,154 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestQLastValueCache {
+
+    private static QTable rows( final String[] syms, final double[] prices, final long[] sizes ) {
+        return new QTable(new String[] { "sym", "price", "size" }, new Object[] { syms, prices, sizes });
+    }
+
+    private static QMessage update( final String table, final QTable rows ) {
+        return new QMessage(new Object[] { "upd", table, rows }, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, false, 0, 0);
+    }
+
+    @Test
+    public void testKeyLookup() {
+        final QLastValueCache cache = new QLastValueCache("quote", "sym", 4);
+        assertNull(cache.snapshot());
+        assertFalse(cache.contains("IBM"));
+        // lookups before the first update return q nulls
+        assertNull(cache.get("IBM", "price"));
+        assertTrue(Double.isNaN(cache.getDouble("IBM", "price")));
+        assertEquals(Long.MIN_VALUE, cache.getLong("IBM", "size"));
+
+        cache.update(rows(new String[] { "IBM", "MSFT", "IBM" }, new double[] { 1, 2, 3 }, new long[] { 10, 20, 30 }));
+        cache.messageReceived(update("quote", rows(new String[] { "GOOG" }, new double[] { 4 }, new long[] { 40 })));
+        // other tables are ignored
+        cache.messageReceived(update("trade", rows(new String[] { "IBM" }, new double[] { 5 }, new long[] { 50 })));
+
+        assertEquals(3, cache.size());
+        assertTrue(cache.contains("IBM"));
+        assertEquals(3, cache.getDouble("IBM", "price"), 0);
+        assertEquals(30, cache.getLong("IBM", "size"));
+        assertEquals("MSFT", cache.get("MSFT", "sym"));
+        assertArrayEquals(new Object[] { "GOOG", 4.0, 40L }, cache.getRow("GOOG"));
+
+        // missing keys are reported as q nulls
+        assertFalse(cache.contains("AAPL"));
+        assertNull(cache.getRow("AAPL"));
+        assertTrue(Double.isNaN(cache.getDouble("AAPL", "price")));
+        assertEquals(Long.MIN_VALUE, cache.getLong("AAPL", "size"));
+
+        final QTable snapshot = cache.snapshot();
+        assertEquals(3, snapshot.getRowsCount());
+        assertArrayEquals(new String[] { "sym", "price", "size" }, snapshot.getColumns());
+
+        // changed schema replaces cached rows
+        cache.update(new QTable(new String[] { "sym", "bid" }, new Object[] { new String[] { "IBM" }, new double[] { 7 } }));
+        assertEquals(1, cache.size());
+        assertEquals(7, cache.getDouble("IBM", "bid"), 0);
+        assertFalse(cache.contains("MSFT"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingKeyColumn() {
+        final QLastValueCache cache = new QLastValueCache("quote", "ticker");
+        cache.update(rows(new String[] { "IBM" }, new double[] { 1 }, new long[] { 10 }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownColumn() {
+        final QLastValueCache cache = new QLastValueCache("quote", "sym");
+        cache.update(rows(new String[] { "IBM" }, new double[] { 1 }, new long[] { 10 }));
+        cache.getDouble("IBM", "bid");
+    }
+
+    @Test
+    public void testConcurrentReads() throws InterruptedException {
+        final int keys = 100;
+        final String[] syms = new String[keys];
+        for ( int i = 0; i < keys; i++ ) {
+            syms[i] = "SYM" + i;
+        }
+
+        final QLastValueCache cache = new QLastValueCache("quote", "sym", 8);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> inconsistency = new AtomicReference<String>();
+
+        final Thread[] readers = new Thread[4];
+        for ( int t = 0; t < readers.length; t++ ) {
+            readers[t] = new Thread(new Runnable() {
+
+                public void run() {
+                    int lastSize = 0;
+                    while ( running.get() ) {
+                        for ( final String sym : syms ) {
+                            // price and size of a row are always updated together
+                            final Object[] row = cache.getRow(sym);
+                            if ( row != null && ((Double) row[1]).longValue() != (Long) row[2] ) {
+                                inconsistency.set(sym + ": " + row[1] + " / " + row[2]);
+                            }
+                        }
+                        final int size = cache.size();
+                        if ( size < lastSize ) {
+                            inconsistency.set("size decreased from " + lastSize + " to " + size);
+                        }
+                        lastSize = size;
+                    }
+                }
+            });
+            readers[t].start();
+        }
+
+        for ( int round = 1; round <= 1000; round++ ) {
+            final int from = round % keys;
+            final int count = 1 + round % 7;
+            final String[] updated = new String[count];
+            final double[] prices = new double[count];
+            final long[] sizes = new long[count];
+            for ( int i = 0; i < count; i++ ) {
+                updated[i] = syms[(from + i) % keys];
+                prices[i] = round;
+                sizes[i] = round;
+            }
+            cache.messageReceived(update("quote", rows(updated, prices, sizes)));
+        }
+
+        running.set(false);
+        for ( final Thread reader : readers ) {
+            reader.join();
+        }
+
+        assertNull(inconsistency.get());
+        assertEquals(keys, cache.size());
+        assertEquals(1000, cache.getLong("SYM0", "size"));
+        assertEquals(1000, cache.getDouble("SYM0", "price"), 0);
+    }
+
+}
@@ -0,0 +1,343 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestQLoadBalancedConnection {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicBoolean blockFirst = new AtomicBoolean(true);
+    private final AtomicReference<String> blocked = new AtomicReference<String>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final QServer[] servers = new QServer[2];
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        for ( final QServer server : servers ) {
+            if ( server != null ) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Starts replicas answering with their names. The first query received by any of them is blocked until released.
+     */
+    private QLoadBalancedConnection startReplicas() throws IOException {
+        final QConnection[] connections = new QConnection[servers.length];
+        for ( int i = 0; i < servers.length; i++ ) {
+            final String name = "replica" + i;
+            servers[i] = new QServer(0, new QServer.Handler() {
+
+                public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                    queries.incrementAndGet();
+                    if ( blockFirst.compareAndSet(true, false) ) {
+                        blocked.set(name);
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch ( final InterruptedException e ) {
+                            throw new QException("interrupted");
+                        }
+                    }
+                    return name;
+                }
+
+                public void asyncReceived( final QServer.Session session, final Object message ) {
+                }
+            });
+            servers[i].start();
+            connections[i] = new QPipelinedConnection("localhost", servers[i].getPort(), null, null);
+        }
+        return new QLoadBalancedConnection(connections);
+    }
+
+    private static class ConnectionMock extends QBasicConnection {
+
+        private final String name;
+        private boolean connected;
+        boolean broken;
+        long delay;
+        int calls;
+
+        ConnectionMock(final String name) {
+            super(name, 0, null, null);
+            this.name = name;
+        }
+
+        @Override
+        public void open() throws IOException, QException {
+            if ( broken ) {
+                throw new IOException("Connection refused");
+            }
+            connected = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            connected = false;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public Object sync( final String query, final Object... parameters ) throws QException, IOException {
+            calls++;
+            if ( broken ) {
+                throw new IOException("Connection reset");
+            }
+            if ( query.equals("error") ) {
+                throw new QException("type");
+            }
+            try {
+                Thread.sleep(delay);
+            } catch ( final InterruptedException e ) {
+                // ignore
+            }
+            return name;
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding() throws IOException, QException {
+        final ConnectionMock a = new ConnectionMock("a");
+        final ConnectionMock b = new ConnectionMock("b");
+        final QLoadBalancedConnection q = new QLoadBalancedConnection(a, b);
+        q.open();
+
+        for ( int i = 0; i < 10; i++ ) {
+            q.sync("query");
+        }
+
+        assertEquals(10, a.calls + b.calls);
+        assertTrue(a.calls > 0);
+        assertTrue(b.calls > 0);
+    }
+
+    @Test
+    public void testLatencyEwma() throws IOException, QException {
+        final ConnectionMock fast = new ConnectionMock("fast");
+        final ConnectionMock slow = new ConnectionMock("slow");
+        slow.delay = 20;
+
+        final QLoadBalancedConnection q = new QLoadBalancedConnection(QLoadBalancedConnection.Policy.LATENCY_EWMA, Arrays.asList(fast, slow));
+        q.open();
+
+        for ( int i = 0; i < 20; i++ ) {
+            q.sync("query");
+        }
+
+        assertTrue(fast.calls > slow.calls);
+        assertEquals(1, slow.calls);
+    }
+
+    @Test
+    public void testEjectionAndProbe() throws IOException, QException, InterruptedException {
+        final ConnectionMock a = new ConnectionMock("a");
+        final ConnectionMock b = new ConnectionMock("b");
+        final QLoadBalancedConnection q = new QLoadBalancedConnection(a, b);
+        q.setEjectionTime(50);
+        q.open();
+
+        b.broken = true;
+        boolean failed = false;
+        for ( int i = 0; i < 5; i++ ) {
+            try {
+                assertEquals("a", q.sync("query"));
+            } catch ( final IOException e ) {
+                failed = true;
+            }
+        }
+
+        assertTrue(failed);
+        assertEquals(1, b.calls);
+        assertTrue(q.getReplicas().get(1).isEjected());
+        assertFalse(b.isConnected());
+
+        b.broken = false;
+        Thread.sleep(60);
+
+        assertEquals("b", q.sync("query"));
+        assertFalse(q.getReplicas().get(1).isEjected());
+    }
+
+    @Test
+    public void testQError() throws IOException, QException {
+        final ConnectionMock a = new ConnectionMock("a");
+        final QLoadBalancedConnection q = new QLoadBalancedConnection(a);
+        q.open();
+
+        try {
+            q.sync("error");
+            fail("QException was expected");
+        } catch ( final QException e ) {
+            assertEquals("type", e.getMessage());
+        }
+
+        assertFalse(q.getReplicas().get(0).isEjected());
+    }
+
+    @Test
+    public void testHedgingPolicy() {
+        final QHedgingPolicy policy = new QHedgingPolicy(0.9, 2, 100, TimeUnit.MILLISECONDS, 20);
+        // maximal delay until enough samples are recorded
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.getDelay());
+
+        for ( int i = 1; i <= 20; i++ ) {
+            policy.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(19), policy.getDelay());
+
+        for ( int i = 0; i < 64; i++ ) {
+            policy.record(TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.getDelay());
+
+        for ( int i = 0; i < 64; i++ ) {
+            policy.record(0);
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), policy.getDelay());
+    }
+
+    @Test
+    public void testHedgedSync() throws IOException, QException, InterruptedException {
+        final QLoadBalancedConnection q = startReplicas();
+        q.setHedgingPolicy(new QHedgingPolicy(0.5, 20, 20, TimeUnit.MILLISECONDS));
+        q.open();
+        try {
+            // the first replica is stalled, the query is hedged to the other one
+            final Object result = q.hedgedSync("query");
+            assertNotNull(blocked.get());
+            assertFalse(blocked.get().equals(result));
+            assertEquals(2, queries.get());
+
+            // response of the cancelled query is discarded when it arrives
+            release.countDown();
+            for ( int r = 0; r < servers.length; r++ ) {
+                final QLoadBalancedConnection.Replica replica = q.getReplicas().get(r);
+                final QPipelinedConnection connection = (QPipelinedConnection) replica.getConnection();
+                for ( int i = 0; i < 100 && (connection.getPendingCount() > 0 || replica.getOutstandingRequests() > 0); i++ ) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, connection.getPendingCount());
+                assertEquals(0, replica.getOutstandingRequests());
+                assertFalse(replica.isEjected());
+                assertEquals("replica" + r, connection.sync("query"));
+            }
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testFastResponseNotHedged() throws IOException, QException {
+        blockFirst.set(false);
+        final QLoadBalancedConnection q = startReplicas();
+        q.setHedgingPolicy(new QHedgingPolicy(0.5, 1, 1, TimeUnit.SECONDS));
+        q.open();
+        try {
+            for ( int i = 0; i < 10; i++ ) {
+                assertNotNull(q.hedgedSync("query"));
+            }
+            assertEquals(10, queries.get());
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testCloseWithOutstandingRequests() throws IOException, QException, InterruptedException {
+        final QLoadBalancedConnection q = startReplicas();
+        q.open();
+        final QLoadBalancedConnection.Replica replica = q.getReplicas().get(0);
+        final QResponseFuture first = replica.submit("query");
+        final List<QResponseFuture> outstanding = new ArrayList<QResponseFuture>();
+        for ( int i = 0; i < 10; i++ ) {
+            outstanding.add(replica.submit("query"));
+        }
+
+        // the application closes the connection from a response callback, while another thread closes it as well
+        final CountDownLatch responding = new CountDownLatch(1);
+        final AtomicReference<Exception> callbackError = new AtomicReference<Exception>();
+        first.addListener(new QResponseFuture.Listener() {
+
+            public void responseReceived( final QResponseFuture future ) {
+                responding.countDown();
+                try {
+                    Thread.sleep(100);
+                    q.close();
+                } catch ( final Exception e ) {
+                    callbackError.set(e);
+                }
+            }
+        });
+        for ( int i = 0; i < 100 && blocked.get() == null; i++ ) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        assertTrue(responding.await(1, TimeUnit.SECONDS));
+
+        final Thread closer = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    q.close();
+                } catch ( final IOException e ) {
+                    callbackError.set(e);
+                }
+            }
+        });
+        closer.start();
+        closer.join(2000);
+        assertFalse("close() is blocked", closer.isAlive());
+        assertEquals(null, callbackError.get());
+
+        // outstanding requests are either answered or failed
+        for ( final QResponseFuture future : outstanding ) {
+            try {
+                assertEquals("replica0", future.getResult(1, TimeUnit.SECONDS));
+            } catch ( final QConnectionException e ) {
+                // failed by close()
+            } catch ( final TimeoutException e ) {
+                fail("Outstanding request has not been completed");
+            }
+        }
+        assertEquals(0, ((QPipelinedConnection) replica.getConnection()).getPendingCount());
+    }
+
+}
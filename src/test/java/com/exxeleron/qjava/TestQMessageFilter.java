@@ -0,0 +1,222 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestQMessageFilter {
+
+    private static QMessage raw( final Object obj ) throws IOException, QException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final QWriter writer = new DefaultQWriter();
+        writer.setEncoding("ISO-8859-1");
+        writer.setStream(stream);
+        writer.write(obj, QConnection.MessageType.ASYNC);
+
+        final byte[] message = stream.toByteArray();
+        final byte[] data = new byte[message.length - 8];
+        System.arraycopy(message, 8, data, 0, data.length);
+        return new QMessage(data, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, true, message.length, data.length);
+    }
+
+    private static QTable trades( final String sym ) {
+        return new QTable(new String[] { "sym", "price" }, new Object[] { new String[] { sym }, new double[] { 1.5 } });
+    }
+
+    @Test
+    public void testPeek() throws IOException, QException {
+        final QReader reader = new DefaultQReader();
+        reader.setEncoding("ISO-8859-1");
+
+        assertArrayEquals(new String[] { "upd", "trade" }, reader.peek(raw(new Object[] { "upd".toCharArray(), "trade", trades("IBM") }), 2));
+        assertArrayEquals(new String[] { "upd" }, reader.peek(raw(new Object[] { "upd", "trade", trades("IBM") }), 1));
+        assertArrayEquals(new String[] { "f" }, reader.peek(raw(new Object[] { "f", 1L, "x" }), 3));
+        assertArrayEquals(new String[0], reader.peek(raw(trades("IBM")), 2));
+        assertArrayEquals(new String[0], reader.peek(raw(new long[] { 1, 2 }), 2));
+
+        // already deserialized message
+        final QMessage message = reader.parse(raw(new Object[] { "upd", "quote", 1L }));
+        assertArrayEquals(new String[] { "upd", "quote" }, reader.peek(message, 5));
+
+        final QUpdateFilter filter = new QUpdateFilter("trade");
+        assertEquals(true, filter.accept(message, new String[] { "upd", "trade" }));
+        assertEquals(false, filter.accept(message, new String[] { "upd", "quote" }));
+        assertEquals(true, filter.accept(message, new String[] { "log", "quote" }));
+        assertEquals(true, filter.accept(message, new String[0]));
+    }
+
+    @Test
+    public void testPeekCompressed() throws IOException, QException {
+        final String[] syms = new String[1000];
+        for ( int i = 0; i < syms.length; i++ ) {
+            syms[i] = "IBM";
+        }
+        final QTable rows = new QTable(new String[] { "sym", "price" }, new Object[] { syms, new double[syms.length] });
+        final byte[] message = new QSerializer("ISO-8859-1").serialize(new Object[] { "upd".toCharArray(), "trade", rows }, true);
+        assertEquals(1, message[2]);
+        final byte[] data = new byte[message.length - 8];
+        System.arraycopy(message, 8, data, 0, data.length);
+        final QMessage raw = new QMessage(data, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, true, true, message.length, data.length);
+
+        final AtomicInteger uncompressed = new AtomicInteger();
+        final QReader reader = new DefaultQReader() {
+
+            @Override
+            protected byte[] uncompress( final byte[] compressedData, final int offset, final ByteOrder endianess ) throws QException {
+                uncompressed.incrementAndGet();
+                return super.uncompress(compressedData, offset, endianess);
+            }
+        };
+        reader.setEncoding("ISO-8859-1");
+
+        // payload is uncompressed once for both peek and parse
+        final QMessage inflated = reader.uncompress(raw);
+        assertTrue(inflated.isRaw());
+        assertFalse(inflated.isCompressed());
+        assertEquals(message.length, inflated.getMessageSize());
+        assertArrayEquals(new String[] { "upd", "trade" }, reader.peek(inflated, 2));
+        final QTable parsed = (QTable) ((Object[]) reader.parse(inflated).getData())[2];
+        assertEquals(syms.length, parsed.getRowsCount());
+        assertEquals(1, uncompressed.get());
+
+        // uncompressed and parsed messages are returned as they are
+        assertSame(inflated, reader.uncompress(inflated));
+        assertEquals(1, uncompressed.get());
+    }
+
+    @Test
+    public void testFilteredSubscription() throws IOException, QException, InterruptedException {
+        final QServer server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) {
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            q.addMessageFilter(new QUpdateFilter("trade"));
+            q.addMessagesListener(new QMessagesListener() {
+
+                public void messageReceived( final QMessage message ) {
+                    received.add(message.getData());
+                }
+
+                public void errorReceived( final QErrorMessage message ) {
+                    received.add(message.getCause());
+                }
+            });
+            q.startListener();
+
+            final QServer.Session session = server.getSessions().iterator().next();
+            session.async(new Object[] { "upd".toCharArray(), "quote", trades("IBM") });
+            session.async(new Object[] { "upd".toCharArray(), "trade", trades("MSFT") });
+            session.async(new Object[] { "upd".toCharArray(), "quote", trades("GOOG") });
+            session.async(new Object[] { "upd".toCharArray(), "trade", trades("AAPL") });
+
+            final Object[] first = (Object[]) received.poll(1, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertArrayEquals(new String[] { "MSFT" }, (String[]) ((QTable) first[2]).getData()[0]);
+            final Object[] second = (Object[]) received.poll(1, TimeUnit.SECONDS);
+            assertNotNull(second);
+            assertArrayEquals(new String[] { "AAPL" }, (String[]) ((QTable) second[2]).getData()[0]);
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(2, q.getFilteredCount());
+        } finally {
+            q.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFailingFilter() throws IOException, QException, InterruptedException {
+        final QServer server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) {
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        final QCallbackConnection q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            q.addMessageFilter(new QMessageFilter() {
+
+                public boolean accept( final QMessage message, final String[] prefix ) {
+                    if ( prefix.length > 1 && "bad".equals(prefix[1]) ) {
+                        throw new IllegalStateException("filter failure");
+                    }
+                    return true;
+                }
+            });
+            q.addMessagesListener(new QMessagesListener() {
+
+                public void messageReceived( final QMessage message ) {
+                    received.add(message.getData());
+                }
+
+                public void errorReceived( final QErrorMessage message ) {
+                    received.add(message.getCause());
+                }
+            });
+            q.startListener();
+
+            final QServer.Session session = server.getSessions().iterator().next();
+            session.async(new Object[] { "upd".toCharArray(), "bad", trades("IBM") });
+            session.async(new Object[] { "upd".toCharArray(), "trade", trades("MSFT") });
+
+            // failing message is skipped, the connection is kept
+            assertTrue(received.poll(1, TimeUnit.SECONDS) instanceof IllegalStateException);
+            final Object[] update = (Object[]) received.poll(1, TimeUnit.SECONDS);
+            assertNotNull(update);
+            assertArrayEquals(new String[] { "MSFT" }, (String[]) ((QTable) update[2]).getData()[0]);
+            assertEquals(0, q.getFilteredCount());
+            assertTrue(q.listenerThread.isAlive());
+            assertTrue(session.isConnected());
+        } finally {
+            q.close();
+            server.close();
+        }
+    }
+
+}
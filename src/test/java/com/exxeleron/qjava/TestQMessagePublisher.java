@@ -0,0 +1,169 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestQMessagePublisher {
+
+    private static class SubscriberMock implements QMessagePublisher.Subscriber {
+
+        final List<Object> received = new ArrayList<Object>();
+        QMessagePublisher.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        public void onSubscribe( final QMessagePublisher.Subscription subscription ) {
+            this.subscription = subscription;
+        }
+
+        public synchronized void onNext( final QMessage message ) {
+            received.add(message.getData());
+        }
+
+        public synchronized void onError( final Throwable throwable ) {
+            error = throwable;
+        }
+
+        public synchronized void onComplete() {
+            completed = true;
+        }
+    }
+
+    private static QMessage message( final Object data ) {
+        return new QMessage(data, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, false, 0, 0);
+    }
+
+    @Test
+    public void testBufferBlocksPublisher() throws InterruptedException {
+        final QMessagePublisher publisher = new QMessagePublisher(QMessagePublisher.OverflowStrategy.BUFFER, 2);
+        final SubscriberMock subscriber = new SubscriberMock();
+        publisher.subscribe(subscriber);
+
+        final Thread listener = new Thread() {
+
+            @Override
+            public void run() {
+                for ( int i = 0; i < 5; i++ ) {
+                    publisher.messageReceived(message(i));
+                }
+            }
+        };
+        listener.start();
+        listener.join(200);
+        assertTrue(listener.isAlive());
+        assertEquals(0, subscriber.received.size());
+
+        subscriber.subscription.request(1);
+        Thread.sleep(50);
+        assertTrue(listener.isAlive());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        listener.join(1000);
+        assertFalse(listener.isAlive());
+
+        publisher.close();
+        synchronized ( subscriber ) {
+            assertEquals(5, subscriber.received.size());
+            for ( int i = 0; i < 5; i++ ) {
+                assertEquals(i, subscriber.received.get(i));
+            }
+            assertTrue(subscriber.completed);
+        }
+    }
+
+    @Test
+    public void testDropOldest() {
+        final QMessagePublisher publisher = new QMessagePublisher(QMessagePublisher.OverflowStrategy.DROP_OLDEST, 3);
+        final SubscriberMock subscriber = new SubscriberMock();
+        publisher.subscribe(subscriber);
+
+        for ( int i = 0; i < 10; i++ ) {
+            publisher.messageReceived(message(i));
+        }
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.received.size());
+        assertEquals(7, subscriber.received.get(0));
+        assertEquals(8, subscriber.received.get(1));
+
+        publisher.errorReceived(new QErrorMessage(new QException("error")));
+        assertEquals(null, subscriber.error);
+        subscriber.subscription.request(1);
+        assertEquals(9, subscriber.received.get(2));
+        assertEquals("error", subscriber.error.getMessage());
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testTerminalErrorsOnly() {
+        final QMessagePublisher publisher = new QMessagePublisher(QMessagePublisher.OverflowStrategy.BUFFER, 10);
+        publisher.setTerminalErrorsOnly(true);
+        final SubscriberMock subscriber = new SubscriberMock();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        // reported before reconnection attempt
+        publisher.errorReceived(new QErrorMessage(new EOFException()));
+        publisher.messageReceived(message(1));
+        assertEquals(null, subscriber.error);
+        assertEquals(1, subscriber.received.size());
+        assertEquals(1, publisher.getSubscriberCount());
+
+        publisher.errorReceived(new QErrorMessage(new QConnectionException("Cannot reconnect")));
+        assertEquals("Cannot reconnect", subscriber.error.getMessage());
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testConflate() {
+        final QMessagePublisher publisher = new QMessagePublisher(QMessagePublisher.OverflowStrategy.CONFLATE, 1);
+        final SubscriberMock subscriber = new SubscriberMock();
+        publisher.subscribe(subscriber);
+
+        publisher.messageReceived(message(new Object[] { "upd", "trade", 1 }));
+        publisher.messageReceived(message(new Object[] { "upd", "quote", 2 }));
+        publisher.messageReceived(message(new Object[] { "upd", "trade", 3 }));
+        subscriber.subscription.request(10);
+
+        assertEquals(2, subscriber.received.size());
+        assertEquals(3, ((Object[]) subscriber.received.get(0))[2]);
+        assertEquals(2, ((Object[]) subscriber.received.get(1))[2]);
+
+        publisher.messageReceived(message(new Object[] { "upd", "trade", 4 }));
+        assertEquals(3, subscriber.received.size());
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        final QMessagePublisher publisher = new QMessagePublisher();
+        final SubscriberMock subscriber = new SubscriberMock();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestQMessageRelay {
+
+    private static class QueueSink implements QMessageRelay.Sink {
+
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<byte[]>();
+
+        public void write( final byte[] frame ) {
+            frames.add(frame);
+        }
+
+        public void close() {
+        }
+    }
+
+    private static byte[] serialize( final Object obj ) throws IOException, QException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final QWriter writer = new DefaultQWriter();
+        writer.setEncoding("ISO-8859-1");
+        writer.setStream(stream);
+        writer.write(obj, QConnection.MessageType.ASYNC);
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void testFanOut() throws IOException, QException, InterruptedException {
+        final QServer upstream = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) {
+                return null;
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        upstream.start();
+
+        final QBasicConnection q = new QBasicConnection("localhost", upstream.getPort(), null, null);
+        q.open();
+        final QMessageRelay relay = new QMessageRelay(q);
+        try {
+            final QueueSink first = new QueueSink();
+            final QueueSink second = new QueueSink();
+            relay.addSink(first);
+            relay.addSink(second);
+            relay.start();
+
+            final Object[] update = new Object[] { "upd".toCharArray(), "trade", new QTable(new String[] { "sym", "price" }, new Object[] {
+                    new String[] { "IBM" }, new double[] { 1.5 } }) };
+            upstream.getSessions().iterator().next().async(update);
+
+            final byte[] frame = first.frames.poll(1, TimeUnit.SECONDS);
+            assertNotNull(frame);
+            assertArrayEquals(serialize(update), frame);
+            // all sinks share the same frame
+            assertSame(frame, second.frames.poll(1, TimeUnit.SECONDS));
+            assertEquals(1, relay.getRelayedCount());
+        } finally {
+            relay.close();
+            upstream.close();
+        }
+    }
+
+    @Test
+    public void testOverflow() throws InterruptedException, IOException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final QMessageRelay.Sink slow = new QueueSink() {
+
+            @Override
+            public void write( final byte[] frame ) {
+                try {
+                    release.await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(frame);
+            }
+        };
+
+        final QMessageRelay dropping = new QMessageRelay(null, 4, QMessageRelay.OverflowStrategy.DROP);
+        dropping.addSink(slow);
+        for ( int i = 0; i < 20; i++ ) {
+            dropping.publish(new byte[] { (byte) i });
+        }
+        // one frame is being written, four are queued
+        assertEquals(15, dropping.getDroppedCount(), 1);
+        assertEquals(1, dropping.getSinkCount());
+
+        final QMessageRelay disconnecting = new QMessageRelay(null, 4, QMessageRelay.OverflowStrategy.DISCONNECT);
+        disconnecting.addSink(slow);
+        for ( int i = 0; i < 20; i++ ) {
+            disconnecting.publish(new byte[] { (byte) i });
+        }
+        assertEquals(0, disconnecting.getSinkCount());
+        release.countDown();
+    }
+
+    @Test(timeout = 5000)
+    public void testRemoveSink() throws InterruptedException, IOException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final QueueSink slow = new QueueSink() {
+
+            @Override
+            public void write( final byte[] frame ) {
+                try {
+                    release.await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(frame);
+            }
+        };
+
+        // queued frames are written after removal
+        final QMessageRelay relay = new QMessageRelay(null, 4, QMessageRelay.OverflowStrategy.DROP);
+        relay.addSink(slow);
+        for ( int i = 0; i < 3; i++ ) {
+            relay.publish(new byte[] { (byte) i });
+        }
+        relay.removeSink(slow);
+        assertEquals(0, relay.getSinkCount());
+        release.countDown();
+        for ( int i = 0; i < 3; i++ ) {
+            assertEquals(i, slow.frames.poll(1, TimeUnit.SECONDS)[0]);
+        }
+
+        // stalled sink with full queue doesn't block closing
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final QueueSink blocked = new QueueSink() {
+
+            @Override
+            public void write( final byte[] frame ) {
+                try {
+                    stalled.await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final QMessageRelay blocking = new QMessageRelay(new QBasicConnection("localhost", 0, null, null), 2, QMessageRelay.OverflowStrategy.BLOCK);
+        blocking.addSink(blocked);
+        for ( int i = 0; i < 4; i++ ) {
+            blocking.publish(new byte[] { (byte) i });
+        }
+        blocking.close();
+        assertEquals(0, blocking.getSinkCount());
+        stalled.countDown();
+    }
+
+    @Test
+    public void testFailingSinkDoesNotBlock() throws InterruptedException {
+        final CountDownLatch failing = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final QMessageRelay.Sink broken = new QMessageRelay.Sink() {
+
+            public void write( final byte[] frame ) throws IOException {
+                try {
+                    failing.await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Broken pipe");
+            }
+
+            public void close() {
+                closed.countDown();
+            }
+        };
+
+        final QMessageRelay relay = new QMessageRelay(null, 2, QMessageRelay.OverflowStrategy.BLOCK);
+        relay.addSink(broken);
+        final Thread publisher = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    for ( int i = 0; i < 10; i++ ) {
+                        relay.publish(new byte[] { (byte) i });
+                    }
+                } catch ( final InterruptedException e ) {
+                    // interrupted
+                }
+            }
+        });
+        publisher.start();
+
+        // publisher waits for the sink with full queue, until the sink fails
+        publisher.join(100);
+        assertTrue(publisher.isAlive());
+        failing.countDown();
+        publisher.join(1000);
+        assertFalse("publisher is blocked by removed sink", publisher.isAlive());
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertEquals(0, relay.getSinkCount());
+        assertEquals(10, relay.getRelayedCount());
+    }
+
+}
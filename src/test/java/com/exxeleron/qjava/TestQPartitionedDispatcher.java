@@ -0,0 +1,175 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestQPartitionedDispatcher {
+
+    private static class HandlerMock implements QPartitionedDispatcher.Handler {
+
+        final Map<String, List<Long>> received = new HashMap<String, List<Long>>();
+        final Map<String, Integer> partitions = new HashMap<String, Integer>();
+
+        public synchronized void updateReceived( final String table, final QTable rows, final int partition ) {
+            assertEquals("trade", table);
+            for ( final QTable.Row row : rows ) {
+                final String sym = (String) row.get(0);
+                List<Long> values = received.get(sym);
+                if ( values == null ) {
+                    values = new ArrayList<Long>();
+                    received.put(sym, values);
+                    partitions.put(sym, partition);
+                }
+                values.add((Long) row.get(1));
+                assertEquals(partitions.get(sym).intValue(), partition);
+            }
+        }
+    }
+
+    private static QMessage update( final String[] syms, final long[] sizes ) {
+        final QTable table = new QTable(new String[] { "sym", "size" }, new Object[] { syms, sizes });
+        return new QMessage(new Object[] { "upd", "trade", table }, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, false, 0, 0);
+    }
+
+    @Test
+    public void testOrderPerKey() {
+        final HandlerMock handler = new HandlerMock();
+        final QPartitionedDispatcher dispatcher = new QPartitionedDispatcher("sym", 4, handler, 2);
+        final String[] symbols = { "IBM", "MSFT", "GOOG", "AAPL", "ORCL", "SAP" };
+
+        long size = 0;
+        for ( int i = 0; i < 100; i++ ) {
+            final String[] syms = new String[symbols.length];
+            final long[] sizes = new long[symbols.length];
+            for ( int j = 0; j < symbols.length; j++ ) {
+                syms[j] = symbols[(i + j) % symbols.length];
+                sizes[j] = size++;
+            }
+            dispatcher.messageReceived(update(syms, sizes));
+        }
+        dispatcher.close();
+
+        assertEquals(symbols.length, handler.received.size());
+        for ( final String sym : symbols ) {
+            final List<Long> values = handler.received.get(sym);
+            assertEquals(100, values.size());
+            for ( int i = 1; i < values.size(); i++ ) {
+                assertTrue(values.get(i - 1) < values.get(i));
+            }
+            assertEquals(dispatcher.getPartition(sym), handler.partitions.get(sym).intValue());
+        }
+    }
+
+    @Test
+    public void testFallback() {
+        final HandlerMock handler = new HandlerMock();
+        final QPartitionedDispatcher dispatcher = new QPartitionedDispatcher("sym", 2, handler);
+        final List<Object> other = new ArrayList<Object>();
+        dispatcher.setFallbackListener(new QMessagesListener() {
+
+            public void messageReceived( final QMessage message ) {
+                other.add(message.getData());
+            }
+
+            public void errorReceived( final QErrorMessage message ) {
+                other.add(message.getCause());
+            }
+        });
+
+        dispatcher.messageReceived(new QMessage("heartbeat", QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, false, 0, 0));
+        dispatcher.close();
+
+        assertEquals(1, other.size());
+        assertEquals("heartbeat", other.get(0));
+    }
+
+    @Test
+    public void testTableWithoutKeyColumn() {
+        final List<Integer> partitions = new ArrayList<Integer>();
+        final QPartitionedDispatcher dispatcher = new QPartitionedDispatcher("sym", 4, new QPartitionedDispatcher.Handler() {
+
+            public synchronized void updateReceived( final String table, final QTable rows, final int partition ) {
+                assertEquals(3, rows.getRowsCount());
+                partitions.add(partition);
+            }
+        });
+
+        final QTable rows = new QTable(new String[] { "time", "price" }, new Object[] { new long[] { 1, 2, 3 }, new double[] { 1, 2, 3 } });
+        dispatcher.dispatch("stats", rows);
+        dispatcher.dispatch("stats", rows);
+        dispatcher.close();
+
+        // processed as a whole by the partition of the table name
+        assertEquals(2, partitions.size());
+        assertEquals(dispatcher.getPartition("stats"), partitions.get(0).intValue());
+        assertEquals(dispatcher.getPartition("stats"), partitions.get(1).intValue());
+    }
+
+    @Test
+    public void testInterruptedDispatch() {
+        final HandlerMock handler = new HandlerMock();
+        final QPartitionedDispatcher dispatcher = new QPartitionedDispatcher("sym", 2, handler);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        dispatcher.setFallbackListener(new QMessagesListener() {
+
+            public void messageReceived( final QMessage message ) {
+            }
+
+            public void errorReceived( final QErrorMessage message ) {
+                errors.add(message.getCause());
+            }
+        });
+
+        Thread.currentThread().interrupt();
+        dispatcher.messageReceived(update(new String[] { "IBM" }, new long[] { 1 }));
+        // interrupted status is preserved for the caller
+        assertTrue(Thread.interrupted());
+        dispatcher.close();
+
+        assertEquals(1, dispatcher.getDroppedCount());
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof QException);
+        assertTrue(errors.get(0).getCause() instanceof InterruptedException);
+        assertFalse(handler.received.containsKey("IBM"));
+    }
+
+    @Test
+    public void testConsistentHash() {
+        int moved = 0;
+        for ( int key = 0; key < 10000; key++ ) {
+            final int before = QPartitionedDispatcher.jumpConsistentHash(key, 10);
+            final int after = QPartitionedDispatcher.jumpConsistentHash(key, 11);
+            assertTrue(before >= 0 && before < 10);
+            if ( before != after ) {
+                assertEquals(10, after);
+                moved++;
+            }
+        }
+        assertTrue(moved > 500 && moved < 1400);
+    }
+
+}
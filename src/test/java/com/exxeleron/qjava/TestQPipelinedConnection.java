@@ -0,0 +1,142 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQPipelinedConnection {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                final Object[] request = (Object[]) query;
+                if ( "block".equals(new String((char[]) request[0])) ) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch ( final InterruptedException e ) {
+                        throw new QException("interrupted");
+                    }
+                }
+                return request[1];
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        server.close();
+    }
+
+    @Test
+    public void testResponsesMatchedInOrder() throws IOException, QException {
+        final QPipelinedConnection q = new QPipelinedConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            final List<QResponseFuture> futures = new ArrayList<QResponseFuture>();
+            for ( long i = 0; i < 100; i++ ) {
+                futures.add(q.submit("echo", i));
+            }
+            for ( int i = 0; i < futures.size(); i++ ) {
+                assertEquals((long) i, futures.get(i).getResult());
+            }
+            assertEquals(0, q.getPendingCount());
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testPendingFailedOnDisconnect() throws IOException, QException, InterruptedException {
+        final QPipelinedConnection q = new QPipelinedConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            final QResponseFuture blocked = q.submit("block", 1L);
+            final QResponseFuture queued = q.submit("echo", 2L);
+            assertEquals(2, q.getPendingCount());
+
+            server.getSessions().iterator().next().close();
+            for ( final QResponseFuture future : new QResponseFuture[] { blocked, queued } ) {
+                try {
+                    future.getResult(1, TimeUnit.SECONDS);
+                    fail("Expected IOException");
+                } catch ( final IOException e ) {
+                    // connection lost
+                } catch ( final TimeoutException e ) {
+                    fail("Pending query has not been failed");
+                }
+            }
+            assertEquals(0, q.getPendingCount());
+            assertFalse(q.isConnected());
+
+            try {
+                q.submit("echo", 3L);
+                fail("Expected IOException");
+            } catch ( final IOException e ) {
+                // pipeline is closed
+            }
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testDeadlineDiscardsLateResponse() throws IOException, QException {
+        final QPipelinedConnection q = new QPipelinedConnection("localhost", server.getPort(), null, null);
+        q.open();
+        try {
+            try {
+                q.sync(50, TimeUnit.MILLISECONDS, "block", 1L);
+                fail("Expected SocketTimeoutException");
+            } catch ( final SocketTimeoutException e ) {
+                // deadline exceeded
+            }
+            final QResponseFuture next = q.submit("echo", 2L);
+
+            // late response is drained, the next one is matched to its query
+            release.countDown();
+            assertEquals(2L, next.getResult());
+            assertEquals(3L, q.sync("echo", 3L));
+            assertEquals(0, q.getPendingCount());
+        } finally {
+            q.close();
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestQRingBufferDispatcher {
+
+    private static class ListenerMock implements QMessagesListener {
+
+        final List<Object> received = new ArrayList<Object>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        long delay;
+
+        public void messageReceived( final QMessage message ) {
+            if ( delay > 0 ) {
+                try {
+                    Thread.sleep(delay);
+                } catch ( final InterruptedException e ) {
+                    // ignore
+                }
+            }
+            if ( message.getData() == null ) {
+                throw new IllegalStateException("null");
+            }
+            received.add(message.getData());
+        }
+
+        public void errorReceived( final QErrorMessage message ) {
+            errors.add(message.getCause());
+        }
+    }
+
+    private static QMessage message( final Object data ) {
+        return new QMessage(data, QConnection.MessageType.ASYNC, ByteOrder.LITTLE_ENDIAN, false, false, 0, 0);
+    }
+
+    private static void testDispatch( final QRingBufferDispatcher.WaitStrategy waitStrategy ) {
+        final QRingBufferDispatcher dispatcher = new QRingBufferDispatcher(8, waitStrategy);
+        final ListenerMock fast = new ListenerMock();
+        final ListenerMock slow = new ListenerMock();
+        slow.delay = 1;
+        dispatcher.addMessagesListener(fast);
+        dispatcher.addMessagesListener(slow);
+
+        for ( int i = 0; i < 100; i++ ) {
+            dispatcher.messageReceived(message(i));
+        }
+        dispatcher.errorReceived(new QErrorMessage(new QException("error")));
+        dispatcher.close();
+
+        for ( final ListenerMock listener : new ListenerMock[] { fast, slow } ) {
+            assertEquals(100, listener.received.size());
+            for ( int i = 0; i < 100; i++ ) {
+                assertEquals(i, listener.received.get(i));
+            }
+            assertEquals(1, listener.errors.size());
+            assertEquals("error", listener.errors.get(0).getMessage());
+        }
+        assertEquals(0, dispatcher.getBacklog());
+    }
+
+    @Test
+    public void testBusySpin() {
+        testDispatch(QRingBufferDispatcher.WaitStrategy.BUSY_SPIN);
+    }
+
+    @Test
+    public void testYield() {
+        testDispatch(QRingBufferDispatcher.WaitStrategy.YIELD);
+    }
+
+    @Test
+    public void testPark() {
+        testDispatch(QRingBufferDispatcher.WaitStrategy.PARK);
+    }
+
+    @Test
+    public void testListenerFailure() {
+        final QRingBufferDispatcher dispatcher = new QRingBufferDispatcher(2, QRingBufferDispatcher.WaitStrategy.PARK);
+        final ListenerMock listener = new ListenerMock();
+        dispatcher.addMessagesListener(listener);
+
+        dispatcher.messageReceived(message(null));
+        for ( int i = 0; i < 10; i++ ) {
+            dispatcher.messageReceived(message(i));
+        }
+        dispatcher.close();
+
+        assertEquals(10, listener.received.size());
+        assertEquals(1, listener.errors.size());
+        assertTrue(listener.errors.get(0) instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testConsumedSlotsReleased() throws InterruptedException {
+        final QRingBufferDispatcher dispatcher = new QRingBufferDispatcher(64, QRingBufferDispatcher.WaitStrategy.PARK);
+        final ListenerMock first = new ListenerMock();
+        final ListenerMock second = new ListenerMock();
+        dispatcher.addMessagesListener(first);
+        dispatcher.addMessagesListener(second);
+
+        Object data = new byte[1024];
+        final WeakReference<Object> reference = new WeakReference<Object>(data);
+        dispatcher.messageReceived(message(data));
+        for ( int i = 0; i < 100 && dispatcher.getBacklog() > 0; i++ ) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dispatcher.getBacklog());
+
+        // the ring buffer doesn't retain the message once consumed by both listeners
+        first.received.clear();
+        second.received.clear();
+        data = null;
+        for ( int i = 0; i < 10 && reference.get() != null; i++ ) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testCloseWithBlockedListener() {
+        final CountDownLatch release = new CountDownLatch(1);
+        final QRingBufferDispatcher dispatcher = new QRingBufferDispatcher(8, QRingBufferDispatcher.WaitStrategy.PARK);
+        dispatcher.addMessagesListener(new ListenerMock() {
+
+            @Override
+            public void messageReceived( final QMessage message ) {
+                try {
+                    release.await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        dispatcher.messageReceived(message(1));
+
+        final long start = System.currentTimeMillis();
+        dispatcher.close();
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        release.countDown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new QRingBufferDispatcher(10, QRingBufferDispatcher.WaitStrategy.PARK);
+    }
+
+}
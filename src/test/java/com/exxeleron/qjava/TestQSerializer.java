@@ -0,0 +1,111 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestQSerializer {
+
+    @Test
+    public void testRoundTrip() throws IOException, QException {
+        final QSerializer serializer = new QSerializer();
+        final QTable table = new QTable(new String[] { "sym", "price" }, new Object[] { new String[] { "IBM", "MSFT" }, new double[] { 1.5, 2.5 } });
+
+        final byte[] message = serializer.serialize(table);
+        assertEquals(message.length, ByteBuffer.wrap(message, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt());
+        assertEquals(table, serializer.deserialize(message));
+
+        // consecutive messages in heap and direct buffers
+        for ( final ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(1024), ByteBuffer.allocateDirect(1024) } ) {
+            final int first = serializer.serialize(table, false, buffer);
+            final int second = serializer.serialize("IBM", false, buffer);
+            assertEquals(first + second, buffer.position());
+
+            buffer.flip();
+            assertEquals(table, serializer.deserialize(buffer));
+            assertEquals("IBM", serializer.deserialize(buffer));
+            assertEquals(0, buffer.remaining());
+        }
+
+        try {
+            serializer.serialize(table, false, ByteBuffer.allocate(16));
+            fail("Expected QWriterException");
+        } catch ( final QWriterException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompression() throws IOException, QException {
+        final QExpressions qe = new QExpressions("src/test/resources/QCompressedExpressions.out");
+        final Map<String, Object> reference = new HashMap<String, Object>();
+
+        final String[] q1000 = new String[1000];
+        final Object[] q200 = new Object[] { new int[200], new int[200], new String[200] };
+        for ( int i = 0; i < q1000.length; i++ ) {
+            q1000[i] = "q";
+        }
+        for ( int i = 0; i < 200; i++ ) {
+            ((int[]) q200[0])[i] = i;
+            ((int[]) q200[1])[i] = i + 25;
+            ((String[]) q200[2])[i] = "a";
+        }
+
+        reference.put("1000#`q", q1000);
+        reference.put("([] q:1000#`q)", new QTable(new String[] { "q" }, new Object[] { q1000 }));
+        reference.put("([] a:til 200;b:25+til 200;c:200#`a)", new QTable(new String[] { "a", "b", "c" }, q200));
+
+        final QSerializer serializer = new QSerializer();
+        for ( final String expr : qe.getExpressions() ) {
+            final byte[] message = serializer.serialize(reference.get(expr), true);
+            assertEquals("Compression failed for q expression: " + expr, 1, message[2]);
+
+            // compressed payload is identical to the one produced by kdb+
+            final byte[] data = new byte[message.length - 8];
+            System.arraycopy(message, 8, data, 0, data.length);
+            assertArrayEquals("Compression failed for q expression: " + expr, qe.getBinaryExpression(expr), data);
+        }
+
+        // incompressible data is sent as is
+        final byte[] noise = new byte[4096];
+        new Random(42).nextBytes(noise);
+        final byte[] message = serializer.serialize(noise, true);
+        assertEquals(0, message[2]);
+        assertArrayEquals(noise, (byte[]) serializer.deserialize(message));
+
+        // round trip of partially repetitive data
+        final long[] values = new long[10000];
+        final Random random = new Random(7);
+        for ( int i = 0; i < values.length; i++ ) {
+            values[i] = random.nextInt(16);
+        }
+        final byte[] compressed = serializer.serialize(values, true);
+        assertEquals(1, compressed[2]);
+        assertArrayEquals(values, (long[]) serializer.deserialize(compressed));
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQServer {
+
+    private final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+    private QServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                if ( query instanceof char[] && "user".equals(new String((char[]) query)) ) {
+                    return session.getUsername();
+                } else if ( query instanceof Object[] && "add".equals(new String((char[]) ((Object[]) query)[0])) ) {
+                    return (Long) ((Object[]) query)[1] + (Long) ((Object[]) query)[2];
+                }
+                throw new QException("nyi");
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+                received.add(message);
+            }
+        });
+        server.setAuthenticator(new QServer.Authenticator() {
+
+            public boolean authenticate( final String username, final String password ) {
+                return !"guest".equals(username);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testSyncAndAsync() throws IOException, QException, InterruptedException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), "alice", "secret");
+        q.open();
+        try {
+            assertEquals(3, q.getProtocolVersion());
+            assertEquals("alice", q.sync("user"));
+            assertEquals(5L, q.sync("add", 2L, 3L));
+
+            try {
+                q.sync("unknown");
+                fail("Expected q error");
+            } catch ( final QException e ) {
+                assertEquals("nyi", e.getMessage());
+            }
+
+            q.async("log", "message");
+            final Object[] message = (Object[]) received.poll(1, TimeUnit.SECONDS);
+            assertArrayEquals("log".toCharArray(), (char[]) message[0]);
+            assertEquals("message", message[1]);
+
+            assertEquals(1, server.getSessions().size());
+            server.getSessions().iterator().next().async(new Object[] { "upd".toCharArray(), "trade", 1L });
+            final Object[] update = (Object[]) q.receive(true, false);
+            assertEquals("trade", update[1]);
+        } finally {
+            q.close();
+        }
+    }
+
+    @Test
+    public void testAuthentication() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", server.getPort(), "guest", null);
+        try {
+            q.open();
+            fail("Expected connection to be denied");
+        } catch ( final QConnectionException e ) {
+            assertTrue(server.getSessions().isEmpty());
+        } finally {
+            q.close();
+        }
+    }
+
+}
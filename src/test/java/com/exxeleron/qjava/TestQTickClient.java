@@ -0,0 +1,221 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQTickClient {
+
+    private static final QTable TRADE = new QTable(new String[] { "sym", "price" }, new Object[] { new String[0], new double[0] });
+    private static final QTable QUOTE = new QTable(new String[] { "sym", "bid", "ask" }, new Object[] { new String[0], new double[0], new double[0] });
+
+    private final BlockingQueue<Object> subscriptions = new LinkedBlockingQueue<Object>();
+    private final BlockingQueue<Object> unsubscriptions = new LinkedBlockingQueue<Object>();
+    private final AtomicReference<QTable> trade = new AtomicReference<QTable>(TRADE);
+    private QServer server;
+    private QCallbackConnection q;
+
+    @Before
+    public void setUp() throws IOException, QException {
+        server = new QServer(0, new QServer.Handler() {
+
+            public Object syncReceived( final QServer.Session session, final Object query ) throws QException {
+                final Object[] request = (Object[]) query;
+                if ( !".u.sub".equals(new String((char[]) request[0])) ) {
+                    throw new QException("nyi");
+                }
+                subscriptions.add(request[2]);
+                if ( "trade".equals(request[1]) ) {
+                    return new Object[] { "trade", trade.get() };
+                } else if ( "quote".equals(request[1]) ) {
+                    // list of (table; schema) pairs, as returned for multiple tables
+                    return new Object[] { new Object[] { "quote", QUOTE }, new Object[] { "trade", trade.get() } };
+                }
+                throw new QException(String.valueOf(request[1]));
+            }
+
+            public void asyncReceived( final QServer.Session session, final Object message ) {
+                final Object[] request = (Object[]) message;
+                if ( QTickClient.DEFAULT_UNSUBSCRIBE_FUNCTION.equals(new String((char[]) request[0])) ) {
+                    unsubscriptions.add(request[1]);
+                }
+            }
+        });
+        server.start();
+        q = new QCallbackConnection("localhost", server.getPort(), null, null);
+        q.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        q.close();
+        server.close();
+    }
+
+    private QServer.Session session() throws InterruptedException {
+        for ( int i = 0; i < 100 && server.getSessions().isEmpty(); i++ ) {
+            Thread.sleep(10);
+        }
+        return server.getSessions().iterator().next();
+    }
+
+    /**
+     * Handler recording received updates.
+     */
+    private static class Recorder implements QUpdateHandler {
+
+        final BlockingQueue<Object[]> updates = new LinkedBlockingQueue<Object[]>();
+
+        public void updateReceived( final String table, final QTable rows ) {
+            updates.add(new Object[] { table, rows });
+        }
+    }
+
+    @Test
+    public void testSchemaCaching() throws IOException, QException, InterruptedException {
+        final QTickClient tick = new QTickClient(q);
+        assertNull(tick.getSchema("trade"));
+
+        assertArrayEquals(TRADE.getColumns(), tick.subscribe("trade", new String[] { "IBM", "MSFT" }, new Recorder()).getColumns());
+        assertArrayEquals(new String[] { "IBM", "MSFT" }, (String[]) subscriptions.poll(1, TimeUnit.SECONDS));
+        assertArrayEquals(TRADE.getColumns(), tick.getSchema("trade").getColumns());
+
+        assertArrayEquals(QUOTE.getColumns(), tick.subscribe("quote", new Recorder()).getColumns());
+        // all symbols
+        assertEquals("", subscriptions.poll(1, TimeUnit.SECONDS));
+        assertArrayEquals(TRADE.getColumns(), tick.getSchema("trade").getColumns());
+    }
+
+    @Test
+    public void testRouting() throws IOException, QException, InterruptedException {
+        final QTickClient tick = new QTickClient(q);
+        final Recorder trades = new Recorder();
+        final BlockingQueue<Object> fallback = new LinkedBlockingQueue<Object>();
+        tick.setFallbackListener(new QMessagesListener() {
+
+            public void messageReceived( final QMessage message ) {
+                fallback.add(message.getData());
+            }
+
+            public void errorReceived( final QErrorMessage message ) {
+                fallback.add(message);
+            }
+        });
+        q.addMessagesListener(tick);
+        tick.subscribe("trade", trades);
+        q.startListener();
+
+        final QTable rows = new QTable(TRADE.getColumns(), new Object[] { new String[] { "IBM" }, new double[] { 1.5 } });
+        final QServer.Session session = session();
+        session.async(new Object[] { "upd".toCharArray(), "trade", rows });
+        // not subscribed table and not an update
+        session.async(new Object[] { "upd".toCharArray(), "quote", rows });
+        session.async("heartbeat");
+
+        final Object[] update = trades.updates.poll(1, TimeUnit.SECONDS);
+        assertEquals("trade", update[0]);
+        assertArrayEquals(new double[] { 1.5 }, (double[]) ((QTable) update[1]).getData()[1], 0);
+
+        final Object[] other = (Object[]) fallback.poll(1, TimeUnit.SECONDS);
+        assertEquals("quote", other[1]);
+        assertEquals("heartbeat", fallback.poll(1, TimeUnit.SECONDS));
+        assertEquals(1, tick.getUpdateCount());
+        assertTrue(trades.updates.isEmpty());
+
+        tick.errorReceived(new QErrorMessage(new QException("error")));
+        assertTrue(fallback.poll(1, TimeUnit.SECONDS) instanceof QErrorMessage);
+
+        // removed handler unsubscribes, updates still in flight are passed to the fallback listener
+        tick.removeHandler("trade");
+        assertEquals("trade", unsubscriptions.poll(1, TimeUnit.SECONDS));
+        assertNull(tick.getSchema("trade"));
+        session.async(new Object[] { "upd".toCharArray(), "trade", rows });
+        assertEquals("trade", ((Object[]) fallback.poll(1, TimeUnit.SECONDS))[1]);
+    }
+
+    @Test
+    public void testFailedSubscription() throws IOException, QException {
+        final QTickClient tick = new QTickClient(q);
+        try {
+            tick.subscribe("unknown", new Recorder());
+            fail("Expected QException");
+        } catch ( final QException e ) {
+            assertEquals("unknown", e.getMessage());
+        }
+        assertFalse(tick.getTables().contains("unknown"));
+        assertNull(tick.getSchema("unknown"));
+
+        // handler of already subscribed table is kept
+        final Recorder trades = new Recorder();
+        tick.subscribe("trade", trades);
+        tick.setSubscribeFunction(".u.missing");
+        try {
+            tick.subscribe("trade", new Recorder());
+            fail("Expected QException");
+        } catch ( final QException e ) {
+            assertEquals("nyi", e.getMessage());
+        }
+        assertEquals(1, tick.getTables().size());
+
+        final QTable rows = new QTable(TRADE.getColumns(), new Object[] { new String[] { "IBM" }, new double[] { 1.5 } });
+        tick.messageReceived(new QMessage(new Object[] { "upd", "trade", rows }, QConnection.MessageType.ASYNC, null, false, false, 0, 0));
+        assertEquals(1, trades.updates.size());
+    }
+
+    @Test
+    public void testSchemaRefreshedOnReconnect() throws IOException, QException, InterruptedException {
+        q.setReconnectPolicy(new QReconnectPolicy(10, 100));
+        final QTickClient tick = new QTickClient(q);
+        q.addMessagesListener(tick);
+        tick.subscribe("trade", new Recorder());
+        tick.subscribe("quote", new Recorder());
+        tick.removeHandler("quote");
+        q.startListener();
+
+        // tickerplant restarted with changed schema
+        final QTable changed = new QTable(new String[] { "sym", "price", "size" }, new Object[] { new String[0], new double[0], new long[0] });
+        trade.set(changed);
+        subscriptions.clear();
+        session().close();
+        // reconnect listeners are notified after the reconnect count is incremented
+        for ( int i = 0; i < 100 && tick.getSchema("trade").getColumnsCount() != 3; i++ ) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, q.getReconnectCount());
+
+        assertArrayEquals(changed.getColumns(), tick.getSchema("trade").getColumns());
+        // removed subscription is not renewed
+        assertEquals("", subscriptions.poll(1, TimeUnit.SECONDS));
+        assertNull(subscriptions.poll(100, TimeUnit.MILLISECONDS));
+        assertNull(tick.getSchema("quote"));
+    }
+
+}
@@ -0,0 +1,187 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestQTickLogReader {
+
+    private static final int ENTRIES = 100;
+
+    private static File createLog( final int entries, final int truncatedBytes ) throws IOException, QException {
+        final Object[] updates = new Object[entries];
+        for ( int i = 0; i < entries; i++ ) {
+            updates[i] = new QTable(new String[] { "sym", "price", "size" }, new Object[] { new String[] { "IBM", "MSFT" }, new double[] { i, i + 0.5 },
+                    new long[] { i, i } });
+        }
+        return createLog(updates, truncatedBytes);
+    }
+
+    private static File createLog( final Object[] updates, final int truncatedBytes ) throws IOException, QException {
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(new byte[] { (byte) 0xff, 0x01, 0, 0, (byte) updates.length, 0, 0, 0 });
+
+        final QWriter writer = new DefaultQWriter();
+        writer.setEncoding("ISO-8859-1");
+        for ( int i = 0; i < updates.length; i++ ) {
+            final ByteArrayOutputStream message = new ByteArrayOutputStream();
+            writer.setStream(message);
+            writer.write(new Object[] { "upd".toCharArray(), "trade", updates[i] }, QConnection.MessageType.ASYNC);
+            // tickerplant log contains serialized objects without IPC header
+            log.write(message.toByteArray(), 8, message.size() - 8 - (i == updates.length - 1 ? truncatedBytes : 0));
+        }
+
+        final File file = File.createTempFile("qjava", ".tplog");
+        file.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            log.writeTo(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testReadAndSeek() throws IOException, QException {
+        // small segments exercise entries spanning multiple mappings
+        final QTickLogReader log = new QTickLogReader(createLog(ENTRIES, 0), "ISO-8859-1", 6);
+        try {
+            assertEquals(ENTRIES, log.getEntryCount());
+            assertFalse(log.isTruncated());
+            assertEquals(log.getFile().length(), log.getValidLength());
+
+            final Object[] entry = (Object[]) log.read(42);
+            assertArrayEquals("upd".toCharArray(), (char[]) entry[0]);
+            assertEquals("trade", entry[1]);
+            assertArrayEquals(new double[] { 42, 42.5 }, (double[]) ((QTable) entry[2]).getData()[1], 0);
+
+            final AtomicLong sum = new AtomicLong();
+            final int replayed = log.replay(new QMessagesListener() {
+
+                public void messageReceived( final QMessage message ) {
+                    final QTable rows = (QTable) ((Object[]) message.getData())[2];
+                    sum.addAndGet(((long[]) rows.getData()[2])[0]);
+                }
+
+                public void errorReceived( final QErrorMessage message ) {
+                }
+            }, 90, ENTRIES);
+            assertEquals(10, replayed);
+            assertEquals(945, sum.get());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedTail() throws IOException, QException {
+        final QTickLogReader log = new QTickLogReader(createLog(10, 5));
+        try {
+            assertEquals(9, log.getEntryCount());
+            assertTrue(log.isTruncated());
+            assertEquals(log.getOffset(9), log.getValidLength());
+            assertTrue(log.getValidLength() < log.getFile().length());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void testParallelScan() throws IOException, QException, InterruptedException {
+        final QTickLogReader log = new QTickLogReader(createLog(ENTRIES, 0));
+        try {
+            final int[] bounds = log.split(4);
+            assertEquals(5, bounds.length);
+            assertEquals(0, bounds[0]);
+            assertEquals(ENTRIES, bounds[4]);
+            for ( int i = 1; i < bounds.length; i++ ) {
+                assertTrue(bounds[i] > bounds[i - 1]);
+            }
+
+            final AtomicLong count = new AtomicLong();
+            final AtomicLong sum = new AtomicLong();
+            assertEquals(ENTRIES, log.scan(4, new QMessagesListener() {
+
+                public void messageReceived( final QMessage message ) {
+                    final QTable rows = (QTable) ((Object[]) message.getData())[2];
+                    count.incrementAndGet();
+                    sum.addAndGet(((long[]) rows.getData()[2])[0]);
+                }
+
+                public void errorReceived( final QErrorMessage message ) {
+                }
+            }));
+            assertEquals(ENTRIES, count.get());
+            assertEquals(ENTRIES * (ENTRIES - 1) / 2, sum.get());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void testColumnLists() throws IOException, QException {
+        // tickerplant logs lists of columns, atoms for a single row
+        final QTickLogReader log = new QTickLogReader(createLog(new Object[] {
+                new Object[] { new String[] { "IBM", "MSFT" }, new double[] { 10, 20 }, new long[] { 1, 2 } },
+                new Object[] { "IBM", 11.5, 3L } }, 0));
+        try {
+            final QLastValueCache cache = new QLastValueCache("trade", "sym");
+            assertEquals(2, log.replay(cache, 0, log.getEntryCount()));
+            // not a table without schema
+            assertEquals(0, cache.size());
+            assertTrue(((Object[]) log.read(0))[2] instanceof Object[]);
+
+            log.setSchema("trade", new String[] { "sym", "price", "size" });
+            final QTable rows = (QTable) ((Object[]) log.read(1))[2];
+            assertEquals(1, rows.getRowsCount());
+            assertArrayEquals(new long[] { 3 }, (long[]) rows.getData()[2]);
+
+            assertEquals(2, log.replay(cache, 0, log.getEntryCount()));
+            assertEquals(2, cache.size());
+            assertEquals(11.5, cache.getDouble("IBM", "price"), 0);
+            assertEquals(3, cache.getLong("IBM", "size"));
+            assertEquals(20, cache.getDouble("MSFT", "price"), 0);
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test(expected = QReaderException.class)
+    public void testInvalidFile() throws IOException, QException {
+        final File file = File.createTempFile("qjava", ".tplog");
+        file.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        } finally {
+            out.close();
+        }
+        new QTickLogReader(file);
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ *  Copyright (c) 2011-2015 Exxeleron GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exxeleron.qjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs only with Java 16 or newer, which supports Unix domain sockets.
+ */
+public class TestUnixDomainSockets {
+
+    private File path;
+    private ServerSocketChannel server;
+    private Thread acceptor;
+
+    @Before
+    public void setUp() throws Exception {
+        final SocketAddress address;
+        try {
+            path = new File(System.getProperty("java.io.tmpdir"), "qjava-" + System.nanoTime() + ".sock");
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path.getPath());
+        } catch ( final ClassNotFoundException e ) {
+            Assume.assumeNoException(e);
+            return;
+        }
+
+        server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null,
+                StandardProtocolFamily.valueOf("UNIX"));
+        server.bind(address);
+        acceptor = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    while ( true ) {
+                        serve(server.accept());
+                    }
+                } catch ( final IOException e ) {
+                    // closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if ( server != null ) {
+            server.close();
+            acceptor.join(1000);
+        }
+        if ( path != null ) {
+            path.delete();
+        }
+    }
+
+    /**
+     * Minimal q service: answers the handshake and echoes the parameter of <code>echo</code> queries. Other queries
+     * are never answered.
+     */
+    private static void serve( final SocketChannel channel ) {
+        final Thread session = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    final DataInputStream input = new DataInputStream(UnixDomainSockets.newInputStream(channel));
+                    final OutputStream output = UnixDomainSockets.newOutputStream(channel);
+                    while ( input.readByte() != 0 ) {
+                        // credentials and capability
+                    }
+                    output.write(3);
+
+                    final QWriter writer = new DefaultQWriter();
+                    writer.setStream(output);
+                    writer.setEncoding("ISO-8859-1");
+                    final QReader reader = new DefaultQReader();
+                    reader.setEncoding("ISO-8859-1");
+                    while ( true ) {
+                        final byte[] header = new byte[8];
+                        input.readFully(header);
+                        final int size = (header[4] & 0xff) | (header[5] & 0xff) << 8 | (header[6] & 0xff) << 16 | (header[7] & 0xff) << 24;
+                        final byte[] data = new byte[size - 8];
+                        input.readFully(data);
+
+                        final Object[] request = (Object[]) reader.parse(
+                                new QMessage(data, QConnection.MessageType.SYNC, ByteOrder.LITTLE_ENDIAN, false, true, size, size - 8)).getData();
+                        if ( "echo".equals(new String((char[]) request[0])) ) {
+                            writer.write(request[1], QConnection.MessageType.RESPONSE);
+                        }
+                    }
+                } catch ( final Exception e ) {
+                    // disconnected
+                }
+            }
+        });
+        session.setDaemon(true);
+        session.start();
+    }
+
+    @Test
+    public void testSync() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", 0, null, null);
+        q.setUnixDomainSocketPath(path.getPath());
+        q.open();
+        try {
+            assertNotNull(q.channel);
+            assertNull(q.connection);
+            assertEquals(3, q.getProtocolVersion());
+            for ( long i = 0; i < 10; i++ ) {
+                assertEquals(i, q.sync("echo", i));
+            }
+        } finally {
+            q.close();
+        }
+        assertFalse(q.isConnected());
+    }
+
+    @Test
+    public void testQueryDeadline() throws IOException, QException {
+        final QBasicConnection q = new QBasicConnection("localhost", 0, null, null);
+        q.setUnixDomainSocketPath(path.getPath());
+        q.open();
+        try {
+            assertEquals(1L, q.sync(500, TimeUnit.MILLISECONDS, "echo", 1L));
+            final SocketChannel channel = q.channel;
+
+            final long start = System.currentTimeMillis();
+            try {
+                q.sync(100, TimeUnit.MILLISECONDS, "ignore", 2L);
+                fail("Expected SocketTimeoutException");
+            } catch ( final SocketTimeoutException e ) {
+                assertTrue(System.currentTimeMillis() - start < 500);
+            }
+            // the watchdog has closed the channel the response was awaited on
+            assertFalse(channel.isOpen());
+            assertNull(q.channel);
+        } finally {
+            q.close();
+        }
+    }
+
+}